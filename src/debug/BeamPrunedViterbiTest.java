@@ -0,0 +1,169 @@
+package debug;
+
+import java.util.Random;
+
+import edu.ucsd.asr.*;
+
+/**
+ * Checks that BeamPrunedViterbi with a wide beam gives the same labels (and
+ * scores) of the Viterbi without pruning of ViterbiWorkspace, and so does
+ * StreamingViterbi (which gives -1 when no HMM reaches its exit state), then
+ * measures the accuracy / speed trade-off of narrower beams. The HMMs and the
+ * segments are synthetic (see SyntheticHMMs), including segments shorter
+ * than the HMMs, for which no HMM reaches its exit state.
+ */
+public class BeamPrunedViterbiTest {
+
+	public static void main(String[] args) {
+		if (args.length != 0 && args.length != 4) {
+			System.out
+					.println("BeamPrunedViterbiTest <# of HMMs> <# of Gaussians per mixture> <space dimension> <# of segments>");
+			System.exit(1);
+		}
+		int nnumberOfHMMs = 20;
+		int nnumberOfGaussians = 8;
+		int nspaceDimension = 13;
+		int nnumberOfSegments = 400;
+		if (args.length == 4) {
+			nnumberOfHMMs = Integer.parseInt(args[0]);
+			nnumberOfGaussians = Integer.parseInt(args[1]);
+			nspaceDimension = Integer.parseInt(args[2]);
+			nnumberOfSegments = Integer.parseInt(args[3]);
+		}
+		int nnumberOfStates = 5;
+
+		Random random = new Random(1);
+		SyntheticHMMs syntheticHMMs = new SyntheticHMMs(nnumberOfHMMs,
+				nnumberOfStates, nnumberOfGaussians, nspaceDimension, random);
+		ContinuousHMM[] continuousHMMs = syntheticHMMs.getHMMs();
+		Pattern[] patterns = new Pattern[nnumberOfSegments];
+		int[] ncorrectHMMs = new int[nnumberOfSegments];
+		for (int i = 0; i < nnumberOfSegments; i++) {
+			ncorrectHMMs[i] = random.nextInt(nnumberOfHMMs);
+			patterns[i] = syntheticHMMs.generatePattern(ncorrectHMMs[i], random);
+		}
+		// too short to reach the exit state of any HMM
+		patterns[0] = new Pattern(new float[nnumberOfStates - 3][nspaceDimension]);
+
+		DiagonalGaussianScorer diagonalGaussianScorer = DiagonalGaussianScorer
+				.createForHMMs(continuousHMMs);
+		ViterbiWorkspace viterbiWorkspace = new ViterbiWorkspace(true);
+		viterbiWorkspace.setDiagonalGaussianScorer(diagonalGaussianScorer);
+
+		// twice to warm up the JIT compiler
+		ClassificationResult[] nunprunedResults = null;
+		long lunprunedTime = 0;
+		for (int n = 0; n < 2; n++) {
+			long lstart = System.currentTimeMillis();
+			nunprunedResults = classify(continuousHMMs, viterbiWorkspace,
+					patterns);
+			lunprunedTime = System.currentTimeMillis() - lstart;
+		}
+		Print.dialog("No pruning: accuracy = "
+				+ IO.format(getAccuracy(nunprunedResults, ncorrectHMMs))
+				+ "%, " + lunprunedTime + " ms");
+
+		// a wide beam must not change anything
+		float[] fwideBeams = { Float.POSITIVE_INFINITY, 1.0E6F };
+		boolean oisOK = true;
+		for (int n = 0; n < fwideBeams.length; n++) {
+			BeamPrunedViterbi beamPrunedViterbi = new BeamPrunedViterbi(
+					diagonalGaussianScorer, fwideBeams[n]);
+			viterbiWorkspace.setBeamPrunedViterbi(beamPrunedViterbi);
+			ClassificationResult[] results = classify(continuousHMMs,
+					viterbiWorkspace, patterns);
+			double dmaximumDifference = 0;
+			for (int i = 0; i < results.length; i++) {
+				if (results[i].getBestModel() != nunprunedResults[i]
+						.getBestModel()) {
+					Print.error("Segment " + i + ": beam " + fwideBeams[n]
+							+ " chose HMM " + results[i].getBestModel()
+							+ " instead of "
+							+ nunprunedResults[i].getBestModel());
+					oisOK = false;
+				}
+				dmaximumDifference = Math.max(dmaximumDifference, Math
+						.abs(results[i].getBestScore()
+								- nunprunedResults[i].getBestScore()));
+			}
+			Print.dialog("Beam " + fwideBeams[n]
+					+ ": maximum difference of best scores = "
+					+ dmaximumDifference);
+			Print.dialog(beamPrunedViterbi.getStatistics());
+
+			StreamingViterbi streamingViterbi = new StreamingViterbi(
+					continuousHMMs, fwideBeams[n]);
+			for (int i = 0; i < patterns.length; i++) {
+				streamingViterbi.reset();
+				streamingViterbi.addFrames(patterns[i]);
+				int nbestModel = streamingViterbi.finish().getBestModel();
+				int nexpectedModel = nunprunedResults[i].getBestModel();
+				if (nunprunedResults[i].getBestScore()
+						* patterns[i].getNumOfFrames() <= LogDomainCalculator.m_fSMALL_NUMBER) {
+					nexpectedModel = -1;
+				}
+				if (nbestModel != nexpectedModel) {
+					Print.error("Segment " + i + ": StreamingViterbi with beam "
+							+ fwideBeams[n] + " chose HMM " + nbestModel
+							+ " instead of " + nexpectedModel);
+					oisOK = false;
+				}
+			}
+		}
+		if (!oisOK) {
+			Print.error("WRONG");
+			System.exit(1);
+		}
+		Print.dialog("OK, wide beams gave the same labels with BeamPrunedViterbi and StreamingViterbi");
+
+		float[] fbeams = { 400, 200, 100, 50, 20 };
+		for (int n = 0; n < fbeams.length; n++) {
+			BeamPrunedViterbi beamPrunedViterbi = new BeamPrunedViterbi(
+					diagonalGaussianScorer, fbeams[n]);
+			viterbiWorkspace.setBeamPrunedViterbi(beamPrunedViterbi);
+			classify(continuousHMMs, viterbiWorkspace, patterns);
+			beamPrunedViterbi.resetStatistics();
+			long lstart = System.currentTimeMillis();
+			ClassificationResult[] results = classify(continuousHMMs,
+					viterbiWorkspace, patterns);
+			long ltime = System.currentTimeMillis() - lstart;
+			int nchanged = 0;
+			for (int i = 0; i < results.length; i++) {
+				if (results[i].getBestModel() != nunprunedResults[i]
+						.getBestModel()) {
+					nchanged++;
+				}
+			}
+			Print.dialog("Beam " + fbeams[n] + ": accuracy = "
+					+ IO.format(getAccuracy(results, ncorrectHMMs)) + "%, "
+					+ nchanged + " decisions changed, " + ltime
+					+ " ms (speedup = "
+					+ IO.format(((double) lunprunedTime) / Math.max(1, ltime))
+					+ ")");
+			Print.dialog(beamPrunedViterbi.getStatistics());
+		}
+	}
+
+	private static ClassificationResult[] classify(
+			ContinuousHMM[] continuousHMMs, ViterbiWorkspace viterbiWorkspace,
+			Pattern[] patterns) {
+		ClassificationResult[] results = new ClassificationResult[patterns.length];
+		for (int i = 0; i < patterns.length; i++) {
+			results[i] = viterbiWorkspace.classify(continuousHMMs, patterns[i],
+					0, false);
+		}
+		return results;
+	}
+
+	private static double getAccuracy(ClassificationResult[] results,
+			int[] ncorrectHMMs) {
+		int ncorrect = 0;
+		for (int i = 0; i < results.length; i++) {
+			if (results[i].getBestModel() == ncorrectHMMs[i]) {
+				ncorrect++;
+			}
+		}
+		return (100.0 * ncorrect) / results.length;
+	}
+
+}
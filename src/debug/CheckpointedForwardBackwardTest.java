@@ -0,0 +1,73 @@
+package debug;
+
+import edu.ucsd.asr.*;
+
+/**
+ * Compares the HMMs obtained by one iteration of embedded reestimation with
+ * the forward-backward algorithm keeping all columns and with checkpoints
+ * (SetOfSharedContinuousHMMReestimator.nminimumNumberOfFramesForCheckpointing),
+ * for all utterances and only for the longest ones, with one thread and with
+ * several threads. The accumulated statistics must be the same, so the HMMs
+ * must be identical. The utterances are synthetic (see
+ * SyntheticTrainingData) and written to the given directory.
+ */
+public class CheckpointedForwardBackwardTest {
+
+	public static void main(String[] args) {
+		if (args.length > 1) {
+			System.out.println("CheckpointedForwardBackwardTest [directory]");
+			System.exit(1);
+		}
+		String directory = (args.length == 1) ? args[0] : System
+				.getProperty("java.io.tmpdir")
+				+ "/CheckpointedForwardBackwardTest";
+		// utterances have 8 segments of 6 to 27 frames
+		int[] nminimumNumberOfFrames = { 1, 120 };
+		int[] nnumberOfThreads = { 1, 3 };
+
+		SyntheticTrainingData syntheticTrainingData = new SyntheticTrainingData(
+				directory, 6, 5, 3, 4, 30, 8);
+
+		int nnumberOfErrors = 0;
+		for (int n = 0; n < nnumberOfThreads.length; n++) {
+			long lstart = System.currentTimeMillis();
+			SetOfSharedContinuousHMMs plainHMMs = syntheticTrainingData
+					.reestimate(getProperties(nnumberOfThreads[n], 0));
+			Print.dialog(nnumberOfThreads[n] + " thread(s), all columns: "
+					+ (System.currentTimeMillis() - lstart) + " ms");
+			for (int i = 0; i < nminimumNumberOfFrames.length; i++) {
+				lstart = System.currentTimeMillis();
+				SetOfSharedContinuousHMMs checkpointedHMMs = syntheticTrainingData
+						.reestimate(getProperties(nnumberOfThreads[n],
+								nminimumNumberOfFrames[i]));
+				String description = nnumberOfThreads[n]
+						+ " thread(s), checkpoints for utterances with at least "
+						+ nminimumNumberOfFrames[i] + " frames";
+				Print.dialog(description + ": "
+						+ (System.currentTimeMillis() - lstart) + " ms");
+				nnumberOfErrors += SyntheticTrainingData.compare(description,
+						plainHMMs, checkpointedHMMs, 0);
+			}
+		}
+
+		if (nnumberOfErrors == 0) {
+			Print.dialog("OK, same results");
+		} else {
+			Print.error("WRONG: " + nnumberOfErrors + " differences");
+			System.exit(1);
+		}
+	}
+
+	private static HeaderProperties getProperties(int nnumberOfThreads,
+			int nminimumNumberOfFramesForCheckpointing) {
+		HeaderProperties headerProperties = new HeaderProperties();
+		headerProperties.setProperty(
+				"SetOfSharedContinuousHMMReestimator.nnumberOfThreads", Integer
+						.toString(nnumberOfThreads));
+		headerProperties.setProperty(
+				"SetOfSharedContinuousHMMReestimator.nminimumNumberOfFramesForCheckpointing",
+				Integer.toString(nminimumNumberOfFramesForCheckpointing));
+		return headerProperties;
+	}
+
+}
@@ -0,0 +1,199 @@
+package debug;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import edu.ucsd.asr.*;
+
+/**
+ * Writes a SetOfSharedContinuousHMMs with CompactSetOfHMMsFile, reads it
+ * back and compares it with the original set: labels, transition matrices
+ * (in log domain), weights, means and variances must be exactly the same,
+ * and so must the Viterbi scores of random segments, obtained with the
+ * lazily created HMMs of getHMM() and with the SetOfSharedContinuousHMMs
+ * returned by readSetOfSharedContinuousHMMs() (converted to plain HMMs).
+ */
+public class CompactSetOfHMMsFileTest {
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 0 && args.length != 4) {
+			System.out
+					.println("CompactSetOfHMMsFileTest <# of HMMs> <# of states> <# of Gaussians> <space dimension>");
+			System.exit(1);
+		}
+		int nnumberOfHMMs = 30;
+		int nnumberOfStates = 5;
+		int nnumberOfGaussians = 4;
+		int nspaceDimension = 13;
+		if (args.length == 4) {
+			nnumberOfHMMs = Integer.parseInt(args[0]);
+			nnumberOfStates = Integer.parseInt(args[1]);
+			nnumberOfGaussians = Integer.parseInt(args[2]);
+			nspaceDimension = Integer.parseInt(args[3]);
+		}
+
+		Random random = new Random(1);
+		SyntheticHMMs syntheticHMMs = new SyntheticHMMs(nnumberOfHMMs,
+				nnumberOfStates, nnumberOfGaussians, nspaceDimension, random);
+		String[] labels = new String[nnumberOfHMMs];
+		String[] hmmFileNames = new String[nnumberOfHMMs];
+		for (int h = 0; h < nnumberOfHMMs; h++) {
+			labels[h] = "hmm" + h;
+			hmmFileNames[h] = labels[h] + ".HMM";
+		}
+		SetOfSharedContinuousHMMs expected = new SetOfPlainContinuousHMMs(
+				syntheticHMMs.getHMMs(), hmmFileNames,
+				new TableOfLabels(labels), new EmptyPatternGenerator(
+						nspaceDimension)).convertToSharedHMMs();
+
+		File file = File.createTempFile("CompactSetOfHMMsFileTest", "."
+				+ CompactSetOfHMMsFile.m_FILE_EXTENSION);
+		file.deleteOnExit();
+		CompactSetOfHMMsFile.write(expected, file.getPath());
+		CompactSetOfHMMsFile compactSetOfHMMsFile = new CompactSetOfHMMsFile(
+				file.getPath());
+		SetOfSharedContinuousHMMs obtained = CompactSetOfHMMsFile
+				.readSetOfSharedContinuousHMMs(file.getPath());
+
+		int nnumberOfErrors = 0;
+		if (compactSetOfHMMsFile.getNumberOfCreatedMixtures() != 0) {
+			Print.error("Mixtures were created before getHMM()");
+			nnumberOfErrors++;
+		}
+		if (obtained.getNumberOfPhysicalHMMs() != expected
+				.getNumberOfPhysicalHMMs()
+				|| obtained.getNumberOfMixtures() != expected
+						.getNumberOfMixtures()
+				|| obtained.getNumberOfTransitionMatrices() != expected
+						.getNumberOfTransitionMatrices()
+				|| obtained.getSpaceDimension() != nspaceDimension) {
+			Print.error("Different sizes of the sets");
+			System.exit(1);
+		}
+		// PatternGenerator.equals() is always false
+		if (obtained.getPatternGenerator() == null
+				|| !expected.getPatternGenerator().toString().equals(
+						obtained.getPatternGenerator().toString())) {
+			Print.error("Different PatternGenerators");
+			nnumberOfErrors++;
+		}
+		for (int h = 0; h < expected.getNumberOfPhysicalHMMs(); h++) {
+			String[] expectedLabels = expected.getTableOfLabels().getLabels(h);
+			String[] obtainedLabels = obtained.getTableOfLabels().getLabels(h);
+			if (!java.util.Arrays.equals(expectedLabels, obtainedLabels)) {
+				Print.error("Different labels of HMM " + h);
+				nnumberOfErrors++;
+			}
+			if (compactSetOfHMMsFile.getPhysicalHMMIndex(expectedLabels[0]) != h) {
+				Print.error("Wrong index of label " + expectedLabels[0]);
+				nnumberOfErrors++;
+			}
+			if (!java.util.Arrays.equals(expected.getStateIndices(h), obtained
+					.getStateIndices(h))) {
+				Print.error("Different mixtures of HMM " + h);
+				nnumberOfErrors++;
+			}
+		}
+
+		// scores: original HMMs, lazily created HMMs and both sets
+		ContinuousHMM[] expectedHMMs = expected.convertToPlainHMMs()
+				.getHMMs();
+		ContinuousHMM[] obtainedHMMs = obtained.convertToPlainHMMs()
+				.getHMMs();
+		for (int h = 0; h < nnumberOfHMMs; h++) {
+			nnumberOfErrors += compare("log transition matrix of HMM " + h,
+					expected.getTransitionMatrix(h), obtained
+							.getTransitionMatrix(h));
+			ContinuousHMM lazyHMM = compactSetOfHMMsFile.getHMM(labels[h]);
+			nnumberOfErrors += compare("log transition matrix of getHMM() "
+					+ h, syntheticHMMs.getHMMs()[h]
+					.getTransitionMatrixInLogDomainReference(), lazyHMM
+					.getTransitionMatrixInLogDomainReference());
+			for (int s = 0; s < nnumberOfStates - 2; s++) {
+				nnumberOfErrors += compare("HMM " + h + ", state " + s,
+						getMixture(syntheticHMMs.getHMMs()[h], s), getMixture(
+								lazyHMM, s));
+				nnumberOfErrors += compare("set, HMM " + h + ", state " + s,
+						getMixture(expectedHMMs[h], s), getMixture(
+								obtainedHMMs[h], s));
+			}
+			for (int n = 0; n < 5; n++) {
+				Pattern pattern = syntheticHMMs.generatePattern(h, random);
+				float fexpected = syntheticHMMs.getHMMs()[h]
+						.getScoreUsingViterbi(pattern);
+				float flazy = lazyHMM.getScoreUsingViterbi(pattern);
+				float fexpectedSet = expectedHMMs[h]
+						.getScoreUsingViterbi(pattern);
+				float fobtainedSet = obtainedHMMs[h]
+						.getScoreUsingViterbi(pattern);
+				if (Float.floatToIntBits(fexpected) != Float
+						.floatToIntBits(flazy)
+						|| Float.floatToIntBits(fexpectedSet) != Float
+								.floatToIntBits(fobtainedSet)) {
+					Print.error("HMM " + h + ", segment " + n + ": scores "
+							+ flazy + " (getHMM) and " + fobtainedSet
+							+ " (set) instead of " + fexpected + " and "
+							+ fexpectedSet);
+					nnumberOfErrors++;
+				}
+			}
+		}
+
+		if (nnumberOfErrors == 0) {
+			Print.dialog("OK, same results");
+		} else {
+			Print.error("WRONG: " + nnumberOfErrors + " differences");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Log weights in the first row and the mean and variances of each
+	 * Gaussian in the following rows.
+	 */
+	private static float[][] getMixture(ContinuousHMM continuousHMM, int s) {
+		MixtureOfGaussianPDFs mixture = continuousHMM.getMixturesOfGaussianPDFs()[s];
+		int nnumberOfGaussians = mixture.getNumberOfGaussians();
+		float[][] fmixture = new float[1 + 2 * nnumberOfGaussians][];
+		fmixture[0] = mixture.getComponentsWeightsInLogDomain();
+		for (int g = 0; g < nnumberOfGaussians; g++) {
+			DiagonalCovarianceGaussianPDF gaussianPDF = (DiagonalCovarianceGaussianPDF) mixture
+					.getSpecificGaussian(g);
+			fmixture[1 + 2 * g] = gaussianPDF.getMean();
+			fmixture[2 + 2 * g] = gaussianPDF.getVariances();
+		}
+		return fmixture;
+	}
+
+	/**
+	 * @return 1 if there is a difference, 0 otherwise
+	 */
+	private static int compare(String description, float[][] fexpected,
+			float[][] fobtained) {
+		if (fexpected.length != fobtained.length) {
+			Print.error(description + ": " + fobtained.length
+					+ " rows instead of " + fexpected.length);
+			return 1;
+		}
+		for (int i = 0; i < fexpected.length; i++) {
+			if (fexpected[i].length != fobtained[i].length) {
+				Print.error(description + ", row " + i + ": "
+						+ fobtained[i].length + " columns instead of "
+						+ fexpected[i].length);
+				return 1;
+			}
+			for (int j = 0; j < fexpected[i].length; j++) {
+				if (Float.floatToIntBits(fexpected[i][j]) != Float
+						.floatToIntBits(fobtained[i][j])) {
+					Print.error(description + ", element (" + i + ", " + j
+							+ "): " + fobtained[i][j] + " instead of "
+							+ fexpected[i][j]);
+					return 1;
+				}
+			}
+		}
+		return 0;
+	}
+
+}
@@ -0,0 +1,227 @@
+package debug;
+
+import java.util.Random;
+
+import edu.ucsd.asr.*;
+
+/**
+ * Compares the log output probabilities calculated by DiagonalGaussianScorer
+ * (for a block of frames, for one frame and for one mixture with the
+ * probability of each Gaussian) with the ones calculated by
+ * MixtureOfGaussianPDFs, Gaussian by Gaussian, including for a mixture with
+ * a Gaussian whose weight is below MixtureOfGaussianPDFs.m_fMINIMUM_LOG_WEIGHT.
+ * The probabilities of each Gaussian must be the same (bit-exact), while the
+ * mixtures, whose Gaussians are added in a different way (max + log(sum), or
+ * FastLogDomainCalculator), must be the same up to the float precision. The
+ * best time of several repetitions of both ways is also shown.
+ */
+public class DiagonalGaussianScorerTest {
+
+	public static void main(String[] args) {
+		if (args.length != 0 && args.length != 4) {
+			System.out
+					.println("DiagonalGaussianScorerTest <# of HMMs> <# of Gaussians per mixture> <space dimension> <# of frames>");
+			System.exit(1);
+		}
+		int nnumberOfHMMs = 10;
+		int nnumberOfGaussians = 16;
+		int nspaceDimension = 13;
+		int nnumberOfFrames = 500;
+		if (args.length == 4) {
+			nnumberOfHMMs = Integer.parseInt(args[0]);
+			nnumberOfGaussians = Integer.parseInt(args[1]);
+			nspaceDimension = Integer.parseInt(args[2]);
+			nnumberOfFrames = Integer.parseInt(args[3]);
+		}
+		int nnumberOfStates = 5;
+		int nnumberOfRepetitions = 10;
+		// float precision of the log probabilities
+		double drelativeTolerance = 1e-5;
+
+		Random random = new Random(1);
+		SyntheticHMMs syntheticHMMs = new SyntheticHMMs(nnumberOfHMMs,
+				nnumberOfStates, nnumberOfGaussians, nspaceDimension, random);
+		ContinuousHMM[] continuousHMMs = syntheticHMMs.getHMMs();
+		int nnumberOfMixtures = nnumberOfHMMs * (nnumberOfStates - 2) + 1;
+		MixtureOfGaussianPDFs[] mixtures = new MixtureOfGaussianPDFs[nnumberOfMixtures];
+		int m = 0;
+		for (int h = 0; h < nnumberOfHMMs; h++) {
+			for (int s = 0; s < nnumberOfStates - 2; s++) {
+				mixtures[m++] = continuousHMMs[h].getMixturesOfGaussianPDFs()[s];
+			}
+		}
+		// the last Gaussian must be discarded
+		GaussianPDF[] gaussians = mixtures[0].getGaussians();
+		float[] flogWeights = new float[nnumberOfGaussians];
+		double dsmallWeight = Math
+				.exp(MixtureOfGaussianPDFs.m_fMINIMUM_LOG_WEIGHT - 1);
+		for (int g = 0; g < nnumberOfGaussians - 1; g++) {
+			flogWeights[g] = (float) Math.log((1 - dsmallWeight)
+					/ (nnumberOfGaussians - 1));
+		}
+		flogWeights[nnumberOfGaussians - 1] = (float) Math.log(dsmallWeight);
+		mixtures[m] = new MixtureOfGaussianPDFs(gaussians, flogWeights);
+
+		// frames generated by the HMMs
+		float[][] fframes = new float[nnumberOfFrames][];
+		int t = 0;
+		while (t < nnumberOfFrames) {
+			float[][] fparameters = syntheticHMMs.generatePattern(
+					random.nextInt(nnumberOfHMMs), random).getParameters();
+			for (int i = 0; i < fparameters.length && t < nnumberOfFrames; i++) {
+				fframes[t++] = fparameters[i];
+			}
+		}
+
+		DiagonalGaussianScorer diagonalGaussianScorer = new DiagonalGaussianScorer(
+				mixtures);
+
+		// the best of several repetitions, the first ones warm up the JIT
+		// compiler
+		float[][] fexpected = new float[nnumberOfFrames][nnumberOfMixtures];
+		long lmixturesTime = Long.MAX_VALUE;
+		for (int n = 0; n < nnumberOfRepetitions; n++) {
+			long lstart = System.currentTimeMillis();
+			for (t = 0; t < nnumberOfFrames; t++) {
+				for (m = 0; m < nnumberOfMixtures; m++) {
+					fexpected[t][m] = mixtures[m].calculateLogProbability(
+							fframes[t]);
+				}
+			}
+			lmixturesTime = Math.min(lmixturesTime, System.currentTimeMillis()
+					- lstart);
+		}
+		float[][] flogOutputProbabilities = null;
+		long lscorerTime = Long.MAX_VALUE;
+		for (int n = 0; n < nnumberOfRepetitions; n++) {
+			long lstart = System.currentTimeMillis();
+			flogOutputProbabilities = diagonalGaussianScorer
+					.calculateLogProbabilities(fframes, 0, nnumberOfFrames,
+							null, flogOutputProbabilities);
+			lscorerTime = Math.min(lscorerTime, System.currentTimeMillis()
+					- lstart);
+		}
+		long lframeByFrameTime = Long.MAX_VALUE;
+		for (int n = 0; n < nnumberOfRepetitions; n++) {
+			long lstart = System.currentTimeMillis();
+			for (t = 0; t < nnumberOfFrames; t++) {
+				for (m = 0; m < nnumberOfMixtures; m++) {
+					diagonalGaussianScorer.calculateLogProbability(m, fframes[t]);
+				}
+			}
+			lframeByFrameTime = Math.min(lframeByFrameTime, System
+					.currentTimeMillis()
+					- lstart);
+		}
+		Print.dialog(nnumberOfMixtures + " mixtures, " + nnumberOfFrames
+				+ " frames. MixtureOfGaussianPDFs: " + lmixturesTime
+				+ " ms, DiagonalGaussianScorer: " + lscorerTime
+				+ " ms (speedup = "
+				+ IO.format(((double) lmixturesTime) / Math.max(1, lscorerTime))
+				+ "), frame by frame: " + lframeByFrameTime
+				+ " ms (speedup = "
+				+ IO.format(((double) lmixturesTime)
+						/ Math.max(1, lframeByFrameTime)) + ")");
+
+		int nnumberOfErrors = 0;
+		for (t = 0; t < nnumberOfFrames; t++) {
+			for (m = 0; m < nnumberOfMixtures; m++) {
+				nnumberOfErrors += compare("Block of frames", t, m,
+						fexpected[t][m], flogOutputProbabilities[t][m],
+						drelativeTolerance);
+				nnumberOfErrors += compare("One frame", t, m, fexpected[t][m],
+						diagonalGaussianScorer.calculateLogProbability(m,
+								fframes[t]), drelativeTolerance);
+			}
+		}
+
+		// block starting at an offset, with half of the mixtures inactive
+		boolean[] oactiveMixtures = new boolean[nnumberOfMixtures];
+		for (m = 0; m < nnumberOfMixtures; m += 2) {
+			oactiveMixtures[m] = true;
+		}
+		int nfirstFrame = nnumberOfFrames / 3;
+		int nnumberOfFramesInBlock = nnumberOfFrames - nfirstFrame;
+		flogOutputProbabilities = diagonalGaussianScorer
+				.calculateLogProbabilities(fframes, nfirstFrame,
+						nnumberOfFramesInBlock, oactiveMixtures,
+						flogOutputProbabilities);
+		for (t = 0; t < nnumberOfFramesInBlock; t++) {
+			for (m = 0; m < nnumberOfMixtures; m++) {
+				float fexpectedValue = oactiveMixtures[m] ? fexpected[nfirstFrame
+						+ t][m]
+						: LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+				nnumberOfErrors += compare("Block with offset", nfirstFrame + t,
+						m, fexpectedValue, flogOutputProbabilities[t][m],
+						drelativeTolerance);
+			}
+		}
+
+		// one mixture, with the probability of each Gaussian
+		float[] flogProbabilities = new float[nnumberOfFrames];
+		for (m = 0; m < nnumberOfMixtures; m++) {
+			float[][] flogProbabilityForEachGaussian = new float[nnumberOfFrames][mixtures[m]
+					.getNumberOfGaussians()];
+			diagonalGaussianScorer.calculateLogProbabilities(m, fframes,
+					nnumberOfFrames, flogProbabilities,
+					flogProbabilityForEachGaussian);
+			for (t = 0; t < nnumberOfFrames; t++) {
+				float[] findividualAndTotalProbabilities = mixtures[m]
+						.calculateIndividualProbabilities(fframes[t]);
+				int nnumberOfGaussiansInMixture = findividualAndTotalProbabilities.length - 1;
+				nnumberOfErrors += compare("One mixture", t, m,
+						findividualAndTotalProbabilities[nnumberOfGaussiansInMixture],
+						flogProbabilities[t], drelativeTolerance);
+				// the values of discarded Gaussians are not calculated
+				int nlastGaussian = (m == nnumberOfMixtures - 1) ? nnumberOfGaussiansInMixture - 1
+						: nnumberOfGaussiansInMixture;
+				for (int g = 0; g < nlastGaussian; g++) {
+					nnumberOfErrors += compare("Gaussian " + g, t, m,
+							findividualAndTotalProbabilities[g],
+							flogProbabilityForEachGaussian[t][g], 0);
+				}
+			}
+		}
+
+		// FastLogDomainCalculator (its float error is about 3e-5 around -500)
+		diagonalGaussianScorer.setUseFastLogAdd(true);
+		flogOutputProbabilities = diagonalGaussianScorer
+				.calculateLogProbabilities(fframes, 0, nnumberOfFrames, null,
+						flogOutputProbabilities);
+		for (t = 0; t < nnumberOfFrames; t++) {
+			for (m = 0; m < nnumberOfMixtures; m++) {
+				nnumberOfErrors += compare("Fast log add", t, m,
+						fexpected[t][m], flogOutputProbabilities[t][m],
+						10 * drelativeTolerance);
+			}
+		}
+
+		if (nnumberOfErrors == 0) {
+			Print.dialog("OK, same results");
+		} else {
+			Print.error("WRONG: " + nnumberOfErrors + " differences");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * @return 1 if the difference is larger than drelativeTolerance *
+	 *         max(1, |fexpected|) or, if drelativeTolerance is 0, if the values
+	 *         are not bit-exact; 0 otherwise
+	 */
+	private static int compare(String description, int t, int m,
+			float fexpected, float fobtained, double drelativeTolerance) {
+		if (Float.floatToIntBits(fexpected) == Float.floatToIntBits(fobtained)) {
+			return 0;
+		}
+		if (drelativeTolerance > 0
+				&& Math.abs(fobtained - fexpected) <= drelativeTolerance
+						* Math.max(1, Math.abs(fexpected))) {
+			return 0;
+		}
+		Print.error(description + ", frame " + t + ", mixture " + m + ": "
+				+ fobtained + " instead of " + fexpected);
+		return 1;
+	}
+
+}
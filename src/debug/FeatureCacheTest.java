@@ -0,0 +1,195 @@
+package debug;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.sound.sampled.AudioFormat;
+
+import edu.ucsd.asr.*;
+
+/**
+ * Checks the keys, hits, invalidation and eviction of FeatureCache with the
+ * default MFCC front end and synthetic audio:
+ * <ul>
+ * <li>the first lookup is a miss and, after put(), a lookup with a new key
+ * for the same properties and audio is a hit with the same Patterns;</li>
+ * <li>changing one front end property or one audio sample gives a miss,
+ * while changing PatternGenerator.Description gives a hit;</li>
+ * <li>a corrupted entry is a miss and is deleted;</li>
+ * <li>evict() deletes the least recently used entries, where a hit makes
+ * an entry the most recently used.</li>
+ * </ul>
+ */
+public class FeatureCacheTest {
+
+	private static int m_nnumberOfErrors;
+
+	public static void main(String[] args) {
+		if (args.length > 1) {
+			System.out.println("FeatureCacheTest [directory]");
+			System.exit(1);
+		}
+		String directory = (args.length == 1) ? args[0] : System
+				.getProperty("java.io.tmpdir")
+				+ "/FeatureCacheTest";
+		deleteFiles(new File(directory));
+		FeatureCache featureCache = new FeatureCache(directory,
+				Long.MAX_VALUE);
+
+		HeaderProperties headerProperties = PatternGenerator
+				.getDefaultProperties(PatternGenerator.Type.MFCC)
+				.getHeaderProperties();
+		PatternGenerator patternGenerator = PatternGenerator
+				.getPatternGenerator(headerProperties);
+		Random random = new Random(1);
+		Audio audio = createAudio(random);
+		Pattern pattern = patternGenerator.getPattern(audio);
+
+		// miss and hit
+		check("first lookup", featureCache.get(createKey(headerProperties,
+				audio)) == null);
+		featureCache.put(createKey(headerProperties, audio),
+				new Pattern[] { pattern }, 0);
+		FeatureCache.Entry entry = featureCache.get(createKey(
+				headerProperties, audio));
+		check("lookup after put", entry != null
+				&& isEqual(pattern, entry.m_patterns[0]));
+
+		// changes of front end and audio
+		HeaderProperties otherProperties = (HeaderProperties) headerProperties
+				.clone();
+		otherProperties.setProperty("PatternGenerator.Description",
+				"other description");
+		check("other description", featureCache.get(createKey(
+				otherProperties, audio)) != null);
+		otherProperties.setProperty("MFCC.nnumberOfFilters", "20");
+		check("MFCC.nnumberOfFilters changed", featureCache.get(createKey(
+				otherProperties, audio)) == null);
+		int[] nsamples = (int[]) audio.getAudioDataAsIntegers().clone();
+		nsamples[nsamples.length / 2]++;
+		Audio otherAudio = new Audio(nsamples, audio.getAudioFormat());
+		check("one audio sample changed", featureCache.get(createKey(
+				headerProperties, otherAudio)) == null);
+		check("statistics", featureCache.getNumberOfHits() == 2
+				&& featureCache.getNumberOfMisses() == 3);
+
+		// invalidation of a corrupted entry
+		File file = getFile(directory, createKey(headerProperties, audio));
+		check("entry file exists", file.exists());
+		try {
+			FileOutputStream fileOutputStream = new FileOutputStream(file);
+			fileOutputStream.write(new byte[] { 1, 2, 3 });
+			fileOutputStream.close();
+		} catch (IOException e) {
+			End.throwError("Could not write " + file + ": " + e.getMessage());
+		}
+		check("corrupted entry", featureCache.get(createKey(
+				headerProperties, audio)) == null
+				&& !file.exists());
+
+		checkEviction(directory, headerProperties, patternGenerator, random);
+
+		if (m_nnumberOfErrors == 0) {
+			Print.dialog("OK, same results");
+		} else {
+			Print.error("WRONG: " + m_nnumberOfErrors + " differences");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Writes 5 entries, each one older than the next, makes the oldest one
+	 * the most recently used and evicts with a maximum size of 3.5 entries,
+	 * which must delete the second and third entries.
+	 */
+	private static void checkEviction(String directory,
+			HeaderProperties headerProperties,
+			PatternGenerator patternGenerator, Random random) {
+		deleteFiles(new File(directory));
+		FeatureCache featureCache = new FeatureCache(directory,
+				Long.MAX_VALUE);
+		int nnumberOfEntries = 5;
+		Audio[] audios = new Audio[nnumberOfEntries];
+		File[] files = new File[nnumberOfEntries];
+		long lnow = System.currentTimeMillis();
+		for (int i = 0; i < nnumberOfEntries; i++) {
+			audios[i] = createAudio(random);
+			featureCache.put(createKey(headerProperties, audios[i]),
+					new Pattern[] { patternGenerator.getPattern(audios[i]) },
+					0);
+			files[i] = getFile(directory, createKey(headerProperties,
+					audios[i]));
+			files[i].setLastModified(lnow - 60000 + 1000 * i);
+		}
+		check("hit before eviction", featureCache.get(createKey(
+				headerProperties, audios[0])) != null);
+
+		FeatureCache smallFeatureCache = new FeatureCache(directory,
+				(long) (3.5 * files[0].length()));
+		smallFeatureCache.evict();
+		boolean[] oshouldExist = { true, false, false, true, true };
+		for (int i = 0; i < nnumberOfEntries; i++) {
+			check("entry " + i + " after eviction",
+					files[i].exists() == oshouldExist[i]);
+		}
+	}
+
+	/**
+	 * One second of noise, sampled at 8 kHz as the default MFCC front end
+	 * expects.
+	 */
+	private static Audio createAudio(Random random) {
+		int[] nsamples = new int[8000];
+		for (int i = 0; i < nsamples.length; i++) {
+			nsamples[i] = random.nextInt(2000) - 1000;
+		}
+		return new Audio(nsamples, new AudioFormat(8000F, 16, 1, true, false));
+	}
+
+	private static FeatureCache.Key createKey(
+			HeaderProperties headerProperties, Audio audio) {
+		FeatureCache.Key key = new FeatureCache.Key(headerProperties);
+		key.add(audio);
+		return key;
+	}
+
+	private static File getFile(String directory, FeatureCache.Key key) {
+		return new File(directory, key.toString() + "."
+				+ FeatureCache.m_FILE_EXTENSION);
+	}
+
+	private static boolean isEqual(Pattern a, Pattern b) {
+		float[][] fa = a.getParameters();
+		float[][] fb = b.getParameters();
+		if (fa.length != fb.length) {
+			return false;
+		}
+		for (int t = 0; t < fa.length; t++) {
+			for (int k = 0; k < fa[t].length; k++) {
+				if (fa[t][k] != fb[t][k]) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private static void deleteFiles(File directory) {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (int i = 0; i < files.length; i++) {
+				files[i].delete();
+			}
+		}
+	}
+
+	private static void check(String description, boolean oisCorrect) {
+		if (!oisCorrect) {
+			Print.error(description + ": wrong result");
+			m_nnumberOfErrors++;
+		}
+	}
+
+}
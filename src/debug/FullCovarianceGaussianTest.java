@@ -0,0 +1,162 @@
+package debug;
+
+import java.util.Random;
+
+import jmat.data.Matrix;
+import edu.ucsd.asr.*;
+
+/**
+ * Compares the log output probabilities of full covariance GaussianPDFs,
+ * calculated through the Cholesky factor of the inverted covariance matrix,
+ * with the ones calculated as before: (x-m)^t * S * (x-m) with the inverted
+ * matrix S and the determinant obtained by jmat. The covariance matrices are
+ * random symmetric positive definite matrices. The inverted matrices with 2
+ * negative eigenvalues (the determinant is still positive) are not positive
+ * definite, so the Cholesky factorization fails and GaussianPDF must fall
+ * back to the product by S.
+ */
+public class FullCovarianceGaussianTest {
+
+	public static void main(String[] args) {
+		if (args.length != 0 && args.length != 3) {
+			System.out
+					.println("FullCovarianceGaussianTest <# of Gaussians> <space dimension> <# of frames>");
+			System.exit(1);
+		}
+		int nnumberOfGaussians = 50;
+		int nspaceDimension = 13;
+		int nnumberOfFrames = 200;
+		if (args.length == 3) {
+			nnumberOfGaussians = Integer.parseInt(args[0]);
+			nspaceDimension = Integer.parseInt(args[1]);
+			nnumberOfFrames = Integer.parseInt(args[2]);
+		}
+		// float precision of the log probabilities
+		double drelativeTolerance = 1e-4;
+
+		Random random = new Random(1);
+		float[][] fframes = new float[nnumberOfFrames][nspaceDimension];
+		for (int t = 0; t < nnumberOfFrames; t++) {
+			for (int i = 0; i < nspaceDimension; i++) {
+				fframes[t][i] = (float) (2 * random.nextGaussian());
+			}
+		}
+
+		int nnumberOfErrors = 0;
+		for (int g = 0; g < nnumberOfGaussians; g++) {
+			float[] fmean = new float[nspaceDimension];
+			for (int i = 0; i < nspaceDimension; i++) {
+				fmean[i] = (float) random.nextGaussian();
+			}
+
+			// positive definite: A * A^t + 0.1 * I
+			double[][] dA = getRandomMatrix(nspaceDimension, random);
+			double[][] dcovariance = new Matrix(dA).times(
+					new Matrix(dA).transpose()).getArrayCopy();
+			for (int i = 0; i < nspaceDimension; i++) {
+				dcovariance[i][i] += 0.1;
+			}
+			float[][] fcovariance = toFloat(dcovariance);
+			float[][] finverted = toFloat(new Matrix(fcovariance).inverse()
+					.getArrayCopy());
+			double dlogDeterminant = Math.log(new Matrix(fcovariance)
+					.determinant());
+			nnumberOfErrors += compare("Gaussian " + g, new GaussianPDF(
+					copy(fmean), fcovariance), fmean, finverted,
+					dlogDeterminant, fframes, drelativeTolerance);
+
+			// not positive definite: B * diag(-1, -2, 1, 2, ...) * B^t
+			double[][] dB = getRandomMatrix(nspaceDimension, random);
+			double[][] dlambda = new double[nspaceDimension][nspaceDimension];
+			for (int i = 0; i < nspaceDimension; i++) {
+				dlambda[i][i] = (i < 2) ? -(i + 1) : (i - 1);
+			}
+			finverted = toFloat(new Matrix(dB).times(new Matrix(dlambda))
+					.times(new Matrix(dB).transpose()).getArrayCopy());
+			dlogDeterminant = -Math.log(new Matrix(finverted).determinant());
+			nnumberOfErrors += compare("not positive definite Gaussian " + g,
+					new GaussianPDF(copy(fmean), copy(finverted), true), fmean,
+					finverted, dlogDeterminant, fframes, drelativeTolerance);
+		}
+
+		if (nnumberOfErrors == 0) {
+			Print.dialog("OK, same results");
+		} else {
+			Print.error("WRONG: " + nnumberOfErrors + " differences");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Compares calculateLogProbability() and calculateLogProbabilityAsDouble()
+	 * with -0.5 * (x-m)^t * S * (x-m) - 0.5 * (d * log(2 pi) + log
+	 * determinant).
+	 *
+	 * @return 1 if there is a difference, 0 otherwise
+	 */
+	private static int compare(String description, GaussianPDF gaussianPDF,
+			float[] fmean, float[][] finverted, double dlogDeterminant,
+			float[][] fframes, double drelativeTolerance) {
+		int nD = fmean.length;
+		double ddenominatorFactor = 0.5 * (nD * Math.log(2 * Math.PI) + dlogDeterminant);
+		for (int t = 0; t < fframes.length; t++) {
+			double dexponent = 0.0;
+			for (int i = 0; i < nD; i++) {
+				double ddotProduct = 0.0;
+				for (int j = 0; j < nD; j++) {
+					ddotProduct += finverted[i][j] * (fframes[t][j] - fmean[j]);
+				}
+				dexponent += (fframes[t][i] - fmean[i]) * ddotProduct;
+			}
+			double dexpected = -0.5 * dexponent - ddenominatorFactor;
+			double dtolerance = drelativeTolerance
+					* Math.max(1, Math.abs(dexpected));
+			float fobtained = gaussianPDF.calculateLogProbability(fframes[t]);
+			double dobtained = gaussianPDF
+					.calculateLogProbabilityAsDouble(fframes[t]);
+			if (!(Math.abs(fobtained - dexpected) <= dtolerance)
+					|| !(Math.abs(dobtained - dexpected) <= dtolerance)) {
+				Print.error(description + ", frame " + t + ": " + fobtained
+						+ " (float) and " + dobtained + " (double) instead of "
+						+ dexpected);
+				return 1;
+			}
+		}
+		return 0;
+	}
+
+	private static double[][] getRandomMatrix(int nD, Random random) {
+		double[][] dmatrix = new double[nD][nD];
+		for (int i = 0; i < nD; i++) {
+			for (int j = 0; j < nD; j++) {
+				dmatrix[i][j] = random.nextGaussian() / Math.sqrt(nD);
+			}
+		}
+		return dmatrix;
+	}
+
+	private static float[][] toFloat(double[][] dmatrix) {
+		float[][] fmatrix = new float[dmatrix.length][dmatrix[0].length];
+		for (int i = 0; i < dmatrix.length; i++) {
+			for (int j = 0; j < dmatrix[i].length; j++) {
+				fmatrix[i][j] = (float) dmatrix[i][j];
+			}
+		}
+		return fmatrix;
+	}
+
+	private static float[] copy(float[] fvector) {
+		float[] fcopy = new float[fvector.length];
+		System.arraycopy(fvector, 0, fcopy, 0, fvector.length);
+		return fcopy;
+	}
+
+	private static float[][] copy(float[][] fmatrix) {
+		float[][] fcopy = new float[fmatrix.length][];
+		for (int i = 0; i < fmatrix.length; i++) {
+			fcopy[i] = copy(fmatrix[i]);
+		}
+		return fcopy;
+	}
+
+}
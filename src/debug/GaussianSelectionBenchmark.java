@@ -0,0 +1,131 @@
+package debug;
+
+import java.util.Random;
+
+import edu.ucsd.asr.*;
+
+/**
+ * Measures the accuracy / speed trade-off of Gaussian selection (see
+ * GaussianSelector) when classifying isolated segments with
+ * ViterbiWorkspace, as done by OffLineIsolatedSegmentsClassifier. The HMMs
+ * and the segments (generated by the HMMs) are synthetic, and each
+ * configuration of the shortlist size is compared to the exact
+ * calculation (all Gaussians).
+ */
+public class GaussianSelectionBenchmark {
+
+	public static void main(String[] args) {
+		if (args.length != 0 && args.length != 6) {
+			System.out
+					.println("GaussianSelectionBenchmark <# of HMMs> <# of Gaussians per mixture> <space dimension> <# of segments> <codebook size> <floor>");
+			System.exit(1);
+		}
+		int nnumberOfHMMs = 20;
+		int nnumberOfGaussians = 32;
+		int nspaceDimension = 13;
+		int nnumberOfSegments = 400;
+		int ncodebookSize = 256;
+		float flogFloor = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+		if (args.length == 6) {
+			nnumberOfHMMs = Integer.parseInt(args[0]);
+			nnumberOfGaussians = Integer.parseInt(args[1]);
+			nspaceDimension = Integer.parseInt(args[2]);
+			nnumberOfSegments = Integer.parseInt(args[3]);
+			ncodebookSize = Integer.parseInt(args[4]);
+			flogFloor = Float.parseFloat(args[5]);
+		}
+		int nnumberOfStates = 5;
+
+		Random random = new Random(1);
+		SyntheticHMMs syntheticHMMs = new SyntheticHMMs(nnumberOfHMMs,
+				nnumberOfStates, nnumberOfGaussians, nspaceDimension, random);
+		ContinuousHMM[] continuousHMMs = syntheticHMMs.getHMMs();
+		Pattern[] patterns = new Pattern[nnumberOfSegments];
+		int[] ncorrectHMMs = new int[nnumberOfSegments];
+		for (int i = 0; i < nnumberOfSegments; i++) {
+			ncorrectHMMs[i] = random.nextInt(nnumberOfHMMs);
+			patterns[i] = syntheticHMMs.generatePattern(ncorrectHMMs[i], random);
+		}
+
+		DiagonalGaussianScorer diagonalGaussianScorer = DiagonalGaussianScorer
+				.createForHMMs(continuousHMMs);
+		Print.dialog(nnumberOfHMMs + " HMMs with "
+				+ diagonalGaussianScorer.getNumberOfPackedGaussians()
+				+ " Gaussians, " + nnumberOfSegments + " segments");
+
+		// exact, twice to warm up the JIT compiler
+		int[] nexactResults = null;
+		long lexactTime = 0;
+		for (int n = 0; n < 2; n++) {
+			long lstart = System.currentTimeMillis();
+			nexactResults = classify(continuousHMMs, diagonalGaussianScorer,
+					patterns);
+			lexactTime = System.currentTimeMillis() - lstart;
+		}
+		Print.dialog("All Gaussians: accuracy = "
+				+ IO.format(getAccuracy(nexactResults, ncorrectHMMs)) + "%, "
+				+ lexactTime + " ms");
+
+		long lstart = System.currentTimeMillis();
+		GaussianSelector gaussianSelector = new GaussianSelector(
+				diagonalGaussianScorer, ncodebookSize, 1, flogFloor);
+		Print.dialog("Codebook of size " + ncodebookSize + " designed in "
+				+ (System.currentTimeMillis() - lstart) + " ms");
+
+		int[] nshortlistSizes = { 1, 2, 4, 8, 16 };
+		for (int n = 0; n < nshortlistSizes.length; n++) {
+			if (nshortlistSizes[n] >= nnumberOfGaussians) {
+				break;
+			}
+			gaussianSelector = new GaussianSelector(diagonalGaussianScorer,
+					ncodebookSize, nshortlistSizes[n], flogFloor);
+			diagonalGaussianScorer.setGaussianSelector(gaussianSelector);
+			classify(continuousHMMs, diagonalGaussianScorer, patterns);
+			gaussianSelector.resetStatistics();
+			lstart = System.currentTimeMillis();
+			int[] nresults = classify(continuousHMMs, diagonalGaussianScorer,
+					patterns);
+			long ltime = System.currentTimeMillis() - lstart;
+			int nchanged = 0;
+			for (int i = 0; i < nresults.length; i++) {
+				if (nresults[i] != nexactResults[i]) {
+					nchanged++;
+				}
+			}
+			Print.dialog("Shortlist size " + nshortlistSizes[n]
+					+ ": accuracy = "
+					+ IO.format(getAccuracy(nresults, ncorrectHMMs)) + "%, "
+					+ nchanged + " decisions changed, " + ltime
+					+ " ms (speedup = "
+					+ IO.format(((double) lexactTime) / Math.max(1, ltime))
+					+ "), "
+					+ IO.format(100.0 * gaussianSelector
+							.getFractionOfEvaluatedGaussians())
+					+ "% of Gaussians evaluated");
+		}
+		diagonalGaussianScorer.setGaussianSelector(null);
+	}
+
+	private static int[] classify(ContinuousHMM[] continuousHMMs,
+			DiagonalGaussianScorer diagonalGaussianScorer, Pattern[] patterns) {
+		ViterbiWorkspace viterbiWorkspace = new ViterbiWorkspace(true);
+		viterbiWorkspace.setDiagonalGaussianScorer(diagonalGaussianScorer);
+		int[] nresults = new int[patterns.length];
+		for (int i = 0; i < patterns.length; i++) {
+			nresults[i] = viterbiWorkspace.classify(continuousHMMs,
+					patterns[i], 0, false).getBestModel();
+		}
+		return nresults;
+	}
+
+	private static double getAccuracy(int[] nresults, int[] ncorrectHMMs) {
+		int ncorrect = 0;
+		for (int i = 0; i < nresults.length; i++) {
+			if (nresults[i] == ncorrectHMMs[i]) {
+				ncorrect++;
+			}
+		}
+		return (100.0 * ncorrect) / nresults.length;
+	}
+
+}
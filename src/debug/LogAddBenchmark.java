@@ -0,0 +1,183 @@
+package debug;
+
+import java.util.Random;
+
+import edu.ucsd.asr.*;
+
+/**
+ * Compares LogDomainCalculator.add() with FastLogDomainCalculator.add(): it
+ * measures the maximum error of the fast version over the range of
+ * differences between the arguments and the throughput of the forward and
+ * backward recursions of a left-right HMM (the same loops of
+ * ContinuousHMMReestimator) using each version.
+ */
+public class LogAddBenchmark {
+
+	public static void main(String[] args) {
+		if (args.length != 0 && args.length != 3) {
+			System.out
+					.println("LogAddBenchmark <# of states> <# of frames> <# of repetitions>");
+			System.exit(1);
+		}
+		int nnumberOfStates = 5;
+		int nnumberOfFrames = 300;
+		int nrepetitions = 2000;
+		if (args.length == 3) {
+			nnumberOfStates = Integer.parseInt(args[0]);
+			nnumberOfFrames = Integer.parseInt(args[1]);
+			nrepetitions = Integer.parseInt(args[2]);
+		}
+
+		measureError();
+
+		Random random = new Random(1);
+		double[][] dlogA = createLeftRightTransitionMatrix(nnumberOfStates,
+				random);
+		double[][] dlogB = new double[nnumberOfStates][nnumberOfFrames];
+		for (int j = 1; j < nnumberOfStates - 1; j++) {
+			for (int t = 0; t < nnumberOfFrames; t++) {
+				dlogB[j][t] = -40.0 - 30.0 * random.nextDouble();
+			}
+		}
+		double[][] dalpha = new double[nnumberOfStates][nnumberOfFrames];
+		double[][] dbeta = new double[nnumberOfStates][nnumberOfFrames];
+
+		// warm up the JIT compiler
+		for (int i = 0; i < nrepetitions / 10 + 1; i++) {
+			forwardBackward(dlogA, dlogB, dalpha, dbeta, false);
+			forwardBackward(dlogA, dlogB, dalpha, dbeta, true);
+		}
+
+		double dexact = 0;
+		double dfast = 0;
+		long lstart = System.currentTimeMillis();
+		for (int i = 0; i < nrepetitions; i++) {
+			dexact = forwardBackward(dlogA, dlogB, dalpha, dbeta, false);
+		}
+		long lexactTime = System.currentTimeMillis() - lstart;
+		lstart = System.currentTimeMillis();
+		for (int i = 0; i < nrepetitions; i++) {
+			dfast = forwardBackward(dlogA, dlogB, dalpha, dbeta, true);
+		}
+		long lfastTime = System.currentTimeMillis() - lstart;
+
+		double dframes = ((double) nrepetitions) * nnumberOfFrames;
+		Print.dialog("Forward-backward of " + nrepetitions + " patterns with "
+				+ nnumberOfFrames + " frames, " + nnumberOfStates + " states");
+		Print.dialog("Exact: " + lexactTime + " ms ("
+				+ IO.format(1000.0 * dframes / Math.max(1, lexactTime))
+				+ " frames/s), log probability = " + dexact);
+		Print.dialog("Fast:  " + lfastTime + " ms ("
+				+ IO.format(1000.0 * dframes / Math.max(1, lfastTime))
+				+ " frames/s), log probability = " + dfast);
+		Print.dialog("Speedup = "
+				+ IO.format(((double) lexactTime) / Math.max(1, lfastTime))
+				+ ", difference of log probabilities = "
+				+ Math.abs(dexact - dfast));
+	}
+
+	private static void measureError() {
+		double dmaximumError = 0;
+		double dmaximumErrorPosition = 0;
+		float fmaximumError = 0;
+		double dx = -500.0;
+		for (int i = 0; i <= 4000000; i++) {
+			double dy = dx - i * 25.0 / 4000000;
+			double derror = Math.abs(FastLogDomainCalculator.add(dx, dy)
+					- LogDomainCalculator.add(dx, dy));
+			if (derror > dmaximumError) {
+				dmaximumError = derror;
+				dmaximumErrorPosition = dx - dy;
+			}
+			float ferror = Math.abs(FastLogDomainCalculator.add((float) dx,
+					(float) dy)
+					- LogDomainCalculator.add((float) dx, (float) dy));
+			if (ferror > fmaximumError) {
+				fmaximumError = ferror;
+			}
+		}
+		Print.dialog("Maximum error (double) = " + dmaximumError
+				+ " at difference " + dmaximumErrorPosition);
+		Print.dialog("Maximum error (float, arguments around " + dx + ") = "
+				+ fmaximumError);
+	}
+
+	private static double[][] createLeftRightTransitionMatrix(
+			int nnumberOfStates, Random random) {
+		double[][] dlogA = new double[nnumberOfStates][nnumberOfStates];
+		for (int i = 0; i < nnumberOfStates; i++) {
+			for (int j = 0; j < nnumberOfStates; j++) {
+				dlogA[i][j] = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+			}
+		}
+		dlogA[0][1] = 0;
+		for (int i = 1; i < nnumberOfStates - 1; i++) {
+			// self-loop, next state and a skip
+			double dself = 0.5 + 0.4 * random.nextDouble();
+			if (i < nnumberOfStates - 2) {
+				dlogA[i][i] = Math.log(dself);
+				dlogA[i][i + 1] = Math.log(0.9 * (1 - dself));
+				dlogA[i][i + 2] = Math.log(0.1 * (1 - dself));
+			} else {
+				dlogA[i][i] = Math.log(dself);
+				dlogA[i][i + 1] = Math.log(1 - dself);
+			}
+		}
+		return dlogA;
+	}
+
+	private static double add(double x, double y, boolean ouseFastLogAdd) {
+		return ouseFastLogAdd ? FastLogDomainCalculator.add(x, y)
+				: LogDomainCalculator.add(x, y);
+	}
+
+	/**
+	 * Returns the log probability calculated by the forward recursion. The
+	 * backward recursion is also calculated, as in Baum-Welch.
+	 */
+	private static double forwardBackward(double[][] dlogA, double[][] dlogB,
+			double[][] dalpha, double[][] dbeta, boolean ouseFastLogAdd) {
+		int N = dlogA.length;
+		int T = dlogB[0].length;
+		double x;
+		for (int j = 1; j < N - 1; j++) {
+			dalpha[j][0] = dlogA[0][j] + dlogB[j][0];
+		}
+		for (int t = 1; t < T; t++) {
+			for (int j = 1; j < N - 1; j++) {
+				x = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+				for (int i = 1; i < N - 1; i++) {
+					double a = dlogA[i][j];
+					if (a > LogDomainCalculator.m_fSMALL_NUMBER) {
+						x = add(x, dalpha[i][t - 1] + a, ouseFastLogAdd);
+					}
+				}
+				dalpha[j][t] = x + dlogB[j][t];
+			}
+		}
+		double dlogProbability = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+		for (int i = 1; i < N - 1; i++) {
+			dlogProbability = add(dlogProbability, dalpha[i][T - 1]
+					+ dlogA[i][N - 1], ouseFastLogAdd);
+		}
+
+		for (int i = 1; i < N - 1; i++) {
+			dbeta[i][T - 1] = dlogA[i][N - 1];
+		}
+		for (int t = T - 2; t >= 0; t--) {
+			for (int i = 1; i < N - 1; i++) {
+				x = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+				for (int j = 1; j < N - 1; j++) {
+					double a = dlogA[i][j];
+					if (a > LogDomainCalculator.m_fSMALL_NUMBER) {
+						x = add(x, a + dlogB[j][t + 1] + dbeta[j][t + 1],
+								ouseFastLogAdd);
+					}
+				}
+				dbeta[i][t] = x;
+			}
+		}
+		return dlogProbability;
+	}
+
+}
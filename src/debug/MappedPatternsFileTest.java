@@ -0,0 +1,185 @@
+package debug;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import edu.ucsd.asr.*;
+
+/**
+ * Writes a SetOfPatterns file with random Patterns of different lengths and
+ * compares the Patterns loaded on the heap with the ones read from the
+ * memory-mapped file: through getPattern(), through a Reader (that reuses
+ * the frames of the previous Pattern, so the Patterns are read in random
+ * order to alternate short and long ones) and through the read-only views.
+ * The values must be exactly the same. After close(), reading a Pattern
+ * must fail.
+ */
+public class MappedPatternsFileTest {
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 0 && args.length != 3) {
+			System.out
+					.println("MappedPatternsFileTest <# of Patterns> <space dimension> <maximum # of frames>");
+			System.exit(1);
+		}
+		int nnumberOfPatterns = 200;
+		int nspaceDimension = 39;
+		int nmaximumNumberOfFrames = 300;
+		if (args.length == 3) {
+			nnumberOfPatterns = Integer.parseInt(args[0]);
+			nspaceDimension = Integer.parseInt(args[1]);
+			nmaximumNumberOfFrames = Integer.parseInt(args[2]);
+		}
+
+		Random random = new Random(1);
+		SetOfPatterns setOfPatterns = new SetOfPatterns(
+				new EmptyPatternGenerator(nspaceDimension));
+		for (int i = 0; i < nnumberOfPatterns; i++) {
+			float[][] fparameters = new float[1 + random
+					.nextInt(nmaximumNumberOfFrames)][nspaceDimension];
+			for (int t = 0; t < fparameters.length; t++) {
+				for (int k = 0; k < nspaceDimension; k++) {
+					fparameters[t][k] = (float) (10 * random.nextGaussian());
+				}
+			}
+			setOfPatterns.addPattern(new Pattern(fparameters));
+		}
+		File file = File.createTempFile("MappedPatternsFileTest", "."
+				+ SetOfPatterns.m_FILE_EXTENSION);
+		file.deleteOnExit();
+		setOfPatterns.writeToFile(file.getPath());
+
+		SetOfPatterns loaded = new SetOfPatterns(file.getPath(), false);
+		SetOfPatterns mapped = new SetOfPatterns(file.getPath(), true);
+		int nnumberOfErrors = 0;
+		if (loaded.isMapped() || !mapped.isMapped()) {
+			Print.error("isMapped() is wrong");
+			nnumberOfErrors++;
+		}
+		if (mapped.getNumberOfPatterns() != nnumberOfPatterns
+				|| loaded.getNumberOfPatterns() != nnumberOfPatterns) {
+			Print.error("Wrong number of Patterns: "
+					+ loaded.getNumberOfPatterns() + " and "
+					+ mapped.getNumberOfPatterns() + " instead of "
+					+ nnumberOfPatterns);
+			System.exit(1);
+		}
+
+		for (int i = 0; i < nnumberOfPatterns; i++) {
+			float[][] fexpected = loaded.getPattern(i).getParameters();
+			if (mapped.getNumberOfFrames(i) != fexpected.length) {
+				Print.error("Pattern " + i + ": getNumberOfFrames() = "
+						+ mapped.getNumberOfFrames(i) + " instead of "
+						+ fexpected.length);
+				nnumberOfErrors++;
+			}
+			nnumberOfErrors += compare("getPattern(), Pattern " + i, fexpected,
+					mapped.getPattern(i).getParameters());
+		}
+
+		MappedPatternsFile.Reader reader = mapped.getReader();
+		for (int n = 0; n < 2 * nnumberOfPatterns; n++) {
+			int i = random.nextInt(nnumberOfPatterns);
+			nnumberOfErrors += compare("Reader, Pattern " + i, loaded
+					.getPattern(i).getParameters(), mapped.getPattern(i, reader)
+					.getParameters());
+		}
+
+		// the views are read from a MappedPatternsFile created directly
+		FileWithHeaderReader fileWithHeaderReader = new FileWithHeaderReader(
+				file.getPath());
+		fileWithHeaderReader.getHeaderProperties();
+		int nnumberOfBytesInHeader = fileWithHeaderReader
+				.getNumberOfBytesInHeader();
+		fileWithHeaderReader.closeFile();
+		MappedPatternsFile mappedPatternsFile = new MappedPatternsFile(
+				file.getPath(), nnumberOfBytesInHeader, nnumberOfPatterns,
+				nspaceDimension);
+		for (int i = 0; i < nnumberOfPatterns; i++) {
+			float[][] fexpected = loaded.getPattern(i).getParameters();
+			FloatBuffer view = mappedPatternsFile.getParametersView(i);
+			if (!view.isReadOnly()
+					|| view.remaining() != fexpected.length * nspaceDimension) {
+				Print.error("View of Pattern " + i + " has "
+						+ view.remaining() + " floats");
+				nnumberOfErrors++;
+				continue;
+			}
+			float[][] fview = new float[fexpected.length][nspaceDimension];
+			for (int t = 0; t < fview.length; t++) {
+				view.get(fview[t]);
+			}
+			nnumberOfErrors += compare("view, Pattern " + i, fexpected, fview);
+		}
+
+		mapped.close();
+		mappedPatternsFile.close();
+		if (!mappedPatternsFile.isClosed()) {
+			Print.error("isClosed() is false after close()");
+			nnumberOfErrors++;
+		}
+		nnumberOfErrors += checkThatFails("getPattern() after close()",
+				mapped, reader, false);
+		nnumberOfErrors += checkThatFails("Reader after close()", mapped,
+				reader, true);
+		try {
+			mappedPatternsFile.getParametersView(0);
+			Print.error("getParametersView() after close() did not fail");
+			nnumberOfErrors++;
+		} catch (ASRError e) {
+		}
+
+		if (nnumberOfErrors == 0) {
+			Print.dialog("OK, same results");
+		} else {
+			Print.error("WRONG: " + nnumberOfErrors + " differences");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * @return 1 if there is a difference, 0 otherwise
+	 */
+	private static int compare(String description, float[][] fexpected,
+			float[][] fobtained) {
+		if (fexpected.length != fobtained.length) {
+			Print.error(description + ": " + fobtained.length
+					+ " frames instead of " + fexpected.length);
+			return 1;
+		}
+		for (int t = 0; t < fexpected.length; t++) {
+			for (int k = 0; k < fexpected[t].length; k++) {
+				if (Float.floatToIntBits(fexpected[t][k]) != Float
+						.floatToIntBits(fobtained[t][k])) {
+					Print.error(description + ", frame " + t + ", parameter "
+							+ k + ": " + fobtained[t][k] + " instead of "
+							+ fexpected[t][k]);
+					return 1;
+				}
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * @return 1 if reading the Pattern did not fail, 0 otherwise
+	 */
+	private static int checkThatFails(String description,
+			SetOfPatterns setOfPatterns, MappedPatternsFile.Reader reader,
+			boolean ouseReader) {
+		try {
+			if (ouseReader) {
+				setOfPatterns.getPattern(0, reader);
+			} else {
+				setOfPatterns.getPattern(0);
+			}
+		} catch (ASRError e) {
+			return 0;
+		}
+		Print.error(description + " did not fail");
+		return 1;
+	}
+
+}
@@ -0,0 +1,118 @@
+package debug;
+
+import java.io.File;
+import java.util.Arrays;
+
+import edu.ucsd.asr.*;
+
+/**
+ * Checks that the embedded reestimation reads the PackedCorpusFile only if
+ * its fingerprint matches the current front end properties and SOP files.
+ * The PackedCorpusFile is written with the parameters of the SOP files
+ * multiplied by 2, such that the reestimated HMMs show which files were read:
+ * <ul>
+ * <li>with a valid fingerprint, the HMMs must differ from the ones obtained
+ * with the SOP files;</li>
+ * <li>after an SOP file is modified, the PackedCorpusFile is stale and the
+ * HMMs must be the ones obtained with the SOP files;</li>
+ * <li>the fingerprint must change when one front end property changes.</li>
+ * </ul>
+ * A PackedCorpusFile with the same parameters as the SOP files must give
+ * identical HMMs.
+ */
+public class PackedCorpusFileTest {
+
+	public static void main(String[] args) {
+		if (args.length > 1) {
+			System.out.println("PackedCorpusFileTest [directory]");
+			System.exit(1);
+		}
+		String directory = (args.length == 1) ? args[0] : System
+				.getProperty("java.io.tmpdir")
+				+ "/PackedCorpusFileTest";
+
+		SyntheticTrainingData syntheticTrainingData = new SyntheticTrainingData(
+				directory, 6, 5, 3, 4, 20, 4);
+		new File(directory, PackedCorpusFile.m_DEFAULT_FILE_NAME).delete();
+		SetOfSharedContinuousHMMs setOfPatternsHMMs = syntheticTrainingData
+				.reestimate(getProperties(false));
+
+		int nnumberOfErrors = 0;
+		syntheticTrainingData.writePackedCorpusFile(1.0F);
+		nnumberOfErrors += SyntheticTrainingData.compare(
+				"PackedCorpusFile with the same parameters", setOfPatternsHMMs,
+				syntheticTrainingData.reestimate(getProperties(true)), 0);
+
+		syntheticTrainingData.writePackedCorpusFile(2.0F);
+		if (isFirstMeanEqual(setOfPatternsHMMs, syntheticTrainingData
+				.reestimate(getProperties(true)))) {
+			Print.error("PackedCorpusFile with a valid fingerprint was not read");
+			nnumberOfErrors++;
+		}
+
+		// one second later, such that the modification time changes
+		File file = new File(syntheticTrainingData.getSetOfPatternsFileName(3));
+		file.setLastModified(file.lastModified() + 1000);
+		Print.dialog("Expecting a warning about a stale PackedCorpusFile:");
+		nnumberOfErrors += SyntheticTrainingData.compare(
+				"stale PackedCorpusFile", setOfPatternsHMMs,
+				syntheticTrainingData.reestimate(getProperties(true)), 0);
+
+		nnumberOfErrors += checkFingerprintOfFrontEndProperties();
+
+		if (nnumberOfErrors == 0) {
+			Print.dialog("OK, same results");
+		} else {
+			Print.error("WRONG: " + nnumberOfErrors + " differences");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Changing one property of the default MFCC front end must change the
+	 * fingerprint, while changing the description must not.
+	 */
+	private static int checkFingerprintOfFrontEndProperties() {
+		String[] setOfPatternsFileNames = new String[0];
+		HeaderProperties headerProperties = PatternGenerator
+				.getDefaultProperties(PatternGenerator.Type.MFCC)
+				.getHeaderProperties();
+		byte[] fingerprint = PackedCorpusFile.calculateFingerprint(
+				headerProperties, setOfPatternsFileNames);
+
+		int nnumberOfErrors = 0;
+		HeaderProperties otherProperties = (HeaderProperties) headerProperties
+				.clone();
+		otherProperties.setProperty("PatternGenerator.Description",
+				"other description");
+		if (!Arrays.equals(fingerprint, PackedCorpusFile.calculateFingerprint(
+				otherProperties, setOfPatternsFileNames))) {
+			Print.error("The fingerprint changed with the description");
+			nnumberOfErrors++;
+		}
+		otherProperties.setProperty("MFCC.nnumberOfFilters", "20");
+		if (Arrays.equals(fingerprint, PackedCorpusFile.calculateFingerprint(
+				otherProperties, setOfPatternsFileNames))) {
+			Print.error("The fingerprint did not change with "
+					+ "MFCC.nnumberOfFilters");
+			nnumberOfErrors++;
+		}
+		return nnumberOfErrors;
+	}
+
+	private static boolean isFirstMeanEqual(SetOfSharedContinuousHMMs a,
+			SetOfSharedContinuousHMMs b) {
+		return Arrays.equals(a.convertToPlainHMMs().getHMMs()[0]
+				.getMixturesOfGaussianPDFs()[0].getGaussians()[0].getMean(), b
+				.convertToPlainHMMs().getHMMs()[0].getMixturesOfGaussianPDFs()[0]
+				.getGaussians()[0].getMean());
+	}
+
+	private static HeaderProperties getProperties(boolean ousePackedCorpusFile) {
+		HeaderProperties headerProperties = new HeaderProperties();
+		headerProperties.setProperty("TrainingManager.ousePackedCorpusFile",
+				Boolean.toString(ousePackedCorpusFile));
+		return headerProperties;
+	}
+
+}
@@ -0,0 +1,106 @@
+package debug;
+
+import edu.ucsd.asr.*;
+
+/**
+ * Compares the HMMs obtained by one iteration of embedded reestimation
+ * accumulating the statistics with one thread (serial loop) and with N
+ * threads (utterances split into shards). The sums are done in another order,
+ * so the values may differ in the last bits, but two runs with the same
+ * number of threads must give identical HMMs. The utterances are synthetic
+ * (see SyntheticTrainingData) and written to the given directory. The
+ * optional numbers of HMMs, Gaussians, dimensions and utterances allow timing
+ * a large corpus; the times are the best of some runs, after a warm-up run.
+ * Threads can only be faster than the serial loop on a machine with more than
+ * one processor.
+ */
+public class ShardedReestimationTest {
+
+	public static void main(String[] args) {
+		if (args.length != 0 && args.length != 1 && args.length != 5) {
+			System.out.println("ShardedReestimationTest [directory "
+					+ "[numberOfHMMs numberOfGaussians spaceDimension "
+					+ "numberOfUtterances]]");
+			System.exit(1);
+		}
+		String directory = (args.length > 0) ? args[0] : System
+				.getProperty("java.io.tmpdir")
+				+ "/ShardedReestimationTest";
+		int nnumberOfHMMs = 6;
+		int nnumberOfGaussians = 3;
+		int nspaceDimension = 4;
+		int nnumberOfUtterances = 40;
+		if (args.length == 5) {
+			nnumberOfHMMs = Integer.parseInt(args[1]);
+			nnumberOfGaussians = Integer.parseInt(args[2]);
+			nspaceDimension = Integer.parseInt(args[3]);
+			nnumberOfUtterances = Integer.parseInt(args[4]);
+		}
+		int[] nnumberOfThreads = { 2, 3, 8 };
+		float frelativeTolerance = 1e-4F;
+
+		SyntheticTrainingData syntheticTrainingData = new SyntheticTrainingData(
+				directory, nnumberOfHMMs, 5, nnumberOfGaussians,
+				nspaceDimension, nnumberOfUtterances, 4);
+		Print.dialog(nnumberOfUtterances + " utterances, " + nnumberOfHMMs
+				+ " HMMs with " + nnumberOfGaussians + " Gaussians of dimension "
+				+ nspaceDimension + ", " + Runtime.getRuntime().availableProcessors()
+				+ " processors");
+
+		// warm-up
+		syntheticTrainingData.reestimate(getProperties(1));
+
+		SetOfSharedContinuousHMMs serialHMMs = syntheticTrainingData
+				.reestimate(getProperties(1));
+		Print.dialog("1 thread: " + getBestTime(syntheticTrainingData, 1)
+				+ " ms");
+
+		int nnumberOfErrors = 0;
+		for (int i = 0; i < nnumberOfThreads.length; i++) {
+			SetOfSharedContinuousHMMs shardedHMMs = syntheticTrainingData
+					.reestimate(getProperties(nnumberOfThreads[i]));
+			Print.dialog(nnumberOfThreads[i] + " threads: "
+					+ getBestTime(syntheticTrainingData, nnumberOfThreads[i])
+					+ " ms");
+			nnumberOfErrors += SyntheticTrainingData.compare(
+					nnumberOfThreads[i] + " threads", serialHMMs, shardedHMMs,
+					frelativeTolerance);
+			// the shards are added in a fixed order
+			SetOfSharedContinuousHMMs otherShardedHMMs = syntheticTrainingData
+					.reestimate(getProperties(nnumberOfThreads[i]));
+			nnumberOfErrors += SyntheticTrainingData.compare(
+					nnumberOfThreads[i] + " threads, second run", shardedHMMs,
+					otherShardedHMMs, 0);
+		}
+
+		if (nnumberOfErrors == 0) {
+			Print.dialog("OK, same results");
+		} else {
+			Print.error("WRONG: " + nnumberOfErrors + " differences");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Best time of some runs of the reestimation, in ms.
+	 */
+	private static long getBestTime(
+			SyntheticTrainingData syntheticTrainingData, int nnumberOfThreads) {
+		long lbest = Long.MAX_VALUE;
+		for (int i = 0; i < 5; i++) {
+			long lstart = System.currentTimeMillis();
+			syntheticTrainingData.reestimate(getProperties(nnumberOfThreads));
+			lbest = Math.min(lbest, System.currentTimeMillis() - lstart);
+		}
+		return lbest;
+	}
+
+	private static HeaderProperties getProperties(int nnumberOfThreads) {
+		HeaderProperties headerProperties = new HeaderProperties();
+		headerProperties.setProperty(
+				"SetOfSharedContinuousHMMReestimator.nnumberOfThreads", Integer
+						.toString(nnumberOfThreads));
+		return headerProperties;
+	}
+
+}
@@ -0,0 +1,114 @@
+package debug;
+
+import java.util.Random;
+
+import edu.ucsd.asr.*;
+
+/**
+ * Left-right HMMs with diagonal covariance Gaussians drawn at random, and
+ * segments generated by them, used by the debug programs that compare
+ * alternative implementations (or measure speed) without needing a speech
+ * database.
+ */
+public class SyntheticHMMs {
+
+	private final ContinuousHMM[] m_continuousHMMs;
+
+	/**
+	 * Means and variances of Gaussian g of state s of HMM h, used to
+	 * generate the segments, are m_fmeans[h][s][g] and m_fvariances[h][s][g].
+	 */
+	private final float[][][][] m_fmeans;
+
+	private final float[][][][] m_fvariances;
+
+	public SyntheticHMMs(int nnumberOfHMMs, int nnumberOfStates,
+			int nnumberOfGaussians, int nspaceDimension, Random random) {
+		m_continuousHMMs = new ContinuousHMM[nnumberOfHMMs];
+		m_fmeans = new float[nnumberOfHMMs][nnumberOfStates - 2][nnumberOfGaussians][];
+		m_fvariances = new float[nnumberOfHMMs][nnumberOfStates - 2][nnumberOfGaussians][];
+		for (int h = 0; h < nnumberOfHMMs; h++) {
+			m_continuousHMMs[h] = createHMM(h, nnumberOfStates,
+					nnumberOfGaussians, nspaceDimension, random);
+		}
+	}
+
+	public ContinuousHMM[] getHMMs() {
+		return m_continuousHMMs;
+	}
+
+	private ContinuousHMM createHMM(int nhmm, int nnumberOfStates,
+			int nnumberOfGaussians, int nspaceDimension, Random random) {
+		float[][] ftransitionMatrix = new float[nnumberOfStates][nnumberOfStates];
+		ftransitionMatrix[0][1] = 1.0F;
+		for (int i = 1; i < nnumberOfStates - 1; i++) {
+			ftransitionMatrix[i][i] = 0.7F;
+			ftransitionMatrix[i][i + 1] = 0.3F;
+		}
+		// as in HMMInitializer, the last state remains in loop
+		ftransitionMatrix[nnumberOfStates - 1][nnumberOfStates - 1] = 1.0F;
+		MixtureOfGaussianPDFs[] mixtures = new MixtureOfGaussianPDFs[nnumberOfStates - 2];
+		for (int s = 0; s < mixtures.length; s++) {
+			// Gaussians of a mixture are spread around a center
+			float[] fcenter = new float[nspaceDimension];
+			for (int k = 0; k < nspaceDimension; k++) {
+				fcenter[k] = (float) (0.4 * random.nextGaussian());
+			}
+			GaussianPDF[] gaussians = new GaussianPDF[nnumberOfGaussians];
+			float[] fweights = new float[nnumberOfGaussians];
+			float fsum = 0;
+			for (int g = 0; g < nnumberOfGaussians; g++) {
+				float[] fmean = new float[nspaceDimension];
+				float[] fvariances = new float[nspaceDimension];
+				for (int k = 0; k < nspaceDimension; k++) {
+					fmean[k] = fcenter[k] + (float) random.nextGaussian();
+					fvariances[k] = 0.3F + 0.7F * random.nextFloat();
+				}
+				gaussians[g] = new DiagonalCovarianceGaussianPDF(fmean,
+						fvariances);
+				m_fmeans[nhmm][s][g] = fmean;
+				m_fvariances[nhmm][s][g] = fvariances;
+				fweights[g] = 0.5F + random.nextFloat();
+				fsum += fweights[g];
+			}
+			// the mixture takes the weights in log domain
+			for (int g = 0; g < nnumberOfGaussians; g++) {
+				fweights[g] = (float) Math.log(fweights[g] / fsum);
+			}
+			mixtures[s] = new MixtureOfGaussianPDFs(gaussians, fweights);
+		}
+		return new ContinuousHMM(ftransitionMatrix, mixtures);
+	}
+
+	/**
+	 * Each emitting state generates 2 to 9 frames, each one drawn from a
+	 * Gaussian of its mixture chosen at random.
+	 */
+	public Pattern generatePattern(int nhmm, Random random) {
+		float[][][] fmeans = m_fmeans[nhmm];
+		float[][][] fvariances = m_fvariances[nhmm];
+		int nnumberOfEmittingStates = fmeans.length;
+		int nspaceDimension = fmeans[0][0].length;
+		int[] ndurations = new int[nnumberOfEmittingStates];
+		int nnumberOfFrames = 0;
+		for (int s = 0; s < nnumberOfEmittingStates; s++) {
+			ndurations[s] = 2 + random.nextInt(8);
+			nnumberOfFrames += ndurations[s];
+		}
+		float[][] fparameters = new float[nnumberOfFrames][nspaceDimension];
+		int t = 0;
+		for (int s = 0; s < nnumberOfEmittingStates; s++) {
+			for (int d = 0; d < ndurations[s]; d++) {
+				int g = random.nextInt(fmeans[s].length);
+				for (int k = 0; k < nspaceDimension; k++) {
+					fparameters[t][k] = fmeans[s][g][k]
+							+ (float) (random.nextGaussian() * Math
+									.sqrt(fvariances[s][g][k]));
+				}
+				t++;
+			}
+		}
+		return new Pattern(fparameters);
+	}
+
+}
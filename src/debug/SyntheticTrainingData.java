@@ -0,0 +1,257 @@
+package debug;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.Vector;
+
+import edu.ucsd.asr.*;
+
+/**
+ * Utterances generated by SyntheticHMMs (one SOP file per utterance and a DTL
+ * file with their transcriptions), used by the debug programs that run the
+ * embedded reestimation of SetOfSharedContinuousHMMsReestimator with
+ * different options and compare the reestimated HMMs.
+ */
+public class SyntheticTrainingData {
+
+	private final String m_directory;
+
+	private final String m_transcriptionsFileName;
+
+	private final int m_nnumberOfHMMs;
+
+	private final int m_nnumberOfStates;
+
+	private final int m_nnumberOfGaussians;
+
+	private final int m_nspaceDimension;
+
+	private final String[] m_labels;
+
+	/**
+	 * Each utterance is the concatenation of nnumberOfSegmentsPerUtterance
+	 * segments, each one generated by an HMM chosen at random.
+	 */
+	public SyntheticTrainingData(String directory, int nnumberOfHMMs,
+			int nnumberOfStates, int nnumberOfGaussians, int nspaceDimension,
+			int nnumberOfUtterances, int nnumberOfSegmentsPerUtterance) {
+		m_directory = FileNamesAndDirectories
+				.replaceAndForceEndingWithSlash(directory);
+		FileNamesAndDirectories.createDirectoriesIfNecessary(m_directory);
+		m_transcriptionsFileName = m_directory + "train."
+				+ DataLocator.m_FILE_EXTENSION;
+		m_nnumberOfHMMs = nnumberOfHMMs;
+		m_nnumberOfStates = nnumberOfStates;
+		m_nnumberOfGaussians = nnumberOfGaussians;
+		m_nspaceDimension = nspaceDimension;
+		m_labels = new String[nnumberOfHMMs];
+		for (int h = 0; h < nnumberOfHMMs; h++) {
+			m_labels[h] = "h" + h;
+		}
+
+		Random random = new Random(2);
+		SyntheticHMMs syntheticHMMs = createSyntheticHMMs();
+		StringBuffer transcriptions = new StringBuffer();
+		for (int u = 0; u < nnumberOfUtterances; u++) {
+			String fileName = "u" + u;
+			transcriptions.append(fileName + ".wav "
+					+ nnumberOfSegmentsPerUtterance);
+			Vector frames = new Vector();
+			for (int i = 0; i < nnumberOfSegmentsPerUtterance; i++) {
+				int h = random.nextInt(nnumberOfHMMs);
+				transcriptions.append(" " + m_labels[h]);
+				float[][] fparameters = syntheticHMMs.generatePattern(h, random)
+						.getParameters();
+				for (int t = 0; t < fparameters.length; t++) {
+					frames.addElement(fparameters[t]);
+				}
+			}
+			transcriptions.append(IO.m_NEW_LINE);
+			float[][] fparameters = new float[frames.size()][];
+			frames.copyInto(fparameters);
+			SetOfPatterns setOfPatterns = new SetOfPatterns(
+					new EmptyPatternGenerator(nspaceDimension));
+			setOfPatterns.addPattern(new Pattern(fparameters));
+			setOfPatterns.writeToFile(m_directory + fileName + "."
+					+ SetOfPatterns.m_FILE_EXTENSION);
+		}
+		String header = "DataLocator.Type = "
+				+ DataLocator.Type.LABELS.toString() + IO.m_NEW_LINE
+				+ "DatabaseManager.nnumberOfDataLocators = "
+				+ nnumberOfUtterances;
+		IO.writeStringToFile(m_transcriptionsFileName, FileWithHeaderWriter
+				.formatHeader(header)
+				+ transcriptions.toString());
+	}
+
+	/**
+	 * The HMMs are created again for each call, because the reestimation
+	 * modifies the mixtures of the given set.
+	 */
+	private SyntheticHMMs createSyntheticHMMs() {
+		return new SyntheticHMMs(m_nnumberOfHMMs, m_nnumberOfStates,
+				m_nnumberOfGaussians, m_nspaceDimension, new Random(1));
+	}
+
+	/**
+	 * Run one iteration of embedded reestimation, starting from the HMMs that
+	 * generated the utterances, with the given properties of
+	 * SetOfSharedContinuousHMMsReestimator (e.g.
+	 * SetOfSharedContinuousHMMReestimator.nnumberOfThreads) added to the
+	 * ones needed to locate the files.
+	 */
+	public SetOfSharedContinuousHMMs reestimate(HeaderProperties properties) {
+		PatternGenerator patternGenerator = new EmptyPatternGenerator(
+				m_nspaceDimension);
+		SetOfSharedContinuousHMMs setOfSharedContinuousHMMs = new SetOfPlainContinuousHMMs(
+				createSyntheticHMMs().getHMMs(), m_labels, new TableOfLabels(
+						m_labels), patternGenerator).convertToSharedHMMs();
+
+		HeaderProperties headerProperties = getFrontEndProperties();
+		headerProperties.setProperty("Database.Type", Database.Type.GENERAL
+				.toString());
+		headerProperties.setProperty("TrainingManager.GeneralOutputDirectory",
+				m_directory);
+		headerProperties.setProperty(
+				"TrainingManager.TrainSpeechDataRootDirectory", m_directory);
+		headerProperties.setProperty("HMM.TopologyIdentifier", "synthetic");
+		headerProperties.putAll(properties);
+
+		SetOfSharedContinuousHMMsReestimator setOfSharedContinuousHMMsReestimator = new SetOfSharedContinuousHMMsReestimator(
+				new SetOfSharedContinuousHMMsBeingReestimated(
+						setOfSharedContinuousHMMs), patternGenerator,
+				headerProperties, m_transcriptionsFileName, m_directory,
+				m_directory + "OccupationStatistics.txt");
+		return setOfSharedContinuousHMMsReestimator.getSetOfReestimatedHMMs();
+	}
+
+	/**
+	 * Properties of the PatternGenerator of the utterances.
+	 */
+	public HeaderProperties getFrontEndProperties() {
+		HeaderProperties headerProperties = new HeaderProperties();
+		headerProperties.setProperty("PatternGenerator.Type",
+				PatternGenerator.Type.ALIEN.toString());
+		headerProperties.setProperty("EmptyPatternGenerator.nspaceDimension",
+				Integer.toString(m_nspaceDimension));
+		return headerProperties;
+	}
+
+	/**
+	 * SOP file of the given utterance.
+	 */
+	public String getSetOfPatternsFileName(int nutterance) {
+		return m_directory + "u" + nutterance + "."
+				+ SetOfPatterns.m_FILE_EXTENSION;
+	}
+
+	/**
+	 * Write the PackedCorpusFile of the directory with the SOP files, as
+	 * TrainingManager does, but with the parameters multiplied by fscale,
+	 * such that reading it or the SOP files gives different HMMs when fscale
+	 * is not 1. The fingerprint is the one of the current SOP files.
+	 */
+	public void writePackedCorpusFile(float fscale) {
+		String fileName = m_directory + PackedCorpusFile.m_DEFAULT_FILE_NAME;
+		Vector setOfPatternsFileNames = new Vector();
+		try {
+			PackedCorpusFile.Writer writer = new PackedCorpusFile.Writer(
+					fileName, m_nspaceDimension);
+			DatabaseManager databaseManager = new DatabaseManager(
+					m_transcriptionsFileName);
+			while (databaseManager.isThereDataToRead()) {
+				DataLocator dataLocator = databaseManager.getNextDataLocator();
+				String setOfPatternsFileName = getSetOfPatternsFileName(setOfPatternsFileNames
+						.size());
+				setOfPatternsFileNames.addElement(setOfPatternsFileName);
+				float[][] fparameters = new SetOfPatterns(
+						setOfPatternsFileName).getPattern(0).getParameters();
+				for (int t = 0; t < fparameters.length; t++) {
+					for (int k = 0; k < fparameters[t].length; k++) {
+						fparameters[t][k] *= fscale;
+					}
+				}
+				writer.addPattern(dataLocator.getFileName(), new Pattern(
+						fparameters));
+			}
+			databaseManager.finalizeDataReading();
+			String[] names = new String[setOfPatternsFileNames.size()];
+			setOfPatternsFileNames.copyInto(names);
+			writer.setFingerprint(PackedCorpusFile.calculateFingerprint(
+					getFrontEndProperties(), names));
+			writer.close();
+		} catch (IOException e) {
+			End.throwError("Error writing " + fileName + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Compares the transition matrices and the mixtures (weights, means and
+	 * variances) of two sets with the same topology and prints the
+	 * differences. Two values a and b are considered the same if |a - b| <=
+	 * frelativeTolerance * max(1, |a|), such that a zero tolerance requires
+	 * identical values.
+	 *
+	 * @return the number of differences
+	 */
+	public static int compare(String description,
+			SetOfSharedContinuousHMMs expected,
+			SetOfSharedContinuousHMMs obtained, float frelativeTolerance) {
+		int nnumberOfErrors = 0;
+		for (int i = 0; i < expected.getNumberOfTransitionMatrices(); i++) {
+			nnumberOfErrors += compare(description + ", transition matrix "
+					+ i, expected.getTransitionMatrix(i), obtained
+					.getTransitionMatrix(i), frelativeTolerance);
+		}
+		ContinuousHMM[] expectedHMMs = expected.convertToPlainHMMs().getHMMs();
+		ContinuousHMM[] obtainedHMMs = obtained.convertToPlainHMMs().getHMMs();
+		for (int h = 0; h < expectedHMMs.length; h++) {
+			MixtureOfGaussianPDFs[] expectedMixtures = expectedHMMs[h]
+					.getMixturesOfGaussianPDFs();
+			MixtureOfGaussianPDFs[] obtainedMixtures = obtainedHMMs[h]
+					.getMixturesOfGaussianPDFs();
+			for (int s = 0; s < expectedMixtures.length; s++) {
+				String mixtureDescription = description + ", HMM " + h
+						+ ", state " + (s + 1);
+				nnumberOfErrors += compare(mixtureDescription + ", weights",
+						new float[][] { expectedMixtures[s]
+								.getComponentsWeights() },
+						new float[][] { obtainedMixtures[s]
+								.getComponentsWeights() }, frelativeTolerance);
+				GaussianPDF[] expectedGaussians = expectedMixtures[s]
+						.getGaussians();
+				GaussianPDF[] obtainedGaussians = obtainedMixtures[s]
+						.getGaussians();
+				for (int g = 0; g < expectedGaussians.length; g++) {
+					nnumberOfErrors += compare(mixtureDescription
+							+ ", Gaussian " + g, new float[][] {
+							expectedGaussians[g].getMean(),
+							((DiagonalCovarianceGaussianPDF) expectedGaussians[g])
+									.getVariances() }, new float[][] {
+							obtainedGaussians[g].getMean(),
+							((DiagonalCovarianceGaussianPDF) obtainedGaussians[g])
+									.getVariances() }, frelativeTolerance);
+				}
+			}
+		}
+		return nnumberOfErrors;
+	}
+
+	private static int compare(String description, float[][] fexpected,
+			float[][] fobtained, float frelativeTolerance) {
+		for (int i = 0; i < fexpected.length; i++) {
+			for (int j = 0; j < fexpected[i].length; j++) {
+				float fdifference = Math.abs(fexpected[i][j] - fobtained[i][j]);
+				if (!(fdifference <= frelativeTolerance
+						* Math.max(1, Math.abs(fexpected[i][j])))) {
+					Print.error(description + ": " + fobtained[i][j]
+							+ " instead of " + fexpected[i][j] + " at [" + i
+							+ "][" + j + "]");
+					return 1;
+				}
+			}
+		}
+		return 0;
+	}
+
+}
@@ -0,0 +1,392 @@
+package debug;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+import java.util.StringTokenizer;
+import java.util.Vector;
+
+import edu.ucsd.asr.*;
+import edu.ucsd.tree.Network;
+import edu.ucsd.tree.TokenPassingDecoder;
+import edu.ucsd.tree.TokenPassingSentenceRecognizer;
+
+/**
+ * Decodes sentences generated by synthetic HMMs (each HMM is a word) with
+ * the TokenPassingDecoder and a loop over the words, and compares the word
+ * sequences with the ones of an exhaustive Viterbi search over the same
+ * loop, which uses all pairs of states of the transition matrices (as the
+ * decoder did before using TransitionArcs) and no pruning. With wide beams
+ * the words must be the same. The accuracy with respect to the words that
+ * generated the sentences is also shown.
+ * <p>
+ * If a directory is given, the HMMs (HTK format), the list of HMMs, a
+ * dictionary, the word loop (HTK lattice), the sentences (HTK parameter
+ * files), their list and the reference MLF are written to it, such that the
+ * sentences can be recognized by HVite with the command that is printed. If
+ * the MLF written by HVite is also given, its word sequences are compared
+ * with the ones of the TokenPassingDecoder.
+ */
+public class TokenPassingDecoderTest {
+
+	public static void main(String[] args) throws IOException {
+		if (args.length > 2) {
+			System.out
+					.println("TokenPassingDecoderTest [<output directory for HVite> [<MLF written by HVite>]]");
+			System.exit(1);
+		}
+		int nnumberOfWords = 10;
+		int nnumberOfStates = 5;
+		int nnumberOfGaussians = 2;
+		int nspaceDimension = 13;
+		int nnumberOfSentences = 40;
+		int nmaximumNumberOfWordsPerSentence = 6;
+		float fnoiseStandardDeviation = 1.0F;
+
+		Random random = new Random(1);
+		SyntheticHMMs syntheticHMMs = new SyntheticHMMs(nnumberOfWords,
+				nnumberOfStates, nnumberOfGaussians, nspaceDimension, random);
+		String[] words = new String[nnumberOfWords];
+		String[] hmmFileNames = new String[nnumberOfWords];
+		for (int h = 0; h < nnumberOfWords; h++) {
+			words[h] = "w" + h;
+			hmmFileNames[h] = words[h] + ".HMM";
+		}
+		SetOfSharedContinuousHMMs setOfSharedContinuousHMMs = new SetOfPlainContinuousHMMs(
+				syntheticHMMs.getHMMs(), hmmFileNames, new TableOfLabels(words),
+				new EmptyPatternGenerator(nspaceDimension)).convertToSharedHMMs();
+
+		// sentences: random sequences of words
+		Pattern[] patterns = new Pattern[nnumberOfSentences];
+		String[][] transcriptions = new String[nnumberOfSentences][];
+		for (int n = 0; n < nnumberOfSentences; n++) {
+			int[] nwords = new int[1 + random
+					.nextInt(nmaximumNumberOfWordsPerSentence)];
+			transcriptions[n] = new String[nwords.length];
+			Vector frames = new Vector();
+			for (int i = 0; i < nwords.length; i++) {
+				nwords[i] = random.nextInt(nnumberOfWords);
+				transcriptions[n][i] = words[nwords[i]];
+				float[][] fparameters = syntheticHMMs.generatePattern(
+						nwords[i], random).getParameters();
+				for (int t = 0; t < fparameters.length; t++) {
+					// noise, such that there are recognition errors
+					for (int k = 0; k < nspaceDimension; k++) {
+						fparameters[t][k] += (float) (fnoiseStandardDeviation * random
+								.nextGaussian());
+					}
+					frames.addElement(fparameters[t]);
+				}
+			}
+			float[][] fframes = new float[frames.size()][];
+			frames.copyInto(fframes);
+			patterns[n] = new Pattern(fframes);
+		}
+
+		Network network = TokenPassingSentenceRecognizer
+				.createLoopNetwork(setOfSharedContinuousHMMs.getTableOfLabels());
+		TokenPassingSentenceRecognizer tokenPassingSentenceRecognizer = new TokenPassingSentenceRecognizer(
+				network, setOfSharedContinuousHMMs);
+		TokenPassingDecoder tokenPassingDecoder = tokenPassingSentenceRecognizer
+				.getTokenPassingDecoder();
+		tokenPassingDecoder.setBeamWidth(1e6F);
+		tokenPassingDecoder.setWordEndBeamWidth(1e6F);
+		tokenPassingDecoder.setMaximumNumberOfActiveStates(Integer.MAX_VALUE);
+
+		ContinuousHMM[] continuousHMMs = syntheticHMMs.getHMMs();
+		String[][] recognized = new String[nnumberOfSentences][];
+		int nnumberOfErrors = 0;
+		for (int n = 0; n < nnumberOfSentences; n++) {
+			recognized[n] = tokenPassingDecoder.decode(patterns[n]);
+			String[] expected = decodeExhaustively(continuousHMMs, words,
+					patterns[n]);
+			if (!tokenPassingDecoder.hasLastSentenceReachedRoot()
+					|| !java.util.Arrays.equals(expected, recognized[n])) {
+				Print.error("Sentence " + n + ": " + toString(recognized[n])
+						+ " instead of " + toString(expected));
+				nnumberOfErrors++;
+			}
+			tokenPassingSentenceRecognizer.addAlignment(transcriptions[n],
+					recognized[n]);
+		}
+		Print.dialog("With respect to the generating words:\n"
+				+ tokenPassingSentenceRecognizer.getSummary());
+		Print.dialog(tokenPassingDecoder.getStatistics());
+
+		if (args.length > 0) {
+			String directory = FileNamesAndDirectories.forceEndingWithSlash(args[0]);
+			if (args.length == 1) {
+				writeFilesForHVite(directory, setOfSharedContinuousHMMs, words,
+						patterns, transcriptions);
+			} else {
+				String[][] hviteWords = readMLF(args[1], nnumberOfSentences);
+				for (int n = 0; n < nnumberOfSentences; n++) {
+					if (!java.util.Arrays.equals(hviteWords[n], recognized[n])) {
+						Print.error("Sentence " + n + ": "
+								+ toString(recognized[n]) + " instead of "
+								+ toString(hviteWords[n]) + " (HVite)");
+						nnumberOfErrors++;
+					}
+				}
+			}
+		}
+
+		if (nnumberOfErrors == 0) {
+			Print.dialog("OK, same results");
+		} else {
+			Print.error("WRONG: " + nnumberOfErrors + " differences");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Viterbi search over a loop of words without language model scores: a
+	 * token that leaves a word at frame t enters any word at frame t+1. All
+	 * pairs of states of the transition matrices are tested.
+	 */
+	private static String[] decodeExhaustively(ContinuousHMM[] continuousHMMs,
+			String[] words, Pattern pattern) {
+		float[][] fframes = pattern.getParameters();
+		int nT = fframes.length;
+		int nnumberOfWords = continuousHMMs.length;
+		// traceback: word and previous word end of each word end
+		int[] nwordOfEnd = new int[nT];
+		int[] npreviousEnd = new int[nT];
+		float[][] fscores = new float[nnumberOfWords][];
+		int[][] nlinks = new int[nnumberOfWords][];
+		for (int h = 0; h < nnumberOfWords; h++) {
+			int nnumberOfStates = continuousHMMs[h].getNumberOfStates();
+			fscores[h] = new float[nnumberOfStates];
+			nlinks[h] = new int[nnumberOfStates];
+			java.util.Arrays.fill(fscores[h],
+					LogDomainCalculator.m_fLOG_DOMAIN_ZERO);
+		}
+		float fentryScore = 0;
+		int nentryLink = -1;
+		for (int t = 0; t < nT; t++) {
+			float fbestExit = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+			for (int h = 0; h < nnumberOfWords; h++) {
+				float[][] ftransitionMatrix = continuousHMMs[h]
+						.getTransitionMatrixInLogDomainReference();
+				MixtureOfGaussianPDFs[] mixtures = continuousHMMs[h]
+						.getMixturesOfGaussianPDFs();
+				int nN = ftransitionMatrix.length;
+				float[] fnewScores = new float[nN];
+				int[] nnewLinks = new int[nN];
+				for (int j = 1; j < nN - 1; j++) {
+					float fbest = fentryScore + ftransitionMatrix[0][j];
+					int nlink = nentryLink;
+					for (int k = 1; k < nN - 1; k++) {
+						float fscore = fscores[h][k] + ftransitionMatrix[k][j];
+						if (fscore > fbest) {
+							fbest = fscore;
+							nlink = nlinks[h][k];
+						}
+					}
+					if (fbest > LogDomainCalculator.m_fSMALL_NUMBER) {
+						fbest += mixtures[j - 1].calculateLogProbability(fframes[t]);
+					} else {
+						fbest = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+					}
+					fnewScores[j] = fbest;
+					nnewLinks[j] = nlink;
+				}
+				fscores[h] = fnewScores;
+				nlinks[h] = nnewLinks;
+				for (int j = 1; j < nN - 1; j++) {
+					float fexit = fnewScores[j] + ftransitionMatrix[j][nN - 1];
+					if (fnewScores[j] > LogDomainCalculator.m_fSMALL_NUMBER
+							&& fexit > fbestExit) {
+						fbestExit = fexit;
+						nwordOfEnd[t] = h;
+						npreviousEnd[t] = nnewLinks[j];
+					}
+				}
+			}
+			fentryScore = fbestExit;
+			nentryLink = t;
+		}
+		Vector sequence = new Vector();
+		for (int t = nT - 1; t >= 0; t = npreviousEnd[t]) {
+			sequence.insertElementAt(words[nwordOfEnd[t]], 0);
+		}
+		String[] recognized = new String[sequence.size()];
+		sequence.copyInto(recognized);
+		return recognized;
+	}
+
+	/**
+	 * Writes the files needed to recognize the sentences with HVite and
+	 * prints the command.
+	 */
+	private static void writeFilesForHVite(String directory,
+			SetOfSharedContinuousHMMs setOfSharedContinuousHMMs,
+			String[] words, Pattern[] patterns, String[][] transcriptions)
+			throws IOException {
+		FileNamesAndDirectories.createDirectoriesIfNecessary(directory);
+		HTKInterfacer.writeSetOfSharedHMMs(setOfSharedContinuousHMMs,
+				directory + "hmms.txt");
+		// HTKInterfacer writes the global options of 39 MFCC_E_D_A
+		// parameters: replace them by the ones of the synthetic parameters
+		BufferedReader hmms = new BufferedReader(new FileReader(directory
+				+ "hmms.txt"));
+		Vector lines = new Vector();
+		String line;
+		boolean oisInGlobalOptions = false;
+		while ((line = hmms.readLine()) != null) {
+			if (line.startsWith("~")) {
+				oisInGlobalOptions = line.startsWith("~o");
+			}
+			if (!oisInGlobalOptions) {
+				lines.addElement(line);
+			}
+		}
+		hmms.close();
+		int nspaceDimension = setOfSharedContinuousHMMs.getSpaceDimension();
+		BufferedWriter hmmsWriter = new BufferedWriter(new FileWriter(
+				directory + "hmms.txt"));
+		hmmsWriter.write("~o");
+		hmmsWriter.newLine();
+		hmmsWriter.write("<STREAMINFO> 1 " + nspaceDimension);
+		hmmsWriter.newLine();
+		hmmsWriter.write("<VECSIZE> " + nspaceDimension + "<NULLD><USER><DIAGC>");
+		hmmsWriter.newLine();
+		for (int i = 0; i < lines.size(); i++) {
+			hmmsWriter.write((String) lines.elementAt(i));
+			hmmsWriter.newLine();
+		}
+		hmmsWriter.close();
+		BufferedWriter hmmList = new BufferedWriter(new FileWriter(directory
+				+ "hmmlist.txt"));
+		BufferedWriter dictionary = new BufferedWriter(new FileWriter(
+				directory + "dict.txt"));
+		for (int h = 0; h < words.length; h++) {
+			hmmList.write(words[h]);
+			hmmList.newLine();
+			dictionary.write(words[h] + " " + words[h]);
+			dictionary.newLine();
+		}
+		hmmList.close();
+		dictionary.close();
+
+		// lattice: start (0), hub (1) and end (2) null nodes, words after
+		BufferedWriter lattice = new BufferedWriter(new FileWriter(directory
+				+ "wdnet.txt"));
+		lattice.write("VERSION=1.0");
+		lattice.newLine();
+		lattice.write("N=" + (words.length + 3) + " L="
+				+ (3 * words.length + 1));
+		lattice.newLine();
+		lattice.write("I=0 W=!NULL");
+		lattice.newLine();
+		lattice.write("I=1 W=!NULL");
+		lattice.newLine();
+		lattice.write("I=2 W=!NULL");
+		lattice.newLine();
+		for (int h = 0; h < words.length; h++) {
+			lattice.write("I=" + (h + 3) + " W=" + words[h]);
+			lattice.newLine();
+		}
+		int nlink = 0;
+		for (int h = 0; h < words.length; h++) {
+			lattice.write("J=" + (nlink++) + " S=0 E=" + (h + 3));
+			lattice.newLine();
+			lattice.write("J=" + (nlink++) + " S=" + (h + 3) + " E=1");
+			lattice.newLine();
+			lattice.write("J=" + (nlink++) + " S=1 E=" + (h + 3));
+			lattice.newLine();
+		}
+		lattice.write("J=" + nlink + " S=1 E=2");
+		lattice.newLine();
+		lattice.close();
+
+		// parameters with period of 10 ms and kind USER (9)
+		BufferedWriter list = new BufferedWriter(new FileWriter(directory
+				+ "test.scp"));
+		BufferedWriter reference = new BufferedWriter(new FileWriter(
+				directory + "ref.mlf"));
+		reference.write("#!MLF!#");
+		reference.newLine();
+		for (int n = 0; n < patterns.length; n++) {
+			String fileName = directory + "s" + n + ".fea";
+			HTKInterfacer.writePattern(patterns[n].getParameters(), fileName,
+					100000, (short) 9);
+			list.write(fileName);
+			list.newLine();
+			reference.write("\"*/s" + n + ".lab\"");
+			reference.newLine();
+			for (int i = 0; i < transcriptions[n].length; i++) {
+				reference.write(transcriptions[n][i]);
+				reference.newLine();
+			}
+			reference.write(".");
+			reference.newLine();
+		}
+		list.close();
+		reference.close();
+		Print.dialog("Run HVite and then this program with " + directory
+				+ "rec.mlf as second argument:\nHVite -H " + directory
+				+ "hmms.txt -S " + directory + "test.scp -i " + directory
+				+ "rec.mlf -w " + directory + "wdnet.txt " + directory
+				+ "dict.txt " + directory + "hmmlist.txt");
+	}
+
+	/**
+	 * Reads the words of each sentence s<n> of an MLF written by HVite
+	 * (lines with start, end, word and score, or only the word).
+	 */
+	private static String[][] readMLF(String fileName, int nnumberOfSentences)
+			throws IOException {
+		String[][] words = new String[nnumberOfSentences][];
+		BufferedReader bufferedReader = new BufferedReader(new FileReader(
+				fileName));
+		int nsentence = -1;
+		Vector sequence = new Vector();
+		String line;
+		while ((line = bufferedReader.readLine()) != null) {
+			line = line.trim();
+			if (line.length() == 0 || line.equals("#!MLF!#")) {
+				continue;
+			}
+			if (line.startsWith("\"")) {
+				String name = new File(line.substring(1, line.length() - 1))
+						.getName();
+				name = name.substring(1, name.lastIndexOf('.'));
+				nsentence = Integer.parseInt(name);
+				sequence.removeAllElements();
+			} else if (line.equals(".")) {
+				words[nsentence] = new String[sequence.size()];
+				sequence.copyInto(words[nsentence]);
+			} else {
+				StringTokenizer stringTokenizer = new StringTokenizer(line);
+				String token = stringTokenizer.nextToken();
+				if (stringTokenizer.countTokens() >= 2) {
+					// start and end times before the word
+					stringTokenizer.nextToken();
+					token = stringTokenizer.nextToken();
+				}
+				sequence.addElement(token);
+			}
+		}
+		bufferedReader.close();
+		for (int n = 0; n < nnumberOfSentences; n++) {
+			if (words[n] == null) {
+				End.throwError("Sentence s" + n + " is not in " + fileName);
+			}
+		}
+		return words;
+	}
+
+	private static String toString(String[] words) {
+		StringBuffer stringBuffer = new StringBuffer();
+		for (int i = 0; i < words.length; i++) {
+			stringBuffer.append(" " + words[i]);
+		}
+		return stringBuffer.toString();
+	}
+
+}
@@ -0,0 +1,351 @@
+package debug;
+
+import java.util.Random;
+
+import edu.ucsd.asr.*;
+
+/**
+ * Compares the Viterbi algorithm of ContinuousHMM, which visits only the
+ * arcs in TransitionArcs, with the loop over all pairs of states that was
+ * used before (reproduced here), for HMMs with random sparse topologies
+ * (skips, states that cannot be reached, etc.). The scores, the best state
+ * sequences and the output of calculateSequenceProbability() must be the
+ * same. The arcs are also checked against the transition matrix.
+ */
+public class TransitionArcsTest {
+
+	public static void main(String[] args) {
+		if (args.length != 0 && args.length != 3) {
+			System.out
+					.println("TransitionArcsTest <# of HMMs> <# of states> <# of segments per HMM>");
+			System.exit(1);
+		}
+		int nnumberOfHMMs = 20;
+		int nnumberOfStates = 7;
+		int nnumberOfSegments = 20;
+		if (args.length == 3) {
+			nnumberOfHMMs = Integer.parseInt(args[0]);
+			nnumberOfStates = Integer.parseInt(args[1]);
+			nnumberOfSegments = Integer.parseInt(args[2]);
+		}
+		int nnumberOfGaussians = 2;
+		int nspaceDimension = 4;
+
+		Random random = new Random(1);
+		SyntheticHMMs syntheticHMMs = new SyntheticHMMs(nnumberOfHMMs,
+				nnumberOfStates, nnumberOfGaussians, nspaceDimension, random);
+		int nnumberOfErrors = 0;
+		int nnumberOfValidPaths = 0;
+		ViterbiWorkspace viterbiWorkspace = new ViterbiWorkspace();
+		for (int h = 0; h < nnumberOfHMMs; h++) {
+			// the same mixtures, with a random sparse topology
+			ContinuousHMM continuousHMM = new ContinuousHMM(
+					createSparseTransitionMatrix(nnumberOfStates, random),
+					syntheticHMMs.getHMMs()[h].getMixturesOfGaussianPDFs());
+			nnumberOfErrors += checkArcs(continuousHMM);
+			for (int i = 0; i < nnumberOfSegments; i++) {
+				Pattern pattern = syntheticHMMs.generatePattern(random
+						.nextInt(nnumberOfHMMs), random);
+				if (i == 0) {
+					// too short for some topologies
+					pattern = new Pattern(new float[][] { pattern
+							.getParameters()[0] });
+				}
+				float[][] fframes = pattern.getParameters();
+				int nT = fframes.length;
+				int[] nexpectedStates = new int[nT];
+				// the mixtures keep the probability of the last frame index,
+				// which may belong to the previous pattern
+				resetMixtures(continuousHMM);
+				float fexpectedScore = getScoreUsingDenseViterbi(
+						continuousHMM, fframes, nexpectedStates);
+				resetMixtures(continuousHMM);
+				float fscore = continuousHMM.getScoreUsingViterbi(pattern,
+						viterbiWorkspace);
+				if (Float.floatToIntBits(fscore) != Float
+						.floatToIntBits(fexpectedScore)) {
+					Print.error("HMM " + h + ", segment " + i + ": score "
+							+ fscore + " instead of " + fexpectedScore);
+					nnumberOfErrors++;
+				}
+				// the path is meaningful only if the exit state was reached
+				if (fexpectedScore * nT > LogDomainCalculator.m_fSMALL_NUMBER) {
+					nnumberOfValidPaths++;
+					int[] nstates = viterbiWorkspace
+							.getStateSequenceOfLastViterbiReference();
+					for (int t = 0; t < nT; t++) {
+						if (nstates[t] != nexpectedStates[t]) {
+							Print.error("HMM " + h + ", segment " + i
+									+ ": state " + nstates[t] + " instead of "
+									+ nexpectedStates[t] + " at frame " + t);
+							nnumberOfErrors++;
+							break;
+						}
+					}
+				}
+
+				float[] fexpectedProbabilities = new float[nT];
+				resetMixtures(continuousHMM);
+				calculateDenseSequenceProbability(continuousHMM, fframes,
+						fexpectedProbabilities);
+				float[] fprobabilities = new float[nT];
+				resetMixtures(continuousHMM);
+				continuousHMM.calculateSequenceProbability(fframes,
+						fprobabilities, 0);
+				for (int t = 0; t < nT; t++) {
+					if (Float.floatToIntBits(fprobabilities[t]) != Float
+							.floatToIntBits(fexpectedProbabilities[t])) {
+						Print.error("HMM " + h + ", segment " + i
+								+ ": sequence probability "
+								+ fprobabilities[t] + " instead of "
+								+ fexpectedProbabilities[t] + " at frame " + t);
+						nnumberOfErrors++;
+						break;
+					}
+				}
+			}
+		}
+		Print.dialog(nnumberOfHMMs + " HMMs, " + nnumberOfHMMs
+				* nnumberOfSegments + " segments (" + nnumberOfValidPaths
+				+ " with a valid path)");
+		if (nnumberOfErrors == 0) {
+			Print.dialog("OK, same results");
+		} else {
+			Print.error("WRONG: " + nnumberOfErrors + " differences");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Each state has arcs to a random subset of the states after it
+	 * (including itself and the exit state), such that some states may not
+	 * be reachable. The matrix is not in log domain.
+	 */
+	private static float[][] createSparseTransitionMatrix(int nnumberOfStates,
+			Random random) {
+		float[][] ftransitionMatrix = new float[nnumberOfStates][nnumberOfStates];
+		for (int i = 0; i < nnumberOfStates - 1; i++) {
+			float fsum = 0;
+			int nfirst = (i == 0) ? 1 : i;
+			for (int j = nfirst; j < nnumberOfStates; j++) {
+				if (i == 0 && j == nnumberOfStates - 1) {
+					// no direct path from entry to exit
+					continue;
+				}
+				if (j == nfirst || random.nextFloat() < 0.4F) {
+					ftransitionMatrix[i][j] = 0.1F + random.nextFloat();
+					fsum += ftransitionMatrix[i][j];
+				}
+			}
+			for (int j = 0; j < nnumberOfStates; j++) {
+				ftransitionMatrix[i][j] /= fsum;
+			}
+		}
+		// as in HMMInitializer, the last state remains in loop
+		ftransitionMatrix[nnumberOfStates - 1][nnumberOfStates - 1] = 1.0F;
+		return ftransitionMatrix;
+	}
+
+	/**
+	 * The mixtures used by the HMM (getMixturesOfGaussianPDFs() returns
+	 * copies).
+	 */
+	private static MixtureOfGaussianPDFs[] getMixturesReference(
+			ContinuousHMM continuousHMM) {
+		MixtureOfGaussianPDFs[] mixtures = new MixtureOfGaussianPDFs[continuousHMM
+				.getNumberOfStates() - 2];
+		for (int i = 0; i < mixtures.length; i++) {
+			mixtures[i] = continuousHMM.getGivenMixtureOfGaussianPDFsReference(i);
+		}
+		return mixtures;
+	}
+
+	private static void resetMixtures(ContinuousHMM continuousHMM) {
+		MixtureOfGaussianPDFs[] mixtures = getMixturesReference(continuousHMM);
+		for (int i = 0; i < mixtures.length; i++) {
+			mixtures[i].resetTimeForWhichProbabilityIsValid();
+		}
+	}
+
+	/**
+	 * The predecessors and the successors must be exactly the transitions
+	 * with log probability larger than LogDomainCalculator.m_fSMALL_NUMBER,
+	 * in increasing order of state index.
+	 */
+	private static int checkArcs(ContinuousHMM continuousHMM) {
+		float[][] ftransitionMatrix = continuousHMM
+				.getTransitionMatrixInLogDomainReference();
+		int nnumberOfStates = ftransitionMatrix.length;
+		TransitionArcs transitionArcs = continuousHMM.getTransitionArcs();
+		int[] npredecessors = transitionArcs.getPredecessorsReference();
+		int[] nsuccessors = transitionArcs.getSuccessorsReference();
+		int nnumberOfErrors = 0;
+		for (int n = 0; n < nnumberOfStates; n++) {
+			int k = transitionArcs.getFirstPredecessorIndex(n);
+			int l = transitionArcs.getFirstSuccessorIndex(n);
+			for (int m = 0; m < nnumberOfStates; m++) {
+				if (ftransitionMatrix[m][n] > LogDomainCalculator.m_fSMALL_NUMBER) {
+					if (k == transitionArcs.getFirstPredecessorIndex(n + 1)
+							|| npredecessors[k++] != m) {
+						Print.error("Missing arc from " + m + " to " + n);
+						nnumberOfErrors++;
+					}
+				}
+				if (ftransitionMatrix[n][m] > LogDomainCalculator.m_fSMALL_NUMBER) {
+					if (l == transitionArcs.getFirstSuccessorIndex(n + 1)
+							|| nsuccessors[l++] != m) {
+						Print.error("Missing arc from " + n + " to " + m);
+						nnumberOfErrors++;
+					}
+				}
+			}
+			if (k != transitionArcs.getFirstPredecessorIndex(n + 1)
+					|| l != transitionArcs.getFirstSuccessorIndex(n + 1)) {
+				Print.error("Extra arcs of state " + n);
+				nnumberOfErrors++;
+			}
+		}
+		return nnumberOfErrors;
+	}
+
+	/**
+	 * Viterbi visiting all pairs of states, as ContinuousHMM did before
+	 * TransitionArcs. The best state sequence is stored in nstates.
+	 */
+	private static float getScoreUsingDenseViterbi(
+			ContinuousHMM continuousHMM, float[][] nO, int[] nstates) {
+		float[][] ftransitionMatrix = continuousHMM
+				.getTransitionMatrixInLogDomainReference();
+		MixtureOfGaussianPDFs[] mixtures = getMixturesReference(continuousHMM);
+		int nnumberOfStates = ftransitionMatrix.length;
+		int nT = nO.length;
+		float[] flastProbabilities = new float[nnumberOfStates];
+		float[] fcurrentProbabilities = new float[nnumberOfStates];
+		int[][] ntraceBack = new int[nT][nnumberOfStates];
+
+		for (int i = 1; i < nnumberOfStates - 1; i++) {
+			float ftransition = ftransitionMatrix[0][i];
+			if (ftransition > LogDomainCalculator.m_fSMALL_NUMBER) {
+				flastProbabilities[i] = ftransition
+						+ mixtures[i - 1].calculateLogProbability(nO[0], 0);
+			} else {
+				flastProbabilities[i] = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+			}
+		}
+		for (int t = 1; t < nT; t++) {
+			for (int j = 1; j < nnumberOfStates - 1; j++) {
+				int nbestPreviousState = 1;
+				float fbestLogProbability = getLogProbabilityOfArc(
+						ftransitionMatrix, flastProbabilities, 1, j);
+				for (int i = 2; i < nnumberOfStates - 1; i++) {
+					float fcurrentLogProbability = getLogProbabilityOfArc(
+							ftransitionMatrix, flastProbabilities, i, j);
+					if (fcurrentLogProbability > fbestLogProbability) {
+						fbestLogProbability = fcurrentLogProbability;
+						nbestPreviousState = i;
+					}
+				}
+				if (fbestLogProbability > LogDomainCalculator.m_fSMALL_NUMBER) {
+					fcurrentProbabilities[j] = fbestLogProbability
+							+ mixtures[j - 1].calculateLogProbability(nO[t], t);
+				} else {
+					fcurrentProbabilities[j] = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+				}
+				ntraceBack[t][j] = nbestPreviousState;
+			}
+			float[] ftemp = flastProbabilities;
+			flastProbabilities = fcurrentProbabilities;
+			fcurrentProbabilities = ftemp;
+		}
+		int nbestPreviousState = 1;
+		float fbestLogProbability = getLogProbabilityOfArc(ftransitionMatrix,
+				flastProbabilities, 1, nnumberOfStates - 1);
+		for (int i = 2; i < nnumberOfStates - 1; i++) {
+			float fcurrentLogProbability = getLogProbabilityOfArc(
+					ftransitionMatrix, flastProbabilities, i,
+					nnumberOfStates - 1);
+			if (fcurrentLogProbability > fbestLogProbability) {
+				fbestLogProbability = fcurrentLogProbability;
+				nbestPreviousState = i;
+			}
+		}
+		int nstate = nbestPreviousState;
+		for (int t = nT - 1; t >= 0; t--) {
+			nstates[t] = nstate;
+			nstate = ntraceBack[t][nstate];
+		}
+		return fbestLogProbability / nT;
+	}
+
+	private static float getLogProbabilityOfArc(float[][] ftransitionMatrix,
+			float[] flastProbabilities, int i, int j) {
+		if (ftransitionMatrix[i][j] > LogDomainCalculator.m_fSMALL_NUMBER) {
+			return ftransitionMatrix[i][j] + flastProbabilities[i];
+		}
+		return LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+	}
+
+	/**
+	 * Same as ContinuousHMM.calculateSequenceProbability() with start = 0,
+	 * visiting all pairs of states.
+	 */
+	private static void calculateDenseSequenceProbability(
+			ContinuousHMM continuousHMM, float[][] nO, float[] fPr) {
+		float[][] ftransitionMatrix = continuousHMM
+				.getTransitionMatrixInLogDomainReference();
+		MixtureOfGaussianPDFs[] mixtures = getMixturesReference(continuousHMM);
+		int nnumberOfStates = ftransitionMatrix.length;
+		float[] flastProbabilities = new float[nnumberOfStates];
+		float[] fcurrentProbabilities = new float[nnumberOfStates];
+		for (int i = 1; i < nnumberOfStates - 1; i++) {
+			float ftransition = ftransitionMatrix[0][i];
+			if (ftransition > LogDomainCalculator.m_fSMALL_NUMBER) {
+				flastProbabilities[i] = ftransition
+						+ mixtures[i - 1].calculateLogProbability(nO[0], 0);
+			} else {
+				flastProbabilities[i] = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+			}
+		}
+		fPr[0] = getBestExitLogProbability(ftransitionMatrix,
+				flastProbabilities);
+		for (int t = 1; t < fPr.length; t++) {
+			for (int j = 1; j < nnumberOfStates - 1; j++) {
+				float fbestLogProbability = getLogProbabilityOfArc(
+						ftransitionMatrix, flastProbabilities, 1, j);
+				for (int i = 2; i < nnumberOfStates - 1; i++) {
+					float fcurrentLogProbability = getLogProbabilityOfArc(
+							ftransitionMatrix, flastProbabilities, i, j);
+					if (fcurrentLogProbability > fbestLogProbability) {
+						fbestLogProbability = fcurrentLogProbability;
+					}
+				}
+				if (fbestLogProbability > LogDomainCalculator.m_fSMALL_NUMBER) {
+					fcurrentProbabilities[j] = fbestLogProbability
+							+ mixtures[j - 1].calculateLogProbability(nO[t], t);
+				} else {
+					fcurrentProbabilities[j] = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+				}
+			}
+			float[] ftemp = flastProbabilities;
+			flastProbabilities = fcurrentProbabilities;
+			fcurrentProbabilities = ftemp;
+			fPr[t] = getBestExitLogProbability(ftransitionMatrix,
+					flastProbabilities);
+		}
+	}
+
+	private static float getBestExitLogProbability(float[][] ftransitionMatrix,
+			float[] fprobabilities) {
+		int nnumberOfStates = ftransitionMatrix.length;
+		float fbest = -Float.MAX_VALUE;
+		for (int i = 1; i < nnumberOfStates - 1; i++) {
+			float fvalue = fprobabilities[i]
+					+ ftransitionMatrix[i][nnumberOfStates - 1];
+			if (fvalue > fbest) {
+				fbest = fvalue;
+			}
+		}
+		return fbest;
+	}
+
+}
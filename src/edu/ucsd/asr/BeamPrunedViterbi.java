@@ -0,0 +1,446 @@
+package edu.ucsd.asr;
+
+/**
+ *  Finds the best model of a set of HMMs (e.g. SetOfPlainContinuousHMMs.getHMMs())
+ *  for a Pattern, running the Viterbi algorithm of all HMMs synchronously,
+ *  frame by frame. After each frame, the states (of any HMM) with log
+ *  probability smaller than the best one minus the beam width are pruned.
+ *  The output probability of a state is calculated only if one of its
+ *  predecessors survived, and an HMM without surviving states is not
+ *  processed anymore (early termination), getting the score of an HMM
+ *  without any valid path (LogDomainCalculator.m_fLOG_DOMAIN_ZERO / nT).
+ *  With an infinite beam width, the scores are the same obtained with
+ *  ContinuousHMM.getScoreUsingViterbi().
+ *  The recursion of one frame and the pruning are done by addFrame(),
+ *  which is also used by StreamingViterbi.
+ *  The object keeps statistics of the number of state-frames (one state of
+ *  one HMM at one frame) evaluated and pruned, accumulated over all frames
+ *  until resetStatistics() is called.
+ *  The output probabilities are calculated by a DiagonalGaussianScorer, so
+ *  the object must be recreated after the HMMs are modified (the
+ *  GaussianSelector of the scorer is not used, because the states are
+ *  evaluated one frame at a time). It must not be shared by concurrent
+ *  threads.
+ */
+public class BeamPrunedViterbi {
+
+  private final ContinuousHMM[] m_continuousHMMs;
+
+  private final DiagonalGaussianScorer m_diagonalGaussianScorer;
+
+  /**
+   *  In log domain (natural log), applied to the (not normalized)
+   *  accumulated log probability.
+   */
+  private float m_fbeamWidth;
+
+  /**
+   *  The states of HMM k are m_nfirstState[k] + s, where s = 0 is the entry
+   *  (non-emitting) state.
+   */
+  private final int[] m_nfirstState;
+
+  private final int m_nnumberOfEmittingStates;
+
+  private float[] m_flastProbabilities;
+  private float[] m_fcurrentProbabilities;
+  private final int[] m_nbestPreviousStates;
+  private final boolean[] m_oisActive;
+
+  //number of frames given to addFrame() after startUtterance()
+  private int m_nT;
+
+  //statistics
+  private long m_lnumberOfStateFrames;
+  private long m_lnumberOfEvaluatedStateFrames;
+  private long m_lnumberOfPrunedStateFrames;
+  private long m_lnumberOfTerminatedModels;
+  private long m_lnumberOfModels;
+
+  public BeamPrunedViterbi(ContinuousHMM[] continuousHMMs, float fbeamWidth) {
+    this(DiagonalGaussianScorer.createForHMMs(continuousHMMs), fbeamWidth);
+  }
+
+  /**
+   *  Uses a scorer created with DiagonalGaussianScorer.createForHMMs(), which
+   *  can be shared with a ViterbiWorkspace or with the objects of other
+   *  threads if all its mixtures are packed.
+   */
+  public BeamPrunedViterbi(DiagonalGaussianScorer diagonalGaussianScorer,
+                           float fbeamWidth) {
+    ContinuousHMM[] continuousHMMs = diagonalGaussianScorer.getHMMs();
+    if (continuousHMMs == null) {
+      End.throwError("BeamPrunedViterbi needs a DiagonalGaussianScorer " +
+                     "created with createForHMMs()");
+    }
+    m_continuousHMMs = continuousHMMs;
+    m_diagonalGaussianScorer = diagonalGaussianScorer;
+    setBeamWidth(fbeamWidth);
+    m_nfirstState = new int[continuousHMMs.length + 1];
+    for (int k = 0; k < continuousHMMs.length; k++) {
+      m_nfirstState[k + 1] = m_nfirstState[k] +
+          continuousHMMs[k].getNumberOfStates();
+    }
+    int ntotalNumberOfStates = m_nfirstState[continuousHMMs.length];
+    m_nnumberOfEmittingStates = ntotalNumberOfStates - 2 * continuousHMMs.length;
+    m_flastProbabilities = new float[ntotalNumberOfStates];
+    m_fcurrentProbabilities = new float[ntotalNumberOfStates];
+    m_nbestPreviousStates = new int[ntotalNumberOfStates];
+    m_oisActive = new boolean[continuousHMMs.length];
+  }
+
+  /**
+   *  Use Float.POSITIVE_INFINITY to disable pruning.
+   */
+  public void setBeamWidth(float fbeamWidth) {
+    if (! (fbeamWidth > 0)) {
+      End.throwError("Beam width = " + fbeamWidth + " must be positive");
+    }
+    m_fbeamWidth = fbeamWidth;
+  }
+
+  public float getBeamWidth() {
+    return m_fbeamWidth;
+  }
+
+  public DiagonalGaussianScorer getDiagonalGaussianScorer() {
+    return m_diagonalGaussianScorer;
+  }
+
+  public boolean wasCreatedFrom(ContinuousHMM[] continuousHMMs) {
+    return m_continuousHMMs == continuousHMMs;
+  }
+
+  /**
+   *  Same as SetOfPlainContinuousHMMs.findBestModelAndItsScore() without
+   *  N-best list, but pruning the states outside the beam. As there, if no
+   *  HMM reaches its exit state, the best model is 0 with score
+   *  LogDomainCalculator.m_fLOG_DOMAIN_ZERO / nT.
+   */
+  public ClassificationResult classify(Pattern pattern) {
+    float[][] fframes = pattern.getParameters();
+    int nT = pattern.getNumOfFrames();
+    startUtterance();
+    for (int t = 0; t < nT; t++) {
+      addFrame(fframes[t]);
+    }
+
+    //Termination: transition to the exit (non-emitting) state
+    double dbestScore = -1.0E10;
+    int nbestModel = -1;
+    for (int k = 0; k < m_continuousHMMs.length; k++) {
+      int nstateBeforeExit = findBestStateBeforeExit(k);
+      float fbestLogProbability = (nstateBeforeExit == -1) ?
+          LogDomainCalculator.m_fLOG_DOMAIN_ZERO :
+          getExitLogProbability(k, nstateBeforeExit);
+      double dscore = fbestLogProbability / nT;
+      if (dscore > dbestScore) {
+        nbestModel = k;
+        dbestScore = dscore;
+      }
+    }
+    return new ClassificationResult(nbestModel, dbestScore, null, null, null);
+  }
+
+  /**
+   *  Start processing a new Pattern with addFrame(). Used by classify() and
+   *  StreamingViterbi.
+   */
+  void startUtterance() {
+    m_nT = 0;
+  }
+
+  /**
+   *  Advance the Viterbi recursion of all active HMMs by one frame and prune
+   *  the states outside the beam. Afterwards, getBestPreviousStatesReference()
+   *  has the best predecessor of each state (-1 if the state has no valid
+   *  path or was pruned).
+   */
+  void addFrame(float[] fframe) {
+    if (m_nT == 0) {
+      initialize(fframe);
+    }
+    else {
+      advance(fframe);
+    }
+    prune(m_fcurrentProbabilities);
+    float[] ftemp = m_flastProbabilities;
+    m_flastProbabilities = m_fcurrentProbabilities;
+    m_fcurrentProbabilities = ftemp;
+    m_lnumberOfStateFrames += m_nnumberOfEmittingStates;
+    m_nT++;
+  }
+
+  //Initialization, t = 0
+  private void initialize(float[] fframe) {
+    int nnumberOfModels = m_continuousHMMs.length;
+    float[] fcurrentProbabilities = m_fcurrentProbabilities;
+    int[] nbestPreviousStates = m_nbestPreviousStates;
+    for (int k = 0; k < nnumberOfModels; k++) {
+      ContinuousHMM continuousHMM = m_continuousHMMs[k];
+      int nnumberOfStates = continuousHMM.getNumberOfStates();
+      int nfirstState = m_nfirstState[k];
+      int nfirstMixture = m_diagonalGaussianScorer.getFirstMixtureOfHMM(k);
+      float[][] ftransitionMatrix = continuousHMM.getTransitionMatrixInLogDomainReference();
+      TransitionArcs transitionArcs = continuousHMM.getTransitionArcs();
+      int[] nsuccessors = transitionArcs.m_nsuccessors;
+      int[] nsuccessorsStart = transitionArcs.m_nsuccessorsStart;
+      for (int i = 1; i < nnumberOfStates - 1; i++) {
+        fcurrentProbabilities[nfirstState + i] = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+        nbestPreviousStates[nfirstState + i] = -1;
+      }
+      for (int n = nsuccessorsStart[0]; n < nsuccessorsStart[1]; n++) {
+        int i = nsuccessors[n];
+        if (i < nnumberOfStates - 1) {
+          float flogProb = m_diagonalGaussianScorer.calculateLogProbability(
+              nfirstMixture + i - 1, fframe);
+          m_lnumberOfEvaluatedStateFrames++;
+          fcurrentProbabilities[nfirstState + i] = ftransitionMatrix[0][i] + flogProb;
+          nbestPreviousStates[nfirstState + i] = 0;
+        }
+      }
+      m_oisActive[k] = true;
+    }
+    m_lnumberOfModels += nnumberOfModels;
+  }
+
+  //Recursion: t=1,...
+  private void advance(float[] fframe) {
+    int nnumberOfModels = m_continuousHMMs.length;
+    float[] flastProbabilities = m_flastProbabilities;
+    float[] fcurrentProbabilities = m_fcurrentProbabilities;
+    int[] nbestPreviousStates = m_nbestPreviousStates;
+    for (int k = 0; k < nnumberOfModels; k++) {
+      if (!m_oisActive[k]) {
+        continue;
+      }
+      ContinuousHMM continuousHMM = m_continuousHMMs[k];
+      int nnumberOfStates = continuousHMM.getNumberOfStates();
+      int nfirstState = m_nfirstState[k];
+      int nfirstMixture = m_diagonalGaussianScorer.getFirstMixtureOfHMM(k);
+      float[][] ftransitionMatrix = continuousHMM.getTransitionMatrixInLogDomainReference();
+      TransitionArcs transitionArcs = continuousHMM.getTransitionArcs();
+      int[] npredecessors = transitionArcs.m_npredecessors;
+      int[] npredecessorsStart = transitionArcs.m_npredecessorsStart;
+      for (int ncurrentState = 1; ncurrentState < nnumberOfStates - 1; ncurrentState++) {
+        float fbestLogProbability = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+        int nbestPreviousState = -1;
+        int nlastArc = npredecessorsStart[ncurrentState + 1];
+        for (int n = npredecessorsStart[ncurrentState]; n < nlastArc; n++) {
+          int npreviousState = npredecessors[n];
+          if (npreviousState == 0 || npreviousState == nnumberOfStates - 1) {
+            continue;
+          }
+          float fcurrentLogProbability = ftransitionMatrix[npreviousState][ncurrentState] +
+              flastProbabilities[nfirstState + npreviousState];
+          if (fcurrentLogProbability > fbestLogProbability) {
+            fbestLogProbability = fcurrentLogProbability;
+            nbestPreviousState = npreviousState;
+          }
+        }
+        if (fbestLogProbability > LogDomainCalculator.m_fSMALL_NUMBER) {
+          //pruned predecessors have LogDomainCalculator.m_fLOG_DOMAIN_ZERO
+          fcurrentProbabilities[nfirstState + ncurrentState] = fbestLogProbability +
+              m_diagonalGaussianScorer.calculateLogProbability(
+              nfirstMixture + ncurrentState - 1, fframe);
+          nbestPreviousStates[nfirstState + ncurrentState] = nbestPreviousState;
+          m_lnumberOfEvaluatedStateFrames++;
+        }
+        else {
+          fcurrentProbabilities[nfirstState + ncurrentState] =
+              LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+          nbestPreviousStates[nfirstState + ncurrentState] = -1;
+        }
+      }
+    }
+  }
+
+  /**
+   *  Prune the states with probability below the best one (over all active
+   *  HMMs) minus the beam width and deactivate the HMMs without surviving
+   *  states.
+   */
+  private void prune(float[] fprobabilities) {
+    boolean[] oisActive = m_oisActive;
+    float fbestLogProbability = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+    for (int k = 0; k < oisActive.length; k++) {
+      if (!oisActive[k]) {
+        continue;
+      }
+      int nlastState = m_nfirstState[k + 1] - 1;
+      for (int i = m_nfirstState[k] + 1; i < nlastState; i++) {
+        if (fprobabilities[i] > fbestLogProbability) {
+          fbestLogProbability = fprobabilities[i];
+        }
+      }
+    }
+    float fthreshold = fbestLogProbability - m_fbeamWidth;
+    for (int k = 0; k < oisActive.length; k++) {
+      if (!oisActive[k]) {
+        continue;
+      }
+      boolean ohasSurvivingState = false;
+      int nlastState = m_nfirstState[k + 1] - 1;
+      for (int i = m_nfirstState[k] + 1; i < nlastState; i++) {
+        if (fprobabilities[i] <= LogDomainCalculator.m_fSMALL_NUMBER) {
+          m_nbestPreviousStates[i] = -1;
+          continue;
+        }
+        if (fprobabilities[i] < fthreshold) {
+          fprobabilities[i] = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+          m_nbestPreviousStates[i] = -1;
+          m_lnumberOfPrunedStateFrames++;
+        }
+        else {
+          ohasSurvivingState = true;
+        }
+      }
+      if (!ohasSurvivingState) {
+        oisActive[k] = false;
+        m_lnumberOfTerminatedModels++;
+      }
+    }
+  }
+
+  /**
+   *  Returns the emitting state of HMM k (1 to N-2) with the best transition
+   *  to the exit state at the last frame given to addFrame(), or -1 if the
+   *  HMM was terminated or cannot reach its exit state.
+   */
+  int findBestStateBeforeExit(int k) {
+    if (!m_oisActive[k]) {
+      return -1;
+    }
+    ContinuousHMM continuousHMM = m_continuousHMMs[k];
+    int nnumberOfStates = continuousHMM.getNumberOfStates();
+    int nfirstState = m_nfirstState[k];
+    float[][] ftransitionMatrix = continuousHMM.getTransitionMatrixInLogDomainReference();
+    TransitionArcs transitionArcs = continuousHMM.getTransitionArcs();
+    int[] npredecessors = transitionArcs.m_npredecessors;
+    int[] npredecessorsStart = transitionArcs.m_npredecessorsStart;
+    float fbestLogProbability = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+    int nbestState = -1;
+    for (int n = npredecessorsStart[nnumberOfStates - 1];
+         n < npredecessorsStart[nnumberOfStates]; n++) {
+      int npreviousState = npredecessors[n];
+      if (npreviousState == 0 || npreviousState == nnumberOfStates - 1) {
+        continue;
+      }
+      float fcurrentLogProbability = ftransitionMatrix[npreviousState][nnumberOfStates - 1] +
+          m_flastProbabilities[nfirstState + npreviousState];
+      if (fcurrentLogProbability > fbestLogProbability) {
+        fbestLogProbability = fcurrentLogProbability;
+        nbestState = npreviousState;
+      }
+    }
+    return nbestState;
+  }
+
+  /**
+   *  Log probability (not normalized) of the path of HMM k that leaves
+   *  nstateBeforeExit at the last frame and goes to the exit state.
+   */
+  float getExitLogProbability(int k, int nstateBeforeExit) {
+    ContinuousHMM continuousHMM = m_continuousHMMs[k];
+    return continuousHMM.getTransitionMatrixInLogDomainReference()[
+        nstateBeforeExit][continuousHMM.getNumberOfStates() - 1] +
+        m_flastProbabilities[m_nfirstState[k] + nstateBeforeExit];
+  }
+
+  /**
+   *  Number of frames given to addFrame() after startUtterance().
+   */
+  int getNumberOfFrames() {
+    return m_nT;
+  }
+
+  int getNumberOfModels() {
+    return m_continuousHMMs.length;
+  }
+
+  boolean isActive(int k) {
+    return m_oisActive[k];
+  }
+
+  /**
+   *  See m_nfirstState.
+   */
+  int getFirstState(int k) {
+    return m_nfirstState[k];
+  }
+
+  /**
+   *  Best predecessor (state index in its HMM, 0 for the entry state) of
+   *  each state at the last frame given to addFrame(), indexed as
+   *  m_nfirstState, or -1 if the state has no valid path. Only the states
+   *  of active HMMs are updated.
+   */
+  int[] getBestPreviousStatesReference() {
+    return m_nbestPreviousStates;
+  }
+
+  /**
+   *  Add the statistics of another object (e.g. used by another thread)
+   *  to the statistics of this one.
+   */
+  public synchronized void addStatistics(BeamPrunedViterbi beamPrunedViterbi) {
+    m_lnumberOfStateFrames += beamPrunedViterbi.m_lnumberOfStateFrames;
+    m_lnumberOfEvaluatedStateFrames += beamPrunedViterbi.
+        m_lnumberOfEvaluatedStateFrames;
+    m_lnumberOfPrunedStateFrames += beamPrunedViterbi.
+        m_lnumberOfPrunedStateFrames;
+    m_lnumberOfTerminatedModels += beamPrunedViterbi.
+        m_lnumberOfTerminatedModels;
+    m_lnumberOfModels += beamPrunedViterbi.m_lnumberOfModels;
+  }
+
+  public void resetStatistics() {
+    m_lnumberOfStateFrames = 0;
+    m_lnumberOfEvaluatedStateFrames = 0;
+    m_lnumberOfPrunedStateFrames = 0;
+    m_lnumberOfTerminatedModels = 0;
+    m_lnumberOfModels = 0;
+  }
+
+  /**
+   *  Number of (emitting) states times number of frames, summed over all
+   *  HMMs and Patterns.
+   */
+  public long getNumberOfStateFrames() {
+    return m_lnumberOfStateFrames;
+  }
+
+  /**
+   *  Number of state-frames for which the output probability was calculated.
+   */
+  public long getNumberOfEvaluatedStateFrames() {
+    return m_lnumberOfEvaluatedStateFrames;
+  }
+
+  /**
+   *  Number of state-frames discarded because they were outside the beam.
+   */
+  public long getNumberOfPrunedStateFrames() {
+    return m_lnumberOfPrunedStateFrames;
+  }
+
+  /**
+   *  Number of times an HMM was not processed until the last frame because
+   *  all its states were pruned.
+   */
+  public long getNumberOfTerminatedModels() {
+    return m_lnumberOfTerminatedModels;
+  }
+
+  public String getStatistics() {
+    double dpercentage = (m_lnumberOfStateFrames == 0) ? 0 :
+        100.0 * m_lnumberOfEvaluatedStateFrames / m_lnumberOfStateFrames;
+    return "Beam = " + m_fbeamWidth + ". State-frames: total = " +
+        m_lnumberOfStateFrames + ", evaluated = " +
+        m_lnumberOfEvaluatedStateFrames + " (" + IO.format(dpercentage) +
+        "%), pruned = " + m_lnumberOfPrunedStateFrames +
+        ". HMMs terminated early = " + m_lnumberOfTerminatedModels +
+        " of " + m_lnumberOfModels;
+  }
+
+}
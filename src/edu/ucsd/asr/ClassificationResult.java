@@ -0,0 +1,89 @@
+package edu.ucsd.asr;
+
+/**
+ *  Result of classifying a Pattern with a set of HMMs: the best model, its
+ *  score and, optionally, the N-best list (HMM indices sorted by decreasing
+ *  score) with the best state sequence of each HMM in the list.
+ *  It has the same information that SetOfPlainContinuousHMMs keeps after
+ *  findBestModelAndItsScore(), but as an immutable object, such that
+ *  segments can be classified by concurrent threads.
+ */
+public final class ClassificationResult {
+
+  private final int m_nbestModel;
+  private final double m_dbestScore;
+
+  /**
+   *  Null if the N-best list was not generated.
+   */
+  private final int[] m_nbestListHMMIndices;
+  private final double[] m_dbestListScores;
+
+  /**
+   *  Null if the paths were not kept.
+   */
+  private final int[][] m_npathsOfNBestList;
+
+  /**
+   *  The arrays are not copied.
+   */
+  ClassificationResult(int nbestModel, double dbestScore,
+                       int[] nbestListHMMIndices, double[] dbestListScores,
+                       int[][] npathsOfNBestList) {
+    m_nbestModel = nbestModel;
+    m_dbestScore = dbestScore;
+    m_nbestListHMMIndices = nbestListHMMIndices;
+    m_dbestListScores = dbestListScores;
+    m_npathsOfNBestList = npathsOfNBestList;
+  }
+
+  /**
+   *  Returns -1 if no HMM had a score larger than -1.0E10 (e.g. no token
+   *  survived Viterbi).
+   */
+  public int getBestModel() {
+    return m_nbestModel;
+  }
+
+  public double getBestScore() {
+    return m_dbestScore;
+  }
+
+  public boolean hasNBestList() {
+    return m_nbestListHMMIndices != null;
+  }
+
+  public int[] getHMMIndicesInNBestList() {
+    return (m_nbestListHMMIndices == null) ? null :
+        (int[]) m_nbestListHMMIndices.clone();
+  }
+
+  public double[] getScoresInNBestList() {
+    return (m_dbestListScores == null) ? null :
+        (double[]) m_dbestListScores.clone();
+  }
+
+  /**
+   *  Same format of
+   *  SetOfPlainContinuousHMMs.getPathsOfNBestListUsingRunLengthEncoding():
+   *  the HMM index followed by its path, for each entry in the N-best list.
+   *  Returns null if the paths were not kept.
+   */
+  public String getPathsOfNBestListUsingRunLengthEncoding() {
+    if (m_npathsOfNBestList == null) {
+      return null;
+    }
+    StringBuffer stringBuffer = new StringBuffer();
+    for (int i = 0; i < m_npathsOfNBestList.length; i++) {
+      if (i > 0) {
+        stringBuffer.append(" ");
+      }
+      stringBuffer.append(m_nbestListHMMIndices[i]);
+      stringBuffer.append(" ");
+      stringBuffer.append(ContinuousHMM.getRunLengthRepresentation(
+          m_npathsOfNBestList[i]));
+    }
+    return stringBuffer.toString();
+  }
+
+}
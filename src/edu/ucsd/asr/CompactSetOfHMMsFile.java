@@ -0,0 +1,680 @@
+package edu.ucsd.asr;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+/**
+ *  Binary file with a SetOfSharedContinuousHMMs (diagonal covariance
+ *  Gaussians only) organized to be memory-mapped: the HMMs are created
+ *  only when requested by getHMM(), reading the parameters from the mapped
+ *  region, such that a decoder can open a large set (e.g. thousands of
+ *  triphones) quickly and only pay for the HMMs it uses. As in the
+ *  SetOfSharedContinuousHMMs, a mixture (or transition matrix) is created
+ *  once and shared by all HMMs that use it. getSetOfSharedContinuousHMMs()
+ *  converts the file back to a SetOfSharedContinuousHMMs, which needs all
+ *  mixtures, and readSetOfSharedContinuousHMMs() does the same given the
+ *  file name (e.g. for HMMReestimator, when the file of the initial set
+ *  has the extension of this class).
+ *  The format is little-endian (all ints and floats, 4 bytes each):
+ *  <pre>
+ *  header: magic number, version, space dimension, # of physical HMMs,
+ *          # of mixtures, # of transition matrices, total # of Gaussians,
+ *          total # of emitting states, # of bytes of the tables section
+ *  tables: the tables of labels of the physical HMMs, of the mixtures and
+ *          of the transition matrices; each one is the # of entries
+ *          (0 if the set does not have the table) and, for each entry,
+ *          # of labels and, for each label, its length in bytes and the
+ *          UTF-8 bytes. Then the # of bytes and the bytes of the
+ *          serialized PatternGenerator (0 bytes if there is none)
+ *  (padding up to a multiple of 4 bytes)
+ *  HMM directory: for each HMM, transition matrix index and first
+ *          emitting state (the states of HMM h are
+ *          first[h], ..., first[h+1] - 1), plus one final entry
+ *  states: mixture index of each emitting state
+ *  mixture directory: first Gaussian of each mixture, plus one final entry
+ *  transition matrix directory: first float and # of states of each
+ *          matrix (the matrix is stored row by row, in log domain, as
+ *          TransitionMatrix and ContinuousHMM keep it)
+ *  Gaussian pool: for each Gaussian, its weight (in log domain), mean and
+ *          variance
+ *  transition matrices
+ *  </pre>
+ *  Files are limited to 2 GB.
+ *  getHMM() and the other methods can be called by concurrent threads.
+ */
+public class CompactSetOfHMMsFile {
+
+  public static final String m_FILE_EXTENSION = "CHMM";
+
+  private static final int m_nMAGIC_NUMBER = 0x4D4D4843; //"CHMM"
+  /**
+   *  Version 1 had only the table of labels of the physical HMMs and
+   *  stored the transition matrices as probabilities.
+   */
+  private static final int m_nVERSION = 2;
+  private static final int m_nNUMBER_OF_HEADER_INTS = 9;
+
+  private final String m_fileName;
+  private final int m_nspaceDimension;
+  private final int m_nnumberOfHMMs;
+  private final int m_nnumberOfMixtures;
+  private final int m_nnumberOfTransitionMatrices;
+
+  private final TableOfLabels m_tableOfLabels;
+
+  /**
+   *  Null if the set did not have them.
+   */
+  private final TableOfLabels m_tableOfMixtures;
+  private final TableOfLabels m_tableOfTransitionMatrices;
+  private final PatternGenerator m_patternGenerator;
+
+  /**
+   *  Maps each label into the index of its physical HMM.
+   */
+  private final HashMap m_labelToHMMIndex;
+
+  //positions (in bytes) of the sections in the mapped region
+  private final int m_nhmmDirectoryPosition;
+  private final int m_nstatesPosition;
+  private final int m_nmixtureDirectoryPosition;
+  private final int m_ntransitionMatrixDirectoryPosition;
+  private final int m_ngaussiansPosition;
+  private final int m_ntransitionMatricesPosition;
+
+  private final ByteBuffer m_byteBuffer;
+
+  //created on demand
+  private final ContinuousHMM[] m_continuousHMMs;
+  private final MixtureOfGaussianPDFs[] m_mixturesOfGaussianPDFs;
+  private final float[][][] m_flogTransitionMatrices;
+  private int m_nnumberOfCreatedMixtures;
+  private SetOfSharedContinuousHMMs m_setOfSharedContinuousHMMs;
+
+  /**
+   *  Map the given file and read its header and labels.
+   */
+  public CompactSetOfHMMsFile(String fileName) throws IOException {
+    m_fileName = fileName;
+    RandomAccessFile randomAccessFile = new RandomAccessFile(fileName, "r");
+    try {
+      FileChannel fileChannel = randomAccessFile.getChannel();
+      if (fileChannel.size() > Integer.MAX_VALUE) {
+        End.throwError("File " + fileName + " is larger than 2 GB");
+      }
+      //the mapping remains valid after the channel is closed
+      m_byteBuffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0,
+                                     fileChannel.size());
+    }
+    finally {
+      randomAccessFile.close();
+    }
+    m_byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
+
+    if (m_byteBuffer.getInt(0) != m_nMAGIC_NUMBER) {
+      End.throwError("File " + fileName + " is not a " + m_FILE_EXTENSION +
+                     " file");
+    }
+    int nversion = m_byteBuffer.getInt(4);
+    if (nversion != m_nVERSION) {
+      End.throwError("File " + fileName + " has version " + nversion +
+                     ", but only version " + m_nVERSION + " is supported");
+    }
+    m_nspaceDimension = m_byteBuffer.getInt(8);
+    m_nnumberOfHMMs = m_byteBuffer.getInt(12);
+    m_nnumberOfMixtures = m_byteBuffer.getInt(16);
+    m_nnumberOfTransitionMatrices = m_byteBuffer.getInt(20);
+    int nnumberOfGaussians = m_byteBuffer.getInt(24);
+    int nnumberOfStates = m_byteBuffer.getInt(28);
+    int ntablesSize = m_byteBuffer.getInt(32);
+
+    //tables and PatternGenerator
+    ByteBuffer tables = m_byteBuffer.duplicate();
+    tables.order(ByteOrder.LITTLE_ENDIAN);
+    tables.position(4 * m_nNUMBER_OF_HEADER_INTS);
+    String[][] labels = getTable(tables);
+    if (labels == null || labels.length != m_nnumberOfHMMs) {
+      End.throwError("Inconsistent table of labels in file " + fileName);
+    }
+    m_labelToHMMIndex = new HashMap();
+    for (int h = 0; h < m_nnumberOfHMMs; h++) {
+      for (int i = 0; i < labels[h].length; i++) {
+        m_labelToHMMIndex.put(labels[h][i], new Integer(h));
+      }
+    }
+    m_tableOfLabels = new TableOfLabels(labels);
+    m_tableOfMixtures = getTableOfLabels(getTable(tables));
+    m_tableOfTransitionMatrices = getTableOfLabels(getTable(tables));
+    byte[] patternGeneratorBytes = new byte[tables.getInt()];
+    tables.get(patternGeneratorBytes);
+    m_patternGenerator = (PatternGenerator) deserialize(patternGeneratorBytes,
+        fileName);
+    int nposition = tables.position();
+    if (nposition != 4 * m_nNUMBER_OF_HEADER_INTS + ntablesSize) {
+      End.throwError("Inconsistent tables section in file " + fileName);
+    }
+
+    m_nhmmDirectoryPosition = getPaddedSize(nposition);
+    m_nstatesPosition = m_nhmmDirectoryPosition + 8 * (m_nnumberOfHMMs + 1);
+    m_nmixtureDirectoryPosition = m_nstatesPosition + 4 * nnumberOfStates;
+    m_ntransitionMatrixDirectoryPosition = m_nmixtureDirectoryPosition +
+        4 * (m_nnumberOfMixtures + 1);
+    m_ngaussiansPosition = m_ntransitionMatrixDirectoryPosition +
+        8 * m_nnumberOfTransitionMatrices;
+    m_ntransitionMatricesPosition = m_ngaussiansPosition +
+        4 * nnumberOfGaussians * (1 + 2 * m_nspaceDimension);
+    if (m_ntransitionMatricesPosition > m_byteBuffer.capacity()) {
+      End.throwError("File " + fileName + " is truncated");
+    }
+
+    m_continuousHMMs = new ContinuousHMM[m_nnumberOfHMMs];
+    m_mixturesOfGaussianPDFs = new MixtureOfGaussianPDFs[m_nnumberOfMixtures];
+    m_flogTransitionMatrices = new float[m_nnumberOfTransitionMatrices][][];
+  }
+
+  private static int getPaddedSize(int nnumberOfBytes) {
+    return (nnumberOfBytes + 3) & ~3;
+  }
+
+  /**
+   *  Read a table (see the format) starting at the position of byteBuffer.
+   *  Returns null if the table has no entries.
+   */
+  private static String[][] getTable(ByteBuffer byteBuffer) throws IOException {
+    int nnumberOfEntries = byteBuffer.getInt();
+    if (nnumberOfEntries == 0) {
+      return null;
+    }
+    String[][] table = new String[nnumberOfEntries][];
+    for (int i = 0; i < nnumberOfEntries; i++) {
+      table[i] = new String[byteBuffer.getInt()];
+      for (int j = 0; j < table[i].length; j++) {
+        byte[] bytes = new byte[byteBuffer.getInt()];
+        byteBuffer.get(bytes);
+        table[i][j] = new String(bytes, "UTF-8");
+      }
+    }
+    return table;
+  }
+
+  private static TableOfLabels getTableOfLabels(String[][] table) {
+    return (table == null) ? null : new TableOfLabels(table);
+  }
+
+  /**
+   *  Table (see the format) as UTF-8 bytes.
+   */
+  private static byte[][][] getBytes(TableOfLabels tableOfLabels) throws
+      IOException {
+    if (tableOfLabels == null) {
+      return new byte[0][][];
+    }
+    String[][] table = tableOfLabels.getMatrixOfStrings();
+    byte[][][] bytes = new byte[table.length][][];
+    for (int i = 0; i < table.length; i++) {
+      bytes[i] = new byte[table[i].length][];
+      for (int j = 0; j < table[i].length; j++) {
+        bytes[i][j] = table[i][j].getBytes("UTF-8");
+      }
+    }
+    return bytes;
+  }
+
+  private static int getSize(byte[][][] table) {
+    int nsize = 4;
+    for (int i = 0; i < table.length; i++) {
+      nsize += 4;
+      for (int j = 0; j < table[i].length; j++) {
+        nsize += 4 + table[i][j].length;
+      }
+    }
+    return nsize;
+  }
+
+  private static void putTable(ByteBuffer byteBuffer, byte[][][] table) {
+    byteBuffer.putInt(table.length);
+    for (int i = 0; i < table.length; i++) {
+      byteBuffer.putInt(table[i].length);
+      for (int j = 0; j < table[i].length; j++) {
+        byteBuffer.putInt(table[i][j].length);
+        byteBuffer.put(table[i][j]);
+      }
+    }
+  }
+
+  private static byte[] serialize(Object object) throws IOException {
+    if (object == null) {
+      return new byte[0];
+    }
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    ObjectOutputStream objectOutputStream = new ObjectOutputStream(
+        byteArrayOutputStream);
+    objectOutputStream.writeObject(object);
+    objectOutputStream.close();
+    return byteArrayOutputStream.toByteArray();
+  }
+
+  private static Object deserialize(byte[] bytes, String fileName) throws
+      IOException {
+    if (bytes.length == 0) {
+      return null;
+    }
+    ObjectInputStream objectInputStream = new ObjectInputStream(new
+        ByteArrayInputStream(bytes));
+    try {
+      return objectInputStream.readObject();
+    }
+    catch (ClassNotFoundException e) {
+      End.throwError("Could not read the PatternGenerator of file " +
+                     fileName + ": " + e);
+      return null; //make compiler happy
+    }
+    finally {
+      objectInputStream.close();
+    }
+  }
+
+  public String getFileName() {
+    return m_fileName;
+  }
+
+  public int getSpaceDimension() {
+    return m_nspaceDimension;
+  }
+
+  public int getNumberOfPhysicalHMMs() {
+    return m_nnumberOfHMMs;
+  }
+
+  public int getNumberOfMixtures() {
+    return m_nnumberOfMixtures;
+  }
+
+  public int getNumberOfTransitionMatrices() {
+    return m_nnumberOfTransitionMatrices;
+  }
+
+  /**
+   *  Entry h has the labels (logical HMMs) of physical HMM h.
+   */
+  public TableOfLabels getTableOfLabels() {
+    return m_tableOfLabels;
+  }
+
+  /**
+   *  Null if the set that was written did not have it.
+   */
+  public TableOfLabels getTableOfMixtures() {
+    return m_tableOfMixtures;
+  }
+
+  /**
+   *  Null if the set that was written did not have it.
+   */
+  public TableOfLabels getTableOfTransitionMatrices() {
+    return m_tableOfTransitionMatrices;
+  }
+
+  /**
+   *  Null if the set that was written did not have it.
+   */
+  public PatternGenerator getPatternGenerator() {
+    return m_patternGenerator;
+  }
+
+  /**
+   *  Returns the index of the physical HMM of the given (logical or
+   *  physical) label or -1 if there is no such label.
+   */
+  public int getPhysicalHMMIndex(String label) {
+    Integer index = (Integer) m_labelToHMMIndex.get(label);
+    return (index == null) ? -1 : index.intValue();
+  }
+
+  public int getTransitionMatrixIndex(int nhmmIndex) {
+    return m_byteBuffer.getInt(m_nhmmDirectoryPosition + 8 * nhmmIndex);
+  }
+
+  /**
+   *  Mixture index of each emitting state of the given HMM.
+   */
+  public int[] getMixtureIndices(int nhmmIndex) {
+    int nfirstState = m_byteBuffer.getInt(m_nhmmDirectoryPosition +
+                                          8 * nhmmIndex + 4);
+    int nlastState = m_byteBuffer.getInt(m_nhmmDirectoryPosition +
+                                         8 * (nhmmIndex + 1) + 4);
+    int[] nmixtureIndices = new int[nlastState - nfirstState];
+    for (int i = 0; i < nmixtureIndices.length; i++) {
+      nmixtureIndices[i] = m_byteBuffer.getInt(m_nstatesPosition +
+                                               4 * (nfirstState + i));
+    }
+    return nmixtureIndices;
+  }
+
+  /**
+   *  Returns the given physical HMM, creating it (and the mixtures and
+   *  transition matrix not created yet) if necessary. The same object is
+   *  returned in subsequent calls.
+   */
+  public synchronized ContinuousHMM getHMM(int nhmmIndex) {
+    if (m_continuousHMMs[nhmmIndex] == null) {
+      int[] nmixtureIndices = getMixtureIndices(nhmmIndex);
+      MixtureOfGaussianPDFs[] mixturesOfGaussianPDFs = new
+          MixtureOfGaussianPDFs[nmixtureIndices.length];
+      for (int i = 0; i < nmixtureIndices.length; i++) {
+        mixturesOfGaussianPDFs[i] = getMixture(nmixtureIndices[i]);
+      }
+      //each HMM has its own copy of the matrix, as when the constructor
+      //of ContinuousHMM is used
+      float[][] flogTransitionMatrix = copy(getTransitionMatrixInLogDomain(
+          getTransitionMatrixIndex(nhmmIndex)));
+      m_continuousHMMs[nhmmIndex] = ContinuousHMM.
+          createFromTransitionMatrixInLogDomain(flogTransitionMatrix,
+                                                mixturesOfGaussianPDFs);
+    }
+    return m_continuousHMMs[nhmmIndex];
+  }
+
+  /**
+   *  Returns the HMM of the given label or null if there is no such label.
+   */
+  public ContinuousHMM getHMM(String label) {
+    int nhmmIndex = getPhysicalHMMIndex(label);
+    return (nhmmIndex == -1) ? null : getHMM(nhmmIndex);
+  }
+
+  public synchronized MixtureOfGaussianPDFs getMixture(int nmixtureIndex) {
+    if (m_mixturesOfGaussianPDFs[nmixtureIndex] == null) {
+      int nfirstGaussian = m_byteBuffer.getInt(m_nmixtureDirectoryPosition +
+                                               4 * nmixtureIndex);
+      int nnumberOfGaussians = m_byteBuffer.getInt(m_nmixtureDirectoryPosition +
+          4 * (nmixtureIndex + 1)) - nfirstGaussian;
+      int nposition = m_ngaussiansPosition +
+          4 * nfirstGaussian * (1 + 2 * m_nspaceDimension);
+      GaussianPDF[] gaussianPDFs = new GaussianPDF[nnumberOfGaussians];
+      float[] flogWeights = new float[nnumberOfGaussians];
+      for (int g = 0; g < nnumberOfGaussians; g++) {
+        flogWeights[g] = m_byteBuffer.getFloat(nposition);
+        nposition += 4;
+        float[] fmean = new float[m_nspaceDimension];
+        float[] fvariance = new float[m_nspaceDimension];
+        for (int k = 0; k < m_nspaceDimension; k++) {
+          fmean[k] = m_byteBuffer.getFloat(nposition + 4 * k);
+          fvariance[k] = m_byteBuffer.getFloat(nposition +
+                                               4 * (m_nspaceDimension + k));
+        }
+        nposition += 8 * m_nspaceDimension;
+        gaussianPDFs[g] = new DiagonalCovarianceGaussianPDF(fmean, fvariance);
+      }
+      m_mixturesOfGaussianPDFs[nmixtureIndex] = new MixtureOfGaussianPDFs(
+          gaussianPDFs, flogWeights);
+      m_nnumberOfCreatedMixtures++;
+    }
+    return m_mixturesOfGaussianPDFs[nmixtureIndex];
+  }
+
+  /**
+   *  Returns the transition matrix in log domain.
+   *  The returned matrix must not be modified.
+   */
+  public synchronized float[][] getTransitionMatrixInLogDomain(int
+      nmatrixIndex) {
+    if (m_flogTransitionMatrices[nmatrixIndex] == null) {
+      int nfirstFloat = m_byteBuffer.getInt(m_ntransitionMatrixDirectoryPosition +
+                                            8 * nmatrixIndex);
+      int nnumberOfStates = m_byteBuffer.getInt(
+          m_ntransitionMatrixDirectoryPosition + 8 * nmatrixIndex + 4);
+      int nposition = m_ntransitionMatricesPosition + 4 * nfirstFloat;
+      float[][] flogTransitionMatrix = new float[nnumberOfStates][
+          nnumberOfStates];
+      for (int i = 0; i < nnumberOfStates; i++) {
+        for (int j = 0; j < nnumberOfStates; j++) {
+          flogTransitionMatrix[i][j] = m_byteBuffer.getFloat(nposition);
+          nposition += 4;
+        }
+      }
+      m_flogTransitionMatrices[nmatrixIndex] = flogTransitionMatrix;
+    }
+    return m_flogTransitionMatrices[nmatrixIndex];
+  }
+
+  private static float[][] copy(float[][] fmatrix) {
+    float[][] fcopy = new float[fmatrix.length][];
+    for (int i = 0; i < fmatrix.length; i++) {
+      fcopy[i] = (float[]) fmatrix[i].clone();
+    }
+    return fcopy;
+  }
+
+  /**
+   *  Number of mixtures created so far by getMixture() or getHMM().
+   */
+  public synchronized int getNumberOfCreatedMixtures() {
+    return m_nnumberOfCreatedMixtures;
+  }
+
+  /**
+   *  Returns the set stored in this file, creating all mixtures and
+   *  transition matrices (SetOfSharedContinuousHMMs accesses them
+   *  directly, so they cannot be created on demand). The mixtures are the
+   *  same objects returned by getMixture(). The same set is returned in
+   *  subsequent calls.
+   */
+  public synchronized SetOfSharedContinuousHMMs getSetOfSharedContinuousHMMs() {
+    if (m_setOfSharedContinuousHMMs == null) {
+      MixtureOfGaussianPDFs[] mixturesOfGaussianPDFs = new
+          MixtureOfGaussianPDFs[m_nnumberOfMixtures];
+      for (int m = 0; m < m_nnumberOfMixtures; m++) {
+        mixturesOfGaussianPDFs[m] = getMixture(m);
+      }
+      TransitionMatrix[] transitionMatrices = new TransitionMatrix[
+          m_nnumberOfTransitionMatrices];
+      for (int i = 0; i < m_nnumberOfTransitionMatrices; i++) {
+        float[][] flogTransitionMatrix = copy(getTransitionMatrixInLogDomain(i));
+        //the constructors take probabilities, so the matrix (which is
+        //already in log domain) is set directly
+        transitionMatrices[i] = new TransitionMatrix(flogTransitionMatrix.length);
+        transitionMatrices[i].m_fmatrix = flogTransitionMatrix;
+      }
+      //the constructor of the set creates its own PhysicalHMMs
+      SetOfSharedContinuousHMMs owner = new SetOfSharedContinuousHMMs();
+      SetOfSharedContinuousHMMs.PhysicalHMM[] physicalHMMs = new
+          SetOfSharedContinuousHMMs.PhysicalHMM[m_nnumberOfHMMs];
+      for (int h = 0; h < m_nnumberOfHMMs; h++) {
+        physicalHMMs[h] = owner.new PhysicalHMM(getMixtureIndices(h),
+                                                getTransitionMatrixIndex(h));
+      }
+      m_setOfSharedContinuousHMMs = new SetOfSharedContinuousHMMs(
+          mixturesOfGaussianPDFs, transitionMatrices, physicalHMMs,
+          m_tableOfMixtures, m_tableOfTransitionMatrices, m_patternGenerator,
+          m_tableOfLabels);
+      for (int h = 0; h < m_nnumberOfHMMs; h++) {
+        m_setOfSharedContinuousHMMs.m_physicalHMMs[h].
+            setNumberOfLogicalHMMsSharingThisHMM(m_tableOfLabels.getLabels(h).
+                                                 length);
+      }
+    }
+    return m_setOfSharedContinuousHMMs;
+  }
+
+  /**
+   *  Map the given file and convert it to a SetOfSharedContinuousHMMs.
+   */
+  public static SetOfSharedContinuousHMMs readSetOfSharedContinuousHMMs(
+      String fileName) {
+    try {
+      return new CompactSetOfHMMsFile(fileName).getSetOfSharedContinuousHMMs();
+    }
+    catch (IOException e) {
+      End.throwError("Could not read " + fileName + ": " + e);
+      return null; //make compiler happy
+    }
+  }
+
+  /**
+   *  Write the given set in the format described in this class. The labels
+   *  of physical HMM h are the labels of entry h of the table of labels of
+   *  the set. All Gaussians must have diagonal covariance matrices.
+   */
+  public static void write(SetOfSharedContinuousHMMs setOfSharedContinuousHMMs,
+                           String fileName) throws IOException {
+    SetOfSharedContinuousHMMs.PhysicalHMM[] physicalHMMs =
+        setOfSharedContinuousHMMs.m_physicalHMMs;
+    MixtureOfGaussianPDFs[] mixturesOfGaussianPDFs =
+        setOfSharedContinuousHMMs.m_mixturesOfGaussianPDFs;
+    TransitionMatrix[] transitionMatrices =
+        setOfSharedContinuousHMMs.m_transitionMatrices;
+    TableOfLabels tableOfLabels = setOfSharedContinuousHMMs.getTableOfLabels();
+    int nspaceDimension = setOfSharedContinuousHMMs.getSpaceDimension();
+    int nnumberOfHMMs = physicalHMMs.length;
+    int nnumberOfMixtures = mixturesOfGaussianPDFs.length;
+    int nnumberOfTransitionMatrices = transitionMatrices.length;
+
+    int nnumberOfStates = 0;
+    for (int h = 0; h < nnumberOfHMMs; h++) {
+      nnumberOfStates += physicalHMMs[h].getMixtureIndices().length;
+    }
+    int nnumberOfGaussians = 0;
+    for (int m = 0; m < nnumberOfMixtures; m++) {
+      nnumberOfGaussians += mixturesOfGaussianPDFs[m].getNumberOfGaussians();
+    }
+    int nnumberOfTransitionFloats = 0;
+    for (int i = 0; i < nnumberOfTransitionMatrices; i++) {
+      int n = transitionMatrices[i].getNumberOfStates();
+      nnumberOfTransitionFloats += n * n;
+    }
+    byte[][][] labels = getBytes(tableOfLabels);
+    if (labels.length != nnumberOfHMMs) {
+      End.throwError("The table of labels has " + labels.length +
+                     " entries, but there are " + nnumberOfHMMs +
+                     " physical HMMs");
+    }
+    byte[][][] mixtureLabels = getBytes(
+        setOfSharedContinuousHMMs.m_tableOfMixtures);
+    byte[][][] transitionMatrixLabels = getBytes(
+        setOfSharedContinuousHMMs.m_tableOfTransitionMatrices);
+    byte[] patternGeneratorBytes = serialize(
+        setOfSharedContinuousHMMs.getPatternGenerator());
+    int ntablesSize = getSize(labels) + getSize(mixtureLabels) +
+        getSize(transitionMatrixLabels) + 4 + patternGeneratorBytes.length;
+
+    long lsize = getPaddedSize(4 * m_nNUMBER_OF_HEADER_INTS + ntablesSize) +
+        8L * (nnumberOfHMMs + 1) + 4L * nnumberOfStates +
+        4L * (nnumberOfMixtures + 1) + 8L * nnumberOfTransitionMatrices +
+        4L * nnumberOfGaussians * (1 + 2 * nspaceDimension) +
+        4L * nnumberOfTransitionFloats;
+    if (lsize > Integer.MAX_VALUE) {
+      End.throwError("Set of HMMs is too large: " + lsize + " bytes");
+    }
+    ByteBuffer byteBuffer = ByteBuffer.allocate( (int) lsize);
+    byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
+
+    //header
+    byteBuffer.putInt(m_nMAGIC_NUMBER);
+    byteBuffer.putInt(m_nVERSION);
+    byteBuffer.putInt(nspaceDimension);
+    byteBuffer.putInt(nnumberOfHMMs);
+    byteBuffer.putInt(nnumberOfMixtures);
+    byteBuffer.putInt(nnumberOfTransitionMatrices);
+    byteBuffer.putInt(nnumberOfGaussians);
+    byteBuffer.putInt(nnumberOfStates);
+    byteBuffer.putInt(ntablesSize);
+
+    //tables and PatternGenerator
+    putTable(byteBuffer, labels);
+    putTable(byteBuffer, mixtureLabels);
+    putTable(byteBuffer, transitionMatrixLabels);
+    byteBuffer.putInt(patternGeneratorBytes.length);
+    byteBuffer.put(patternGeneratorBytes);
+    byteBuffer.position(getPaddedSize(byteBuffer.position()));
+
+    //HMM directory and states
+    int nfirstState = 0;
+    for (int h = 0; h < nnumberOfHMMs; h++) {
+      byteBuffer.putInt(physicalHMMs[h].getTransitionMatrixIndex());
+      byteBuffer.putInt(nfirstState);
+      nfirstState += physicalHMMs[h].getMixtureIndices().length;
+    }
+    byteBuffer.putInt( -1);
+    byteBuffer.putInt(nfirstState);
+    for (int h = 0; h < nnumberOfHMMs; h++) {
+      int[] nmixtureIndices = physicalHMMs[h].getMixtureIndices();
+      for (int i = 0; i < nmixtureIndices.length; i++) {
+        byteBuffer.putInt(nmixtureIndices[i]);
+      }
+    }
+
+    //mixture and transition matrix directories
+    int nfirstGaussian = 0;
+    for (int m = 0; m < nnumberOfMixtures; m++) {
+      byteBuffer.putInt(nfirstGaussian);
+      nfirstGaussian += mixturesOfGaussianPDFs[m].getNumberOfGaussians();
+    }
+    byteBuffer.putInt(nfirstGaussian);
+    int nfirstFloat = 0;
+    for (int i = 0; i < nnumberOfTransitionMatrices; i++) {
+      int n = transitionMatrices[i].getNumberOfStates();
+      byteBuffer.putInt(nfirstFloat);
+      byteBuffer.putInt(n);
+      nfirstFloat += n * n;
+    }
+
+    //Gaussian pool
+    for (int m = 0; m < nnumberOfMixtures; m++) {
+      MixtureOfGaussianPDFs mixture = mixturesOfGaussianPDFs[m];
+      float[] flogWeights = mixture.getComponentsWeightsInLogDomain();
+      for (int g = 0; g < flogWeights.length; g++) {
+        GaussianPDF gaussianPDF = mixture.getSpecificGaussian(g);
+        if (! (gaussianPDF instanceof DiagonalCovarianceGaussianPDF)) {
+          End.throwError("Gaussian " + g + " of mixture " + m +
+                         " does not have a diagonal covariance matrix");
+        }
+        byteBuffer.putFloat(flogWeights[g]);
+        putFloats(byteBuffer, gaussianPDF.getMean());
+        putFloats(byteBuffer,
+                  ( (DiagonalCovarianceGaussianPDF) gaussianPDF).getVariances());
+      }
+    }
+
+    //transition matrices
+    for (int i = 0; i < nnumberOfTransitionMatrices; i++) {
+      float[][] flogTransitionMatrix = transitionMatrices[i].
+          getMatrixInLogDomain();
+      for (int j = 0; j < flogTransitionMatrix.length; j++) {
+        putFloats(byteBuffer, flogTransitionMatrix[j]);
+      }
+    }
+    if (byteBuffer.hasRemaining()) {
+      End.throwError("Wrote " + byteBuffer.position() + " bytes instead of " +
+                     lsize);
+    }
+
+    byteBuffer.flip();
+    RandomAccessFile randomAccessFile = new RandomAccessFile(fileName, "rw");
+    try {
+      randomAccessFile.setLength(0);
+      FileChannel fileChannel = randomAccessFile.getChannel();
+      while (byteBuffer.hasRemaining()) {
+        fileChannel.write(byteBuffer);
+      }
+    }
+    finally {
+      randomAccessFile.close();
+    }
+  }
+
+  private static void putFloats(ByteBuffer byteBuffer, float[] fvalues) {
+    for (int i = 0; i < fvalues.length; i++) {
+      byteBuffer.putFloat(fvalues[i]);
+    }
+  }
+
+}
@@ -46,6 +46,23 @@ public class ContinuousHMM extends HMM implements Cloneable, Serializable  {
    */
   int[] m_nstateSequenceOfLastViterbi;
 
+  /**
+   *  Sparse representation of the topology of m_ftransitionMatrix, used by
+   *  the dynamic programming routines. Not serialized: it is created again
+   *  when needed.
+   */
+  private transient TransitionArcs m_transitionArcs;
+
+  /**
+   *  Viterbi buffers used by getScoreUsingViterbi(Pattern), one per thread and
+   *  shared by all HMMs.
+   */
+  private static final ThreadLocal m_defaultViterbiWorkspace = new ThreadLocal() {
+    protected Object initialValue() {
+      return new ViterbiWorkspace();
+    }
+  };
+
 
   /**
    *  Construct HMM from input arguments imposing the specified topology.
@@ -83,6 +100,7 @@ public class ContinuousHMM extends HMM implements Cloneable, Serializable  {
       m_mixturesOfGaussianPDFs[i] = new MixtureOfGaussianPDFs(gaussianPDFs,fweights,true);
     }
     m_ftransitionMatrix = LogDomainCalculator.calculateLog(ftransitionMatrix);
+    updateTransitionArcs();
     m_type = HMM.Type.CONTINUOUS;
 
     if (isTransitionMatrixDescribingALeftToRightNoSkipsTopology()) {
@@ -117,6 +135,7 @@ public class ContinuousHMM extends HMM implements Cloneable, Serializable  {
     }
 
     m_ftransitionMatrix = LogDomainCalculator.calculateLog(ftransitionMatrix);
+    updateTransitionArcs();
 
     //IO.DisplayMatrix(m_ftransitionMatrix);
     m_mixturesOfGaussianPDFs = mixturesOfGaussianPDFs;
@@ -151,6 +170,7 @@ public class ContinuousHMM extends HMM implements Cloneable, Serializable  {
     ContinuousHMM continuousHMM = (ContinuousHMM) HMMFile.read(fileName);
 
     m_ftransitionMatrix = continuousHMM.m_ftransitionMatrix;
+    updateTransitionArcs();
     m_mixturesOfGaussianPDFs = continuousHMM.m_mixturesOfGaussianPDFs;
     m_topology = continuousHMM.m_topology;
     m_type = continuousHMM.m_type;
@@ -186,6 +206,40 @@ public class ContinuousHMM extends HMM implements Cloneable, Serializable  {
   }
 
 
+  /**
+   *  Construct HMM from a transition matrix that is already in log domain
+   *  (e.g. TransitionMatrix.getMatrixInLogDomain()), which is kept as
+   *  reference. The other constructors take probabilities, and converting
+   *  a log-domain matrix to probabilities and back changes the last bits
+   *  of the log probabilities.
+   *
+   *@param  flogTransitionMatrix    transition matrix in log domain
+   *@param  mixturesOfGaussianPDFs  mixtures of the emitting states
+   */
+  static ContinuousHMM createFromTransitionMatrixInLogDomain(
+      float[][] flogTransitionMatrix,
+      MixtureOfGaussianPDFs[] mixturesOfGaussianPDFs) {
+    TransitionMatrix.verifyIfSquareMatrixAndExitIfNot(flogTransitionMatrix);
+    if (flogTransitionMatrix.length - 2 != mixturesOfGaussianPDFs.length) {
+      End.throwError("ContinuousHMM: transition matrix has " +
+                     flogTransitionMatrix.length + " states, while there are " +
+                     mixturesOfGaussianPDFs.length + " emitting states");
+    }
+    ContinuousHMM continuousHMM = new ContinuousHMM();
+    continuousHMM.m_ftransitionMatrix = flogTransitionMatrix;
+    continuousHMM.updateTransitionArcs();
+    continuousHMM.m_mixturesOfGaussianPDFs = mixturesOfGaussianPDFs;
+    continuousHMM.m_type = HMM.Type.CONTINUOUS;
+    if (continuousHMM.isTransitionMatrixDescribingALeftToRightNoSkipsTopology()) {
+      continuousHMM.m_topology = HMM.Topology.LEFTRIGHT_NO_SKIPS;
+    }
+    else {
+      continuousHMM.m_topology = HMM.Topology.DESCRIBED_BY_TRANSITION_MATRIX;
+    }
+    return continuousHMM;
+  }
+
+
   /**
    *  Set transition matrix based on an input matrix that is NOT in log domain.
    *  The user can construct a HMM with random numbers and left-right topology
@@ -195,6 +249,7 @@ public class ContinuousHMM extends HMM implements Cloneable, Serializable  {
    */
   public void setTransitionMatrix(float[][] ftransitionMatrix) {
     m_ftransitionMatrix = LogDomainCalculator.calculateLog(ftransitionMatrix);
+    updateTransitionArcs();
     if (!isTransitionMatrixOk()) {
       End.throwError("Lines of transition matrix does not sum up to 1.");
     }
@@ -283,6 +338,32 @@ public class ContinuousHMM extends HMM implements Cloneable, Serializable  {
     return m_ftransitionMatrix;
   }
 
+  /**
+   *  Get the sparse representation of the transition matrix topology. It is
+   *  created again if m_ftransitionMatrix was replaced by another matrix
+   *  (e.g., by a subclass or after deserialization).
+   *
+   *@return    The TransitionArcs value
+   */
+  public TransitionArcs getTransitionArcs() {
+    TransitionArcs transitionArcs = m_transitionArcs;
+    if (transitionArcs == null || !transitionArcs.wasCreatedFrom(m_ftransitionMatrix)) {
+      transitionArcs = new TransitionArcs(m_ftransitionMatrix);
+      m_transitionArcs = transitionArcs;
+    }
+    return transitionArcs;
+  }
+
+  /**
+   *  Must be called after the topology of the transition matrix is modified
+   *  without replacing m_ftransitionMatrix (the values of existing arcs can
+   *  be modified without calling this method).
+   */
+  public void updateTransitionArcs() {
+    m_transitionArcs = (m_ftransitionMatrix == null) ? null :
+        new TransitionArcs(m_ftransitionMatrix);
+  }
+
   public MixtureOfGaussianPDFs getGivenMixtureOfGaussianPDFsReference(int nmixtureNumber) {
     return m_mixturesOfGaussianPDFs[nmixtureNumber];
   }
@@ -423,42 +504,139 @@ public class ContinuousHMM extends HMM implements Cloneable, Serializable  {
 
   /**
    *  Get score of this HMM model given a Pattern using the Viterbi algorithm.
-   *  Implementation according to HTK.
+   *  Implementation according to HTK. The buffers are shared by all HMMs
+   *  used by the calling thread and the best state sequence is stored in
+   *  this object (see getStateSequenceOfLastViterbi()).
    *
    *@param  pattern  Description of Parameter
    *@return          The ScoreUsingViterbi value
    */
   public float getScoreUsingViterbi(Pattern pattern) {
+    ViterbiWorkspace viterbiWorkspace = (ViterbiWorkspace) m_defaultViterbiWorkspace.get();
+    float fscore = getScoreUsingViterbi(pattern, viterbiWorkspace);
+    m_nstateSequenceOfLastViterbi = viterbiWorkspace.getStateSequenceOfLastViterbi();
+    return fscore;
+  }
+
+  /**
+   *  Get score of this HMM model given a Pattern using the Viterbi algorithm
+   *  and the buffers of the given workspace, which avoids allocating memory.
+   *  The best state sequence (if the workspace is not in "score only" mode)
+   *  is kept by the workspace, not by this HMM.
+   *
+   *@param  pattern           Description of Parameter
+   *@param  viterbiWorkspace  Description of Parameter
+   *@return                   The ScoreUsingViterbi value
+   */
+  public float getScoreUsingViterbi(Pattern pattern,
+                                    ViterbiWorkspace viterbiWorkspace) {
     float[][] nO = pattern.getParameters();
-    int nnumberOfStates = getNumberOfStates();
+    return getScoreUsingViterbi(nO, null, 0, nO.length, null, null,
+                                viterbiWorkspace);
+  }
 
-    float[] flastProbabilities = new float[nnumberOfStates];
-    float[] fcurrentProbabilities = new float[nnumberOfStates];
+  /**
+   *  Get score of this HMM model using the Viterbi algorithm and output
+   *  probabilities previously calculated (e.g. by DiagonalGaussianScorer):
+   *  the log output probability of state s (s = 1 is the first emitting
+   *  state) at frame t is flogOutputProbabilities[t][nfirstColumn + s - 1].
+   *
+   *@param  flogOutputProbabilities  nT x (number of mixtures) matrix
+   *@param  nfirstColumn             column of first emitting state
+   *@param  nT                       number of frames
+   *@param  viterbiWorkspace         Description of Parameter
+   *@return                          The ScoreUsingViterbi value
+   */
+  public float getScoreUsingViterbi(float[][] flogOutputProbabilities,
+                                    int nfirstColumn,
+                                    int nT,
+                                    ViterbiWorkspace viterbiWorkspace) {
+    return getScoreUsingViterbi(null, flogOutputProbabilities, nfirstColumn,
+                                nT, null, null, viterbiWorkspace);
+  }
+
+  /**
+   *  Get score of this HMM model using the Viterbi algorithm and output
+   *  probabilities obtained from a MixtureLikelihoodCache, which can be
+   *  shared by many HMMs (e.g. the physical HMMs of a
+   *  SetOfSharedContinuousHMMs): the log output probability of state s
+   *  (s = 1 is the first emitting state) at frame t is
+   *  mixtureLikelihoodCache.getLogProbability(nmixtureIndices[s - 1], t,
+   *  nO[t]). As in the other versions, only the states reached by a
+   *  surviving path are evaluated.
+   *
+   *@param  nO                      the frames of the Pattern
+   *@param  mixtureLikelihoodCache  cache of the output probabilities
+   *@param  nmixtureIndices         index in the cache of the mixture of each
+   *      emitting state
+   *@param  viterbiWorkspace        Description of Parameter
+   *@return                         The ScoreUsingViterbi value
+   */
+  public float getScoreUsingViterbi(float[][] nO,
+                                    MixtureLikelihoodCache mixtureLikelihoodCache,
+                                    int[] nmixtureIndices,
+                                    ViterbiWorkspace viterbiWorkspace) {
+    return getScoreUsingViterbi(nO, null, 0, nO.length, mixtureLikelihoodCache,
+                                nmixtureIndices, viterbiWorkspace);
+  }
+
+  /**
+   *  Output probabilities are obtained from flogOutputProbabilities or from
+   *  mixtureLikelihoodCache if one of them is not null. Otherwise, they are
+   *  calculated from nO.
+   */
+  private float getScoreUsingViterbi(float[][] nO,
+                                     float[][] flogOutputProbabilities,
+                                     int nfirstColumn,
+                                     int nT,
+                                     MixtureLikelihoodCache mixtureLikelihoodCache,
+                                     int[] nmixtureIndices,
+                                     ViterbiWorkspace viterbiWorkspace) {
+    int nnumberOfStates = getNumberOfStates();
+    int nnumberOfEmittingStates = nnumberOfStates - 2;
 
     int nbestPreviousState;
     float fbestLogProbability;
-    float fpreviousLogProbability;
     float fcurrentLogProbability;
-    float ftransitionLogProbability;
 
-    int nT = nO.length;
+    //column of state 0 (non-emitting), such that state s is at ncolumn + s
+    int ncolumn = nfirstColumn - 1;
 
-    //matrix of previous state for backtracking
-    short[][] straceBack = new short[nT][nnumberOfStates - 2];
+    viterbiWorkspace.ensureCapacity(nT, nnumberOfStates);
+    float[] flastProbabilities = viterbiWorkspace.getLastProbabilitiesReference();
+    float[] fcurrentProbabilities = viterbiWorkspace.getCurrentProbabilitiesReference();
+
+    //matrix of previous state for backtracking, organized as nT x (N-2)
+    short[] straceBack = viterbiWorkspace.isScoreOnly() ? null :
+        viterbiWorkspace.getTraceBackReference();
+
+    //only the arcs with non-zero probability are visited
+    TransitionArcs transitionArcs = getTransitionArcs();
+    int[] npredecessors = transitionArcs.m_npredecessors;
+    int[] npredecessorsStart = transitionArcs.m_npredecessorsStart;
+    int[] nsuccessors = transitionArcs.m_nsuccessors;
+    int[] nsuccessorsStart = transitionArcs.m_nsuccessorsStart;
 
     //Initialization, t = 0
     for (int i = 1; i < nnumberOfStates - 1; i++) {
-      float ftransition = m_ftransitionMatrix[0][i];
-      if (ftransition > LogDomainCalculator.m_fSMALL_NUMBER) {
-        //i-1 because first state is non-emitting
-        float flogProb = m_mixturesOfGaussianPDFs[i - 1].calculateLogProbability(nO[0],0);
-        flastProbabilities[i] = ftransition + flogProb;
+      flastProbabilities[i] = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+      if (straceBack != null) {
+        //subtract 1: non-emitting state is not considered
+        straceBack[i - 1] = 0;
       }
-      else {
-        flastProbabilities[i] = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+    }
+    for (int k = nsuccessorsStart[0]; k < nsuccessorsStart[1]; k++) {
+      int i = nsuccessors[k];
+      if (i < nnumberOfStates - 1) {
+        //i-1 because first state is non-emitting
+        float flogProb = (flogOutputProbabilities != null) ?
+            flogOutputProbabilities[0][ncolumn + i] :
+            (mixtureLikelihoodCache != null) ?
+            mixtureLikelihoodCache.getLogProbability(nmixtureIndices[i - 1], 0,
+            nO[0]) :
+            m_mixturesOfGaussianPDFs[i - 1].calculateLogProbability(nO[0],0);
+        flastProbabilities[i] = m_ftransitionMatrix[0][i] + flogProb;
       }
-      //subtract 1: non-emitting state is not considered
-      straceBack[0][i - 1] = 0;
     }
     //Print.dialog("flastProbabilities, t = 0");
     //IO.DisplayVector(flastProbabilities);
@@ -467,27 +645,19 @@ public class ContinuousHMM extends HMM implements Cloneable, Serializable  {
     for (int t = 1; t < nT; t++) {
       for (int ncurrentState = 1; ncurrentState < nnumberOfStates - 1; ncurrentState++) {
         //don't take in account exit (non-emitting state)
-        //initialize with first emitting state # 1
+        //if no arc survives, the first emitting state # 1 is assumed
         nbestPreviousState = 1;
-        ftransitionLogProbability = m_ftransitionMatrix[1][ncurrentState];
-        fpreviousLogProbability = flastProbabilities[1];
-        if (ftransitionLogProbability > LogDomainCalculator.m_fSMALL_NUMBER) {
-          fbestLogProbability = ftransitionLogProbability + fpreviousLogProbability;
-        }
-        else {
-          fbestLogProbability = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
-        }
-
-        //now do the recursion for the other states (starting with # 2)
-        for (int npreviousState = 2; npreviousState < nnumberOfStates - 1; npreviousState++) {
-          ftransitionLogProbability = m_ftransitionMatrix[npreviousState][ncurrentState];
-          fpreviousLogProbability = flastProbabilities[npreviousState];
-          if (ftransitionLogProbability > LogDomainCalculator.m_fSMALL_NUMBER) {
-            fcurrentLogProbability = ftransitionLogProbability + fpreviousLogProbability;
-          }
-          else {
-            fcurrentLogProbability = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+        fbestLogProbability = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+
+        //recursion over the emitting states that can precede current state
+        int nlastArc = npredecessorsStart[ncurrentState + 1];
+        for (int k = npredecessorsStart[ncurrentState]; k < nlastArc; k++) {
+          int npreviousState = npredecessors[k];
+          if (npreviousState == 0 || npreviousState == nnumberOfStates - 1) {
+            continue;
           }
+          fcurrentLogProbability = m_ftransitionMatrix[npreviousState][ncurrentState] +
+              flastProbabilities[npreviousState];
           if (fcurrentLogProbability > fbestLogProbability) {
             fbestLogProbability = fcurrentLogProbability;
             nbestPreviousState = npreviousState;
@@ -498,47 +668,45 @@ public class ContinuousHMM extends HMM implements Cloneable, Serializable  {
         //of output probability
         if (fbestLogProbability > LogDomainCalculator.m_fSMALL_NUMBER) {
           //don't calculate output probability if not necessary
-          fcurrentLogProbability = m_mixturesOfGaussianPDFs[ncurrentState - 1].calculateLogProbability(nO[t],t);
+          fcurrentLogProbability = (flogOutputProbabilities != null) ?
+              flogOutputProbabilities[t][ncolumn + ncurrentState] :
+              (mixtureLikelihoodCache != null) ?
+              mixtureLikelihoodCache.getLogProbability(
+              nmixtureIndices[ncurrentState - 1], t, nO[t]) :
+              m_mixturesOfGaussianPDFs[ncurrentState - 1].calculateLogProbability(nO[t],t);
           fcurrentProbabilities[ncurrentState] = fbestLogProbability + fcurrentLogProbability;
         }
         else {
           fcurrentLogProbability = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
           fcurrentProbabilities[ncurrentState] = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
         }
-        //update matrix for back-tracking
-        //subtract 1: non-emitting state is not considered
-        straceBack[t][ncurrentState - 1] = (short) nbestPreviousState;
+        if (straceBack != null) {
+          //update matrix for back-tracking
+          //subtract 1: non-emitting state is not considered
+          straceBack[t * nnumberOfEmittingStates + ncurrentState - 1] = (short) nbestPreviousState;
+        }
       }
       //update the vector of previous probabilities
-      for (int i = 0; i < fcurrentProbabilities.length; i++) {
-        flastProbabilities[i] = fcurrentProbabilities[i];
-      }
+      viterbiWorkspace.swapProbabilities();
+      flastProbabilities = viterbiWorkspace.getLastProbabilitiesReference();
+      fcurrentProbabilities = viterbiWorkspace.getCurrentProbabilitiesReference();
       //Print.dialog("flastProbabilities, t = " + t);
       //IO.DisplayVector(flastProbabilities);
     }
 
     //Termination and backtracking - find the best path
     //take in account transition from time nT-1 (last) to last state (non-emitting)
-    //initialize with first emitting state # 1
+    //if no arc survives, the first emitting state # 1 is assumed
     nbestPreviousState = 1;
-    ftransitionLogProbability = m_ftransitionMatrix[1][nnumberOfStates - 1];
-    fpreviousLogProbability = flastProbabilities[1];
-    if (ftransitionLogProbability > LogDomainCalculator.m_fSMALL_NUMBER) {
-      fbestLogProbability = ftransitionLogProbability + fpreviousLogProbability;
-    }
-    else {
-      fbestLogProbability = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
-    }
-    //now take in account other states, starting from #2
-    for (int npreviousState = 2; npreviousState < nnumberOfStates - 1; npreviousState++) {
-      ftransitionLogProbability = m_ftransitionMatrix[npreviousState][nnumberOfStates - 1];
-      fpreviousLogProbability = flastProbabilities[npreviousState];
-      if (ftransitionLogProbability > LogDomainCalculator.m_fSMALL_NUMBER) {
-        fcurrentLogProbability = ftransitionLogProbability + fpreviousLogProbability;
-      }
-      else {
-        fcurrentLogProbability = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+    fbestLogProbability = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+    //take in account the emitting states that can precede the exit state
+    for (int k = npredecessorsStart[nnumberOfStates - 1]; k < npredecessorsStart[nnumberOfStates]; k++) {
+      int npreviousState = npredecessors[k];
+      if (npreviousState == 0 || npreviousState == nnumberOfStates - 1) {
+        continue;
       }
+      fcurrentLogProbability = m_ftransitionMatrix[npreviousState][nnumberOfStates - 1] +
+          flastProbabilities[npreviousState];
       if (fcurrentLogProbability > fbestLogProbability) {
         fbestLogProbability = fcurrentLogProbability;
         nbestPreviousState = npreviousState;
@@ -552,28 +720,12 @@ public class ContinuousHMM extends HMM implements Cloneable, Serializable  {
     //				fbestLogProbability);
     //	End.exit();
     //}
-    //invite garbage collection but don't think it's necessary
-    //IO.DisplayMatrix(straceBack);
     //Print.dialog("nbestPreviousState = " + nbestPreviousState);
-    doTraceBack(straceBack,nbestPreviousState);
-    straceBack = null;
+    viterbiWorkspace.doTraceBack(nT, nnumberOfEmittingStates, nbestPreviousState);
     //Print.dialog("fbestLogProbability = " + fbestLogProbability);
     return fbestLogProbability / nT;
   }
 
-  private void doTraceBack(short[][] straceBack, int thisState)	{
-    int segLen = straceBack.length;
-    m_nstateSequenceOfLastViterbi = new int[segLen];
-    for (int segIdx=segLen-1; segIdx>=0; segIdx--) {
-      m_nstateSequenceOfLastViterbi[segIdx] = thisState;
-      //subtract because first state is non-emitting
-      thisState--;
-      thisState=straceBack[segIdx][thisState];
-     }
-     //IO.DisplayMatrix(straceBack);
-     //IO.DisplayVector(m_nstateSequenceOfLastViterbi);
-  }
-
   /**
    *  States numbered from 1...N, where 1 is the
    *  first emitting state.
@@ -754,9 +906,12 @@ public class ContinuousHMM extends HMM implements Cloneable, Serializable  {
 
     int nbestPreviousState;
     float fbestLogProbability;
-    float fpreviousLogProbability;
     float fcurrentLogProbability;
-    float ftransitionLogProbability;
+
+    //only the arcs with non-zero probability are visited
+    TransitionArcs transitionArcs = getTransitionArcs();
+    int[] npredecessors = transitionArcs.m_npredecessors;
+    int[] npredecessorsStart = transitionArcs.m_npredecessorsStart;
 
     //Initialization, t = 0
     for (int i=1; i<nnumberOfStates-1; i++) {
@@ -782,25 +937,17 @@ public class ContinuousHMM extends HMM implements Cloneable, Serializable  {
     for (int t=1; t<nT; t++) {
       for (int ncurrentState=1; ncurrentState<nnumberOfStates-1; ncurrentState++) {//don't take in account exit (non-emitting state)
 
-        //initialize with first emitting state # 1
+        //if no arc survives, the first emitting state # 1 is assumed
         nbestPreviousState = 1;
-        ftransitionLogProbability = m_ftransitionMatrix[1][ncurrentState];
-        fpreviousLogProbability = flastProbabilities[1];
-        if (ftransitionLogProbability > LogDomainCalculator.m_fSMALL_NUMBER) {
-          fbestLogProbability = ftransitionLogProbability + fpreviousLogProbability;
-        } else {
-          fbestLogProbability = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
-        }
+        fbestLogProbability = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
 
-        //now do the recursion for the other states (starting with # 2)
-        for (int npreviousState=2; npreviousState<nnumberOfStates-1; npreviousState++) {
-          ftransitionLogProbability = m_ftransitionMatrix[npreviousState][ncurrentState];
-          fpreviousLogProbability = flastProbabilities[npreviousState];
-          if (ftransitionLogProbability > LogDomainCalculator.m_fSMALL_NUMBER) {
-            fcurrentLogProbability = ftransitionLogProbability + fpreviousLogProbability;
-          } else {
-            fcurrentLogProbability = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+        //recursion over the emitting states that can precede current state
+        for (int k=npredecessorsStart[ncurrentState]; k<npredecessorsStart[ncurrentState+1]; k++) {
+          int npreviousState = npredecessors[k];
+          if (npreviousState == 0 || npreviousState == nnumberOfStates-1) {
+            continue;
           }
+          fcurrentLogProbability = m_ftransitionMatrix[npreviousState][ncurrentState] + flastProbabilities[npreviousState];
           if (fcurrentLogProbability > fbestLogProbability) {
             fbestLogProbability = fcurrentLogProbability;
             nbestPreviousState = npreviousState;
@@ -922,6 +1069,7 @@ public class ContinuousHMM extends HMM implements Cloneable, Serializable  {
       }
     }
     m_ftransitionMatrix = LogDomainCalculator.calculateLog(m_ftransitionMatrix);
+    updateTransitionArcs();
 
 
     int nspaceDimension = this.getSpaceDimension();
@@ -967,6 +1115,7 @@ public class ContinuousHMM extends HMM implements Cloneable, Serializable  {
     m_ftransitionMatrix[nnumberOfStates - 1][nnumberOfStates - 1] = 1.0F;
     //last state
     LogDomainCalculator.convertToLog(m_ftransitionMatrix);
+    updateTransitionArcs();
 
     //initialize mixtures
     for (int i = 0; i < m_mixturesOfGaussianPDFs.length; i++) {
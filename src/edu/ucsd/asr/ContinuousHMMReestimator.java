@@ -38,6 +38,9 @@ public class ContinuousHMMReestimator {
 	
 	private boolean m_oshouldOutputGammaMatrix;
 
+	// if true, use FastLogDomainCalculator instead of LogDomainCalculator
+	private boolean m_ouseFastLogAdd;
+
 	// 1) output probability: m_hmm.getNumberOfStates()-2 because there are 2
 	// non-emitting states.
 	private float[][] m_flogOutputProbabilities;
@@ -46,6 +49,9 @@ public class ContinuousHMMReestimator {
 	// [1..maxMixes] of mixprob */
 	private float[][][] m_flogProbabilityForEachGaussian;
 
+	// packed copy of the mixtures, recreated at each iteration
+	private DiagonalGaussianScorer m_diagonalGaussianScorer;
+
 	// 2) forward and backward matrices
 	private double[][] m_dalpha;
 
@@ -276,12 +282,27 @@ public class ContinuousHMMReestimator {
 				"ContinuousHMMReestimator.nminimumNumberOfPatternsPerModel",
 				property);
 
+		property = m_headerProperties.getProperty(
+				"ContinuousHMMReestimator.ouseFastLogAdd", "false");
+		m_ouseFastLogAdd = (Boolean.valueOf(property)).booleanValue();
+		m_headerProperties.setProperty(
+				"ContinuousHMMReestimator.ouseFastLogAdd", property);
+
 		reestimateHMMUsingBaumWelch(setOfPatterns, setOfPatternsFileName,
 				nmaximumIterations, nminimumNumberOfFramesForValidPattern,
 				nminimumNumberOfPatternsPerModel, fconvergenceThreshold,
 				fcovarianceFloor);
 	}
 
+	/**
+	 * Returns log(exp(x) + exp(y)) using the exact or the table-driven
+	 * calculator, according to ContinuousHMMReestimator.ouseFastLogAdd.
+	 */
+	private double addInLogDomain(double x, double y) {
+		return m_ouseFastLogAdd ? FastLogDomainCalculator.add(x, y)
+				: LogDomainCalculator.add(x, y);
+	}
+
 	/**
 	 * Forward probability ("all paths"): n0 is the observation sequence
 	 * 
@@ -296,6 +317,11 @@ public class ContinuousHMMReestimator {
 		double x;
 		double a;
 
+		// only the arcs with non-zero probability are visited
+		TransitionArcs transitionArcs = m_hmm.getTransitionArcs();
+		int[] npredecessors = transitionArcs.m_npredecessors;
+		int[] npredecessorsStart = transitionArcs.m_npredecessorsStart;
+
 		// According to page 150 of HTK manual, but subtracting
 		// 1 from the indices because HTK manual equations and
 		// HTK software assume vectors start with index 1
@@ -319,12 +345,15 @@ public class ContinuousHMMReestimator {
 			// cols 2 to T
 			for (int j = 1; j < nnumberOfStates - 1; j++) {
 				x = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
-				for (int i = 1; i < nnumberOfStates - 1; i++) {
-					a = m_hmm.m_ftransitionMatrix[i][j];
-					if (a > LogDomainCalculator.m_fSMALL_NUMBER) {
-						// recursively accumulate summation in x
-						x = LogDomainCalculator.add(x, m_dalpha[i][t - 1] + a);
+				int nlastArc = npredecessorsStart[j + 1];
+				for (int k = npredecessorsStart[j]; k < nlastArc; k++) {
+					int i = npredecessors[k];
+					if (i == 0 || i == nnumberOfStates - 1) {
+						continue;
 					}
+					a = m_hmm.m_ftransitionMatrix[i][j];
+					// recursively accumulate summation in x
+					x = addInLogDomain(x, m_dalpha[i][t - 1] + a);
 				}
 				// j-1 because first state is non-emitting
 				m_dalpha[j][t] = x + m_flogOutputProbabilities[j - 1][t];
@@ -335,13 +364,15 @@ public class ContinuousHMMReestimator {
 
 		x = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
 		// finally calc seg prob
-		for (int i = 1; i < nnumberOfStates - 1; i++) {
+		for (int k = npredecessorsStart[nnumberOfStates - 1]; k < npredecessorsStart[nnumberOfStates]; k++) {
+			int i = npredecessors[k];
+			if (i == 0 || i == nnumberOfStates - 1) {
+				continue;
+			}
 			a = m_hmm.m_ftransitionMatrix[i][nnumberOfStates - 1];
 			// a=hmm->transP[i][nStates];
-			if (a > LogDomainCalculator.m_fSMALL_NUMBER) {
-				// recursively accumulate summation in x
-				x = LogDomainCalculator.add(x, m_dalpha[i][nT - 1] + a);
-			}
+			// recursively accumulate summation in x
+			x = addInLogDomain(x, m_dalpha[i][nT - 1] + a);
 		}
 		m_dalpha[nnumberOfStates - 1][nT - 1] = x;
 
@@ -362,6 +393,11 @@ public class ContinuousHMMReestimator {
 		int nT = m_currentPattern.getNumOfFrames();
 		int nnumberOfStates = m_hmm.getNumberOfStates();
 
+		// only the arcs with non-zero probability are visited
+		TransitionArcs transitionArcs = m_hmm.getTransitionArcs();
+		int[] nsuccessors = transitionArcs.m_nsuccessors;
+		int[] nsuccessorsStart = transitionArcs.m_nsuccessorsStart;
+
 		m_dbeta[nnumberOfStates - 1][nT - 1] = 0.0F;
 
 		for (int i = 1; i < nnumberOfStates - 1; i++) {
@@ -372,30 +408,35 @@ public class ContinuousHMMReestimator {
 
 		for (int t = nT - 2; t >= 0; t--) {
 			// Col t from col t+1
-			for (int i = 0; i < nnumberOfStates; i++) {
-				m_dbeta[i][t] = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
-			}
-			for (int j = 1; j < nnumberOfStates - 1; j++) {
-				// j-1 because first state is non-emitting
-				x = m_flogOutputProbabilities[j - 1][t + 1] + m_dbeta[j][t + 1];
-				for (int i = 1; i < nnumberOfStates - 1; i++) {
-					a = m_hmm.m_ftransitionMatrix[i][j];
-					if (a > LogDomainCalculator.m_fSMALL_NUMBER) {
-						m_dbeta[i][t] = LogDomainCalculator.add(m_dbeta[i][t],
-								x + a);
+			m_dbeta[0][t] = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+			m_dbeta[nnumberOfStates - 1][t] = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+			for (int i = 1; i < nnumberOfStates - 1; i++) {
+				double dbeta = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+				int nlastArc = nsuccessorsStart[i + 1];
+				for (int k = nsuccessorsStart[i]; k < nlastArc; k++) {
+					int j = nsuccessors[k];
+					if (j == 0 || j == nnumberOfStates - 1) {
+						continue;
 					}
+					// j-1 because first state is non-emitting
+					x = m_flogOutputProbabilities[j - 1][t + 1] + m_dbeta[j][t + 1];
+					a = m_hmm.m_ftransitionMatrix[i][j];
+					dbeta = addInLogDomain(dbeta, x + a);
 				}
+				m_dbeta[i][t] = dbeta;
 			}
 		}
 
 		x = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
-		for (int j = 1; j < nnumberOfStates - 1; j++) {
-			a = m_hmm.m_ftransitionMatrix[0][j];
-			if (a > LogDomainCalculator.m_fSMALL_NUMBER) {
-				// j-1 because first state is non-emitting
-				x = LogDomainCalculator.add(x, m_dbeta[j][0] + a
-						+ m_flogOutputProbabilities[j - 1][0]);
+		for (int k = nsuccessorsStart[0]; k < nsuccessorsStart[1]; k++) {
+			int j = nsuccessors[k];
+			if (j == 0 || j == nnumberOfStates - 1) {
+				continue;
 			}
+			a = m_hmm.m_ftransitionMatrix[0][j];
+			// j-1 because first state is non-emitting
+			x = addInLogDomain(x, m_dbeta[j][0] + a
+					+ m_flogOutputProbabilities[j - 1][0]);
 		}
 		m_dbeta[0][0] = x;
 		return x;
@@ -427,7 +468,7 @@ public class ContinuousHMMReestimator {
 
 			// add contribution of all frames to state i occupation prob
 			for (int t = 0; t < nT; t++) {
-				dlogProb = LogDomainCalculator.add(dlogProb, alpha_i[t]
+				dlogProb = addInLogDomain(dlogProb, alpha_i[t]
 						+ beta_i[t]);
 			}
 
@@ -559,7 +600,7 @@ public class ContinuousHMMReestimator {
 					float[] outprob_j = m_flogOutputProbabilities[j - 1];
 
 					for (int t = 0; t < nT - 1; t++) {
-						x = LogDomainCalculator.add(x, alpha_i[t] + a_ij
+						x = addInLogDomain(x, alpha_i[t] + a_ij
 								+ outprob_j[t + 1] + beta_j[t + 1]);
 					}
 					x -= dlogProbabilityOfCurrentPattern;
@@ -649,7 +690,7 @@ public class ContinuousHMMReestimator {
 									float a_ij = m_hmm
 											.getTransitionMatrixElement(i, j);
 									if (a_ij > LogDomainCalculator.m_fSMALL_NUMBER) {
-										Lr = LogDomainCalculator.add(Lr,
+										Lr = addInLogDomain(Lr,
 												m_dalpha[i][t - 1] + a_ij);
 									}
 								}
@@ -775,8 +816,7 @@ public class ContinuousHMMReestimator {
 			int nnumberOfTooShortPatterns = 0;
 			int numberOfPatterns = setOfPatterns.getNumberOfPatterns();
 			for (int i = 0; i < numberOfPatterns; i++) {
-				int nobservationLength = setOfPatterns.getPattern(i)
-						.getNumOfFrames();
+				int nobservationLength = setOfPatterns.getNumberOfFrames(i);
 				if (nobservationLength < nminimumNumberOfFramesForValidPattern) {
 					nnumberOfTooShortPatterns++;
 				} else {
@@ -809,22 +849,13 @@ public class ContinuousHMMReestimator {
 
 		int nnumberOfEmittingStates = m_hmm.getNumberOfStates() - 2;
 		int nnumberOfFrames = m_currentPattern.getNumOfFrames();
+		float[][] fframes = m_currentPattern.getParameters();
 		// skip entry and exit (non-emitting) states
 		for (int j = 0; j < nnumberOfEmittingStates; j++) {
-			for (int t = 0; t < nnumberOfFrames; t++) {
-				float[] findividualAndTotalProbabilities = m_hmm.m_mixturesOfGaussianPDFsBeingReestimated[j]
-						.calculateIndividualProbabilities(m_currentPattern
-								.getParametersOfGivenFrame(t), t);
-
-				// total mixture probability is last element of
-				// findividualAndTotalProbabilities
-				m_flogOutputProbabilities[j][t] = findividualAndTotalProbabilities[findividualAndTotalProbabilities.length - 1];
-
-				// store individual (each Gaussian) prob
-				for (int m = 0; m < findividualAndTotalProbabilities.length - 1; m++) {
-					m_flogProbabilityForEachGaussian[j][t][m] = findividualAndTotalProbabilities[m];
-				}
-			}
+			// total mixture probability and individual (each Gaussian) prob
+			m_diagonalGaussianScorer.calculateLogProbabilities(j, fframes,
+					nnumberOfFrames, m_flogOutputProbabilities[j],
+					m_flogProbabilityForEachGaussian[j]);
 		}
 	}
 
@@ -891,6 +922,9 @@ public class ContinuousHMMReestimator {
 		}
 		m_hmm.m_ftransitionMatrix[nStates - 1][nStates - 1] = 0.0F;
 		// prob = 1
+
+		// arcs with zero probability can now be skipped
+		m_hmm.updateTransitionArcs();
 	}
 
 	/**
@@ -1007,6 +1041,8 @@ public class ContinuousHMMReestimator {
 		allocateSpace(setOfPatterns.getMaximumNumberOfFrames());
 
 		int ntotalNumberOfPatterns = setOfPatterns.getNumberOfPatterns();
+		// reuses the frames of the previous Pattern if the file is mapped
+		MappedPatternsFile.Reader reader = setOfPatterns.getReader();
 		if (m_nverbose > 2) {
 			Print.dialog("Training sequence from file " + setOfPatternsFileName
 					+ " is composed by " + ntotalNumberOfPatterns
@@ -1040,6 +1076,11 @@ public class ContinuousHMMReestimator {
 			// zero accumulators used for reestimating model
 			m_hmm.zeroAccumulators();
 
+			// mixtures changed in last iteration
+			m_diagonalGaussianScorer = new DiagonalGaussianScorer(
+					m_hmm.m_mixturesOfGaussianPDFsBeingReestimated);
+			m_diagonalGaussianScorer.setUseFastLogAdd(m_ouseFastLogAdd);
+
 			int nnumberOfValidPatterns = 0;
 			long ltotalNumberOfFramesInValidPatterns = 0;
 			float flogProbabilityOfAllPatterns = 0.0F;
@@ -1057,7 +1098,7 @@ public class ContinuousHMMReestimator {
 			for (int npatternNumber = 0; npatternNumber < ntotalNumberOfPatterns; npatternNumber++) {
 
 				// update current pattern
-				m_currentPattern = setOfPatterns.getPattern(npatternNumber);
+				m_currentPattern = setOfPatterns.getPattern(npatternNumber, reader);
 
 				int nobservationLength = m_currentPattern.getNumOfFrames();
 
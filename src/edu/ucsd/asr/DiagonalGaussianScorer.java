@@ -0,0 +1,612 @@
+package edu.ucsd.asr;
+
+/**
+ *  Calculates the log output probabilities of many mixtures of Gaussians
+ *  (e.g. all states of a set of HMMs) for a block of frames. The parameters
+ *  of all diagonal covariance Gaussians are packed into contiguous arrays
+ *  (means, inverted variances, denominator factors and log weights), such
+ *  that the inner loop does not allocate memory nor dereference objects.
+ *  The loop over frames is inside the loop over Gaussians, so the parameters
+ *  of a Gaussian are reused for all frames of the block, and the partial
+ *  results of the frames are kept in contiguous rows (one per thread) that
+ *  are copied to the column of the mixture only once.
+ *  As in MixtureOfGaussianPDFs.calculateLogProbability(), the Gaussians with
+ *  weight smaller than MixtureOfGaussianPDFs.m_fMINIMUM_LOG_WEIGHT are
+ *  discarded, but the others are not added one by one with
+ *  LogDomainCalculator.add() (an exp() and a log() per Gaussian): the
+ *  result is max + log(sum of exp(z - max)) over the weighted log
+ *  probabilities z of the Gaussians, with the maximum updated as they are
+ *  visited, so there is only one log() per mixture. The result is the same
+ *  up to the float rounding (the Gaussians' values are exactly the same).
+ *  With setUseFastLogAdd(true), the Gaussians are added one by one with
+ *  FastLogDomainCalculator instead. Mixtures with Gaussians that do not
+ *  have diagonal covariance matrices are not packed and are calculated by
+ *  the mixture object itself.
+ *  The object keeps a copy of the parameters and must be recreated after
+ *  the mixtures are modified (e.g. reestimated). It can be shared by
+ *  concurrent threads if areAllMixturesPacked() is true (the mixture objects
+ *  keep the last calculated probability and are not thread-safe).
+ */
+public final class DiagonalGaussianScorer {
+
+  private final int m_nspaceDimension;
+
+  /**
+   *  Gaussians of mixture m are m_nfirstGaussian[m] <= g < m_nfirstGaussian[m+1].
+   *  The packed parameters are package-private because they are also read
+   *  by GaussianSelector.
+   */
+  final int[] m_nfirstGaussian;
+
+  /**
+   *  Index of each packed Gaussian in its mixture.
+   */
+  private final int[] m_ngaussianIndexInMixture;
+
+  /**
+   *  Organized as (number of packed Gaussians) x (space dimension).
+   */
+  final float[] m_fmeans;
+  final float[] m_fvariancesInverted;
+
+  final float[] m_fdenominatorFactors;
+  final float[] m_flogWeights;
+
+  /**
+   *  Non-null only for the mixtures that could not be packed.
+   */
+  private final MixtureOfGaussianPDFs[] m_mixturesNotPacked;
+
+  /**
+   *  Used only when created with createForHMMs().
+   */
+  private ContinuousHMM[] m_continuousHMMs;
+  private int[] m_nfirstMixtureOfHMM;
+
+  /**
+   *  Used only when created with createForSetOfSharedHMMs().
+   */
+  private SetOfSharedContinuousHMMs m_setOfSharedContinuousHMMs;
+
+  /**
+   *  If true, the Gaussians are added with FastLogDomainCalculator.
+   */
+  private boolean m_ouseFastLogAdd;
+
+  /**
+   *  If not null, calculateLogProbabilities() of a block of frames
+   *  evaluates only the Gaussians in the shortlists of this object.
+   */
+  private GaussianSelector m_gaussianSelector;
+
+  /**
+   *  Codewords of the frames of a block (see calculateLogProbabilities()),
+   *  reused across calls. One buffer per thread, because the object can be
+   *  shared by concurrent threads.
+   */
+  private final ThreadLocal m_ncodewordsWorkspace = new ThreadLocal();
+
+  /**
+   *  Rows used by the block methods (see Workspace), one per thread.
+   */
+  private final ThreadLocal m_workspace = new ThreadLocal();
+
+  /**
+   *  Contiguous rows, indexed by frame, with the partial results of the
+   *  mixture being calculated: its log probability and, when the Gaussians
+   *  are added as max + log(sum), the maximum and the sum.
+   */
+  private static final class Workspace {
+    float[] m_flogProbabilities = new float[0];
+    float[] m_fmaxima = new float[0];
+    double[] m_dsums = new double[0];
+  }
+
+  public DiagonalGaussianScorer(MixtureOfGaussianPDFs[] mixturesOfGaussianPDFs) {
+    int nnumberOfMixtures = mixturesOfGaussianPDFs.length;
+    m_nspaceDimension = mixturesOfGaussianPDFs[0].getSpaceDimension();
+    m_mixturesNotPacked = new MixtureOfGaussianPDFs[nnumberOfMixtures];
+    //getGaussians() also works for MixtureOfGaussianPDFsBeingReestimated
+    GaussianPDF[][] gaussianPDFs = new GaussianPDF[nnumberOfMixtures][];
+    int nnumberOfGaussians = 0;
+    for (int m = 0; m < nnumberOfMixtures; m++) {
+      MixtureOfGaussianPDFs mixture = mixturesOfGaussianPDFs[m];
+      if (mixture.getSpaceDimension() != m_nspaceDimension) {
+        End.throwError("Mixture " + m + " has dimension " +
+                       mixture.getSpaceDimension() + " instead of " +
+                       m_nspaceDimension);
+      }
+      gaussianPDFs[m] = mixture.getGaussians();
+      if (!isDiagonal(gaussianPDFs[m])) {
+        m_mixturesNotPacked[m] = mixture;
+        continue;
+      }
+      for (int i = 0; i < gaussianPDFs[m].length; i++) {
+        if (mixture.m_flogWeights[i] > MixtureOfGaussianPDFs.m_fMINIMUM_LOG_WEIGHT) {
+          nnumberOfGaussians++;
+        }
+      }
+    }
+
+    m_nfirstGaussian = new int[nnumberOfMixtures + 1];
+    m_ngaussianIndexInMixture = new int[nnumberOfGaussians];
+    m_fmeans = new float[nnumberOfGaussians * m_nspaceDimension];
+    m_fvariancesInverted = new float[nnumberOfGaussians * m_nspaceDimension];
+    m_fdenominatorFactors = new float[nnumberOfGaussians];
+    m_flogWeights = new float[nnumberOfGaussians];
+    int g = 0;
+    for (int m = 0; m < nnumberOfMixtures; m++) {
+      m_nfirstGaussian[m] = g;
+      if (m_mixturesNotPacked[m] != null) {
+        continue;
+      }
+      MixtureOfGaussianPDFs mixture = mixturesOfGaussianPDFs[m];
+      for (int i = 0; i < gaussianPDFs[m].length; i++) {
+        if (mixture.m_flogWeights[i] > MixtureOfGaussianPDFs.m_fMINIMUM_LOG_WEIGHT) {
+          DiagonalCovarianceGaussianPDF gaussian = (DiagonalCovarianceGaussianPDF)
+              gaussianPDFs[m][i];
+          System.arraycopy(gaussian.m_fmean, 0, m_fmeans,
+                           g * m_nspaceDimension, m_nspaceDimension);
+          System.arraycopy(gaussian.m_fvariancesInverted, 0, m_fvariancesInverted,
+                           g * m_nspaceDimension, m_nspaceDimension);
+          m_fdenominatorFactors[g] = gaussian.m_fdenominatorFactor;
+          m_flogWeights[g] = mixture.m_flogWeights[i];
+          m_ngaussianIndexInMixture[g] = i;
+          g++;
+        }
+      }
+    }
+    m_nfirstGaussian[nnumberOfMixtures] = g;
+  }
+
+  /**
+   *  Pack the mixtures of all emitting states of the given HMMs. The mixture
+   *  of state s (s = 1 is the first emitting state) of HMM h corresponds to
+   *  column getFirstMixtureOfHMM(h) + s - 1 of the matrix of log output
+   *  probabilities.
+   */
+  public static DiagonalGaussianScorer createForHMMs(ContinuousHMM[] continuousHMMs) {
+    int[] nfirstMixtureOfHMM = new int[continuousHMMs.length + 1];
+    for (int h = 0; h < continuousHMMs.length; h++) {
+      nfirstMixtureOfHMM[h + 1] = nfirstMixtureOfHMM[h] +
+          continuousHMMs[h].m_mixturesOfGaussianPDFs.length;
+    }
+    MixtureOfGaussianPDFs[] mixturesOfGaussianPDFs =
+        new MixtureOfGaussianPDFs[nfirstMixtureOfHMM[continuousHMMs.length]];
+    for (int h = 0; h < continuousHMMs.length; h++) {
+      System.arraycopy(continuousHMMs[h].m_mixturesOfGaussianPDFs, 0,
+                       mixturesOfGaussianPDFs, nfirstMixtureOfHMM[h],
+                       continuousHMMs[h].m_mixturesOfGaussianPDFs.length);
+    }
+    DiagonalGaussianScorer diagonalGaussianScorer =
+        new DiagonalGaussianScorer(mixturesOfGaussianPDFs);
+    diagonalGaussianScorer.m_continuousHMMs = continuousHMMs;
+    diagonalGaussianScorer.m_nfirstMixtureOfHMM = nfirstMixtureOfHMM;
+    return diagonalGaussianScorer;
+  }
+
+  /**
+   *  Pack the (shared) mixtures of a SetOfSharedContinuousHMMs. The index of
+   *  a mixture is the same used by the set, e.g. in
+   *  SetOfSharedContinuousHMMs.getStateIndices(), such that a mixture shared
+   *  by many physical HMMs is calculated only once per frame.
+   */
+  public static DiagonalGaussianScorer createForSetOfSharedHMMs(
+      SetOfSharedContinuousHMMs setOfSharedContinuousHMMs) {
+    DiagonalGaussianScorer diagonalGaussianScorer =
+        new DiagonalGaussianScorer(setOfSharedContinuousHMMs.
+                                   m_mixturesOfGaussianPDFs);
+    diagonalGaussianScorer.m_setOfSharedContinuousHMMs =
+        setOfSharedContinuousHMMs;
+    return diagonalGaussianScorer;
+  }
+
+  /**
+   *  Choose between max + log(sum) (default) and the table-driven addition
+   *  of the Gaussians of the packed mixtures. It must not be called while
+   *  other threads are using this object.
+   */
+  public void setUseFastLogAdd(boolean ouseFastLogAdd) {
+    m_ouseFastLogAdd = ouseFastLogAdd;
+  }
+
+  public boolean isUsingFastLogAdd() {
+    return m_ouseFastLogAdd;
+  }
+
+  /**
+   *  Use Gaussian selection in calculateLogProbabilities() of a block of
+   *  frames (the method used by ViterbiWorkspace). The other methods always
+   *  evaluate all Gaussians. Use null to disable it. It must not be called
+   *  while other threads are using this object.
+   */
+  public void setGaussianSelector(GaussianSelector gaussianSelector) {
+    if (gaussianSelector != null && !gaussianSelector.wasCreatedFrom(this)) {
+      End.throwError("GaussianSelector was created for another " +
+                     "DiagonalGaussianScorer");
+    }
+    m_gaussianSelector = gaussianSelector;
+  }
+
+  public GaussianSelector getGaussianSelector() {
+    return m_gaussianSelector;
+  }
+
+  private Workspace getWorkspace(int nnumberOfFrames) {
+    Workspace workspace = (Workspace) m_workspace.get();
+    if (workspace == null) {
+      workspace = new Workspace();
+      m_workspace.set(workspace);
+    }
+    if (workspace.m_fmaxima.length < nnumberOfFrames) {
+      workspace.m_flogProbabilities = new float[nnumberOfFrames];
+      workspace.m_fmaxima = new float[nnumberOfFrames];
+      workspace.m_dsums = new double[nnumberOfFrames];
+    }
+    return workspace;
+  }
+
+  /**
+   *  Returns log(dsum) + fmaximum, where dsum is the sum of exp(z - fmaximum)
+   *  for the weighted log probabilities z of the Gaussians, and fmaximum the
+   *  largest z (LogDomainCalculator.m_fLOG_DOMAIN_ZERO if there is none).
+   */
+  private static float getLogOfSum(float fmaximum, double dsum) {
+    if (fmaximum < LogDomainCalculator.m_fSMALL_NUMBER) {
+      //as LogDomainCalculator.add(), which does not go below zero
+      return LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+    }
+    return (float) (fmaximum + Math.log(dsum));
+  }
+
+  private static boolean isDiagonal(GaussianPDF[] gaussianPDFs) {
+    for (int i = 0; i < gaussianPDFs.length; i++) {
+      if (! (gaussianPDFs[i] instanceof DiagonalCovarianceGaussianPDF)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   *  Returns true if this object was created by createForHMMs() with the
+   *  given array (the same reference).
+   */
+  public boolean wasCreatedFrom(ContinuousHMM[] continuousHMMs) {
+    return m_continuousHMMs == continuousHMMs;
+  }
+
+  /**
+   *  Returns true if this object was created by createForSetOfSharedHMMs()
+   *  with the given set (the same reference).
+   */
+  public boolean wasCreatedFrom(SetOfSharedContinuousHMMs
+                                setOfSharedContinuousHMMs) {
+    return m_setOfSharedContinuousHMMs == setOfSharedContinuousHMMs;
+  }
+
+  /**
+   *  Returns the HMMs given to createForHMMs() or null if this object was
+   *  created otherwise.
+   */
+  public ContinuousHMM[] getHMMs() {
+    return m_continuousHMMs;
+  }
+
+  public int getFirstMixtureOfHMM(int nhmmIndex) {
+    return m_nfirstMixtureOfHMM[nhmmIndex];
+  }
+
+  public int getNumberOfMixtures() {
+    return m_mixturesNotPacked.length;
+  }
+
+  /**
+   *  Returns true if the output probabilities of all mixtures are calculated
+   *  from the packed parameters, without using the mixture objects.
+   */
+  public boolean areAllMixturesPacked() {
+    for (int m = 0; m < m_mixturesNotPacked.length; m++) {
+      if (m_mixturesNotPacked[m] != null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public int getNumberOfPackedGaussians() {
+    return m_flogWeights.length;
+  }
+
+  public int getSpaceDimension() {
+    return m_nspaceDimension;
+  }
+
+  /**
+   *  Calculate the log output probability of frames
+   *  nfirstFrame, ..., nfirstFrame + nnumberOfFrames - 1 for all mixtures with
+   *  oactiveMixtures[m] true (all mixtures if oactiveMixtures is null). The
+   *  result for frame nfirstFrame + t and mixture m is stored in
+   *  flogOutputProbabilities[t][m], which is allocated if null or too small.
+   *  Inactive mixtures get LogDomainCalculator.m_fLOG_DOMAIN_ZERO.
+   *
+   *@return  flogOutputProbabilities or the new matrix
+   */
+  public float[][] calculateLogProbabilities(float[][] fframes, int nfirstFrame,
+                                             int nnumberOfFrames,
+                                             boolean[] oactiveMixtures,
+                                             float[][] flogOutputProbabilities) {
+    int nnumberOfMixtures = getNumberOfMixtures();
+    if (flogOutputProbabilities == null ||
+        flogOutputProbabilities.length < nnumberOfFrames ||
+        (nnumberOfFrames > 0 &&
+         flogOutputProbabilities[0].length < nnumberOfMixtures)) {
+      flogOutputProbabilities = new float[nnumberOfFrames][nnumberOfMixtures];
+    }
+    int[] ncodewords = null;
+    if (m_gaussianSelector != null) {
+      ncodewords = (int[]) m_ncodewordsWorkspace.get();
+      if (ncodewords == null || ncodewords.length < nnumberOfFrames) {
+        ncodewords = new int[nnumberOfFrames];
+        m_ncodewordsWorkspace.set(ncodewords);
+      }
+      for (int t = 0; t < nnumberOfFrames; t++) {
+        ncodewords[t] = m_gaussianSelector.findCodeword(fframes[nfirstFrame + t]);
+      }
+    }
+    long lnumberOfEvaluatedGaussians = 0;
+    long lnumberOfGaussians = 0;
+    for (int m = 0; m < nnumberOfMixtures; m++) {
+      if (oactiveMixtures == null || oactiveMixtures[m]) {
+        if (ncodewords != null && m_mixturesNotPacked[m] == null) {
+          lnumberOfEvaluatedGaussians += calculateSelectedLogProbabilities(m,
+              fframes, nfirstFrame, nnumberOfFrames, flogOutputProbabilities,
+              ncodewords);
+          lnumberOfGaussians += ( (long) nnumberOfFrames) *
+              (m_nfirstGaussian[m + 1] - m_nfirstGaussian[m]);
+        }
+        else {
+          calculateLogProbabilities(m, fframes, nfirstFrame, nnumberOfFrames,
+                                    flogOutputProbabilities, m);
+        }
+      }
+      else {
+        for (int t = 0; t < nnumberOfFrames; t++) {
+          flogOutputProbabilities[t][m] = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+        }
+      }
+    }
+    if (ncodewords != null) {
+      m_gaussianSelector.addStatistics(lnumberOfEvaluatedGaussians,
+                                       lnumberOfGaussians);
+    }
+    return flogOutputProbabilities;
+  }
+
+  /**
+   *  Same as calculatePackedLogProbabilities(), but adding only the
+   *  Gaussians in the shortlist of the codeword of each frame, and with the
+   *  result limited to be at least the floor of the GaussianSelector.
+   *
+   *@return  number of evaluated Gaussians
+   */
+  private int calculateSelectedLogProbabilities(int nmixture, float[][] fframes,
+                                                int nfirstFrame,
+                                                int nnumberOfFrames,
+                                                float[][] flogOutputProbabilities,
+                                                int[] ncodewords) {
+    int nD = m_nspaceDimension;
+    float[] fmeans = m_fmeans;
+    float[] fvariancesInverted = m_fvariancesInverted;
+    float flogFloor = m_gaussianSelector.m_flogFloor;
+    int nnumberOfEvaluatedGaussians = 0;
+    for (int t = 0; t < nnumberOfFrames; t++) {
+      float[] x = fframes[nfirstFrame + t];
+      int[] nshortlist = m_gaussianSelector.m_nshortlists[ncodewords[t]];
+      int[] nfirstInShortlist = m_gaussianSelector.m_nfirstInShortlist[
+          ncodewords[t]];
+      int nlast = nfirstInShortlist[nmixture + 1];
+      float flogProbability = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+      float fmaximum = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+      double dsum = 0;
+      for (int i = nfirstInShortlist[nmixture]; i < nlast; i++) {
+        int g = nshortlist[i];
+        int noffset = g * nD;
+        float fsum = 0;
+        for (int k = 0; k < nD; k++) {
+          float fdifference = x[k] - fmeans[noffset + k];
+          fsum += fdifference * fdifference * fvariancesInverted[noffset + k];
+        }
+        float z = -0.5F * fsum - m_fdenominatorFactors[g];
+        if (Float.isNaN(z)) {
+          z = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+        }
+        else if (Float.isInfinite(z)) {
+          z = (z > 0) ? Float.MAX_VALUE : LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+        }
+        z += m_flogWeights[g];
+        if (m_ouseFastLogAdd) {
+          flogProbability = FastLogDomainCalculator.add(flogProbability, z);
+        }
+        else if (z > fmaximum) {
+          dsum = dsum * Math.exp(fmaximum - z) + 1.0;
+          fmaximum = z;
+        }
+        else {
+          dsum += Math.exp(z - fmaximum);
+        }
+      }
+      if (!m_ouseFastLogAdd) {
+        flogProbability = getLogOfSum(fmaximum, dsum);
+      }
+      nnumberOfEvaluatedGaussians += nlast - nfirstInShortlist[nmixture];
+      flogOutputProbabilities[t][nmixture] = (flogProbability < flogFloor) ?
+          flogFloor : flogProbability;
+    }
+    return nnumberOfEvaluatedGaussians;
+  }
+
+  /**
+   *  Calculate the log output probability of the first nnumberOfFrames frames
+   *  for a single mixture, storing it in flogOutputProbabilities[t]. If
+   *  flogProbabilityForEachGaussian is not null, the log probability of the
+   *  i-th Gaussian of the mixture (without the weight) is stored in
+   *  flogProbabilityForEachGaussian[t][i], as in
+   *  MixtureOfGaussianPDFs.calculateIndividualProbabilities(). The values
+   *  of discarded Gaussians are not modified.
+   */
+  public void calculateLogProbabilities(int nmixture, float[][] fframes,
+                                        int nnumberOfFrames,
+                                        float[] flogOutputProbabilities,
+                                        float[][] flogProbabilityForEachGaussian) {
+    if (m_mixturesNotPacked[nmixture] != null) {
+      MixtureOfGaussianPDFs mixture = m_mixturesNotPacked[nmixture];
+      for (int t = 0; t < nnumberOfFrames; t++) {
+        float[] findividualAndTotalProbabilities =
+            mixture.calculateIndividualProbabilities(fframes[t], t);
+        int nnumberOfGaussians = findividualAndTotalProbabilities.length - 1;
+        flogOutputProbabilities[t] = findividualAndTotalProbabilities[nnumberOfGaussians];
+        if (flogProbabilityForEachGaussian != null) {
+          System.arraycopy(findividualAndTotalProbabilities, 0,
+                           flogProbabilityForEachGaussian[t], 0,
+                           nnumberOfGaussians);
+        }
+      }
+      return;
+    }
+    calculatePackedLogProbabilities(nmixture, fframes, 0, nnumberOfFrames,
+                                    flogOutputProbabilities,
+                                    flogProbabilityForEachGaussian);
+  }
+
+  /**
+   *  Calculate the log output probability of a single frame for a single
+   *  mixture, which is useful when only some mixtures are needed for each
+   *  frame (e.g. when states are pruned by a beam).
+   */
+  public float calculateLogProbability(int nmixture, float[] fframe) {
+    if (m_mixturesNotPacked[nmixture] != null) {
+      return m_mixturesNotPacked[nmixture].calculateLogProbability(fframe, -1);
+    }
+    int nD = m_nspaceDimension;
+    float flogProbability = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+    float fmaximum = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+    double dsum = 0;
+    int nlastGaussian = m_nfirstGaussian[nmixture + 1];
+    for (int g = m_nfirstGaussian[nmixture]; g < nlastGaussian; g++) {
+      int noffset = g * nD;
+      float fsum = 0;
+      for (int k = 0; k < nD; k++) {
+        float fdifference = fframe[k] - m_fmeans[noffset + k];
+        fsum += fdifference * fdifference * m_fvariancesInverted[noffset + k];
+      }
+      float z = -0.5F * fsum - m_fdenominatorFactors[g];
+      if (Float.isNaN(z)) {
+        z = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+      }
+      else if (Float.isInfinite(z)) {
+        z = (z > 0) ? Float.MAX_VALUE : LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+      }
+      z += m_flogWeights[g];
+      if (m_ouseFastLogAdd) {
+        flogProbability = FastLogDomainCalculator.add(flogProbability, z);
+      }
+      else if (z > fmaximum) {
+        dsum = dsum * Math.exp(fmaximum - z) + 1.0;
+        fmaximum = z;
+      }
+      else {
+        dsum += Math.exp(z - fmaximum);
+      }
+    }
+    return m_ouseFastLogAdd ? flogProbability : getLogOfSum(fmaximum, dsum);
+  }
+
+  private void calculateLogProbabilities(int nmixture, float[][] fframes,
+                                         int nfirstFrame, int nnumberOfFrames,
+                                         float[][] flogOutputProbabilities,
+                                         int ncolumn) {
+    if (m_mixturesNotPacked[nmixture] != null) {
+      MixtureOfGaussianPDFs mixture = m_mixturesNotPacked[nmixture];
+      for (int t = 0; t < nnumberOfFrames; t++) {
+        flogOutputProbabilities[t][ncolumn] = mixture.calculateLogProbability(
+            fframes[nfirstFrame + t], -1);
+      }
+      return;
+    }
+    //the frames are accumulated in a contiguous row, not in the column
+    float[] frow = getWorkspace(nnumberOfFrames).m_flogProbabilities;
+    calculatePackedLogProbabilities(nmixture, fframes, nfirstFrame,
+                                    nnumberOfFrames, frow, null);
+    for (int t = 0; t < nnumberOfFrames; t++) {
+      flogOutputProbabilities[t][ncolumn] = frow[t];
+    }
+  }
+
+  /**
+   *  The output goes to frow[t], t = 0, ..., nnumberOfFrames - 1.
+   */
+  private void calculatePackedLogProbabilities(int nmixture, float[][] fframes,
+                                               int nfirstFrame,
+                                               int nnumberOfFrames,
+                                               float[] frow,
+                                               float[][] flogProbabilityForEachGaussian) {
+    int nD = m_nspaceDimension;
+    float[] fmeans = m_fmeans;
+    float[] fvariancesInverted = m_fvariancesInverted;
+    boolean ouseFastLogAdd = m_ouseFastLogAdd;
+    Workspace workspace = getWorkspace(nnumberOfFrames);
+    float[] fmaxima = workspace.m_fmaxima;
+    double[] dsums = workspace.m_dsums;
+
+    for (int t = 0; t < nnumberOfFrames; t++) {
+      frow[t] = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+      fmaxima[t] = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+      dsums[t] = 0;
+    }
+    int nlastGaussian = m_nfirstGaussian[nmixture + 1];
+    for (int g = m_nfirstGaussian[nmixture]; g < nlastGaussian; g++) {
+      int noffset = g * nD;
+      float fdenominatorFactor = m_fdenominatorFactors[g];
+      float flogWeight = m_flogWeights[g];
+      int ngaussianIndex = m_ngaussianIndexInMixture[g];
+      for (int t = 0; t < nnumberOfFrames; t++) {
+        float[] x = fframes[nfirstFrame + t];
+        //same operations (and order) of DiagonalCovarianceGaussianPDF
+        float fsum = 0;
+        for (int k = 0; k < nD; k++) {
+          float fdifference = x[k] - fmeans[noffset + k];
+          fsum += fdifference * fdifference * fvariancesInverted[noffset + k];
+        }
+        float z = -0.5F * fsum - fdenominatorFactor;
+        //same clipping of GaussianPDF.calculateLogProbability()
+        if (Float.isNaN(z)) {
+          z = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+        }
+        else if (Float.isInfinite(z)) {
+          z = (z > 0) ? Float.MAX_VALUE : LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+        }
+        if (flogProbabilityForEachGaussian != null) {
+          flogProbabilityForEachGaussian[t][ngaussianIndex] = z;
+        }
+        z += flogWeight;
+        if (ouseFastLogAdd) {
+          frow[t] = FastLogDomainCalculator.add(frow[t], z);
+        }
+        else if (z > fmaxima[t]) {
+          dsums[t] = dsums[t] * Math.exp(fmaxima[t] - z) + 1.0;
+          fmaxima[t] = z;
+        }
+        else {
+          dsums[t] += Math.exp(z - fmaxima[t]);
+        }
+      }
+    }
+    if (!ouseFastLogAdd) {
+      for (int t = 0; t < nnumberOfFrames; t++) {
+        frow[t] = getLogOfSum(fmaxima[t], dsums[t]);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,98 @@
+package edu.ucsd.asr;
+
+/**
+ *  Table-driven alternative to LogDomainCalculator.add(). The correction
+ *  term log(1 + exp(-d)), where d >= 0 is the difference between the
+ *  largest and smallest arguments, is read from a table with
+ *  m_nSAMPLES_PER_UNIT samples per unit of d in [0, m_dMAXIMUM_DIFFERENCE)
+ *  and linearly interpolated, avoiding the calls to exp() and log().
+ *  For d >= m_dMAXIMUM_DIFFERENCE the correction is ignored.
+ *  <p>
+ *  Maximum absolute error of the result, compared to the exact add():
+ *  the interpolation error is bounded by h^2/8 * max|f''| = h^2/32 with
+ *  h = 1/512 (about 1.2e-7), and ignoring the correction for d >= 17 causes
+ *  an error of at most exp(-17) (about 4.1e-8). The error measured over
+ *  the whole range is about 1.2e-7 for double (see debug.LogAddBenchmark),
+ *  while the float version also has the float rounding of the result
+ *  (e.g. 3e-5 when the arguments are around -500).
+ *  These errors are much smaller than the ones that the float HMM
+ *  parameters already impose on the log probabilities.
+ *  <p>
+ *  LOG_DOMAIN_ZERO and SMALL_NUMBER have the same meaning as in
+ *  LogDomainCalculator.
+ */
+public final class FastLogDomainCalculator {
+
+  public static final double m_dMAXIMUM_DIFFERENCE = 17.0;
+  public static final int m_nSAMPLES_PER_UNIT = 512;
+
+  private static final int m_nTABLE_SIZE = (int) (m_dMAXIMUM_DIFFERENCE *
+                                                  m_nSAMPLES_PER_UNIT) + 1;
+
+  /**
+   *  log(1 + exp(-i / m_nSAMPLES_PER_UNIT)). The extra sample allows the
+   *  interpolation to read position i + 1 for any d < m_dMAXIMUM_DIFFERENCE.
+   */
+  private static final double[] m_dtable = new double[m_nTABLE_SIZE + 1];
+  private static final float[] m_ftable = new float[m_nTABLE_SIZE + 1];
+
+  static {
+    for (int i = 0; i < m_dtable.length; i++) {
+      m_dtable[i] = Math.log(1.0 + Math.exp( -( (double) i) /
+                                            m_nSAMPLES_PER_UNIT));
+      m_ftable[i] = (float) m_dtable[i];
+    }
+  }
+
+  private FastLogDomainCalculator() {
+  }
+
+  /**
+   *  Returns log(exp(x) + exp(y)).
+   */
+  public static double add(double x, double y) {
+    double dmax;
+    double ddifference;
+    if (x > y) {
+      dmax = x;
+      ddifference = x - y;
+    }
+    else {
+      dmax = y;
+      ddifference = y - x;
+    }
+    if (ddifference >= m_dMAXIMUM_DIFFERENCE) {
+      return (dmax < LogDomainCalculator.m_fSMALL_NUMBER) ?
+          LogDomainCalculator.m_fLOG_DOMAIN_ZERO : dmax;
+    }
+    double dposition = ddifference * m_nSAMPLES_PER_UNIT;
+    int i = (int) dposition;
+    double dfraction = dposition - i;
+    return dmax + m_dtable[i] + dfraction * (m_dtable[i + 1] - m_dtable[i]);
+  }
+
+  /**
+   *  Returns log(exp(x) + exp(y)), using float arithmetic.
+   */
+  public static float add(float x, float y) {
+    float fmax;
+    float fdifference;
+    if (x > y) {
+      fmax = x;
+      fdifference = x - y;
+    }
+    else {
+      fmax = y;
+      fdifference = y - x;
+    }
+    if (fdifference >= m_dMAXIMUM_DIFFERENCE) {
+      return (fmax < LogDomainCalculator.m_fSMALL_NUMBER) ?
+          LogDomainCalculator.m_fLOG_DOMAIN_ZERO : fmax;
+    }
+    float fposition = fdifference * m_nSAMPLES_PER_UNIT;
+    int i = (int) fposition;
+    float ffraction = fposition - i;
+    return fmax + m_ftable[i] + ffraction * (m_ftable[i + 1] - m_ftable[i]);
+  }
+
+}
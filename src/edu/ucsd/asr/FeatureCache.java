@@ -0,0 +1,333 @@
+package edu.ucsd.asr;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ *  On-disk cache of the Patterns calculated by the front end. Each entry is
+ *  a file named by a Key, a SHA-1 hash of the front end properties (see
+ *  FrontEndProperties) and of the audio samples, such that a WAV file or
+ *  front end that changed can never be served a stale entry. When the cache is larger than its
+ *  maximum size, evict() deletes the least recently used entries (a hit
+ *  updates the modification time of the entry).
+ *  The methods can be called by concurrent threads: an entry is written to
+ *  a temporary file and then renamed.
+ */
+public class FeatureCache {
+
+  public static final String m_FILE_EXTENSION = "FCE";
+
+  private static final int m_nMAGIC_NUMBER = 0x31454346; //"FCE1"
+  private static final int m_nVERSION = 1;
+
+  /**
+   *  After eviction, the cache has at most this fraction of its maximum
+   *  size, to avoid evicting at every call.
+   */
+  private static final double m_dSIZE_FRACTION_AFTER_EVICTION = 0.9;
+
+  private final File m_directory;
+  private final long m_lmaximumSizeInBytes;
+
+  private int m_nnumberOfHits;
+  private int m_nnumberOfMisses;
+  private int m_nnumberOfEvictedEntries;
+  private int m_nnumberOfTemporaryFiles;
+
+  /**
+   *  Patterns of an entry and the percentage of invalid Patterns (segments
+   *  too short for the front end) when they were calculated.
+   */
+  public static class Entry {
+    public Pattern[] m_patterns;
+    public double m_dpercentageOfInvalidPatterns;
+  }
+
+  /**
+   *  Identifies an entry. It is created with the properties of the
+   *  PatternGenerator and then everything that determines the Patterns
+   *  (audio, segment boundaries) must be added.
+   */
+  public static class Key {
+
+    private MessageDigest m_messageDigest;
+    private String m_hash;
+
+    /**
+     *@param  headerProperties  properties used to create the PatternGenerator
+     */
+    public Key(HeaderProperties headerProperties) {
+      try {
+        m_messageDigest = MessageDigest.getInstance("SHA-1");
+      }
+      catch (NoSuchAlgorithmException e) {
+        End.throwError("SHA-1 is not available: " + e.getMessage());
+      }
+      add(m_FILE_EXTENSION + m_nVERSION);
+      add(FrontEndProperties.getProperties(headerProperties));
+    }
+
+    public void add(String string) {
+      try {
+        byte[] bytes = string.getBytes("UTF-8");
+        addLength(bytes.length);
+        m_messageDigest.update(bytes);
+      }
+      catch (UnsupportedEncodingException e) {
+        End.throwError("UTF-8 is not supported");
+      }
+    }
+
+    public void add(Audio audio) {
+      add(audio.getAudioFormat().toString());
+      byte[] bytes = audio.getAudioDataAsBytes();
+      addLength(bytes.length);
+      m_messageDigest.update(bytes);
+    }
+
+    /**
+     *  The lengths avoid that different sequences of strings and audio
+     *  have the same concatenation.
+     */
+    private void addLength(int nlength) {
+      m_messageDigest.update( (byte) (nlength >>> 24));
+      m_messageDigest.update( (byte) (nlength >>> 16));
+      m_messageDigest.update( (byte) (nlength >>> 8));
+      m_messageDigest.update( (byte) nlength);
+    }
+
+    /**
+     *  Hash in hexadecimal. Nothing can be added after this method is
+     *  called.
+     */
+    public String toString() {
+      if (m_hash == null) {
+        byte[] digest = m_messageDigest.digest();
+        StringBuffer stringBuffer = new StringBuffer(2 * digest.length);
+        for (int i = 0; i < digest.length; i++) {
+          stringBuffer.append(Character.forDigit( (digest[i] >> 4) & 0xF, 16));
+          stringBuffer.append(Character.forDigit(digest[i] & 0xF, 16));
+        }
+        m_hash = stringBuffer.toString();
+      }
+      return m_hash;
+    }
+  }
+
+  /**
+   *@param  directory            directory of the cache, created if necessary
+   *@param  lmaximumSizeInBytes  maximum total size of the entries
+   */
+  public FeatureCache(String directory, long lmaximumSizeInBytes) {
+    m_directory = new File(directory);
+    m_lmaximumSizeInBytes = lmaximumSizeInBytes;
+    if (!m_directory.isDirectory() && !m_directory.mkdirs()) {
+      End.throwError("Could not create directory " + directory +
+                     " for the feature cache");
+    }
+  }
+
+  private File getFile(Key key) {
+    return new File(m_directory, key.toString() + "." + m_FILE_EXTENSION);
+  }
+
+  /**
+   *  Returns null if the entry is not in the cache (or could not be read).
+   */
+  public Entry get(Key key) {
+    File file = getFile(key);
+    if (!file.exists()) {
+      incrementMisses();
+      return null;
+    }
+    Entry entry = null;
+    DataInputStream dataInputStream = null;
+    try {
+      dataInputStream = new DataInputStream(new BufferedInputStream(new
+          FileInputStream(file), 1 << 16));
+      entry = read(dataInputStream);
+    }
+    catch (IOException e) {
+      //corrupted or evicted while reading
+      entry = null;
+    }
+    finally {
+      if (dataInputStream != null) {
+        try {
+          dataInputStream.close();
+        }
+        catch (IOException e) {
+        }
+      }
+    }
+    if (entry == null) {
+      file.delete();
+      incrementMisses();
+      return null;
+    }
+    //most recently used
+    file.setLastModified(System.currentTimeMillis());
+    synchronized (this) {
+      m_nnumberOfHits++;
+    }
+    return entry;
+  }
+
+  private synchronized void incrementMisses() {
+    m_nnumberOfMisses++;
+  }
+
+  private static Entry read(DataInputStream dataInputStream) throws
+      IOException {
+    if (dataInputStream.readInt() != m_nMAGIC_NUMBER ||
+        dataInputStream.readInt() != m_nVERSION) {
+      return null;
+    }
+    Entry entry = new Entry();
+    entry.m_dpercentageOfInvalidPatterns = dataInputStream.readDouble();
+    int nnumberOfPatterns = dataInputStream.readInt();
+    int nspaceDimension = dataInputStream.readInt();
+    entry.m_patterns = new Pattern[nnumberOfPatterns];
+    for (int i = 0; i < nnumberOfPatterns; i++) {
+      int nnumberOfFrames = dataInputStream.readInt();
+      float[][] fparameters = new float[nnumberOfFrames][nspaceDimension];
+      for (int t = 0; t < nnumberOfFrames; t++) {
+        for (int k = 0; k < nspaceDimension; k++) {
+          fparameters[t][k] = dataInputStream.readFloat();
+        }
+      }
+      entry.m_patterns[i] = new Pattern(fparameters);
+    }
+    return entry;
+  }
+
+  /**
+   *  Add an entry to the cache. Errors are reported but do not stop the
+   *  caller, because the Patterns were already calculated.
+   */
+  public void put(Key key, Pattern[] patterns,
+                  double dpercentageOfInvalidPatterns) {
+    File file = getFile(key);
+    File temporaryFile;
+    synchronized (this) {
+      temporaryFile = new File(m_directory, key.toString() + "." +
+                               (m_nnumberOfTemporaryFiles++) + ".tmp");
+    }
+    try {
+      DataOutputStream dataOutputStream = new DataOutputStream(new
+          BufferedOutputStream(new FileOutputStream(temporaryFile), 1 << 16));
+      try {
+        dataOutputStream.writeInt(m_nMAGIC_NUMBER);
+        dataOutputStream.writeInt(m_nVERSION);
+        dataOutputStream.writeDouble(dpercentageOfInvalidPatterns);
+        dataOutputStream.writeInt(patterns.length);
+        int nspaceDimension = (patterns.length == 0) ? 0 :
+            patterns[0].getNumOfParametersPerFrame();
+        dataOutputStream.writeInt(nspaceDimension);
+        for (int i = 0; i < patterns.length; i++) {
+          float[][] fparameters = patterns[i].getParameters();
+          dataOutputStream.writeInt(fparameters.length);
+          for (int t = 0; t < fparameters.length; t++) {
+            for (int k = 0; k < nspaceDimension; k++) {
+              dataOutputStream.writeFloat(fparameters[t][k]);
+            }
+          }
+        }
+      }
+      finally {
+        dataOutputStream.close();
+      }
+      if (!temporaryFile.renameTo(file)) {
+        //another thread wrote the same entry
+        temporaryFile.delete();
+      }
+    }
+    catch (IOException e) {
+      temporaryFile.delete();
+      Print.warning("Could not write " + file + " to feature cache: " +
+                    e.getMessage());
+    }
+  }
+
+  /**
+   *  If the cache is larger than its maximum size, delete the least
+   *  recently used entries.
+   */
+  public synchronized void evict() {
+    File[] files = getEntryFiles();
+    long ltotalSize = 0;
+    for (int i = 0; i < files.length; i++) {
+      ltotalSize += files[i].length();
+    }
+    if (ltotalSize <= m_lmaximumSizeInBytes) {
+      return;
+    }
+    Arrays.sort(files, new Comparator() {
+      public int compare(Object o1, Object o2) {
+        long l1 = ( (File) o1).lastModified();
+        long l2 = ( (File) o2).lastModified();
+        return (l1 < l2) ? -1 : ( (l1 == l2) ? 0 : 1);
+      }
+    });
+    long ltargetSize = (long) (m_dSIZE_FRACTION_AFTER_EVICTION *
+                               m_lmaximumSizeInBytes);
+    for (int i = 0; i < files.length && ltotalSize > ltargetSize; i++) {
+      long lsize = files[i].length();
+      if (files[i].delete()) {
+        ltotalSize -= lsize;
+        m_nnumberOfEvictedEntries++;
+      }
+    }
+  }
+
+  private File[] getEntryFiles() {
+    File[] files = m_directory.listFiles();
+    if (files == null) {
+      return new File[0];
+    }
+    int nnumberOfEntries = 0;
+    for (int i = 0; i < files.length; i++) {
+      if (files[i].getName().endsWith("." + m_FILE_EXTENSION)) {
+        files[nnumberOfEntries++] = files[i];
+      }
+    }
+    File[] entryFiles = new File[nnumberOfEntries];
+    System.arraycopy(files, 0, entryFiles, 0, nnumberOfEntries);
+    return entryFiles;
+  }
+
+  public synchronized int getNumberOfHits() {
+    return m_nnumberOfHits;
+  }
+
+  public synchronized int getNumberOfMisses() {
+    return m_nnumberOfMisses;
+  }
+
+  public synchronized void resetStatistics() {
+    m_nnumberOfHits = 0;
+    m_nnumberOfMisses = 0;
+    m_nnumberOfEvictedEntries = 0;
+  }
+
+  public synchronized String getStatistics() {
+    int ntotal = m_nnumberOfHits + m_nnumberOfMisses;
+    double dhitRate = (ntotal == 0) ? 0.0 : (100.0 * m_nnumberOfHits) / ntotal;
+    return "Feature cache " + m_directory.getPath() + ": " + m_nnumberOfHits +
+        " hits, " + m_nnumberOfMisses + " misses (hit rate = " +
+        IO.format(dhitRate) + "%), " + m_nnumberOfEvictedEntries +
+        " entries evicted";
+  }
+
+}
@@ -0,0 +1,56 @@
+package edu.ucsd.asr;
+
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ *  Properties that determine the Patterns calculated by the front end: all
+ *  the properties of PatternGenerator.getDefaultProperties() for the type in
+ *  PatternGenerator.Type, with the values of a HeaderProperties (or the
+ *  default values, if missing), sorted by name. Unlike the toString() of a
+ *  PatternGenerator, which lists only what each subclass chose to print,
+ *  they include everything read by the constructor of the PatternGenerator.
+ *  The serialized PatternGenerator can not be used instead, because it
+ *  includes buffers that change after each call to getPattern().
+ *  PatternGenerator.Description is not included, because it does not
+ *  change the Patterns.
+ */
+public final class FrontEndProperties {
+
+  private static final String m_TYPE = "PatternGenerator.Type";
+  private static final String m_DESCRIPTION = "PatternGenerator.Description";
+
+  private FrontEndProperties() {
+  }
+
+  /**
+   *  Returns one line "name = value" per property. Two HeaderProperties
+   *  give the same string if and only if they create PatternGenerators with
+   *  the same configuration.
+   */
+  public static String getProperties(HeaderProperties headerProperties) {
+    String type = headerProperties.getProperty(m_TYPE);
+    if (type == null) {
+      End.throwError(m_TYPE + " was not found in current configuration " +
+                     "properties");
+    }
+    HeaderProperties defaultProperties = PatternGenerator.getDefaultProperties(
+        PatternGenerator.Type.getTypeAndExitOnError(type)).
+        getHeaderProperties();
+    Set names = defaultProperties.keySet();
+    String[] sortedNames = (String[]) names.toArray(new String[names.size()]);
+    Arrays.sort(sortedNames);
+    StringBuffer stringBuffer = new StringBuffer();
+    for (int i = 0; i < sortedNames.length; i++) {
+      if (sortedNames[i].equals(m_DESCRIPTION)) {
+        continue;
+      }
+      String value = headerProperties.getProperty(sortedNames[i],
+          defaultProperties.getProperty(sortedNames[i]));
+      stringBuffer.append(sortedNames[i] + " = " + value.trim() +
+                          IO.m_NEW_LINE);
+    }
+    return stringBuffer.toString();
+  }
+
+}
@@ -45,6 +45,30 @@ public class GaussianPDF implements Cloneable, Serializable {
 	 */
 	protected float m_fdenominatorFactor;
 
+	/**
+	 * Cholesky factor R of the inverted covariance matrix S = R * R^t, stored
+	 * as the upper triangular R^t, row by row (element (i,j), j >= i, is at
+	 * i*d - i*(i-1)/2 + j - i). The exponent is then -0.5 * || R^t (x-m) ||^2,
+	 * which takes half the operations of the product by S. Calculated when
+	 * needed, after the inverted covariance matrix changes.
+	 */
+	private transient float[] m_fcholeskyFactor;
+
+	private transient float m_flogDeterminant;
+
+	/**
+	 * True if m_fcholeskyFactor and m_flogDeterminant are up to date.
+	 * m_fcholeskyFactor is null if the matrix is not positive definite.
+	 */
+	private transient boolean m_oisCholeskyFactorUpToDate;
+
+	/**
+	 * Scratch buffers for x-m, one per thread.
+	 */
+	private static final ThreadLocal m_fscratchBuffer = new ThreadLocal();
+
+	private static final ThreadLocal m_dscratchBuffer = new ThreadLocal();
+
 	private static final float m_flogTwoPi;
 
 	private static final float m_ftwoPiSquareRoot;
@@ -168,6 +192,8 @@ public class GaussianPDF implements Cloneable, Serializable {
 	    	   }
 	       }
 	       clipVariancesInverted();
+	       m_oisCholeskyFactorUpToDate = false;
+	       calculateDenominatorFactor();
 	     }
 		//End.throwError("Not yet implemented");
 	}
@@ -181,86 +207,211 @@ public class GaussianPDF implements Cloneable, Serializable {
 	 * Calculate the exponent of Gaussian PDF.
 	 */
 	public float calculateExponent(float[] finputVector) {
-		// tales
-		float fexponent = 0.0F;
-		float[] ftemp = new float[finputVector.length];
-		float[] ftemp2 = new float[finputVector.length];
-		
+		return calculateExponent(finputVector,
+				getScratchBuffer(finputVector.length));
+	}
+
+	/**
+	 * Calculate the exponent using fzeroMean as temporary storage for x-m.
+	 */
+	private float calculateExponent(float[] finputVector, float[] fzeroMean) {
+		int nD = finputVector.length;
 		// x-m
-		for (int i = 0; i < finputVector.length; i++) {
-			ftemp[i] = finputVector[i] - m_fmean[i];			
+		for (int i = 0; i < nD; i++) {
+			fzeroMean[i] = finputVector[i] - m_fmean[i];
 		}
-		// S * (x -m)
-		for (int i = 0; i < ftemp.length; i++) {
-			for (int j = 0; j < ftemp.length; j++) {
-				ftemp2[i] += m_finvertedCovarianceMatrix[i][j]*ftemp[j];
+		float fexponent = 0.0F;
+		float[] fcholeskyFactor = getCholeskyFactor();
+		if (fcholeskyFactor != null) {
+			// || R^t * (x-m) ||^2
+			int k = 0;
+			for (int i = 0; i < nD; i++) {
+				float fdotProduct = 0.0F;
+				for (int j = i; j < nD; j++) {
+					fdotProduct += fcholeskyFactor[k++] * fzeroMean[j];
+				}
+				fexponent += fdotProduct * fdotProduct;
+			}
+		} else {
+			// (x-m)^t * S * (x-m)
+			for (int i = 0; i < nD; i++) {
+				float[] frow = m_finvertedCovarianceMatrix[i];
+				float fdotProduct = 0.0F;
+				for (int j = 0; j < nD; j++) {
+					fdotProduct += frow[j] * fzeroMean[j];
+				}
+				fexponent += fzeroMean[i] * fdotProduct;
 			}
 		}
-		//(x-m)^t * S * (x-m)
-		for (int i = 0; i < ftemp2.length; i++) {
-			fexponent += ftemp[i] * ftemp2[i];
-		}
-		
 		return -0.5F * fexponent;
-//		End.throwError("Not implemented yet");
-//		System.exit(1);
-//
-//		return 1F;
 	}
 
 	public double calculateExponentAsDouble(float[] finputVector) {
-//		 tales
-		double dexponent = 0.0;
-		double[] ftemp = new double[finputVector.length];
-		double[] ftemp2 = new double[finputVector.length];
-		
+		int nD = finputVector.length;
+		double[] dzeroMean = (double[]) m_dscratchBuffer.get();
+		if (dzeroMean == null || dzeroMean.length < nD) {
+			dzeroMean = new double[nD];
+			m_dscratchBuffer.set(dzeroMean);
+		}
 		// x-m
-		for (int i = 0; i < finputVector.length; i++) {
-			ftemp[i] = finputVector[i] - m_fmean[i];			
+		for (int i = 0; i < nD; i++) {
+			dzeroMean[i] = finputVector[i] - m_fmean[i];
 		}
-		// S * (x -m)
-		for (int i = 0; i < ftemp.length; i++) {
-			for (int j = 0; j < ftemp.length; j++) {
-				ftemp2[i] += m_finvertedCovarianceMatrix[i][j]*ftemp[j];
+		double dexponent = 0.0;
+		float[] fcholeskyFactor = getCholeskyFactor();
+		if (fcholeskyFactor != null) {
+			// || R^t * (x-m) ||^2
+			int k = 0;
+			for (int i = 0; i < nD; i++) {
+				double ddotProduct = 0.0;
+				for (int j = i; j < nD; j++) {
+					ddotProduct += fcholeskyFactor[k++] * dzeroMean[j];
+				}
+				dexponent += ddotProduct * ddotProduct;
+			}
+		} else {
+			// (x-m)^t * S * (x-m)
+			for (int i = 0; i < nD; i++) {
+				float[] frow = m_finvertedCovarianceMatrix[i];
+				double ddotProduct = 0.0;
+				for (int j = 0; j < nD; j++) {
+					ddotProduct += frow[j] * dzeroMean[j];
+				}
+				dexponent += dzeroMean[i] * ddotProduct;
 			}
 		}
-		//(x-m)^t * S * (x-m)
-		for (int i = 0; i < ftemp2.length; i++) {
-			dexponent += ftemp[i] * ftemp2[i];
-		}
-		
+
 		if (Double.isNaN(dexponent)) {
 		       System.err.println("calculateExponentAsDouble() = NaN");
 		       return Double.NaN;
 		}
-		
+
 		return -0.5 * dexponent;
-//		End.throwError("Not implemented yet");
-//		System.exit(1);
-//
-//		return 1F;
 	}
 
 	/**
-	 * Calculate the determinant.
+	 * Calculate output probability in log domain of frames nfirstFrame, ...,
+	 * nfirstFrame + nnumberOfFrames - 1 and store it in flogProbabilities[0],
+	 * ..., flogProbabilities[nnumberOfFrames - 1]. For full covariance
+	 * matrices, the scratch buffer is obtained only once.
+	 */
+	public void calculateLogProbabilities(float[][] fframes, int nfirstFrame,
+			int nnumberOfFrames, float[] flogProbabilities) {
+		if (m_covarianceMatrixType != CovarianceMatrix.Type.FULL) {
+			// subclasses have their own calculateExponent()
+			for (int t = 0; t < nnumberOfFrames; t++) {
+				flogProbabilities[t] = calculateLogProbability(fframes[nfirstFrame + t]);
+			}
+			return;
+		}
+		float[] fzeroMean = getScratchBuffer(m_fmean.length);
+		for (int t = 0; t < nnumberOfFrames; t++) {
+			float z = calculateExponent(fframes[nfirstFrame + t], fzeroMean)
+					- m_fdenominatorFactor;
+			if (Float.isInfinite(z) || Float.isNaN(z)) {
+				// same treatment of calculateLogProbability()
+				z = calculateLogProbability(fframes[nfirstFrame + t]);
+			}
+			flogProbabilities[t] = z;
+		}
+	}
+
+	private static float[] getScratchBuffer(int nD) {
+		float[] fbuffer = (float[]) m_fscratchBuffer.get();
+		if (fbuffer == null || fbuffer.length < nD) {
+			fbuffer = new float[nD];
+			m_fscratchBuffer.set(fbuffer);
+		}
+		return fbuffer;
+	}
+
+	/**
+	 * Returns the Cholesky factor (see m_fcholeskyFactor), calculating it if
+	 * the inverted covariance matrix changed, or null if the matrix is not
+	 * positive definite.
+	 */
+	private float[] getCholeskyFactor() {
+		if (!m_oisCholeskyFactorUpToDate) {
+			calculateCholeskyFactor();
+		}
+		return m_fcholeskyFactor;
+	}
+
+	/**
+	 * Factor the (symmetric part of the) inverted covariance matrix S as
+	 * R * R^t, with R lower triangular, and obtain the log determinant of the
+	 * covariance matrix as -2 * sum(log(R_jj)).
+	 */
+	private void calculateCholeskyFactor() {
+		int nD = m_finvertedCovarianceMatrix.length;
+		double[][] dR = new double[nD][nD];
+		boolean oisPositiveDefinite = true;
+		double dlogDeterminant = 0.0;
+		for (int j = 0; j < nD && oisPositiveDefinite; j++) {
+			for (int i = j; i < nD; i++) {
+				double dsum = 0.5 * ((double) m_finvertedCovarianceMatrix[i][j]
+						+ m_finvertedCovarianceMatrix[j][i]);
+				for (int k = 0; k < j; k++) {
+					dsum -= dR[i][k] * dR[j][k];
+				}
+				if (i == j) {
+					if (!(dsum > 0.0) || Double.isInfinite(dsum)) {
+						oisPositiveDefinite = false;
+						break;
+					}
+					dR[j][j] = Math.sqrt(dsum);
+					dlogDeterminant -= 2.0 * Math.log(dR[j][j]);
+				} else {
+					dR[i][j] = dsum / dR[j][j];
+				}
+			}
+		}
+		if (oisPositiveDefinite) {
+			m_fcholeskyFactor = new float[nD * (nD + 1) / 2];
+			int k = 0;
+			for (int i = 0; i < nD; i++) {
+				for (int j = i; j < nD; j++) {
+					// element (i,j) of R^t
+					m_fcholeskyFactor[k++] = (float) dR[j][i];
+				}
+			}
+			m_flogDeterminant = (float) dlogDeterminant;
+		} else {
+			m_fcholeskyFactor = null;
+			m_flogDeterminant = calculateLogDeterminantUsingLU();
+		}
+		m_oisCholeskyFactorUpToDate = true;
+	}
+
+	/**
+	 * Calculate the log determinant using jmat (LU decomposition). Used only
+	 * when the Cholesky factorization fails.
+	 */
+	private float calculateLogDeterminantUsingLU() {
+		double ddeterminant;
+		if (m_fcovarianceMatrix != null) {
+			ddeterminant = new Matrix(m_fcovarianceMatrix).determinant();
+		} else {
+			ddeterminant = 1.0 / new Matrix(m_finvertedCovarianceMatrix)
+					.determinant();
+		}
+		return LogDomainCalculator.calculateLog(ddeterminant);
+	}
+
+	/**
+	 * Calculate the log of the determinant of the covariance matrix. It is
+	 * obtained from the Cholesky factor, calculated only once.
 	 */
 	public float getLogDeterminant() {
-		// using jmat.
-		// tales
-		Matrix m = new Matrix(m_fcovarianceMatrix);
+		getCholeskyFactor();
+		float z = m_flogDeterminant;
 
-		//this is the most stupid way of doing that!! 
-		float z = LogDomainCalculator.calculateLog(m.determinant());
-		
 		if (Float.isInfinite(z) || Float.isNaN(z) ||
 		         z < LogDomainCalculator.m_fLOG_DOMAIN_ZERO) {
 			z = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
 			Print.warning("Determinant underflow. Assuming value = " + z);
 		}
-		return z; 
-		// End.throwError("Not implemented yet");
-		// System.exit(1);
-		// return 1F;
+		return z;
 	}
 
 	public String toStringAsInHTK() {
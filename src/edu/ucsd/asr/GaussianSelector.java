@@ -0,0 +1,265 @@
+package edu.ucsd.asr;
+
+/**
+ *  Gaussian selection for the packed mixtures of a DiagonalGaussianScorer.
+ *  The means of all Gaussians (divided by the global standard deviation of
+ *  each dimension, such that all dimensions have similar ranges) are
+ *  clustered into a codebook designed by VectorQuantizerDesigner (LBG).
+ *  For each codeword and each mixture, a shortlist keeps the (at most)
+ *  nshortlistSize Gaussians of the mixture with the largest weighted
+ *  likelihood at the codeword. When decoding, each frame is quantized and
+ *  only the Gaussians in the shortlists of its codeword are evaluated, while
+ *  the others are ignored. The log probability of a mixture is limited by a
+ *  floor, which avoids that a frame far from the shortlisted Gaussians gets
+ *  an arbitrarily small score.
+ *  <p>
+ *  The shortlists are calculated from the mixtures when this object is
+ *  created, so it must be recreated after the mixtures are modified (as the
+ *  DiagonalGaussianScorer). findCodeword() does not modify the object, so
+ *  it can be shared by concurrent threads.
+ */
+public final class GaussianSelector {
+
+  private final DiagonalGaussianScorer m_diagonalGaussianScorer;
+  private final int m_nspaceDimension;
+  private final int m_ncodebookSize;
+  private final int m_nshortlistSize;
+
+  /**
+   *  Log probability floor of each mixture.
+   */
+  final float m_flogFloor;
+
+  /**
+   *  Inverse of the global standard deviation of each dimension.
+   */
+  private final float[] m_fscales;
+
+  /**
+   *  Codewords in the scaled space, organized as
+   *  (codebook size) x (space dimension).
+   */
+  private final float[] m_fcodebook;
+
+  /**
+   *  The shortlist of mixture m for codeword c has the packed Gaussians
+   *  (indices of DiagonalGaussianScorer) m_nshortlists[c][i], with
+   *  m_nfirstInShortlist[c][m] <= i < m_nfirstInShortlist[c][m+1], in
+   *  increasing order.
+   */
+  final int[][] m_nshortlists;
+  final int[][] m_nfirstInShortlist;
+
+  private long m_lnumberOfEvaluatedGaussians;
+  private long m_lnumberOfGaussians;
+
+  /**
+   *@param  diagonalGaussianScorer  scorer with the mixtures
+   *@param  ncodebookSize           number of codewords
+   *@param  nshortlistSize          maximum number of Gaussians per mixture
+   *      evaluated for each frame
+   *@param  flogFloor               minimum log probability of a mixture
+   */
+  public GaussianSelector(DiagonalGaussianScorer diagonalGaussianScorer,
+                          int ncodebookSize, int nshortlistSize,
+                          float flogFloor) {
+    m_diagonalGaussianScorer = diagonalGaussianScorer;
+    m_nspaceDimension = diagonalGaussianScorer.getSpaceDimension();
+    m_ncodebookSize = ncodebookSize;
+    m_nshortlistSize = nshortlistSize;
+    m_flogFloor = flogFloor;
+    int nnumberOfGaussians = diagonalGaussianScorer.getNumberOfPackedGaussians();
+    if (ncodebookSize < 1 || ncodebookSize > nnumberOfGaussians) {
+      End.throwError("Codebook size = " + ncodebookSize + " must be between " +
+                     "1 and the number of Gaussians = " + nnumberOfGaussians);
+    }
+    if (nshortlistSize < 1) {
+      End.throwError("Shortlist size = " + nshortlistSize +
+                     " must be at least 1");
+    }
+
+    int nD = m_nspaceDimension;
+    float[] fmeans = diagonalGaussianScorer.m_fmeans;
+    float[] fvariancesInverted = diagonalGaussianScorer.m_fvariancesInverted;
+    m_fscales = new float[nD];
+    for (int k = 0; k < nD; k++) {
+      double dsumOfVariances = 0;
+      for (int g = 0; g < nnumberOfGaussians; g++) {
+        dsumOfVariances += 1.0 / fvariancesInverted[g * nD + k];
+      }
+      m_fscales[k] = (float) (1.0 / Math.sqrt(dsumOfVariances /
+                                              nnumberOfGaussians));
+    }
+
+    //the training sequence of LBG has the scaled means
+    float[][] fscaledMeans = new float[nnumberOfGaussians][nD];
+    for (int g = 0; g < nnumberOfGaussians; g++) {
+      for (int k = 0; k < nD; k++) {
+        fscaledMeans[g][k] = fmeans[g * nD + k] * m_fscales[k];
+      }
+    }
+    //same LBG parameters used by HMMInitializer
+    VectorQuantizerDesigner vectorQuantizerDesigner = new
+        VectorQuantizerDesigner(ncodebookSize, nD, 10, 0.01, 0.1, 0);
+    VectorQuantizer vectorQuantizer = vectorQuantizerDesigner.designUsingLBG(
+        new Pattern(fscaledMeans), null);
+    float[][] fcodebook = vectorQuantizer.getCodebook();
+    m_fcodebook = new float[ncodebookSize * nD];
+    for (int c = 0; c < ncodebookSize; c++) {
+      System.arraycopy(fcodebook[c], 0, m_fcodebook, c * nD, nD);
+    }
+
+    m_nshortlists = new int[ncodebookSize][];
+    m_nfirstInShortlist = new int[ncodebookSize][];
+    for (int c = 0; c < ncodebookSize; c++) {
+      createShortlists(c);
+    }
+  }
+
+  private void createShortlists(int ncodeword) {
+    DiagonalGaussianScorer scorer = m_diagonalGaussianScorer;
+    int nD = m_nspaceDimension;
+    int nnumberOfMixtures = scorer.getNumberOfMixtures();
+    int[] nfirstGaussian = scorer.m_nfirstGaussian;
+    //codeword in the original space
+    float[] fcodeword = new float[nD];
+    for (int k = 0; k < nD; k++) {
+      fcodeword[k] = m_fcodebook[ncodeword * nD + k] / m_fscales[k];
+    }
+
+    int[] nfirstInShortlist = new int[nnumberOfMixtures + 1];
+    int[] nshortlist = new int[nfirstGaussian[nnumberOfMixtures]];
+    int nsize = 0;
+    for (int m = 0; m < nnumberOfMixtures; m++) {
+      nfirstInShortlist[m] = nsize;
+      int nfirst = nfirstGaussian[m];
+      int nnumberOfGaussians = nfirstGaussian[m + 1] - nfirst;
+      if (nnumberOfGaussians <= m_nshortlistSize) {
+        for (int g = nfirst; g < nfirst + nnumberOfGaussians; g++) {
+          nshortlist[nsize++] = g;
+        }
+        continue;
+      }
+      float[] fscores = new float[nnumberOfGaussians];
+      for (int i = 0; i < nnumberOfGaussians; i++) {
+        fscores[i] = calculateWeightedLogProbability(nfirst + i, fcodeword);
+      }
+      //mark the best ones, keeping the order of the Gaussians
+      boolean[] oisSelected = new boolean[nnumberOfGaussians];
+      for (int n = 0; n < m_nshortlistSize; n++) {
+        int nbest = -1;
+        for (int i = 0; i < nnumberOfGaussians; i++) {
+          if (!oisSelected[i] && (nbest == -1 || fscores[i] > fscores[nbest])) {
+            nbest = i;
+          }
+        }
+        oisSelected[nbest] = true;
+      }
+      for (int i = 0; i < nnumberOfGaussians; i++) {
+        if (oisSelected[i]) {
+          nshortlist[nsize++] = nfirst + i;
+        }
+      }
+    }
+    nfirstInShortlist[nnumberOfMixtures] = nsize;
+    m_nfirstInShortlist[ncodeword] = nfirstInShortlist;
+    m_nshortlists[ncodeword] = new int[nsize];
+    System.arraycopy(nshortlist, 0, m_nshortlists[ncodeword], 0, nsize);
+  }
+
+  private float calculateWeightedLogProbability(int g, float[] x) {
+    DiagonalGaussianScorer scorer = m_diagonalGaussianScorer;
+    int nD = m_nspaceDimension;
+    int noffset = g * nD;
+    float fsum = 0;
+    for (int k = 0; k < nD; k++) {
+      float fdifference = x[k] - scorer.m_fmeans[noffset + k];
+      fsum += fdifference * fdifference *
+          scorer.m_fvariancesInverted[noffset + k];
+    }
+    return -0.5F * fsum - scorer.m_fdenominatorFactors[g] +
+        scorer.m_flogWeights[g];
+  }
+
+  /**
+   *  Returns the index of the codeword closest (in the scaled space) to the
+   *  given frame.
+   */
+  public int findCodeword(float[] fframe) {
+    int nD = m_nspaceDimension;
+    int nbest = 0;
+    float fbestDistance = Float.MAX_VALUE;
+    for (int c = 0; c < m_ncodebookSize; c++) {
+      int noffset = c * nD;
+      float fdistance = 0;
+      //partial distance: stop when it is already larger than the best
+      for (int k = 0; k < nD && fdistance < fbestDistance; k++) {
+        float fdifference = fframe[k] * m_fscales[k] - m_fcodebook[noffset + k];
+        fdistance += fdifference * fdifference;
+      }
+      if (fdistance < fbestDistance) {
+        fbestDistance = fdistance;
+        nbest = c;
+      }
+    }
+    return nbest;
+  }
+
+  public boolean wasCreatedFrom(DiagonalGaussianScorer diagonalGaussianScorer) {
+    return m_diagonalGaussianScorer == diagonalGaussianScorer;
+  }
+
+  public int getCodebookSize() {
+    return m_ncodebookSize;
+  }
+
+  public int getShortlistSize() {
+    return m_nshortlistSize;
+  }
+
+  public float getLogFloor() {
+    return m_flogFloor;
+  }
+
+  /**
+   *  Average number of Gaussians per mixture in the shortlists, over all
+   *  codewords.
+   */
+  public double getAverageShortlistSize() {
+    long lsum = 0;
+    for (int c = 0; c < m_ncodebookSize; c++) {
+      lsum += m_nshortlists[c].length;
+    }
+    return ( (double) lsum) / m_ncodebookSize /
+        m_diagonalGaussianScorer.getNumberOfMixtures();
+  }
+
+  synchronized void addStatistics(long lnumberOfEvaluatedGaussians,
+                                  long lnumberOfGaussians) {
+    m_lnumberOfEvaluatedGaussians += lnumberOfEvaluatedGaussians;
+    m_lnumberOfGaussians += lnumberOfGaussians;
+  }
+
+  public synchronized void resetStatistics() {
+    m_lnumberOfEvaluatedGaussians = 0;
+    m_lnumberOfGaussians = 0;
+  }
+
+  /**
+   *  Fraction of the Gaussians of the active mixtures that were evaluated
+   *  since the last call to resetStatistics().
+   */
+  public synchronized double getFractionOfEvaluatedGaussians() {
+    return (m_lnumberOfGaussians == 0) ? 1.0 :
+        ( (double) m_lnumberOfEvaluatedGaussians) / m_lnumberOfGaussians;
+  }
+
+  public synchronized String getStatistics() {
+    return "Gaussian selection (codebook size = " + m_ncodebookSize +
+        ", shortlist size = " + m_nshortlistSize + ", floor = " + m_flogFloor +
+        "): evaluated " + m_lnumberOfEvaluatedGaussians + " of " +
+        m_lnumberOfGaussians + " Gaussians (" +
+        IO.format(100.0 * getFractionOfEvaluatedGaussians()) + "%)";
+  }
+
+}
@@ -1,6 +1,8 @@
 package edu.ucsd.asr;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
 
 /**
  *  Reestimate an HMM or a set of HMMs. Embedded Bauw-Welch is used only with
@@ -22,6 +24,8 @@ public final class HMMReestimator {
 	//make it null if do not want reestimation file
 	private final String m_reestimationLogFileName = "HMMReestimation.log";
 	private String m_reestimationLogFileNameFullPath;
+	//number of HMMs reestimated at the same time by useBaumWelch()
+	private int m_nnumberOfThreads;
 
 	public HMMReestimator(HeaderProperties headerProperties) {
 		m_headerProperties = headerProperties;
@@ -34,6 +38,11 @@ public final class HMMReestimator {
 		property = m_headerProperties.getProperty("TrainingManager.oshouldSkipReestimationIfFileExists", "true");
 		m_oshouldSkipReestimationIfFileExists = (Boolean.valueOf(property)).booleanValue();
 		m_headerProperties.setProperty("TrainingManager.oshouldSkipReestimationIfFileExists", property);
+
+		property = m_headerProperties.getProperty("HMMReestimator.nnumberOfThreads", "1");
+		m_nnumberOfThreads = (Integer.valueOf(property)).intValue();
+		CheckValues.exitOnError(m_nnumberOfThreads, 1, 256, "HMMReestimator.nnumberOfThreads");
+		m_headerProperties.setProperty("HMMReestimator.nnumberOfThreads", property);
 	}
 
 	/**
@@ -306,11 +315,17 @@ public final class HMMReestimator {
 		PatternGenerator patternGeneratorOfAllFiles = null;
 		int nnumberOfEntries = tableOfLabels.getNumberOfEntries();
 		String[] patternsFileNames = new String[nnumberOfEntries];
+		//if not null, the HMMs are reestimated after all files are opened
+		SetOfPatterns[] setsOfPatterns = null;
+		if (m_nnumberOfThreads > 1 && nnumberOfEntries > 1) {
+			setsOfPatterns = new SetOfPatterns[nnumberOfEntries];
+		}
 		Print.setJProgressBarRange(0,nnumberOfEntries);
 		for (int ntableEntry = 0; ntableEntry < nnumberOfEntries; ntableEntry++) {
 
 			patternsFileNames[ntableEntry] = directoryWithSOPFiles + tableOfLabels.getPrefferedName(ntableEntry, SetOfPatterns.m_FILE_EXTENSION);
-			SetOfPatterns setOfPatterns = new SetOfPatterns(patternsFileNames[ntableEntry]);
+			// patterns are read from the mapped file at each iteration
+			SetOfPatterns setOfPatterns = new SetOfPatterns(patternsFileNames[ntableEntry], true);
 			if (patternGeneratorOfAllFiles == null) {
 				//first file
 				patternGeneratorOfAllFiles = setOfPatterns.getPatternGenerator();
@@ -323,6 +338,11 @@ public final class HMMReestimator {
 				}
 			}
 
+			if (setsOfPatterns != null) {
+				setsOfPatterns[ntableEntry] = setOfPatterns;
+				continue;
+			}
+
 			if (m_nverbose > 1) {
 				Print.dialog("Reestimating " + outputHMMSetFileName + " from " + patternsFileNames[ntableEntry]);
 			}
@@ -331,8 +351,18 @@ public final class HMMReestimator {
 					setOfPatterns,
 					patternsFileNames[ntableEntry],
 					m_reestimationLogFileNameFullPath);
+			setOfPatterns.close();
 			Print.updateJProgressBar(ntableEntry+1);
 		}
+		if (setsOfPatterns != null) {
+			useBaumWelchConcurrently(continuousHMMs,
+					setsOfPatterns,
+					patternsFileNames,
+					outputHMMSetFileName);
+			for (int i = 0; i < nnumberOfEntries; i++) {
+				setsOfPatterns[i].close();
+			}
+		}
 
 		//write output file with reestimated HMMs
 		String outputHMMDirectory = FileNamesAndDirectories.getPathFromFileName(outputHMMSetFileName);
@@ -512,6 +542,166 @@ public final class HMMReestimator {
 		return newSetOfSharedContinuousHMMs;
 	}
 
+	/**
+	 *  Reestimates each HMM with its own SetOfPatterns, using m_nnumberOfThreads
+	 *  threads. The HMMs are independent, so they are the same obtained by
+	 *  reestimating one HMM at a time. The table entries are kept in a queue
+	 *  sorted by decreasing size of the SOP file, and each thread takes the
+	 *  next entry when it finishes the previous one, such that the longest files
+	 *  do not end up being processed last. Each HMM writes its part of the
+	 *  reestimation log to a temporary file, which is appended to the log in the
+	 *  order of the table after all threads finish.
+	 */
+	private void useBaumWelchConcurrently(ContinuousHMM[] continuousHMMs,
+			SetOfPatterns[] setsOfPatterns,
+			String[] patternsFileNames,
+			String outputHMMSetFileName) {
+		int nnumberOfEntries = continuousHMMs.length;
+		//longest first. Insertion sort keeps the table order for equal sizes
+		int[] nentries = new int[nnumberOfEntries];
+		long[] lfileSizes = new long[nnumberOfEntries];
+		for (int i = 0; i < nnumberOfEntries; i++) {
+			long lfileSize = new File(patternsFileNames[i]).length();
+			int j = i;
+			while (j > 0 && lfileSizes[j - 1] < lfileSize) {
+				lfileSizes[j] = lfileSizes[j - 1];
+				nentries[j] = nentries[j - 1];
+				j--;
+			}
+			lfileSizes[j] = lfileSize;
+			nentries[j] = i;
+		}
+
+		String[] logFileNames = new String[nnumberOfEntries];
+		for (int i = 0; i < nnumberOfEntries; i++) {
+			logFileNames[i] = m_reestimationLogFileNameFullPath + "." + i;
+			FileNamesAndDirectories.deleteFile(logFileNames[i]);
+		}
+
+		IsolatedSegmentsQueue queue = new IsolatedSegmentsQueue(continuousHMMs,
+				setsOfPatterns,
+				patternsFileNames,
+				logFileNames,
+				nentries,
+				outputHMMSetFileName);
+		int nnumberOfThreads = Math.min(m_nnumberOfThreads, nnumberOfEntries);
+		if (m_nverbose > 1) {
+			Print.dialog("Reestimating " + nnumberOfEntries + " HMMs using " + nnumberOfThreads + " threads");
+		}
+		Thread[] threads = new Thread[nnumberOfThreads];
+		for (int i = 0; i < nnumberOfThreads; i++) {
+			threads[i] = new Thread(queue, "HMMReestimator" + i);
+			threads[i].start();
+		}
+		for (int i = 0; i < nnumberOfThreads; i++) {
+			try {
+				threads[i].join();
+			} catch (InterruptedException e) {
+				End.throwError("Interrupted while waiting for thread " + threads[i].getName());
+			}
+		}
+
+		//log and errors in the order of the table
+		for (int i = 0; i < nnumberOfEntries; i++) {
+			if (new File(logFileNames[i]).exists()) {
+				appendTextFileToEndOfTextFile(logFileNames[i], m_reestimationLogFileNameFullPath);
+				FileNamesAndDirectories.deleteFile(logFileNames[i]);
+			}
+		}
+		for (int i = 0; i < nnumberOfEntries; i++) {
+			Throwable throwable = queue.m_throwables[i];
+			if (throwable instanceof RuntimeException) {
+				throw (RuntimeException) throwable;
+			} else if (throwable instanceof Error) {
+				throw (Error) throwable;
+			}
+		}
+	}
+
+	private static void appendTextFileToEndOfTextFile(String inputFileName, String outputFileName) {
+		StringBuffer stringBuffer = new StringBuffer();
+		BufferedReader bufferedReader = IO.openBufferedReader(inputFileName);
+		char[] cbuffer = new char[4096];
+		try {
+			int nread;
+			while ((nread = bufferedReader.read(cbuffer)) != -1) {
+				stringBuffer.append(cbuffer, 0, nread);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			End.throwError("Problem reading file " + inputFileName);
+		}
+		IO.closeBufferedReader(bufferedReader);
+		IO.appendStringToEndOfTextFile(outputFileName, stringBuffer.toString());
+	}
+
+	/**
+	 *  Queue of table entries shared by the threads created by
+	 *  useBaumWelchConcurrently(). Each reestimated HMM is stored in the
+	 *  position of its entry.
+	 */
+	private class IsolatedSegmentsQueue implements Runnable {
+		private ContinuousHMM[] m_continuousHMMs;
+		private SetOfPatterns[] m_setsOfPatterns;
+		private String[] m_patternsFileNames;
+		private String[] m_logFileNames;
+		private int[] m_nentries;
+		private String m_outputHMMSetFileName;
+		private int m_nnextEntry;
+		private int m_nnumberOfFinishedEntries;
+		//error thrown when reestimating each entry, if any
+		Throwable[] m_throwables;
+
+		IsolatedSegmentsQueue(ContinuousHMM[] continuousHMMs,
+				SetOfPatterns[] setsOfPatterns,
+				String[] patternsFileNames,
+				String[] logFileNames,
+				int[] nentries,
+				String outputHMMSetFileName) {
+			m_continuousHMMs = continuousHMMs;
+			m_setsOfPatterns = setsOfPatterns;
+			m_patternsFileNames = patternsFileNames;
+			m_logFileNames = logFileNames;
+			m_nentries = nentries;
+			m_outputHMMSetFileName = outputHMMSetFileName;
+			m_throwables = new Throwable[continuousHMMs.length];
+		}
+
+		private synchronized int getNextEntry() {
+			if (m_nnextEntry == m_nentries.length) {
+				return -1;
+			}
+			return m_nentries[m_nnextEntry++];
+		}
+
+		private synchronized void entryFinished(int ntableEntry) {
+			m_nnumberOfFinishedEntries++;
+			Print.updateJProgressBar(m_nnumberOfFinishedEntries);
+			if (m_nverbose > 1) {
+				Print.dialog("Finished " + m_patternsFileNames[ntableEntry] + " (" +
+						m_nnumberOfFinishedEntries + " of " + m_nentries.length + ")");
+			}
+		}
+
+		public void run() {
+			int ntableEntry;
+			while ((ntableEntry = getNextEntry()) != -1) {
+				if (m_nverbose > 1) {
+					Print.dialog("Reestimating " + m_outputHMMSetFileName + " from " + m_patternsFileNames[ntableEntry]);
+				}
+				try {
+					m_continuousHMMs[ntableEntry] = useBaumWelch(m_continuousHMMs[ntableEntry],
+							m_setsOfPatterns[ntableEntry],
+							m_patternsFileNames[ntableEntry],
+							m_logFileNames[ntableEntry]);
+				} catch (Throwable throwable) {
+					m_throwables[ntableEntry] = throwable;
+				}
+				entryFinished(ntableEntry);
+			}
+		}
+	}
+
 	private boolean doesHMMFileExist(String outputHMMSetJARFileName) {
 		File file = new File(outputHMMSetJARFileName);
 		if (file.exists()) {
@@ -795,7 +985,11 @@ public final class HMMReestimator {
 	 *@param  initialHMMSetJARFileName  Description of Parameter
 	 *@return                           The SetOfSharedContinuousHMMs value
 	 */
-	private SetOfSharedContinuousHMMs getSetOfSharedContinuousHMMs(String initialHMMSetJARFileName) {
+	static SetOfSharedContinuousHMMs getSetOfSharedContinuousHMMs(String initialHMMSetJARFileName) {
+		if (initialHMMSetJARFileName.endsWith("." + CompactSetOfHMMsFile.m_FILE_EXTENSION)) {
+			//memory-mapped file written by CompactSetOfHMMsFile.write()
+			return CompactSetOfHMMsFile.readSetOfSharedContinuousHMMs(initialHMMSetJARFileName);
+		}
 		SetOfHMMs setOfHMMs = SetOfHMMsFile.read(initialHMMSetJARFileName);
 		if (setOfHMMs instanceof SetOfPlainContinuousHMMs) {
 			//need to convert it to shared
@@ -0,0 +1,269 @@
+package edu.ucsd.asr;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ *  Read-only access to the Patterns of a SetOfPatterns file (FEA) through
+ *  memory-mapped regions of the file, such that the parameters do not need
+ *  to be loaded on the heap. The file format is described in
+ *  SetOfPatterns.writeToFile(). When the object is created, only the number
+ *  of frames of each Pattern is read, to build an index with the position
+ *  of each Pattern. A Pattern is created (copied from the mapped region)
+ *  each time getPattern() is called. Files larger than 2 GB are mapped using
+ *  several regions, each one with an integer number of Patterns.
+ *  The floats are big-endian, which is the default byte order of java.nio
+ *  buffers.
+ *  getPattern() can be called by concurrent threads.
+ */
+public class MappedPatternsFile {
+
+  /**
+   *  Maximum size of each mapped region, in bytes.
+   */
+  private static final long m_lMAXIMUM_REGION_SIZE = 1L << 30;
+
+  private final String m_fileName;
+
+  private final int m_nspaceDimension;
+
+  /**
+   *  Number of frames of each Pattern.
+   */
+  private final int[] m_nnumberOfFrames;
+
+  /**
+   *  Pattern i starts at float m_nfirstFloat[i] of region m_nregion[i].
+   */
+  private final int[] m_nregion;
+  private final int[] m_nfirstFloat;
+
+  /**
+   *  Null after close().
+   */
+  private FloatBuffer[] m_regions;
+
+  /**
+   *  Map the data of inputFilename, which has nnumberOfBytesInHeader bytes
+   *  of header (see FileWithHeaderReader). The number of Patterns and the
+   *  space dimension must match the first two floats after the header.
+   */
+  public MappedPatternsFile(String inputFilename, int nnumberOfBytesInHeader,
+                            int nnumberOfPatterns, int nspaceDimension) throws
+      IOException {
+    m_fileName = inputFilename;
+    m_nspaceDimension = nspaceDimension;
+    m_nnumberOfFrames = new int[nnumberOfPatterns];
+    m_nregion = new int[nnumberOfPatterns];
+    m_nfirstFloat = new int[nnumberOfPatterns];
+
+    RandomAccessFile randomAccessFile = new RandomAccessFile(inputFilename, "r");
+    try {
+      FileChannel fileChannel = randomAccessFile.getChannel();
+      long lfileSize = fileChannel.size();
+      ByteBuffer byteBuffer = ByteBuffer.allocate(8);
+      long lposition = nnumberOfBytesInHeader;
+
+      readFully(fileChannel, byteBuffer, lposition, 8);
+      int ntemp = (int) byteBuffer.getFloat(0);
+      if (ntemp != nnumberOfPatterns) {
+        End.throwError("nnumOfPatterns = " + nnumberOfPatterns + " != ntemp = " +
+                       ntemp + " in file " + inputFilename);
+      }
+      ntemp = (int) byteBuffer.getFloat(4);
+      if (ntemp != nspaceDimension) {
+        End.throwError("nspaceDimension = " + nspaceDimension +
+                       " != ntemp = " + ntemp + " in file " + inputFilename);
+      }
+      lposition += 8;
+
+      //first pass: index with the (absolute) position of each Pattern
+      long[] lpatternStart = new long[nnumberOfPatterns];
+      long lbytesPerFrame = 4L * nspaceDimension;
+      for (int i = 0; i < nnumberOfPatterns; i++) {
+        readFully(fileChannel, byteBuffer, lposition, 4);
+        m_nnumberOfFrames[i] = (int) byteBuffer.getFloat(0);
+        lpatternStart[i] = lposition + 4;
+        lposition = lpatternStart[i] + m_nnumberOfFrames[i] * lbytesPerFrame;
+        if (m_nnumberOfFrames[i] < 0 || lposition > lfileSize) {
+          End.throwError("Pattern " + i + " with " + m_nnumberOfFrames[i] +
+                         " frames goes beyond the end of file " + inputFilename);
+        }
+      }
+
+      //second pass: group consecutive Patterns in regions
+      int nnumberOfRegions = 0;
+      long[] lregionStart = new long[nnumberOfPatterns + 1];
+      long[] lregionEnd = new long[nnumberOfPatterns + 1];
+      for (int i = 0; i < nnumberOfPatterns; i++) {
+        long lpatternEnd = lpatternStart[i] + m_nnumberOfFrames[i] * lbytesPerFrame;
+        if (lpatternEnd - lpatternStart[i] > m_lMAXIMUM_REGION_SIZE) {
+          End.throwError("Pattern " + i + " of file " + inputFilename +
+                         " is too large to be mapped");
+        }
+        if (nnumberOfRegions == 0 ||
+            lpatternEnd - lregionStart[nnumberOfRegions - 1] > m_lMAXIMUM_REGION_SIZE) {
+          lregionStart[nnumberOfRegions] = lpatternStart[i];
+          nnumberOfRegions++;
+        }
+        lregionEnd[nnumberOfRegions - 1] = lpatternEnd;
+        m_nregion[i] = nnumberOfRegions - 1;
+        m_nfirstFloat[i] = (int) ( (lpatternStart[i] -
+                                    lregionStart[nnumberOfRegions - 1]) / 4);
+      }
+      FloatBuffer[] regions = new FloatBuffer[nnumberOfRegions];
+      for (int r = 0; r < nnumberOfRegions; r++) {
+        //the mapping remains valid after the channel is closed
+        regions[r] = fileChannel.map(FileChannel.MapMode.READ_ONLY,
+                                       lregionStart[r],
+                                       lregionEnd[r] - lregionStart[r]).asFloatBuffer();
+      }
+      m_regions = regions;
+    }
+    finally {
+      randomAccessFile.close();
+    }
+  }
+
+  private static void readFully(FileChannel fileChannel, ByteBuffer byteBuffer,
+                                long lposition, int nnumberOfBytes) throws
+      IOException {
+    byteBuffer.clear();
+    byteBuffer.limit(nnumberOfBytes);
+    while (byteBuffer.hasRemaining()) {
+      int nread = fileChannel.read(byteBuffer, lposition + byteBuffer.position());
+      if (nread < 0) {
+        throw new IOException("Unexpected end of file at position " + lposition);
+      }
+    }
+  }
+
+  public String getFileName() {
+    return m_fileName;
+  }
+
+  public int getNumberOfPatterns() {
+    return m_nnumberOfFrames.length;
+  }
+
+  public int getSpaceDimension() {
+    return m_nspaceDimension;
+  }
+
+  /**
+   *  Number of frames of the given Pattern, without reading its parameters.
+   */
+  public int getNumberOfFrames(int npatternIndex) {
+    return m_nnumberOfFrames[npatternIndex];
+  }
+
+  /**
+   *  Read-only view of the parameters of the given Pattern in the mapped
+   *  file, without copying them. The view has getNumberOfFrames() *
+   *  getSpaceDimension() floats, frame after frame, starting at position 0.
+   */
+  public FloatBuffer getParametersView(int npatternIndex) {
+    FloatBuffer floatBuffer = positionAtPattern(npatternIndex);
+    floatBuffer.limit(floatBuffer.position() +
+                      m_nnumberOfFrames[npatternIndex] * m_nspaceDimension);
+    return floatBuffer.slice().asReadOnlyBuffer();
+  }
+
+  /**
+   *  Copy the parameters of the given Pattern from the mapped file into a
+   *  new Pattern.
+   */
+  public Pattern getPattern(int npatternIndex) {
+    return copyPattern(npatternIndex, null);
+  }
+
+  /**
+   *  Reader to be used by a single thread.
+   */
+  public Reader getReader() {
+    return new Reader();
+  }
+
+  /**
+   *  Release the mapped regions. The memory is unmapped when the regions
+   *  (and views returned by getParametersView()) are garbage collected.
+   *  The number of Patterns and their number of frames are still available.
+   */
+  public synchronized void close() {
+    m_regions = null;
+  }
+
+  public synchronized boolean isClosed() {
+    return m_regions == null;
+  }
+
+  /**
+   *  Copies the Patterns into frames that are reused at each call of
+   *  getPattern(). The returned Pattern is valid only until the next call,
+   *  so it must not be kept (nor modified) by the caller.
+   */
+  public final class Reader {
+
+    private float[][] m_fframes = new float[0][];
+
+    private Reader() {
+    }
+
+    public Pattern getPattern(int npatternIndex) {
+      int nnumberOfFrames = m_nnumberOfFrames[npatternIndex];
+      if (m_fframes.length < nnumberOfFrames) {
+        float[][] fframes = new float[nnumberOfFrames][];
+        System.arraycopy(m_fframes, 0, fframes, 0, m_fframes.length);
+        for (int j = m_fframes.length; j < nnumberOfFrames; j++) {
+          fframes[j] = new float[m_nspaceDimension];
+        }
+        m_fframes = fframes;
+      }
+      return copyPattern(npatternIndex, m_fframes);
+    }
+  }
+
+  /**
+   *  Copy the given Pattern into the frames of fframes or, if fframes is
+   *  null, into new frames.
+   */
+  private Pattern copyPattern(int npatternIndex, float[][] fframes) {
+    int nnumberOfFrames = m_nnumberOfFrames[npatternIndex];
+    FloatBuffer floatBuffer = positionAtPattern(npatternIndex);
+    if (nnumberOfFrames == 0) {
+      return new Pattern(new float[0][]);
+    }
+    //the Pattern constructor copies the frames, so it gets empty frames
+    //that are replaced by the mapped ones
+    Pattern pattern = new Pattern(new float[nnumberOfFrames][0]);
+    float[][] fparameters = pattern.getParameters();
+    for (int j = 0; j < nnumberOfFrames; j++) {
+      fparameters[j] = (fframes == null) ? new float[m_nspaceDimension] :
+          fframes[j];
+      floatBuffer.get(fparameters[j]);
+    }
+    pattern.makeSureValuesAreOk();
+    return pattern;
+  }
+
+  /**
+   *  Buffer of the region of the given Pattern, positioned at its first
+   *  float. duplicate() shares the contents but has its own position.
+   */
+  private FloatBuffer positionAtPattern(int npatternIndex) {
+    FloatBuffer[] regions;
+    synchronized (this) {
+      regions = m_regions;
+    }
+    if (regions == null) {
+      End.throwError("MappedPatternsFile " + m_fileName + " was closed");
+    }
+    FloatBuffer floatBuffer = regions[m_nregion[npatternIndex]].duplicate();
+    floatBuffer.position(m_nfirstFloat[npatternIndex]);
+    return floatBuffer;
+  }
+
+}
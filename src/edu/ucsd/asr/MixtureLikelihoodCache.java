@@ -0,0 +1,150 @@
+package edu.ucsd.asr;
+
+/**
+ *  Cache of the log output probabilities of mixtures, indexed by frame and
+ *  by the global index of the mixture in a DiagonalGaussianScorer (e.g. the
+ *  index used by SetOfSharedContinuousHMMs.getStateIndices()). When many
+ *  HMMs share a mixture (tied states), the mixture is evaluated only once
+ *  per frame, no matter how many HMMs (or in which order) ask for it.
+ *  <p>
+ *  The memory is bounded: the cache keeps the values of at most
+ *  getNumberOfFrames() frames, and frame t is stored in position
+ *  t % getNumberOfFrames(), so a frame that was overwritten is simply
+ *  calculated again (and counted as a miss). Each position has the "stamp"
+ *  of the frame it holds, such that startPattern() invalidates all values
+ *  without clearing the arrays.
+ *  <p>
+ *  This object is not thread-safe: concurrent threads must have their own
+ *  caches, which can share a DiagonalGaussianScorer if all its mixtures are
+ *  packed.
+ */
+public final class MixtureLikelihoodCache {
+
+  private final DiagonalGaussianScorer m_diagonalGaussianScorer;
+  private final int m_nnumberOfMixtures;
+  private final int m_nnumberOfFrames;
+
+  /**
+   *  Organized as (number of frames) x (number of mixtures).
+   */
+  private final float[] m_flogProbabilities;
+  private final int[] m_nstamps;
+
+  /**
+   *  Stamp of frame t of the current Pattern is m_nfirstStamp + t.
+   */
+  private int m_nfirstStamp;
+  private int m_nlargestFrame = -1;
+
+  private long m_lnumberOfHits;
+  private long m_lnumberOfMisses;
+
+  /**
+   *@param  diagonalGaussianScorer  calculates the log probabilities
+   *@param  lmaximumSizeInBytes     maximum memory used by the cache. At
+   *      least one frame is always kept.
+   */
+  public MixtureLikelihoodCache(DiagonalGaussianScorer diagonalGaussianScorer,
+                                long lmaximumSizeInBytes) {
+    m_diagonalGaussianScorer = diagonalGaussianScorer;
+    m_nnumberOfMixtures = diagonalGaussianScorer.getNumberOfMixtures();
+    //a float and an int per mixture and frame
+    long lbytesPerFrame = 8L * m_nnumberOfMixtures;
+    long lnumberOfFrames = Math.max(1, lmaximumSizeInBytes / lbytesPerFrame);
+    m_nnumberOfFrames = (int) Math.min(lnumberOfFrames,
+                                       Integer.MAX_VALUE / Math.max(1,
+        m_nnumberOfMixtures));
+    m_flogProbabilities = new float[m_nnumberOfFrames * m_nnumberOfMixtures];
+    m_nstamps = new int[m_flogProbabilities.length];
+    clearStamps();
+  }
+
+  private void clearStamps() {
+    for (int i = 0; i < m_nstamps.length; i++) {
+      m_nstamps[i] = -1;
+    }
+    m_nfirstStamp = 0;
+    m_nlargestFrame = -1;
+  }
+
+  /**
+   *  Invalidate all values: the frames of the next calls belong to a new
+   *  Pattern.
+   */
+  public void startPattern() {
+    m_nfirstStamp += m_nlargestFrame + 1;
+    m_nlargestFrame = -1;
+    //m_nfirstStamp + t must not overflow
+    if (m_nfirstStamp > Integer.MAX_VALUE / 2) {
+      clearStamps();
+    }
+  }
+
+  /**
+   *  Returns the log output probability of the given mixture for frame t
+   *  (t >= 0) of the current Pattern, calculating it if it is not in the
+   *  cache.
+   *
+   *@param  nmixture  index of the mixture in the DiagonalGaussianScorer
+   *@param  t         frame index in the current Pattern
+   *@param  fframe    parameters of frame t
+   */
+  public float getLogProbability(int nmixture, int t, float[] fframe) {
+    int nposition = (t % m_nnumberOfFrames) * m_nnumberOfMixtures + nmixture;
+    int nstamp = m_nfirstStamp + t;
+    if (m_nstamps[nposition] == nstamp) {
+      m_lnumberOfHits++;
+      return m_flogProbabilities[nposition];
+    }
+    m_lnumberOfMisses++;
+    if (t > m_nlargestFrame) {
+      m_nlargestFrame = t;
+    }
+    float flogProbability = m_diagonalGaussianScorer.calculateLogProbability(
+        nmixture, fframe);
+    m_flogProbabilities[nposition] = flogProbability;
+    m_nstamps[nposition] = nstamp;
+    return flogProbability;
+  }
+
+  public DiagonalGaussianScorer getDiagonalGaussianScorer() {
+    return m_diagonalGaussianScorer;
+  }
+
+  /**
+   *  Maximum number of frames kept in the cache.
+   */
+  public int getNumberOfFrames() {
+    return m_nnumberOfFrames;
+  }
+
+  public long getSizeInBytes() {
+    return 8L * m_flogProbabilities.length;
+  }
+
+  public long getNumberOfHits() {
+    return m_lnumberOfHits;
+  }
+
+  /**
+   *  Number of mixtures that were evaluated.
+   */
+  public long getNumberOfMisses() {
+    return m_lnumberOfMisses;
+  }
+
+  public void resetStatistics() {
+    m_lnumberOfHits = 0;
+    m_lnumberOfMisses = 0;
+  }
+
+  public String getStatistics() {
+    long ltotal = m_lnumberOfHits + m_lnumberOfMisses;
+    double dhitRate = (ltotal == 0) ? 0.0 : (100.0 * m_lnumberOfHits) / ltotal;
+    return "Mixture likelihood cache (" + m_nnumberOfMixtures + " mixtures, " +
+        m_nnumberOfFrames + " frames): " + m_lnumberOfHits + " hits, " +
+        m_lnumberOfMisses + " misses (hit rate = " + IO.format(dhitRate) +
+        "%)";
+  }
+
+}
@@ -26,10 +26,101 @@ public class OffLineIsolatedSegmentsClassifier {
   private static int m_nverbose = 0;
   private static boolean m_oalreadyShowedWarningMessage = false;
 
+  /**
+   *  Number of threads used by getResults() to classify the segments.
+   */
+  private static int m_nnumberOfThreads = 1;
+
+  /**
+   *  Gaussian selection (see GaussianSelector) used when the output
+   *  probabilities are calculated by a DiagonalGaussianScorer. Disabled if
+   *  the codebook size is 0.
+   */
+  private static int m_ngaussianSelectionCodebookSize = 0;
+  private static int m_ngaussianSelectionShortlistSize = 4;
+  private static float m_fgaussianSelectionLogFloor = LogDomainCalculator.
+      m_fLOG_DOMAIN_ZERO;
+
+  /**
+   *  Maximum size of the MixtureLikelihoodCache used to classify with a
+   *  SetOfSharedContinuousHMMs. If 0, the set's findBestModelAndItsScore()
+   *  is used instead.
+   */
+  private static int m_nmixtureLikelihoodCacheSizeInMegabytes = 64;
+
+  /**
+   *  Beam width (in log domain) of the BeamPrunedViterbi used to classify
+   *  with a SetOfPlainContinuousHMMs. Disabled (no pruning) if 0.
+   */
+  private static float m_fbeamWidth = 0;
+
   public static void setVerbosity(int nverbose) {
     m_nverbose = nverbose;
   }
 
+  /**
+   *  Segments are classified by nnumberOfThreads concurrent threads when
+   *  the set is a SetOfPlainContinuousHMMs with diagonal covariance
+   *  Gaussians (otherwise, a single thread is used). The results are the
+   *  same for any number of threads.
+   */
+  public static void setNumberOfThreads(int nnumberOfThreads) {
+    if (nnumberOfThreads < 1) {
+      End.throwError("Number of threads = " + nnumberOfThreads +
+                     " must be at least 1");
+    }
+    m_nnumberOfThreads = nnumberOfThreads;
+  }
+
+  /**
+   *  Enable Gaussian selection with the given codebook size, maximum number
+   *  of Gaussians per mixture evaluated for each frame and floor of the log
+   *  probability of a mixture. Use ncodebookSize = 0 to disable it. The
+   *  selection is used only for SetOfPlainContinuousHMMs with diagonal
+   *  covariance Gaussians, and trades accuracy for speed.
+   */
+  public static void setGaussianSelection(int ncodebookSize,
+                                          int nshortlistSize,
+                                          float flogFloor) {
+    if (ncodebookSize < 0 || nshortlistSize < 1) {
+      End.throwError("Codebook size = " + ncodebookSize +
+                     " must be at least 0 and shortlist size = " +
+                     nshortlistSize + " must be at least 1");
+    }
+    m_ngaussianSelectionCodebookSize = ncodebookSize;
+    m_ngaussianSelectionShortlistSize = nshortlistSize;
+    m_fgaussianSelectionLogFloor = flogFloor;
+  }
+
+  /**
+   *  When classifying with a SetOfSharedContinuousHMMs, the log
+   *  probabilities of the mixtures are kept in a MixtureLikelihoodCache of
+   *  at most nsizeInMegabytes, such that a mixture shared by many physical
+   *  HMMs is calculated once per frame. The results do not change. Use 0 to
+   *  disable the cache.
+   */
+  public static void setMixtureLikelihoodCacheSize(int nsizeInMegabytes) {
+    if (nsizeInMegabytes < 0) {
+      End.throwError("Mixture likelihood cache size = " + nsizeInMegabytes +
+                     " MB must be at least 0");
+    }
+    m_nmixtureLikelihoodCacheSizeInMegabytes = nsizeInMegabytes;
+  }
+
+  /**
+   *  When classifying with a SetOfPlainContinuousHMMs without writing
+   *  lattices, the states of all HMMs are processed frame by frame and the
+   *  ones with log probability smaller than the best one minus fbeamWidth
+   *  are pruned (see BeamPrunedViterbi). Pruning trades accuracy for speed.
+   *  Use 0 to disable it.
+   */
+  public static void setBeamWidth(float fbeamWidth) {
+    if (fbeamWidth < 0) {
+      End.throwError("Beam width = " + fbeamWidth + " must be at least 0");
+    }
+    m_fbeamWidth = fbeamWidth;
+  }
+
   //private boolean m_oshouldWriteLattices;
 
   //  private TableOfLabels m_hMMTableOfLabels;
@@ -156,6 +247,17 @@ public class OffLineIsolatedSegmentsClassifier {
       }
     }
 
+    //the traceback is done only if the N-best list is needed
+    ViterbiWorkspace viterbiWorkspace = getViterbiWorkspaceIfApplicable(
+        setOfHMMs, oshouldWriteLattices);
+    int nbestListN = oshouldWriteLattices ?
+        tableOfLabelsForThisHMMSet.getNumberOfEntries() : 0;
+
+    //null if the segments must be classified by a single thread
+    DiagonalGaussianScorer diagonalGaussianScorerForThreads =
+        getDiagonalGaussianScorerForThreadsIfApplicable(setOfHMMs,
+        viterbiWorkspace);
+
     int nnumberOfEntries = tableOfLabels.getNumberOfEntries();
     Print.setJProgressBarRange(0, nnumberOfEntries);
     for (int nentryNumber = 0; nentryNumber < nnumberOfEntries; nentryNumber++) {
@@ -172,7 +274,8 @@ public class OffLineIsolatedSegmentsClassifier {
       patternsFileName = FileNamesAndDirectories.getAbsolutePath(
           patternsFileName, directoryForSetOfPatterns);
 
-      SetOfPatterns setOfPatterns = new SetOfPatterns(patternsFileName);
+      //patterns are read from the mapped file as needed
+      SetOfPatterns setOfPatterns = new SetOfPatterns(patternsFileName, true);
       int nnumberOfPatterns = setOfPatterns.getNumberOfPatterns();
       if (m_nverbose > 1) {
         System.out.print("Reading SetOfPatterns " + patternsFileName +
@@ -190,6 +293,21 @@ public class OffLineIsolatedSegmentsClassifier {
       //get the associated DataLocator file
       //String dataLocatorFileName = headerProperties.getPropertyAndExitIfKeyNotFound("DataLocator." + propertyIdentifier + Integer.toString(nentryNumber));
       //dataLocatorFileName = FileNamesAndDirectories.getAbsolutePath(dataLocatorFileName, directoryForDataLocators);
+      if (diagonalGaussianScorerForThreads != null) {
+        classifySegmentsUsingThreads( ( (SetOfPlainContinuousHMMs) setOfHMMs).
+                                     getHMMs(),
+                                     diagonalGaussianScorerForThreads,
+                                     viterbiWorkspace.getBeamPrunedViterbi(),
+                                     setOfPatterns, patternsFileName,
+                                     correctLabel, tableOfLabelsForThisHMMSet,
+                                     oshouldWriteLattices, nbestListN,
+                                     nminimumNumberOfFramesInValidPattern,
+                                     classificationStatisticsCalculator);
+        setOfPatterns.close();
+        Print.updateJProgressBar(nentryNumber + 1);
+        continue;
+      }
+
       String dataLocatorFileName = setOfPatterns.getDataLocatorFileName();
 
       DatabaseManager databaseManager = new DatabaseManager(dataLocatorFileName);
@@ -197,6 +315,7 @@ public class OffLineIsolatedSegmentsClassifier {
       //int[] nspeechData;
       //for each Pattern in this SetOfPatterns file
       int nnumberOfSegments = 0;
+      MappedPatternsFile.Reader reader = setOfPatterns.getReader();
       DataLocator dataLocator = null;
       while (databaseManager.isThereDataToRead()) {
         //get the Segment that generated this Pattern
@@ -222,21 +341,12 @@ public class OffLineIsolatedSegmentsClassifier {
           //get the pattern
           Pattern pattern = null;
           try {
-            pattern = setOfPatterns.getPattern(nnumberOfSegments);
+            pattern = setOfPatterns.getPattern(nnumberOfSegments, reader);
           }
           catch (ASRError e) {
-            Print.error(e.toString());
-            Print.error("Line: " + segmentInfo);
-            Print.error("The file " + dataLocatorFileName +
-                        " obtained from the " + SetOfPatterns.m_FILE_EXTENSION +
-                        " header was not the one " +
-                        "used to generate the " +
-                        SetOfPatterns.m_FILE_EXTENSION + " ??");
-            Print.error("Note the " + SetOfPatterns.m_FILE_EXTENSION + " file " +
-                        patternsFileName + " has " + nnumberOfPatterns +
-                        " patterns " +
-                        "while system tried to read pattern index # " +
-                        nnumberOfSegments);
+            printErrorOfMissingPattern(e.toString(), segmentInfo,
+                                       dataLocatorFileName, patternsFileName,
+                                       nnumberOfPatterns, nnumberOfSegments);
             databaseManager.m_oendOfData = true;
             break;
             //ak XXX
@@ -247,15 +357,17 @@ public class OffLineIsolatedSegmentsClassifier {
 
           if (pattern.getNumOfFrames() >= nminimumNumberOfFramesInValidPattern) {
             //find best HMM model
+            ClassificationResult classificationResult = null;
             try {
-              setOfHMMs.findBestModelAndItsScore(pattern);
+              classificationResult = classify(setOfHMMs, pattern, viterbiWorkspace,
+                                              nbestListN);
             }
             catch (Error e) {
               e.printStackTrace();
               Print.error("When processing " + segmentInfo);
               End.exit(1);
             }
-            int nbestModel = setOfHMMs.getBestModel();
+            int nbestModel = classificationResult.getBestModel();
 
             if (nbestModel == -1) {
               End.throwError("No token survived the Viterbi algorithm\n" +
@@ -278,7 +390,7 @@ public class OffLineIsolatedSegmentsClassifier {
 
             if (oshouldWriteLattices) {
               //then add lattices to segmentInfo
-              String paths = setOfPlainContinuousHMMs.
+              String paths = classificationResult.
                   getPathsOfNBestListUsingRunLengthEncoding();
               segmentInfo += " " + paths;
               //String segmentInfoWithoutPath = extractPathFromFileName(segmentInfo);
@@ -317,6 +429,7 @@ public class OffLineIsolatedSegmentsClassifier {
       }
       databaseManager.finalizeDataReading();
       Print.updateJProgressBar(nentryNumber + 1);
+      setOfPatterns.close();
       setOfPatterns = null;
       //System.gc();
     }
@@ -331,9 +444,389 @@ public class OffLineIsolatedSegmentsClassifier {
     //				End.exit();
     //			}
     //		}
+    printStatisticsOfWorkspace(viterbiWorkspace);
     return classificationStatisticsCalculator;
   }
 
+  /**
+   *  Returns a ViterbiWorkspace if the best model (and the N-best list) of
+   *  setOfHMMs can be found without using its findBestModelAndItsScore(),
+   *  which is the case for SetOfPlainContinuousHMMs and, if the
+   *  MixtureLikelihoodCache is enabled (see
+   *  setMixtureLikelihoodCacheSize()), SetOfSharedContinuousHMMs.
+   *  Otherwise, returns null. The output probabilities are calculated by a
+   *  DiagonalGaussianScorer and the traceback is done only if the lattices
+   *  are needed.
+   */
+  private static ViterbiWorkspace getViterbiWorkspaceIfApplicable(SetOfHMMs setOfHMMs,
+      boolean oshouldWriteLattices) {
+    if (setOfHMMs.getClass() == SetOfSharedContinuousHMMs.class &&
+        m_nmixtureLikelihoodCacheSizeInMegabytes > 0) {
+      //lattices are not supported for shared HMMs
+      ViterbiWorkspace viterbiWorkspace = new ViterbiWorkspace(true);
+      viterbiWorkspace.setMixtureLikelihoodCache(new MixtureLikelihoodCache(
+          DiagonalGaussianScorer.createForSetOfSharedHMMs(
+          (SetOfSharedContinuousHMMs) setOfHMMs),
+          m_nmixtureLikelihoodCacheSizeInMegabytes * 1024L * 1024L));
+      return viterbiWorkspace;
+    }
+    //subclasses (e.g. SetOfMatrixEncodedHMMs) have their own scoring
+    if (setOfHMMs.getClass() != SetOfPlainContinuousHMMs.class) {
+      return null;
+    }
+    boolean oscoreOnly = !oshouldWriteLattices;
+    ViterbiWorkspace viterbiWorkspace = new ViterbiWorkspace(oscoreOnly);
+    //output probabilities of all states are calculated at once
+    DiagonalGaussianScorer diagonalGaussianScorer = createDiagonalGaussianScorer(
+        ( (SetOfPlainContinuousHMMs) setOfHMMs).getHMMs());
+    viterbiWorkspace.setDiagonalGaussianScorer(diagonalGaussianScorer);
+    if (m_fbeamWidth > 0) {
+      if (oshouldWriteLattices) {
+        if (m_nverbose > 0) {
+          Print.warning("Beam pruning disabled because the lattices need the scores of all HMMs");
+        }
+      }
+      else {
+        viterbiWorkspace.setBeamPrunedViterbi(new BeamPrunedViterbi(
+            diagonalGaussianScorer, m_fbeamWidth));
+      }
+    }
+    return viterbiWorkspace;
+  }
+
+  /**
+   *  Creates the DiagonalGaussianScorer for the given HMMs, with a
+   *  GaussianSelector if Gaussian selection is enabled (see
+   *  setGaussianSelection()) and there are enough Gaussians for the
+   *  codebook.
+   */
+  private static DiagonalGaussianScorer createDiagonalGaussianScorer(
+      ContinuousHMM[] continuousHMMs) {
+    DiagonalGaussianScorer diagonalGaussianScorer = DiagonalGaussianScorer.
+        createForHMMs(continuousHMMs);
+    if (m_ngaussianSelectionCodebookSize == 0) {
+      return diagonalGaussianScorer;
+    }
+    if (diagonalGaussianScorer.getNumberOfPackedGaussians() <
+        m_ngaussianSelectionCodebookSize) {
+      if (m_nverbose > 0) {
+        Print.warning("Gaussian selection disabled because there are only " +
+                      diagonalGaussianScorer.getNumberOfPackedGaussians() +
+                      " Gaussians for a codebook of size " +
+                      m_ngaussianSelectionCodebookSize);
+      }
+      return diagonalGaussianScorer;
+    }
+    diagonalGaussianScorer.setGaussianSelector(new GaussianSelector(
+        diagonalGaussianScorer, m_ngaussianSelectionCodebookSize,
+        m_ngaussianSelectionShortlistSize, m_fgaussianSelectionLogFloor));
+    if (m_nverbose > 1) {
+      Print.dialog("Gaussian selection: average shortlist size = " +
+                   IO.format(diagonalGaussianScorer.getGaussianSelector().
+                             getAverageShortlistSize()) + " Gaussians");
+    }
+    return diagonalGaussianScorer;
+  }
+
+  /**
+   *  Print the statistics of the MixtureLikelihoodCache, of the beam pruning
+   *  and of the Gaussian selection, if they were used by the given
+   *  ViterbiWorkspace.
+   */
+  private static void printStatisticsOfWorkspace(ViterbiWorkspace
+      viterbiWorkspace) {
+    if (m_nverbose < 1 || viterbiWorkspace == null) {
+      return;
+    }
+    if (viterbiWorkspace.getMixtureLikelihoodCache() != null) {
+      Print.dialog(viterbiWorkspace.getMixtureLikelihoodCache().getStatistics());
+    }
+    if (viterbiWorkspace.getBeamPrunedViterbi() != null) {
+      Print.dialog(viterbiWorkspace.getBeamPrunedViterbi().getStatistics());
+    }
+    if (viterbiWorkspace.getDiagonalGaussianScorer() == null) {
+      return;
+    }
+    GaussianSelector gaussianSelector = viterbiWorkspace.
+        getDiagonalGaussianScorer().getGaussianSelector();
+    if (gaussianSelector != null) {
+      Print.dialog(gaussianSelector.getStatistics());
+    }
+  }
+
+  /**
+   *  Returns the best model for the given pattern and, if nbestListN > 0,
+   *  the N-best list with paths, using viterbiWorkspace if it is not null.
+   *  Otherwise, setOfHMMs must have the N-best list enabled when
+   *  nbestListN > 0.
+   */
+  private static ClassificationResult classify(SetOfHMMs setOfHMMs,
+                                               Pattern pattern,
+                                               ViterbiWorkspace viterbiWorkspace,
+                                               int nbestListN) {
+    if (viterbiWorkspace != null &&
+        viterbiWorkspace.getMixtureLikelihoodCache() != null) {
+      return viterbiWorkspace.classify(
+          (SetOfSharedContinuousHMMs) setOfHMMs, pattern);
+    }
+    if (viterbiWorkspace != null) {
+      return viterbiWorkspace.classify(
+          ( (SetOfPlainContinuousHMMs) setOfHMMs).getHMMs(), pattern,
+          nbestListN, nbestListN > 0);
+    }
+    setOfHMMs.findBestModelAndItsScore(pattern);
+    if (nbestListN > 0) {
+      //the set reuses its arrays in the next call
+      SetOfPlainContinuousHMMs setOfPlainContinuousHMMs =
+          (SetOfPlainContinuousHMMs) setOfHMMs;
+      return new ClassificationResult(setOfHMMs.getBestModel(),
+                                      setOfHMMs.getBestScore(),
+                                      (int[]) setOfPlainContinuousHMMs.
+                                      getHMMIndicesInNBestList().clone(),
+                                      (double[]) setOfPlainContinuousHMMs.
+                                      getScoresInNBestList().clone(),
+                                      (int[][]) setOfPlainContinuousHMMs.
+                                      getPathsOfNBestList().clone());
+    }
+    return new ClassificationResult(setOfHMMs.getBestModel(),
+                                    setOfHMMs.getBestScore(), null, null, null);
+  }
+
+  private static void printErrorOfMissingPattern(String message,
+                                                 String segmentInfo,
+                                                 String dataLocatorFileName,
+                                                 String patternsFileName,
+                                                 int nnumberOfPatterns,
+                                                 int npatternIndex) {
+    Print.error(message);
+    Print.error("Line: " + segmentInfo);
+    Print.error("The file " + dataLocatorFileName +
+                " obtained from the " + SetOfPatterns.m_FILE_EXTENSION +
+                " header was not the one " +
+                "used to generate the " +
+                SetOfPatterns.m_FILE_EXTENSION + " ??");
+    Print.error("Note the " + SetOfPatterns.m_FILE_EXTENSION + " file " +
+                patternsFileName + " has " + nnumberOfPatterns +
+                " patterns " +
+                "while system tried to read pattern index # " +
+                npatternIndex);
+  }
+
+  /**
+   *  Returns a DiagonalGaussianScorer for the HMMs of setOfHMMs if the
+   *  segments can be classified by concurrent threads, which requires more
+   *  than one thread (see setNumberOfThreads()), a SetOfPlainContinuousHMMs
+   *  (its findBestModelAndItsScore() is not thread-safe, so
+   *  ViterbiWorkspace.classify() is used) and all mixtures packed by the
+   *  scorer. Otherwise, returns null.
+   */
+  private static DiagonalGaussianScorer
+      getDiagonalGaussianScorerForThreadsIfApplicable(SetOfHMMs setOfHMMs,
+      ViterbiWorkspace viterbiWorkspace) {
+    if (m_nnumberOfThreads < 2 ||
+        setOfHMMs.getClass() != SetOfPlainContinuousHMMs.class) {
+      return null;
+    }
+    //the scorer of the ViterbiWorkspace (and its GaussianSelector) is reused
+    DiagonalGaussianScorer diagonalGaussianScorer = viterbiWorkspace.
+        getDiagonalGaussianScorer();
+    if (!diagonalGaussianScorer.areAllMixturesPacked()) {
+      if (m_nverbose > 0) {
+        Print.warning("Using a single thread because not all Gaussians have diagonal covariance matrices");
+      }
+      return null;
+    }
+    return diagonalGaussianScorer;
+  }
+
+  /**
+   *  Classifies the segments of the given SetOfPatterns using
+   *  m_nnumberOfThreads threads, then updates the statistics in the order
+   *  of the DataLocator file, such that the results (including lattices)
+   *  are the same obtained by a single thread in getResults(). If
+   *  beamPrunedViterbi is not null, each thread uses its own
+   *  BeamPrunedViterbi with the same beam width and the statistics are
+   *  added to beamPrunedViterbi.
+   */
+  private static void classifySegmentsUsingThreads(
+      ContinuousHMM[] continuousHMMs,
+      DiagonalGaussianScorer diagonalGaussianScorer,
+      BeamPrunedViterbi beamPrunedViterbi,
+      SetOfPatterns setOfPatterns,
+      String patternsFileName,
+      String correctLabel,
+      TableOfLabels tableOfLabelsForThisHMMSet,
+      boolean oshouldWriteLattices,
+      int nbestListN,
+      int nminimumNumberOfFramesInValidPattern,
+      ClassificationStatisticsCalculator classificationStatisticsCalculator) {
+
+    int nnumberOfPatterns = setOfPatterns.getNumberOfPatterns();
+    String dataLocatorFileName = setOfPatterns.getDataLocatorFileName();
+
+    //the segment associated to each Pattern
+    Vector segmentsInfo = new Vector();
+    DatabaseManager databaseManager = new DatabaseManager(dataLocatorFileName);
+    while (databaseManager.isThereDataToRead()) {
+      DataLocator dataLocator = databaseManager.getNextDataLocator();
+      int ntotalNumberOfSegmentsInThisDataLocator = dataLocator.
+          getNumberOfSegments();
+      for (int nsegmentIndex = 0;
+           nsegmentIndex < ntotalNumberOfSegmentsInThisDataLocator;
+           nsegmentIndex++) {
+        String segmentInfo = dataLocator.getGivenSegment(nsegmentIndex);
+        if (segmentsInfo.size() == nnumberOfPatterns) {
+          printErrorOfMissingPattern("Pattern index = " + nnumberOfPatterns +
+                                     " is outside valid range",
+                                     segmentInfo, dataLocatorFileName,
+                                     patternsFileName, nnumberOfPatterns,
+                                     nnumberOfPatterns);
+          databaseManager.m_oendOfData = true;
+          break;
+        }
+        segmentsInfo.addElement(segmentInfo);
+      }
+    }
+    databaseManager.finalizeDataReading();
+
+    int nnumberOfSegments = segmentsInfo.size();
+    SegmentsQueue segmentsQueue = new SegmentsQueue(continuousHMMs,
+        diagonalGaussianScorer, beamPrunedViterbi,
+        setOfPatterns, nnumberOfSegments, nminimumNumberOfFramesInValidPattern,
+        nbestListN, oshouldWriteLattices);
+    int nnumberOfThreads = Math.min(m_nnumberOfThreads, nnumberOfSegments);
+    Thread[] threads = new Thread[nnumberOfThreads];
+    for (int i = 0; i < nnumberOfThreads; i++) {
+      threads[i] = new Thread(segmentsQueue);
+      threads[i].start();
+    }
+    for (int i = 0; i < nnumberOfThreads; i++) {
+      try {
+        threads[i].join();
+      }
+      catch (InterruptedException e) {
+        e.printStackTrace();
+        End.exit(1);
+      }
+    }
+
+    //update statistics in the original order
+    for (int i = 0; i < nnumberOfSegments; i++) {
+      String segmentInfo = (String) segmentsInfo.elementAt(i);
+      if (segmentsQueue.m_throwables[i] != null) {
+        segmentsQueue.m_throwables[i].printStackTrace();
+        Print.error("When processing " + segmentInfo);
+        End.exit(1);
+      }
+      ClassificationResult classificationResult = segmentsQueue.m_results[i];
+      if (classificationResult == null) {
+        //pattern with less than the minimum number of frames
+        continue;
+      }
+      int nbestModel = classificationResult.getBestModel();
+      if (nbestModel == -1) {
+        End.throwError("No token survived the Viterbi algorithm\n" +
+                       "If you are using a left-right HMM, change the configuration\n" +
+                       "providing a \"minimum number of frames per valid token\"." +
+                       "Currently, this value is = " +
+                       nminimumNumberOfFramesInValidPattern + " frames.");
+      }
+      String labelOfBestHMM = tableOfLabelsForThisHMMSet.getFirstLabel(
+          nbestModel);
+      if (oshouldWriteLattices) {
+        segmentInfo += " " +
+            classificationResult.getPathsOfNBestListUsingRunLengthEncoding();
+      }
+      classificationStatisticsCalculator.updateStatistics(correctLabel,
+          labelOfBestHMM,
+          segmentInfo);
+    }
+  }
+
+  /**
+   *  Patterns to be classified by concurrent threads. Each thread takes the
+   *  next Pattern index and uses its own ViterbiWorkspace, sharing the
+   *  DiagonalGaussianScorer. The result (or the error) of each Pattern is
+   *  stored in the position of its index.
+   */
+  private static class SegmentsQueue
+      implements Runnable {
+
+    private final DiagonalGaussianScorer m_diagonalGaussianScorer;
+    //null if beam pruning is disabled
+    private final BeamPrunedViterbi m_beamPrunedViterbi;
+    private final ContinuousHMM[] m_continuousHMMs;
+    private final SetOfPatterns m_setOfPatterns;
+    private final int m_nminimumNumberOfFramesInValidPattern;
+    private final int m_nbestListN;
+    private final boolean m_okeepPathsOfNBestList;
+    private int m_nnextPattern;
+
+    //null for patterns with less than the minimum number of frames
+    final ClassificationResult[] m_results;
+    final Throwable[] m_throwables;
+
+    SegmentsQueue(ContinuousHMM[] continuousHMMs,
+                  DiagonalGaussianScorer diagonalGaussianScorer,
+                  BeamPrunedViterbi beamPrunedViterbi,
+                  SetOfPatterns setOfPatterns,
+                  int nnumberOfPatterns,
+                  int nminimumNumberOfFramesInValidPattern,
+                  int nbestListN,
+                  boolean okeepPathsOfNBestList) {
+      m_diagonalGaussianScorer = diagonalGaussianScorer;
+      m_beamPrunedViterbi = beamPrunedViterbi;
+      m_continuousHMMs = continuousHMMs;
+      m_setOfPatterns = setOfPatterns;
+      m_nminimumNumberOfFramesInValidPattern =
+          nminimumNumberOfFramesInValidPattern;
+      m_nbestListN = nbestListN;
+      m_okeepPathsOfNBestList = okeepPathsOfNBestList;
+      m_results = new ClassificationResult[nnumberOfPatterns];
+      m_throwables = new Throwable[nnumberOfPatterns];
+    }
+
+    /**
+     *  Returns -1 when all patterns were taken.
+     */
+    private synchronized int getNextPattern() {
+      if (m_nnextPattern == m_results.length) {
+        return -1;
+      }
+      return m_nnextPattern++;
+    }
+
+    public void run() {
+      boolean oscoreOnly = !m_okeepPathsOfNBestList;
+      ViterbiWorkspace viterbiWorkspace = new ViterbiWorkspace(oscoreOnly);
+      viterbiWorkspace.setDiagonalGaussianScorer(m_diagonalGaussianScorer);
+      BeamPrunedViterbi beamPrunedViterbi = null;
+      if (m_beamPrunedViterbi != null) {
+        beamPrunedViterbi = new BeamPrunedViterbi(m_diagonalGaussianScorer,
+                                                  m_beamPrunedViterbi.
+                                                  getBeamWidth());
+        viterbiWorkspace.setBeamPrunedViterbi(beamPrunedViterbi);
+      }
+      MappedPatternsFile.Reader reader = m_setOfPatterns.getReader();
+      int i;
+      while ( (i = getNextPattern()) != -1) {
+        try {
+          Pattern pattern = m_setOfPatterns.getPattern(i, reader);
+          if (pattern.getNumOfFrames() >= m_nminimumNumberOfFramesInValidPattern) {
+            m_results[i] = viterbiWorkspace.classify(m_continuousHMMs, pattern,
+                m_nbestListN, m_okeepPathsOfNBestList);
+          }
+        }
+        catch (Throwable e) {
+          m_throwables[i] = e;
+        }
+      }
+      if (beamPrunedViterbi != null) {
+        m_beamPrunedViterbi.addStatistics(beamPrunedViterbi);
+      }
+    }
+  }
+
   /**
    *  Gets the SimplifiedResults attribute of the
    *  OffLineIsolatedSegmentsClassifier class
@@ -395,6 +888,12 @@ public class OffLineIsolatedSegmentsClassifier {
       }
     }
 
+    //the traceback is done only if the N-best list is needed
+    ViterbiWorkspace viterbiWorkspace = getViterbiWorkspaceIfApplicable(
+        setOfHMMs, oshouldWriteLattices);
+    int nbestListN = oshouldWriteLattices ?
+        tableOfLabelsForThisHMMSet.getNumberOfEntries() : 0;
+
     int nnumberOfEntries = tableOfLabels.getNumberOfEntries();
 
     Print.setJProgressBarRange(0, nnumberOfEntries);
@@ -413,7 +912,8 @@ public class OffLineIsolatedSegmentsClassifier {
           patternsFileName, directoryForSetOfPatterns);
 
       //System.out.println("Reading SetOfPatterns " + patternsFileName + " for nentryNumber = " + nentryNumber + ".");
-      SetOfPatterns setOfPatterns = new SetOfPatterns(patternsFileName);
+      //patterns are read from the mapped file as needed
+      SetOfPatterns setOfPatterns = new SetOfPatterns(patternsFileName, true);
       int nnumberOfPatterns = setOfPatterns.getNumberOfPatterns();
 
       //get the associated DataLocator file
@@ -425,6 +925,7 @@ public class OffLineIsolatedSegmentsClassifier {
       //for each Pattern in this SetOfPatterns file
       //int nnumberOfSegments = 0;
       //DataLocator dataLocator = null;
+      MappedPatternsFile.Reader reader = setOfPatterns.getReader();
       for (int i = 0; i < nnumberOfPatterns; i++) {
         //while (databaseManager.isThereDataToRead()) {
         //get the Segment that generated this Pattern
@@ -445,7 +946,7 @@ public class OffLineIsolatedSegmentsClassifier {
         //get the pattern
         Pattern pattern = null;
         //try {
-        pattern = setOfPatterns.getPattern(i);
+        pattern = setOfPatterns.getPattern(i, reader);
         //}
         //catch (ASRError e) {
         //Print.error(e.toString());
@@ -463,8 +964,10 @@ public class OffLineIsolatedSegmentsClassifier {
         //nnumberOfSegments++;
         if (pattern.getNumOfFrames() >= nminimumNumberOfFramesInValidPattern) {
           //find best HMM model
+          ClassificationResult classificationResult = null;
           try {
-            setOfHMMs.findBestModelAndItsScore(pattern);
+            classificationResult = classify(setOfHMMs, pattern, viterbiWorkspace,
+                                            nbestListN);
           }
           catch (Error e) {
             e.printStackTrace();
@@ -472,7 +975,7 @@ public class OffLineIsolatedSegmentsClassifier {
                         patternsFileName);
             End.exit(1);
           }
-          int nbestModel = setOfHMMs.getBestModel();
+          int nbestModel = classificationResult.getBestModel();
 
           //setOfHMMs.en
           //Print.dialog("score = " + setOfHMMs.getBestScore());
@@ -488,7 +991,7 @@ public class OffLineIsolatedSegmentsClassifier {
           String segmentInfo = "Pattern_#_" + i;
           if (oshouldWriteLattices) {
             //then add lattices to segmentInfo
-            String paths = setOfPlainContinuousHMMs.
+            String paths = classificationResult.
                 getPathsOfNBestListUsingRunLengthEncoding();
             segmentInfo += " " + paths;
             //String segmentInfoWithoutPath = extractPathFromFileName(segmentInfo);
@@ -526,6 +1029,7 @@ public class OffLineIsolatedSegmentsClassifier {
         //}
       }
       //databaseManager.finalizeDataReading();
+      setOfPatterns.close();
       Print.updateJProgressBar(nentryNumber + 1);
     }
 
@@ -539,6 +1043,7 @@ public class OffLineIsolatedSegmentsClassifier {
     //				End.exit();
     //			}
     //		}
+    printStatisticsOfWorkspace(viterbiWorkspace);
     return classificationStatisticsCalculator;
   }
 
@@ -685,6 +1190,35 @@ public class OffLineIsolatedSegmentsClassifier {
         "OffLineIsolatedSegmentsClassifier.nminimumNumberOfFramesInValidPattern");
     int nminimumNumberOfFramesInValidPattern = Integer.parseInt(property);
 
+    property = headerProperties.getProperty(
+        "OffLineIsolatedSegmentsClassifier.nnumberOfThreads", "1");
+    setNumberOfThreads(Integer.parseInt(property));
+
+    property = headerProperties.getProperty(
+        "OffLineIsolatedSegmentsClassifier.ngaussianSelectionCodebookSize",
+        "0");
+    int ngaussianSelectionCodebookSize = Integer.parseInt(property);
+    property = headerProperties.getProperty(
+        "OffLineIsolatedSegmentsClassifier.ngaussianSelectionShortlistSize",
+        "4");
+    int ngaussianSelectionShortlistSize = Integer.parseInt(property);
+    property = headerProperties.getProperty(
+        "OffLineIsolatedSegmentsClassifier.fgaussianSelectionLogFloor",
+        Float.toString(LogDomainCalculator.m_fLOG_DOMAIN_ZERO));
+    float fgaussianSelectionLogFloor = Float.parseFloat(property);
+    setGaussianSelection(ngaussianSelectionCodebookSize,
+                         ngaussianSelectionShortlistSize,
+                         fgaussianSelectionLogFloor);
+
+    property = headerProperties.getProperty(
+        "OffLineIsolatedSegmentsClassifier.nmixtureLikelihoodCacheSizeInMegabytes",
+        "64");
+    setMixtureLikelihoodCacheSize(Integer.parseInt(property));
+
+    property = headerProperties.getProperty(
+        "OffLineIsolatedSegmentsClassifier.fbeamWidth", "0");
+    setBeamWidth(Float.parseFloat(property));
+
 //		CMProperty property = CMUtilities.getCMPropertyFromArray("hMMSetFileName", finalProperties);
 //		String jarHMMsFileName = property.getValue();
 //		property = CMUtilities.getCMPropertyFromArray("oshouldWriteLattices", finalProperties);
@@ -0,0 +1,258 @@
+package edu.ucsd.asr;
+
+/**
+ *  Pool of threads that process a list of tasks (0, 1, ...) ahead of a
+ *  consumer, which obtains the results with getNextResult() in the order of
+ *  the tasks. The results not consumed yet are kept in a circular buffer, so
+ *  a thread waits when it is bufferSize tasks ahead of the consumer, which
+ *  limits the memory used. An error of a task is rethrown to the consumer
+ *  when it requests the result of that task.
+ *  <p>
+ *  It also keeps statistics: the number of results already available when
+ *  one is requested (queue depth) and the time the consumer waited (stalled)
+ *  for a result that was not ready. A queue that is always empty indicates
+ *  that the tasks are the bottleneck.
+ *  <p>
+ *  Used by ParallelFrontEnd and UtterancePrefetcher.
+ */
+abstract class OrderedWorkerPool {
+
+  private final int m_nnumberOfTasks;
+  private final WorkerThread[] m_workerThreads;
+
+  /**
+   *  Result of each task not consumed yet, indexed by task % length.
+   */
+  private final Object[] m_results;
+  private final Throwable[] m_throwables;
+  private final boolean[] m_oisDone;
+
+  private int m_nnextTaskToProcess;
+  private int m_nnextTaskToConsume;
+  private boolean m_ostop;
+
+  private int m_nnumberOfStalls;
+  private long m_lstallTimeInMilliseconds;
+  private long m_lsumOfQueueDepths;
+  private int m_nmaximumQueueDepth;
+
+  /**
+   *@param  nnumberOfTasks    number of tasks
+   *@param  nnumberOfThreads  number of threads (at most nbufferSize are
+   *      created, because the others would be always waiting)
+   *@param  nbufferSize       maximum number of tasks being processed or
+   *      waiting to be consumed
+   *@param  threadName        prefix of the names of the threads
+   */
+  OrderedWorkerPool(int nnumberOfTasks, int nnumberOfThreads,
+                    int nbufferSize, String threadName) {
+    if (nnumberOfThreads < 1 || nbufferSize < 1) {
+      End.throwError("OrderedWorkerPool needs at least 1 thread and a " +
+                     "buffer with at least 1 position");
+    }
+    m_nnumberOfTasks = nnumberOfTasks;
+    m_results = new Object[nbufferSize];
+    m_throwables = new Throwable[nbufferSize];
+    m_oisDone = new boolean[nbufferSize];
+    int nthreads = Math.min(nnumberOfThreads, nbufferSize);
+    m_workerThreads = new WorkerThread[nthreads];
+    for (int i = 0; i < nthreads; i++) {
+      m_workerThreads[i] = new WorkerThread(i);
+      m_workerThreads[i].setName(threadName + "-" + i);
+      //do not keep the JVM alive if consumer gives up
+      m_workerThreads[i].setDaemon(true);
+    }
+  }
+
+  /**
+   *  Process the given task. It is called by the worker threads, so it
+   *  cannot change the state of the consumer without synchronization.
+   *
+   *@param  ntask    index of the task
+   *@param  nthread  index of the calling thread, from 0 to
+   *      getNumberOfThreads() - 1, which allows keeping one object per
+   *      thread (e.g. a PatternGenerator)
+   *@return          result to be returned by getNextResult()
+   */
+  protected abstract Object process(int ntask, int nthread);
+
+  int getNumberOfThreads() {
+    return m_workerThreads.length;
+  }
+
+  int getBufferSize() {
+    return m_results.length;
+  }
+
+  void start() {
+    for (int i = 0; i < m_workerThreads.length; i++) {
+      m_workerThreads[i].start();
+    }
+  }
+
+  synchronized boolean isThereResultToRead() {
+    return m_nnextTaskToConsume < m_nnumberOfTasks;
+  }
+
+  /**
+   *  Index of the task whose result will be returned by the next call to
+   *  getNextResult().
+   */
+  synchronized int getNextTaskToConsume() {
+    return m_nnextTaskToConsume;
+  }
+
+  /**
+   *  Return the result of the next task, waiting for it if necessary. If the
+   *  task threw an error, the threads are stopped and the error is rethrown
+   *  here, in the consumer thread.
+   */
+  Object getNextResult() {
+    Object result;
+    Throwable throwable;
+    synchronized (this) {
+      if (m_nnextTaskToConsume >= m_nnumberOfTasks) {
+        End.throwError("OrderedWorkerPool: no more tasks");
+      }
+      int nqueueDepth = 0;
+      for (int i = m_nnextTaskToConsume; i < m_nnextTaskToProcess; i++) {
+        if (m_oisDone[i % m_results.length]) {
+          nqueueDepth++;
+        }
+      }
+      m_lsumOfQueueDepths += nqueueDepth;
+      if (nqueueDepth > m_nmaximumQueueDepth) {
+        m_nmaximumQueueDepth = nqueueDepth;
+      }
+
+      int nposition = m_nnextTaskToConsume % m_results.length;
+      if (!m_oisDone[nposition]) {
+        m_nnumberOfStalls++;
+        long lstart = System.currentTimeMillis();
+        while (!m_oisDone[nposition]) {
+          try {
+            wait();
+          }
+          catch (InterruptedException e) {
+            End.throwError("Interrupted while waiting for task " +
+                           m_nnextTaskToConsume);
+          }
+        }
+        m_lstallTimeInMilliseconds += System.currentTimeMillis() - lstart;
+      }
+      result = m_results[nposition];
+      throwable = m_throwables[nposition];
+      m_results[nposition] = null;
+      m_throwables[nposition] = null;
+      m_oisDone[nposition] = false;
+      m_nnextTaskToConsume++;
+      notifyAll();
+    }
+    if (throwable != null) {
+      stop();
+      if (throwable instanceof RuntimeException) {
+        throw (RuntimeException) throwable;
+      }
+      else if (throwable instanceof Error) {
+        throw (Error) throwable;
+      }
+    }
+    return result;
+  }
+
+  /**
+   *  Stop the threads. Tasks not consumed yet are discarded.
+   */
+  void stop() {
+    synchronized (this) {
+      m_ostop = true;
+      notifyAll();
+    }
+    for (int i = 0; i < m_workerThreads.length; i++) {
+      if (m_workerThreads[i] == Thread.currentThread()) {
+        continue;
+      }
+      try {
+        m_workerThreads[i].join();
+      }
+      catch (InterruptedException e) {
+        End.throwError("Interrupted while waiting for thread " +
+                       m_workerThreads[i].getName());
+      }
+    }
+  }
+
+  synchronized int getNumberOfConsumedResults() {
+    return m_nnextTaskToConsume;
+  }
+
+  synchronized int getNumberOfStalls() {
+    return m_nnumberOfStalls;
+  }
+
+  synchronized long getStallTimeInMilliseconds() {
+    return m_lstallTimeInMilliseconds;
+  }
+
+  synchronized double getAverageQueueDepth() {
+    return (m_nnextTaskToConsume == 0) ? 0.0 :
+        ( (double) m_lsumOfQueueDepths) / m_nnextTaskToConsume;
+  }
+
+  synchronized int getMaximumQueueDepth() {
+    return m_nmaximumQueueDepth;
+  }
+
+  /**
+   *  Returns -1 if there are no more tasks.
+   */
+  private synchronized int reserveNextTask() {
+    while (!m_ostop && m_nnextTaskToProcess < m_nnumberOfTasks &&
+           m_nnextTaskToProcess - m_nnextTaskToConsume >= m_results.length) {
+      try {
+        wait();
+      }
+      catch (InterruptedException e) {
+        return -1;
+      }
+    }
+    if (m_ostop || m_nnextTaskToProcess >= m_nnumberOfTasks) {
+      return -1;
+    }
+    return m_nnextTaskToProcess++;
+  }
+
+  private synchronized void store(int ntask, Object result,
+                                  Throwable throwable) {
+    int nposition = ntask % m_results.length;
+    m_results[nposition] = result;
+    m_throwables[nposition] = throwable;
+    m_oisDone[nposition] = true;
+    notifyAll();
+  }
+
+  private class WorkerThread extends Thread {
+
+    private final int m_nthread;
+
+    WorkerThread(int nthread) {
+      m_nthread = nthread;
+    }
+
+    public void run() {
+      int ntask;
+      while ( (ntask = reserveNextTask()) != -1) {
+        Object result = null;
+        Throwable throwable = null;
+        try {
+          result = process(ntask, m_nthread);
+        }
+        catch (Throwable t) {
+          throwable = t;
+        }
+        store(ntask, result, throwable);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,353 @@
+package edu.ucsd.asr;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+
+/**
+ *  Single binary file with the Patterns of all sentences of a corpus, to be
+ *  used instead of one SetOfPatterns file per sentence. The Patterns are
+ *  stored back-to-back, in the order they were written, followed by an
+ *  index keyed by the file name of the DataLocator of each sentence, such
+ *  that reading the sentences in the order of the DataLocator file that
+ *  created the corpus is a sequential scan of the file.
+ *  The header has a fingerprint of the front end properties and of the
+ *  SetOfPatterns files the Patterns were read from (see
+ *  calculateFingerprint()), such that a reader can detect a file that is
+ *  stale, because the front end or the SetOfPatterns files changed after it
+ *  was written. Version 1 files have no fingerprint.
+ *  The format is big-endian, as in SetOfPatterns files:
+ *  <pre>
+ *  header: magic number, version, space dimension, # of Patterns (ints),
+ *          position of the index (long) and fingerprint (20 bytes)
+ *  Patterns: for each Pattern, its frames (floats), one after the other
+ *  index: for each Pattern, its name (Java modified UTF-8, as written by
+ *         DataOutputStream.writeUTF), position (long) and # of frames (int)
+ *  </pre>
+ *  getPattern() can be called by concurrent threads.
+ */
+public class PackedCorpusFile {
+
+  public static final String m_FILE_EXTENSION = "PCF";
+
+  /**
+   *  Name of the file written in a directory of SetOfPatterns files.
+   */
+  public static final String m_DEFAULT_FILE_NAME = "sentences." +
+      m_FILE_EXTENSION;
+
+  private static final int m_nMAGIC_NUMBER = 0x31464350; //"PCF1"
+  private static final int m_nVERSION = 2;
+  private static final int m_nFINGERPRINT_SIZE = 20;
+  private static final int m_nHEADER_SIZE = 4 * 4 + 8 + m_nFINGERPRINT_SIZE;
+  private static final int m_nVERSION_1_HEADER_SIZE = 4 * 4 + 8;
+
+  private final String m_fileName;
+  private final int m_nspaceDimension;
+  private final String[] m_names;
+  private final long[] m_lpositions;
+  private final int[] m_nnumberOfFrames;
+
+  /**
+   *  Null for version 1 files.
+   */
+  private final byte[] m_fingerprint;
+
+  /**
+   *  Maps each name into the index of its Pattern.
+   */
+  private final HashMap m_nameToIndex;
+
+  private final RandomAccessFile m_randomAccessFile;
+  private final FileChannel m_fileChannel;
+
+  /**
+   *  Open the given file and read its index. The file is kept open until
+   *  close() is called.
+   */
+  public PackedCorpusFile(String fileName) throws IOException {
+    m_fileName = fileName;
+    m_randomAccessFile = new RandomAccessFile(fileName, "r");
+    m_fileChannel = m_randomAccessFile.getChannel();
+
+    ByteBuffer header = ByteBuffer.allocate(m_nVERSION_1_HEADER_SIZE);
+    readFully(header, 0);
+    if (header.getInt(0) != m_nMAGIC_NUMBER) {
+      close();
+      End.throwError("File " + fileName + " is not a " + m_FILE_EXTENSION +
+                     " file");
+    }
+    int nversion = header.getInt(4);
+    if (nversion != 1 && nversion != m_nVERSION) {
+      close();
+      End.throwError("File " + fileName + " has version " + nversion +
+                     ", but only versions 1 and " + m_nVERSION +
+                     " are supported");
+    }
+    if (nversion == 1) {
+      m_fingerprint = null;
+    }
+    else {
+      ByteBuffer fingerprint = ByteBuffer.allocate(m_nFINGERPRINT_SIZE);
+      readFully(fingerprint, m_nVERSION_1_HEADER_SIZE);
+      m_fingerprint = fingerprint.array();
+    }
+    m_nspaceDimension = header.getInt(8);
+    int nnumberOfPatterns = header.getInt(12);
+    long lindexPosition = header.getLong(16);
+    if (lindexPosition <= 0) {
+      close();
+      End.throwError("File " + fileName + " was not closed properly when " +
+                     "written");
+    }
+
+    ByteBuffer index = ByteBuffer.allocate((int) (m_fileChannel.size() -
+        lindexPosition));
+    readFully(index, lindexPosition);
+    DataInputStream dataInputStream = new DataInputStream(new
+        ByteArrayInputStream(index.array()));
+    m_names = new String[nnumberOfPatterns];
+    m_lpositions = new long[nnumberOfPatterns];
+    m_nnumberOfFrames = new int[nnumberOfPatterns];
+    m_nameToIndex = new HashMap();
+    for (int i = 0; i < nnumberOfPatterns; i++) {
+      m_names[i] = dataInputStream.readUTF();
+      m_lpositions[i] = dataInputStream.readLong();
+      m_nnumberOfFrames[i] = dataInputStream.readInt();
+      m_nameToIndex.put(m_names[i], new Integer(i));
+    }
+  }
+
+  private void readFully(ByteBuffer byteBuffer, long lposition) throws
+      IOException {
+    while (byteBuffer.hasRemaining()) {
+      int nread = m_fileChannel.read(byteBuffer, lposition);
+      if (nread < 0) {
+        throw new IOException("Unexpected end of file " + m_fileName);
+      }
+      lposition += nread;
+    }
+    byteBuffer.flip();
+  }
+
+  /**
+   *  Names are keys to the Patterns and are compared after replacing
+   *  back by forward slashes.
+   */
+  private static String getKey(String name) {
+    return name.replace('\\', '/');
+  }
+
+  public String getFileName() {
+    return m_fileName;
+  }
+
+  public int getSpaceDimension() {
+    return m_nspaceDimension;
+  }
+
+  public int getNumberOfPatterns() {
+    return m_names.length;
+  }
+
+  /**
+   *  Returns null for version 1 files, which have no fingerprint.
+   */
+  public byte[] getFingerprint() {
+    return m_fingerprint;
+  }
+
+  /**
+   *  Fingerprint of the data a PackedCorpusFile is created from: a SHA-1
+   *  hash of the front end properties (see FrontEndProperties), the number
+   *  of SetOfPatterns files and their modification times, in the order of
+   *  the DataLocator file. The modification times and not the contents of
+   *  the files are used, such that checking a large corpus is fast.
+   *
+   *@param  headerProperties         properties of the PatternGenerator
+   *@param  setOfPatternsFileNames   SetOfPatterns file of each sentence
+   */
+  public static byte[] calculateFingerprint(HeaderProperties
+                                            headerProperties,
+                                            String[] setOfPatternsFileNames) {
+    MessageDigest messageDigest = null;
+    try {
+      messageDigest = MessageDigest.getInstance("SHA-1");
+      messageDigest.update(FrontEndProperties.getProperties(headerProperties).
+                           getBytes("UTF-8"));
+    }
+    catch (NoSuchAlgorithmException e) {
+      End.throwError("SHA-1 is not available: " + e.getMessage());
+    }
+    catch (UnsupportedEncodingException e) {
+      End.throwError("UTF-8 is not supported");
+    }
+    ByteBuffer byteBuffer = ByteBuffer.allocate(8);
+    byteBuffer.putLong(0, setOfPatternsFileNames.length);
+    messageDigest.update(byteBuffer.array());
+    for (int i = 0; i < setOfPatternsFileNames.length; i++) {
+      byteBuffer.putLong(0, new File(setOfPatternsFileNames[i]).lastModified());
+      messageDigest.update(byteBuffer.array());
+    }
+    return messageDigest.digest();
+  }
+
+  public String getName(int nindex) {
+    return m_names[nindex];
+  }
+
+  /**
+   *  Returns -1 if there is no Pattern with the given name.
+   */
+  public int getIndex(String name) {
+    Integer index = (Integer) m_nameToIndex.get(getKey(name));
+    return (index == null) ? -1 : index.intValue();
+  }
+
+  public Pattern getPattern(int nindex) {
+    int nnumberOfFrames = m_nnumberOfFrames[nindex];
+    ByteBuffer byteBuffer = ByteBuffer.allocate(4 * nnumberOfFrames *
+                                                m_nspaceDimension);
+    try {
+      //positional read: does not change the position of the channel
+      readFully(byteBuffer, m_lpositions[nindex]);
+    }
+    catch (IOException e) {
+      End.throwError("Error reading " + m_names[nindex] + " from " +
+                     m_fileName + ": " + e.getMessage());
+    }
+    FloatBuffer floatBuffer = byteBuffer.asFloatBuffer();
+    float[][] fparameters = new float[nnumberOfFrames][m_nspaceDimension];
+    for (int t = 0; t < nnumberOfFrames; t++) {
+      floatBuffer.get(fparameters[t]);
+    }
+    return new Pattern(fparameters);
+  }
+
+  /**
+   *  Returns null if there is no Pattern with the given name.
+   */
+  public Pattern getPattern(String name) {
+    int nindex = getIndex(name);
+    return (nindex == -1) ? null : getPattern(nindex);
+  }
+
+  public void close() {
+    try {
+      m_randomAccessFile.close();
+    }
+    catch (IOException e) {
+      End.throwError("Error closing " + m_fileName + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   *  Writes a PackedCorpusFile one Pattern at a time. The index and the
+   *  header are written by close(); a file that was not closed is rejected
+   *  by the reader. The fingerprint must be set before close(), after the
+   *  SetOfPatterns files were written.
+   */
+  public static class Writer {
+
+    private final String m_fileName;
+    private final int m_nspaceDimension;
+    private final DataOutputStream m_dataOutputStream;
+    private final HashMap m_names = new HashMap();
+    private final ByteArrayOutputStream m_index = new ByteArrayOutputStream();
+    private final DataOutputStream m_indexOutputStream =
+        new DataOutputStream(m_index);
+    private long m_lposition = m_nHEADER_SIZE;
+    private int m_nnumberOfPatterns;
+    private byte[] m_fingerprint = new byte[m_nFINGERPRINT_SIZE];
+
+    public Writer(String fileName, int nspaceDimension) throws IOException {
+      m_fileName = fileName;
+      m_nspaceDimension = nspaceDimension;
+      m_dataOutputStream = new DataOutputStream(new BufferedOutputStream(new
+          FileOutputStream(fileName), 1 << 16));
+      m_dataOutputStream.writeInt(m_nMAGIC_NUMBER);
+      m_dataOutputStream.writeInt(m_nVERSION);
+      m_dataOutputStream.writeInt(nspaceDimension);
+      //# of Patterns, index position and fingerprint are written by close()
+      m_dataOutputStream.writeInt(0);
+      m_dataOutputStream.writeLong(0);
+      m_dataOutputStream.write(m_fingerprint);
+    }
+
+    /**
+     *@param  fingerprint  calculated by calculateFingerprint()
+     */
+    public void setFingerprint(byte[] fingerprint) {
+      if (fingerprint.length != m_nFINGERPRINT_SIZE) {
+        End.throwError("Fingerprint of " + m_fileName + " has " +
+                       fingerprint.length + " bytes instead of " +
+                       m_nFINGERPRINT_SIZE);
+      }
+      m_fingerprint = fingerprint;
+    }
+
+    /**
+     *  @param name file name of the DataLocator of the sentence
+     */
+    public void addPattern(String name, Pattern pattern) throws IOException {
+      String key = getKey(name);
+      if (m_names.containsKey(key)) {
+        End.throwError("Pattern " + name + " was already added to " +
+                       m_fileName);
+      }
+      if (pattern.getNumOfParametersPerFrame() != m_nspaceDimension) {
+        End.throwError("Pattern " + name + " has dimension " +
+                       pattern.getNumOfParametersPerFrame() + " while " + m_fileName +
+                       " has dimension " + m_nspaceDimension);
+      }
+      m_names.put(key, key);
+      int nnumberOfFrames = pattern.getNumOfFrames();
+      float[][] fparameters = pattern.getParameters();
+      for (int t = 0; t < nnumberOfFrames; t++) {
+        for (int k = 0; k < m_nspaceDimension; k++) {
+          m_dataOutputStream.writeFloat(fparameters[t][k]);
+        }
+      }
+      m_indexOutputStream.writeUTF(key);
+      m_indexOutputStream.writeLong(m_lposition);
+      m_indexOutputStream.writeInt(nnumberOfFrames);
+      m_lposition += 4L * nnumberOfFrames * m_nspaceDimension;
+      m_nnumberOfPatterns++;
+    }
+
+    public int getNumberOfPatterns() {
+      return m_nnumberOfPatterns;
+    }
+
+    public void close() throws IOException {
+      m_indexOutputStream.flush();
+      m_index.writeTo(m_dataOutputStream);
+      m_dataOutputStream.close();
+      RandomAccessFile randomAccessFile = new RandomAccessFile(m_fileName,
+          "rw");
+      try {
+        randomAccessFile.seek(12);
+        randomAccessFile.writeInt(m_nnumberOfPatterns);
+        randomAccessFile.writeLong(m_lposition);
+        randomAccessFile.write(m_fingerprint);
+      }
+      finally {
+        randomAccessFile.close();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,111 @@
+package edu.ucsd.asr;
+
+/**
+ *  Runs the front end (conversion of speech into Patterns) of a list of
+ *  tasks (e.g. table entries or sentences) using a pool of threads, each one
+ *  with its own PatternGenerator, because PatternGenerators keep buffers and
+ *  cannot be shared. The results are obtained with getResult() in the order
+ *  of the tasks, such that the caller can update header properties, report
+ *  files and progress bar as it would do with a single thread. At most
+ *  4 tasks per thread are processed ahead of the one requested by
+ *  getResult(), to limit the memory used by results not consumed yet.
+ *  <p>
+ *  With only 1 thread, no thread is created: each task is processed by
+ *  getResult() with the PatternGenerator given to the constructor.
+ */
+abstract class ParallelFrontEnd {
+
+  private static final int m_nTASKS_AHEAD_PER_THREAD = 4;
+
+  private final PatternGenerator m_patternGenerator;
+
+  /**
+   *  PatternGenerator of each thread of the pool.
+   */
+  private final PatternGenerator[] m_threadPatternGenerators;
+
+  /**
+   *  Null if there is only 1 thread.
+   */
+  private final OrderedWorkerPool m_orderedWorkerPool;
+
+  /**
+   *@param  nnumberOfTasks    number of tasks
+   *@param  nnumberOfThreads  number of threads
+   *@param  patternGenerator  used when there is only 1 thread
+   *@param  headerProperties  used to create a PatternGenerator per thread
+   */
+  ParallelFrontEnd(int nnumberOfTasks, int nnumberOfThreads,
+                   PatternGenerator patternGenerator,
+                   HeaderProperties headerProperties) {
+    m_patternGenerator = patternGenerator;
+    int nthreads = Math.min(nnumberOfThreads, nnumberOfTasks);
+    if (nthreads < 2) {
+      m_threadPatternGenerators = null;
+      m_orderedWorkerPool = null;
+      return;
+    }
+    m_threadPatternGenerators = new PatternGenerator[nthreads];
+    for (int i = 0; i < nthreads; i++) {
+      m_threadPatternGenerators[i] = PatternGenerator.getPatternGenerator(
+          headerProperties);
+      if (m_threadPatternGenerators[i] == null) {
+        End.throwError("Could not construct PatternGenerator for thread " + i);
+      }
+    }
+    m_orderedWorkerPool = new OrderedWorkerPool(nnumberOfTasks, nthreads,
+                                                m_nTASKS_AHEAD_PER_THREAD *
+                                                nthreads, "ParallelFrontEnd") {
+      protected Object process(int ntask, int nthread) {
+        return ParallelFrontEnd.this.process(ntask,
+                                             m_threadPatternGenerators[nthread]);
+      }
+    };
+  }
+
+  /**
+   *  Process the given task. It is called by the worker threads, so it
+   *  cannot change the state of the caller without synchronization.
+   *
+   *@return  result to be returned by getResult()
+   */
+  protected abstract Object process(int ntask,
+                                    PatternGenerator patternGenerator);
+
+  int getNumberOfThreads() {
+    return (m_orderedWorkerPool == null) ? 1 :
+        m_orderedWorkerPool.getNumberOfThreads();
+  }
+
+  void start() {
+    if (m_orderedWorkerPool != null) {
+      m_orderedWorkerPool.start();
+    }
+  }
+
+  /**
+   *  Return the result of the given task, waiting for it if necessary. The
+   *  tasks must be requested in order (0, 1, ...). An error of the task is
+   *  rethrown here.
+   */
+  Object getResult(int ntask) {
+    if (m_orderedWorkerPool == null) {
+      return process(ntask, m_patternGenerator);
+    }
+    if (ntask != m_orderedWorkerPool.getNextTaskToConsume()) {
+      End.throwError("Task " + ntask + " requested, but expected task " +
+                     m_orderedWorkerPool.getNextTaskToConsume());
+    }
+    return m_orderedWorkerPool.getNextResult();
+  }
+
+  /**
+   *  Stop the threads. Tasks not consumed yet are discarded.
+   */
+  void stop() {
+    if (m_orderedWorkerPool != null) {
+      m_orderedWorkerPool.stop();
+    }
+  }
+
+}
@@ -42,6 +42,10 @@ public class SetOfPatterns {
   /** Vector storing this set of patterns.*/
   private Vector m_patterns;
 
+  /** If not null, the patterns are read from this file when requested
+   * and m_patterns is empty.*/
+  private MappedPatternsFile m_mappedPatternsFile;
+
   /**Creates a new empty SetOfPatterns with the parametric
    * representation given by nparametricRepresentationType.
    */
@@ -59,8 +63,21 @@ public class SetOfPatterns {
   /**Constructor that reads an object SetofPatterns from a binary file.
    */
   public SetOfPatterns(String inputFilename) {
+    this(inputFilename, false);
+  }
+
+  /**Constructor that reads an object SetofPatterns from a binary file.
+   * If omapFile is true, the file is memory-mapped (see MappedPatternsFile)
+   * and each Pattern is read from the file when getPattern() is called,
+   * instead of loading all Patterns on the heap. In this case, getPattern()
+   * returns a new object for each call, so modifications to the Pattern are
+   * not kept. Methods that modify the set (e.g. addPattern()) load all
+   * Patterns first. Files that only include other files are always loaded.
+   * The mapping is released by close().
+   */
+  public SetOfPatterns(String inputFilename, boolean omapFile) {
     m_patterns = new Vector();
-    readFromFile(inputFilename);
+    readFromFile(inputFilename, omapFile);
   }
 
   /**
@@ -177,7 +194,7 @@ public class SetOfPatterns {
    * Notice that this implies that all Pattern objects in a given
    * SetOfPatterns share the same space dimension.
    */
-  private void readFromFile(String inputFilename) {
+  private void readFromFile(String inputFilename, boolean omapFile) {
     try {
       FileWithHeaderReader fileWithHeaderReader = new FileWithHeaderReader(inputFilename);
       if (!fileWithHeaderReader.wasFileOpenedSuccessfully() ||
@@ -290,6 +307,14 @@ public class SetOfPatterns {
         nspaceDimension = Integer.parseInt(temp.trim());
       }
 
+      if (omapFile) {
+        int nnumberOfBytesInHeader = fileWithHeaderReader.getNumberOfBytesInHeader();
+        fileWithHeaderReader.closeFile();
+        m_mappedPatternsFile = new MappedPatternsFile(inputFilename,
+            nnumberOfBytesInHeader, nnumOfPatterns, nspaceDimension);
+        return;
+      }
+
       DataInputStream inputFile = fileWithHeaderReader.getDataWithoutHeader();
 
       int ntemp = (int) inputFile.readFloat();
@@ -326,9 +351,62 @@ public class SetOfPatterns {
   /**Get current number of Patterns of this SetOfPatterns.
    */
   public int getNumberOfPatterns() {
+    if (m_mappedPatternsFile != null) {
+      return m_mappedPatternsFile.getNumberOfPatterns();
+    }
     return m_patterns.size();
   }
 
+  /**Returns true if the Patterns are read from a memory-mapped file
+   * when requested.
+   */
+  public boolean isMapped() {
+    return m_mappedPatternsFile != null;
+  }
+
+  /**Returns a reader of the memory-mapped file, to be used by a single
+   * thread in getPattern(int, MappedPatternsFile.Reader), or null if the
+   * Patterns are on the heap.
+   */
+  public MappedPatternsFile.Reader getReader() {
+    if (m_mappedPatternsFile != null) {
+      return m_mappedPatternsFile.getReader();
+    }
+    return null;
+  }
+
+  /**Release the memory-mapped file, if any. The Patterns cannot be read
+   * after that.
+   */
+  public void close() {
+    if (m_mappedPatternsFile != null) {
+      m_mappedPatternsFile.close();
+    }
+  }
+
+  /**Get the number of frames of a specific Pattern, without reading
+   * it from the memory-mapped file.
+   */
+  public int getNumberOfFrames(int npatternIndex) {
+    if (m_mappedPatternsFile != null) {
+      return m_mappedPatternsFile.getNumberOfFrames(npatternIndex);
+    }
+    return getPattern(npatternIndex).getNumOfFrames();
+  }
+
+  /**Copy all Patterns of the memory-mapped file (if any) to the heap,
+   * such that the set can be modified.
+   */
+  private void loadMappedPatterns() {
+    if (m_mappedPatternsFile != null) {
+      int nnumberOfPatterns = m_mappedPatternsFile.getNumberOfPatterns();
+      for (int i = 0; i < nnumberOfPatterns; i++) {
+        m_patterns.addElement(m_mappedPatternsFile.getPattern(i));
+      }
+      m_mappedPatternsFile = null;
+    }
+  }
+
   /**Get maximum number of frames in a Pattern of this SetOfPatterns.
    */
   public int getMaximumNumberOfFrames() {
@@ -370,6 +448,7 @@ public class SetOfPatterns {
                     "for method SetOfPatterns.addPattern()." +
                     " This Pattern was not added.");
     } else {
+      loadMappedPatterns();
       m_patterns.addElement(pattern);
       updateFramesStatistic(pattern);
     }
@@ -408,6 +487,7 @@ public class SetOfPatterns {
   /**Get the vector of Patterns represented by this SetOfPatterns.
    */
   public Vector getSetOfPatterns() {
+    loadMappedPatterns();
     return m_patterns;
   }
 
@@ -415,17 +495,36 @@ public class SetOfPatterns {
    * is npatternIndex.
    */
   public Pattern getPattern(int npatternIndex) {
-    if (npatternIndex < 0 | npatternIndex > m_patterns.size() - 1) {
+    if (npatternIndex < 0 | npatternIndex > getNumberOfPatterns() - 1) {
       End.throwError("Error in SetOfPatterns.getPattern(): index = " +
                      npatternIndex + " is outside valid range [0, " +
-                     (m_patterns.size() - 1) + "]." +
+                     (getNumberOfPatterns() - 1) + "]." +
                      " DataLocator for this file is " + m_dataLocatorFileName);
       return null; //make compiler happy
+    } else if (m_mappedPatternsFile != null) {
+      return m_mappedPatternsFile.getPattern(npatternIndex);
     } else {
       return (Pattern) m_patterns.elementAt(npatternIndex);
     }
   }
 
+  /**Get a specific Pattern of this SetOfPatterns using the reader obtained
+   * by getReader(), which reuses the memory of the previous Pattern read
+   * from the memory-mapped file. Therefore, the returned Pattern is valid
+   * only until the next call. If reader is null, it is the same as
+   * getPattern(int).
+   */
+  public Pattern getPattern(int npatternIndex, MappedPatternsFile.Reader reader) {
+    if (reader == null || m_mappedPatternsFile == null) {
+      return getPattern(npatternIndex);
+    }
+    if (npatternIndex < 0 | npatternIndex > getNumberOfPatterns() - 1) {
+      //throws the error
+      return getPattern(npatternIndex);
+    }
+    return reader.getPattern(npatternIndex);
+  }
+
   /**Set the Pattern in the position specified by npatternIndex
    * equal to pattern, with the previous Pattern at that position
    * being discarded.
@@ -435,6 +534,7 @@ public class SetOfPatterns {
    * number of frames in this SetOfPatterns.
    */
   public void setPattern(int npatternIndex, Pattern pattern) {
+    loadMappedPatterns();
     if (npatternIndex < 0 | npatternIndex > m_patterns.size() - 1) {
       System.out.println("Error in SetOfPatterns.getPattern(): index = " +
                          npatternIndex + " is outside valid range [0, " +
@@ -545,10 +645,10 @@ public class SetOfPatterns {
       dataOutputStream.writeFloat(nspaceDimension);
 
       for (int i = 0; i < nnumOfPatterns; i++) {
-        int nnumOfFrames = ( (Pattern) m_patterns.elementAt(i)).getNumOfFrames();
+        Pattern pattern = getPattern(i);
+        int nnumOfFrames = pattern.getNumOfFrames();
         dataOutputStream.writeFloat(nnumOfFrames);
-        float[][] fparameters = ( (Pattern) m_patterns.elementAt(i)).
-            getParameters();
+        float[][] fparameters = pattern.getParameters();
 
         //IO.DisplayMatrix(fparameters);
 
@@ -587,11 +687,11 @@ public class SetOfPatterns {
     IO.writeLineToWriter(bufferedWriter, "" + nspaceDimension);
 
     for (int i = 0; i < nnumOfPatterns; i++) {
-      int nnumOfFrames = ( (Pattern) m_patterns.elementAt(i)).getNumOfFrames();
+      Pattern pattern = getPattern(i);
+      int nnumOfFrames = pattern.getNumOfFrames();
       IO.writeLineToWriter(bufferedWriter, "" + nnumOfFrames);
 
-      float[][] fparameters = ( (Pattern) m_patterns.elementAt(i)).
-          getParameters();
+      float[][] fparameters = pattern.getParameters();
 
       //IO.DisplayMatrix(fparameters);
 
@@ -623,11 +723,11 @@ public class SetOfPatterns {
 	    System.out.println("" + nspaceDimension);
 
 	    for (int i = 0; i < nnumOfPatterns; i++) {
-	      int nnumOfFrames = ( (Pattern) m_patterns.elementAt(i)).getNumOfFrames();
+	      Pattern pattern = getPattern(i);
+	      int nnumOfFrames = pattern.getNumOfFrames();
 	      System.out.println("" + nnumOfFrames);
 
-	      float[][] fparameters = ( (Pattern) m_patterns.elementAt(i)).
-	          getParameters();
+	      float[][] fparameters = pattern.getParameters();
 
 	      IO.DisplayMatrix(fparameters);
 
@@ -646,9 +746,9 @@ public class SetOfPatterns {
                      ndimension + "]");
     }
     float fmax = -Float.MAX_VALUE;
-    int nnumberOfPatterns = m_patterns.size();
+    int nnumberOfPatterns = getNumberOfPatterns();
     for (int i = 0; i < nnumberOfPatterns; i++) {
-      Pattern pattern = (Pattern) m_patterns.elementAt(i);
+      Pattern pattern = getPattern(i);
       float thisMax = pattern.getMaximumValueOfGivenParameter(nparameterNumber);
       if (thisMax > fmax) {
         fmax = thisMax;
@@ -664,9 +764,9 @@ public class SetOfPatterns {
                      ndimension + "]");
     }
     float fmin = Float.MAX_VALUE;
-    int nnumberOfPatterns = m_patterns.size();
+    int nnumberOfPatterns = getNumberOfPatterns();
     for (int i = 0; i < nnumberOfPatterns; i++) {
-      Pattern pattern = (Pattern) m_patterns.elementAt(i);
+      Pattern pattern = getPattern(i);
       float thisMin = pattern.getMinimumValueOfGivenParameter(nparameterNumber);
       if (thisMin < fmin) {
         fmin = thisMin;
@@ -3,6 +3,8 @@ package edu.ucsd.asr;
 import java.io.IOException;
 import java.io.BufferedWriter;
 import java.io.FileWriter;
+import java.util.Arrays;
+import java.util.Vector;
 
 /**
  * Re-estimates a set of (possibly) shared continuous hidden-Markov models (HMM)
@@ -63,6 +65,12 @@ public class SetOfSharedContinuousHMMsReestimator {
 	 */
 	protected SetOfSharedContinuousHMMs.PhysicalHMM[] m_hmms;
 
+	/**
+	 * Sparse topology of the transition matrices of m_hmms (see
+	 * getTransitionArcs()).
+	 */
+	private TransitionArcs[] m_transitionArcs;
+
 	/**
 	 * Table with names (labels) of HMMs (both physical and logical). The first
 	 * label of i-th entry has the label (monophone, triphone, etc) associated
@@ -155,6 +163,40 @@ public class SetOfSharedContinuousHMMsReestimator {
 	 */
 	private int[] m_nfirstHMMInBetaMatrix;
 
+	/**
+	 * Utterances with at least this number of frames are processed with
+	 * checkpoints: the backward pass keeps only the columns (of m_dbeta and
+	 * m_flogOutputProbabilities) of the checkpoints, and the forward pass
+	 * recalculates the columns between two checkpoints when it needs them.
+	 * With one checkpoint every sqrt(T) frames, the memory is proportional
+	 * to sqrt(T) instead of T, at the cost of calculating most backward values
+	 * and output probabilities twice. If 0, checkpoints are not used.
+	 */
+	private int m_nminimumNumberOfFramesForCheckpointing;
+
+	/**
+	 * Number of frames between checkpoints for current utterance, or 0 if
+	 * all columns are kept.
+	 */
+	private int m_ncheckpointInterval;
+
+	/**
+	 * Memory (in bytes) used by the backward values and output probabilities
+	 * of each column that was calculated, and the total of the columns
+	 * currently stored.
+	 */
+	private int[] m_ncolumnSizesInBytes;
+
+	private long m_lcurrentMemoryInBytes;
+
+	/**
+	 * Peak memory used by backward values and output probabilities for
+	 * current utterance and the maximum over all utterances.
+	 */
+	protected long m_lpeakMemoryOfCurrentUtteranceInBytes;
+
+	protected long m_lmaximumPeakMemoryInBytes;
+
 	/**
 	 * Temporary storage for zero mean observation vector. It is a trick for
 	 * speeding up the calculation of variance estimates.
@@ -211,7 +253,69 @@ public class SetOfSharedContinuousHMMsReestimator {
 	 * File for writing the gamma values.
 	 */
 	protected static String m_gammaOutputFileName;
-	
+
+	/**
+	 * Number of threads used to accumulate the statistics. If larger than 1,
+	 * the utterances are split into contiguous shards and each shard is
+	 * processed by a different object (see
+	 * accumulateStatisticsUsingThreads()).
+	 */
+	private int m_nnumberOfThreads = 1;
+
+	/**
+	 * Maximum number of utterances (SOP file and sequence of HMMs) that are
+	 * read ahead by I/O threads while the current utterance is processed
+	 * (see UtterancePrefetcher). Used only when the statistics are
+	 * accumulated by a single thread. If 0, the utterances are read when
+	 * they are needed.
+	 */
+	private int m_nnumberOfPrefetchedUtterances;
+
+	/**
+	 * Number of I/O threads used to read ahead the utterances.
+	 */
+	private int m_nnumberOfPrefetchThreads = 1;
+
+	/**
+	 * If true, the Patterns are read from the PackedCorpusFile of the
+	 * directory with the SOP files, when it exists (see TrainingManager).
+	 */
+	private boolean m_ousePackedCorpusFile;
+
+	/**
+	 * Open while the statistics are accumulated, or null if the Patterns
+	 * are read from SOP files.
+	 */
+	private PackedCorpusFile m_packedCorpusFile;
+
+	/**
+	 * If true, the forward-backward sums in the log domain use
+	 * FastLogDomainCalculator instead of LogDomainCalculator.
+	 */
+	private boolean m_ouseFastLogAdd;
+
+	/**
+	 * Private accumulators of an object that processes a shard of the
+	 * utterances: copies of the mixtures being reestimated, accumulators for
+	 * the transition matrices and the number of training examples of each
+	 * physical HMM. They are null for the object that accumulates directly
+	 * into m_setOfSharedContinuousHMMsBeingReestimated.
+	 */
+	private MixtureOfGaussianPDFsBeingReestimated[] m_mixturesOfThisShard;
+
+	private TransitionMatrixAccumulator[] m_transitionMatrixAccumulatorsOfThisShard;
+
+	private int[] m_nnumberOfTrainingExamplesOfThisShard;
+
+	/**
+	 * Number of training examples of each physical HMM counted by the
+	 * shards, which are added to the ones counted by
+	 * m_setOfSharedContinuousHMMsBeingReestimated (see
+	 * getNumberOfTrainingExamplesOfGivenHMM()). It is null if the statistics
+	 * were not accumulated by threads.
+	 */
+	private int[] m_nnumberOfTrainingExamplesCountedByShards;
+
 	/**
 	 * Empty constructor. To be used by the AbsurdHMMsReestimator class.
 	 */
@@ -267,7 +371,65 @@ public class SetOfSharedContinuousHMMsReestimator {
 		// call embedded training
 		reestimateSetOfHMMsUsingEmbeddedBaumWelch(patternGenerator,
 				m_dataLocatorFileName,
-				setOfPatternsInputDirectory, outputOccupationStatisticsFileName);		
+				setOfPatternsInputDirectory, outputOccupationStatisticsFileName);
+	}
+
+	/**
+	 * Creates an object that accumulates the statistics of a shard of the
+	 * utterances. It shares the (read-only) models with master, but has its
+	 * own forward-backward matrices, its own mixtures (sharing the Gaussians
+	 * of master) and accumulators, which are later added to the ones of
+	 * master by addAccumulatorsOfShard().
+	 *
+	 * @param master
+	 *            object that will reestimate the models
+	 */
+	private SetOfSharedContinuousHMMsReestimator(
+			SetOfSharedContinuousHMMsReestimator master) {
+		m_nverbose = master.m_nverbose;
+		m_setOfSharedContinuousHMMsBeingReestimated = master.m_setOfSharedContinuousHMMsBeingReestimated;
+		m_tableOfHMMs = master.m_tableOfHMMs;
+		m_hmms = master.m_hmms;
+		m_transitionArcs = master.m_transitionArcs;
+		m_flogPruningThreshold = master.m_flogPruningThreshold;
+		m_nminimumNumberOfFramesForCheckpointing = master.m_nminimumNumberOfFramesForCheckpointing;
+		m_packedCorpusFile = master.m_packedCorpusFile;
+		m_ouseFastLogAdd = master.m_ouseFastLogAdd;
+		m_oshouldUpdateTransitionMatrix = master.m_oshouldUpdateTransitionMatrix;
+		m_oshouldUpdateMean = master.m_oshouldUpdateMean;
+		m_oshouldUpdateCovariance = master.m_oshouldUpdateCovariance;
+		m_oshouldUpdateWeights = master.m_oshouldUpdateWeights;
+
+		m_fauxiliaryZeroMean = new float[master.m_fauxiliaryZeroMean.length];
+		m_foccupationCountForCurrentTime = new float[master.m_foccupationCountForCurrentTime.length];
+
+		// The mixtures of the shard share the means, variances and weights
+		// (not modified until all shards finish) and have their own
+		// accumulators and cached probabilities. clone() would serialize each
+		// mixture, which took longer than the accumulation itself on small
+		// corpora.
+		MixtureOfGaussianPDFsBeingReestimated[] mixtures = m_setOfSharedContinuousHMMsBeingReestimated.m_mixturesOfGaussianPDFsBeingReestimated;
+		m_mixturesOfThisShard = new MixtureOfGaussianPDFsBeingReestimated[mixtures.length];
+		for (int i = 0; i < mixtures.length; i++) {
+			PDFBeingReestimated[] pDFs = mixtures[i].m_pDFsBeingReestimated;
+			GaussianPDF[] gaussianPDFs = new GaussianPDF[pDFs.length];
+			for (int m = 0; m < pDFs.length; m++) {
+				gaussianPDFs[m] = (GaussianPDF) pDFs[m];
+			}
+			m_mixturesOfThisShard[i] = new MixtureOfGaussianPDFsBeingReestimated(
+					new MixtureOfGaussianPDFs(gaussianPDFs,
+							mixtures[i].m_flogWeights));
+		}
+		TransitionMatrixBeingReestimated[] transitionMatrices = m_setOfSharedContinuousHMMsBeingReestimated.m_transitionMatrixBeingReestimated;
+		m_transitionMatrixAccumulatorsOfThisShard = new TransitionMatrixAccumulator[transitionMatrices.length];
+		for (int i = 0; i < transitionMatrices.length; i++) {
+			TransitionMatrixAccumulator ta = transitionMatrices[i].m_transitionMatrixAccumulator;
+			if (ta != null) {
+				m_transitionMatrixAccumulatorsOfThisShard[i] = new TransitionMatrixAccumulator(
+						ta.m_foccupationProbability.length);
+			}
+		}
+		m_nnumberOfTrainingExamplesOfThisShard = new int[m_hmms.length];
 	}
 
 	protected void interpretHeader(
@@ -389,6 +551,18 @@ public class SetOfSharedContinuousHMMsReestimator {
 		m_headerProperties.setProperty("TrainingManager.ouseAbsolutePath",
 				property);
 
+		property = m_headerProperties.getProperty(
+				"TrainingManager.ousePackedCorpusFile", "false");
+		m_ousePackedCorpusFile = (Boolean.valueOf(property)).booleanValue();
+		m_headerProperties.setProperty("TrainingManager.ousePackedCorpusFile",
+				property);
+
+		property = m_headerProperties.getProperty(
+				"SetOfSharedContinuousHMMReestimator.ouseFastLogAdd", "false");
+		m_ouseFastLogAdd = (Boolean.valueOf(property)).booleanValue();
+		m_headerProperties.setProperty(
+				"SetOfSharedContinuousHMMReestimator.ouseFastLogAdd", property);
+
 		property = m_headerProperties.getProperty(
 				"ContinuousHMMReestimator.oshouldOutputGammaMatrix", "false");
 		m_oshouldOutputGammaMatrix = (Boolean.valueOf(property)).booleanValue();
@@ -399,6 +573,57 @@ public class SetOfSharedContinuousHMMsReestimator {
 				"SetOfSharedContinuousHMMs.gammaOutputFileName", "gammaOutputFile.bin");		
 		m_headerProperties.setProperty(
 				"SetOfSharedContinuousHMMs.gammaOutputFileName", m_gammaOutputFileName);
+
+		property = m_headerProperties.getProperty(
+				"SetOfSharedContinuousHMMReestimator.nnumberOfThreads", "1");
+		m_nnumberOfThreads = (Integer.valueOf(property)).intValue();
+		CheckValues.exitOnError(m_nnumberOfThreads, 1, 256,
+				"SetOfSharedContinuousHMMReestimator.nnumberOfThreads");
+		m_headerProperties.setProperty(
+				"SetOfSharedContinuousHMMReestimator.nnumberOfThreads", property);
+
+		property = m_headerProperties.getProperty(
+				"SetOfSharedContinuousHMMReestimator.nminimumNumberOfFramesForCheckpointing",
+				"0");
+		m_nminimumNumberOfFramesForCheckpointing = (Integer.valueOf(property))
+				.intValue();
+		CheckValues.exitOnError(m_nminimumNumberOfFramesForCheckpointing, 0,
+				Integer.MAX_VALUE,
+				"SetOfSharedContinuousHMMReestimator.nminimumNumberOfFramesForCheckpointing");
+		m_headerProperties.setProperty(
+				"SetOfSharedContinuousHMMReestimator.nminimumNumberOfFramesForCheckpointing",
+				property);
+
+		property = m_headerProperties.getProperty(
+				"SetOfSharedContinuousHMMReestimator.nnumberOfPrefetchedUtterances",
+				"0");
+		m_nnumberOfPrefetchedUtterances = (Integer.valueOf(property))
+				.intValue();
+		CheckValues.exitOnError(m_nnumberOfPrefetchedUtterances, 0, 1024,
+				"SetOfSharedContinuousHMMReestimator.nnumberOfPrefetchedUtterances");
+		m_headerProperties.setProperty(
+				"SetOfSharedContinuousHMMReestimator.nnumberOfPrefetchedUtterances",
+				property);
+
+		property = m_headerProperties.getProperty(
+				"SetOfSharedContinuousHMMReestimator.nnumberOfPrefetchThreads",
+				"1");
+		m_nnumberOfPrefetchThreads = (Integer.valueOf(property)).intValue();
+		CheckValues.exitOnError(m_nnumberOfPrefetchThreads, 1, 64,
+				"SetOfSharedContinuousHMMReestimator.nnumberOfPrefetchThreads");
+		m_headerProperties.setProperty(
+				"SetOfSharedContinuousHMMReestimator.nnumberOfPrefetchThreads",
+				property);
+	}
+
+	/**
+	 * Returns log(exp(x) + exp(y)) using the exact or the table-driven
+	 * calculator, according to
+	 * SetOfSharedContinuousHMMReestimator.ouseFastLogAdd.
+	 */
+	private double addInLogDomain(double x, double y) {
+		return m_ouseFastLogAdd ? FastLogDomainCalculator.add(x, y)
+				: LogDomainCalculator.add(x, y);
 	}
 
 	/**
@@ -453,6 +678,8 @@ public class SetOfSharedContinuousHMMsReestimator {
 	 * calculateOccupationCountForCurrentTimeAndHMM: set the global occupation
 	 * count for given hmm
 	 * 
+	 * @param q
+	 *            index of current HMM in the utterance
 	 * @param hmm
 	 *            current HMM
 	 * @param aqt
@@ -462,18 +689,18 @@ public class SetOfSharedContinuousHMMsReestimator {
 	 * @param bq1t
 	 *            backward variables for time t + 1
 	 */
-	private void calculateOccupationCountForCurrentTimeAndHMM(
+	private void calculateOccupationCountForCurrentTimeAndHMM(int q,
 			SetOfSharedContinuousHMMs.PhysicalHMM hmm, double[] aqt,
 			double[] bqt, double[] bq1t, int t) {
 
 		int N = hmm.getNumberOfStates();
-		float[][] transP = hmm.getTransitionMatrix().getMatrixInLogDomain();
+		float[][] transP = getTransitionMatrixInLogDomain(q);
 
 		for (int i = 0; i < N; i++) {
 			double x = aqt[i] + bqt[i];
 			if (i == 0 && bq1t != null
 					&& transP[0][N - 1] > LogDomainCalculator.m_fSMALL_NUMBER) {
-				x = LogDomainCalculator.add(x, aqt[0] + bq1t[0]
+				x = addInLogDomain(x, aqt[0] + bq1t[0]
 						+ transP[0][N - 1]);
 			}
 
@@ -501,23 +728,36 @@ public class SetOfSharedContinuousHMMsReestimator {
 	 *            transcription of current utterance
 	 */
 	protected void getSequenceOfHMMsFromLabels(DataLocator dataLocator) {
+		m_nindicesOfPhysicalHMMs = getIndicesOfPhysicalHMMs(dataLocator);
+	}
+
+	/**
+	 * Return the indices of physical HMMs corresponding to each label in the
+	 * transcription. It does not change the state of this object, so it can
+	 * be called by other threads (e.g. UtterancePrefetcher).
+	 * 
+	 * @param dataLocator
+	 *            transcription of an utterance
+	 */
+	int[] getIndicesOfPhysicalHMMs(DataLocator dataLocator) {
 		// Print.dialog(m_tableOfHMMs.toString());
 		int nnumberOfSegments = dataLocator.getNumberOfSegments();
 		if (nnumberOfSegments < 1) {
 			End.throwError("Number of segments smaller than 1 in "
 					+ dataLocator.toString());
 		}
-		m_nindicesOfPhysicalHMMs = new int[nnumberOfSegments];
+		int[] nindicesOfPhysicalHMMs = new int[nnumberOfSegments];
 		for (int i = 0; i < nnumberOfSegments; i++) {
 			String label = dataLocator.getLabelFromGivenSegment(i);
 			// Print.dialog("label " + label);
 			// initially assume it corresponds to a physical HMM
-			m_nindicesOfPhysicalHMMs[i] = m_tableOfHMMs.getEntry(label);
-			if (m_nindicesOfPhysicalHMMs[i] == -1) {
+			nindicesOfPhysicalHMMs[i] = m_tableOfHMMs.getEntry(label);
+			if (nindicesOfPhysicalHMMs[i] == -1) {
 				End.throwError("Couldn't find label " + label
 						+ " associated to any physical or logical HMM.");
 			}
 		}
+		return nindicesOfPhysicalHMMs;
 	}
 
 	/**
@@ -629,7 +869,7 @@ public class SetOfSharedContinuousHMMsReestimator {
 		int eq = p.m_sqHi[0];
 		for (int q = 0; q <= eq; q++) {
 			SetOfSharedContinuousHMMs.PhysicalHMM hmm = m_hmms[m_nindicesOfPhysicalHMMs[q]];
-			float[][] transP = hmm.getTransitionMatrix().getMatrixInLogDomain();
+			float[][] transP = getTransitionMatrixInLogDomain(q);
 			int Nq = hmm.getNumberOfStates();
 
 			double[] aq = m_dalphat[q];
@@ -651,7 +891,7 @@ public class SetOfSharedContinuousHMMsReestimator {
 			for (int i = 1; i < Nq - 1; i++) {
 				double a = transP[i][Nq - 1];
 				if (a > LogDomainCalculator.m_fSMALL_NUMBER) {
-					x = LogDomainCalculator.add(x, aq[i] + a);
+					x = addInLogDomain(x, aq[i] + a);
 				}
 			}
 			aq[Nq - 1] = x;
@@ -662,6 +902,37 @@ public class SetOfSharedContinuousHMMsReestimator {
 		startAndEnd[1] = eq;
 	}
 
+	/**
+	 * Sparse topology of the transition matrix of given physical HMM. The
+	 * objects are created when needed and discarded when models are
+	 * reestimated.
+	 * 
+	 * @param nindexOfPhysicalHMM
+	 *            index of physical HMM
+	 * @return arcs of the transition matrix
+	 */
+	protected TransitionArcs getTransitionArcs(int nindexOfPhysicalHMM) {
+		if (m_transitionArcs == null) {
+			m_transitionArcs = TransitionArcs.createForPhysicalHMMs(m_hmms);
+		}
+		return m_transitionArcs[nindexOfPhysicalHMM];
+	}
+
+	/**
+	 * Transition matrix (in log domain) of the q-th HMM of the current
+	 * utterance. TransitionMatrix.getMatrixInLogDomain() returns a new copy
+	 * at each call, which was done for each HMM at each frame, so the copy
+	 * kept by getTransitionArcs() is used instead.
+	 * 
+	 * @param q
+	 *            index of HMM in the utterance
+	 * @return the matrix, which must not be modified
+	 */
+	private float[][] getTransitionMatrixInLogDomain(int q) {
+		return getTransitionArcs(m_nindicesOfPhysicalHMMs[q])
+				.getMatrixInLogDomainReference();
+	}
+
 	/**
 	 * Zero forward values (m_dalphat) for HMMs in given active range.
 	 * 
@@ -709,7 +980,7 @@ public class SetOfSharedContinuousHMMsReestimator {
 				bq1 = null;
 			}
 			hmm = m_hmms[m_nindicesOfPhysicalHMMs[q - 1]];
-			float[][] transP = hmm.getTransitionMatrix().getMatrixInLogDomain();
+			float[][] transP = getTransitionMatrixInLogDomain(q - 1);
 			int Nq1 = hmm.getNumberOfStates();
 			maxP = (bq1 == null) ? LogDomainCalculator.m_fLOG_DOMAIN_ZERO
 					: m_dalphat[q - 1][Nq1 - 1] + bq1[Nq1 - 1];
@@ -820,7 +1091,7 @@ public class SetOfSharedContinuousHMMsReestimator {
 			int lNq = Nq;
 			SetOfSharedContinuousHMMs.PhysicalHMM hmm = m_hmms[m_nindicesOfPhysicalHMMs[q]];
 			Nq = hmm.getNumberOfStates();
-			float[][] transP = hmm.getTransitionMatrix().getMatrixInLogDomain();
+			float[][] transP = getTransitionMatrixInLogDomain(q);
 
 			double[] aq = m_dalphat[q];
 			double[] laq = m_dalphat1[q];
@@ -839,32 +1110,40 @@ public class SetOfSharedContinuousHMMsReestimator {
 				aq[0] = m_dalphat1[q - 1][lNq - 1];
 				if (q > sq && a1N > LogDomainCalculator.m_fSMALL_NUMBER) {
 					// tee Model
-					aq[0] = LogDomainCalculator.add(aq[0], m_dalphat[q - 1][0]
+					aq[0] = addInLogDomain(aq[0], m_dalphat[q - 1][0]
 							+ a1N);
 				}
 			}
+			// only the arcs with non-zero probability are visited
+			TransitionArcs transitionArcs = getTransitionArcs(m_nindicesOfPhysicalHMMs[q]);
+			int[] npredecessors = transitionArcs.m_npredecessors;
+			int[] npredecessorsStart = transitionArcs.m_npredecessorsStart;
 			for (int j = 1; j < Nq - 1; j++) {
 				a = transP[0][j];
 				x = (a > LogDomainCalculator.m_fSMALL_NUMBER) ? a + aq[0]
 						: LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
-				for (int i = 1; i < Nq - 1; i++) {
-					a = transP[i][j];
+				for (int k = npredecessorsStart[j]; k < npredecessorsStart[j + 1]; k++) {
+					int i = npredecessors[k];
+					if (i == 0 || i == Nq - 1) {
+						continue;
+					}
 					y = laq[i];
-					if (a > LogDomainCalculator.m_fSMALL_NUMBER
-							&& y > LogDomainCalculator.m_fSMALL_NUMBER) {
-						x = LogDomainCalculator.add(x, y + a);
+					if (y > LogDomainCalculator.m_fSMALL_NUMBER) {
+						x = addInLogDomain(x, y + transP[i][j]);
 					}
 				}
 				// -1 because first state is non-emitting
 				aq[j] = x + outprob[j - 1];
 			}
 			x = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
-			for (int i = 1; i < Nq - 1; i++) {
-				a = transP[i][Nq - 1];
+			for (int k = npredecessorsStart[Nq - 1]; k < npredecessorsStart[Nq]; k++) {
+				int i = npredecessors[k];
+				if (i == 0 || i == Nq - 1) {
+					continue;
+				}
 				y = aq[i];
-				if (a > LogDomainCalculator.m_fSMALL_NUMBER
-						&& y > LogDomainCalculator.m_fSMALL_NUMBER) {
-					x = LogDomainCalculator.add(x, y + a);
+				if (y > LogDomainCalculator.m_fSMALL_NUMBER) {
+					x = addInLogDomain(x, y + transP[i][Nq - 1]);
 				}
 			}
 			aq[Nq - 1] = x;
@@ -891,12 +1170,42 @@ public class SetOfSharedContinuousHMMsReestimator {
 	}
 
 	protected void resetValuesOfOutputProbabilities() {
-		for (int i = 0; i < m_setOfSharedContinuousHMMsBeingReestimated.m_mixturesOfGaussianPDFsBeingReestimated.length; i++) {
-			m_setOfSharedContinuousHMMsBeingReestimated.m_mixturesOfGaussianPDFsBeingReestimated[i]
-					.resetTimeForWhichProbabilityIsValid();
+		MixtureOfGaussianPDFsBeingReestimated[] mixtures = getMixturesForAccumulation();
+		for (int i = 0; i < mixtures.length; i++) {
+			mixtures[i].resetTimeForWhichProbabilityIsValid();
 		}
 	}
 
+	/**
+	 * Mixtures that store the output probabilities of the current utterance
+	 * and accumulate its statistics: the ones of the set being reestimated or
+	 * the private copies of a shard.
+	 *
+	 * @return mixtures indexed as in the set being reestimated
+	 */
+	private MixtureOfGaussianPDFsBeingReestimated[] getMixturesForAccumulation() {
+		if (m_mixturesOfThisShard != null) {
+			return m_mixturesOfThisShard;
+		}
+		return m_setOfSharedContinuousHMMsBeingReestimated.m_mixturesOfGaussianPDFsBeingReestimated;
+	}
+
+	/**
+	 * Accumulator of the given transition matrix used for the current
+	 * utterance.
+	 *
+	 * @param nindexOfTransitionMatrix
+	 *            index of transition matrix
+	 * @return the accumulator
+	 */
+	private TransitionMatrixAccumulator getTransitionMatrixAccumulatorForAccumulation(
+			int nindexOfTransitionMatrix) {
+		if (m_transitionMatrixAccumulatorsOfThisShard != null) {
+			return m_transitionMatrixAccumulatorsOfThisShard[nindexOfTransitionMatrix];
+		}
+		return m_setOfSharedContinuousHMMsBeingReestimated.m_transitionMatrixBeingReestimated[nindexOfTransitionMatrix].m_transitionMatrixAccumulator;
+	}
+
 	/**
 	 * Calculate forward values and accumulate statistic
 	 * 
@@ -929,13 +1238,21 @@ public class SetOfSharedContinuousHMMsReestimator {
 		for (int q = 0; q < Q; q++) {
 			int nhMMIndex = m_nindicesOfPhysicalHMMs[q];
 			// Print.dialog("nhMMIndex = " + nhMMIndex);
-			m_setOfSharedContinuousHMMsBeingReestimated
-					.incrementNumberOfTrainingExamplesOfGivenHMM(nhMMIndex);
+			if (m_nnumberOfTrainingExamplesOfThisShard != null) {
+				m_nnumberOfTrainingExamplesOfThisShard[nhMMIndex]++;
+			} else {
+				m_setOfSharedContinuousHMMsBeingReestimated
+						.incrementNumberOfTrainingExamplesOfGivenHMM(nhMMIndex);
+			}
 		}
 
 		int T = pattern.getNumOfFrames();
 		for (int t = 0; t < T; t++) {
 
+			if (m_ncheckpointInterval > 0) {
+				makeColumnsAvailable(pattern, t, Q);
+			}
+
 			float ot[] = pattern.getParametersOfGivenFrame(t);
 
 			if (t > 0) {
@@ -984,8 +1301,8 @@ public class SetOfSharedContinuousHMMsReestimator {
 				}
 				// bq1t = (q == Q - 1) ? null : m_dbeta[t][q +
 				// 1-m_nfirstHMMInBetaMatrix[t]];
-				calculateOccupationCountForCurrentTimeAndHMM(hmm, aqt, bqt,
-						bq1t, t);
+				calculateOccupationCountForCurrentTimeAndHMM(q, hmm, aqt,
+						bqt, bq1t, t);
 				
 				if (m_oshouldOutputGammaMatrix) {
 					//AK
@@ -1011,6 +1328,19 @@ public class SetOfSharedContinuousHMMsReestimator {
 				}
 			}
 		}
+
+		if (m_lpeakMemoryOfCurrentUtteranceInBytes > m_lmaximumPeakMemoryInBytes) {
+			m_lmaximumPeakMemoryInBytes = m_lpeakMemoryOfCurrentUtteranceInBytes;
+		}
+		if (m_nverbose > 1) {
+			Print.dialog(" Peak memory of forward-backward = "
+					+ (m_lpeakMemoryOfCurrentUtteranceInBytes / 1024)
+					+ " KB for "
+					+ T
+					+ " frames"
+					+ ((m_ncheckpointInterval > 0) ? " (checkpoint every "
+							+ m_ncheckpointInterval + " frames)" : ""));
+		}
 	}
 
 	/**
@@ -1027,12 +1357,9 @@ public class SetOfSharedContinuousHMMsReestimator {
 		int lNq = 0;
 		int startq;
 		double bqt[] = null;
-		double bqt1[];
-		double bq1t1[];
 		float[] outprob;
 		double x;
 		double y;
-		double lMax;
 		double a;
 		double a1N = 0.0;
 
@@ -1050,6 +1377,17 @@ public class SetOfSharedContinuousHMMsReestimator {
 
 		m_dbeta = new double[T][][];
 		m_nfirstHMMInBetaMatrix = new int[T];
+
+		// long utterances keep only some columns (see isCheckpoint())
+		if (m_nminimumNumberOfFramesForCheckpointing > 0
+				&& T >= m_nminimumNumberOfFramesForCheckpointing) {
+			m_ncheckpointInterval = (int) Math.ceil(Math.sqrt(T));
+		} else {
+			m_ncheckpointInterval = 0;
+		}
+		m_ncolumnSizesInBytes = new int[T];
+		m_lcurrentMemoryInBytes = 0;
+		m_lpeakMemoryOfCurrentUtteranceInBytes = 0;
 		
 		if (m_oshouldOutputGammaMatrix) {
 			//allocate space for m_dgamma
@@ -1082,7 +1420,7 @@ public class SetOfSharedContinuousHMMsReestimator {
 		// int q_at_gMax = 0;
 		for (int q = Q - 1; q >= endq; q--) {
 			hmm = m_hmms[m_nindicesOfPhysicalHMMs[q]];
-			float[][] transP = hmm.getTransitionMatrix().getMatrixInLogDomain();
+			float[][] transP = getTransitionMatrixInLogDomain(q);
 			Nq = hmm.getNumberOfStates();
 
 			// Print.dialog("q = " + q + " Nq = " + Nq + " " + beta.length + " "
@@ -1102,7 +1440,7 @@ public class SetOfSharedContinuousHMMsReestimator {
 				if (a > LogDomainCalculator.m_fSMALL_NUMBER
 						&& y > LogDomainCalculator.m_fSMALL_NUMBER) {
 					// j-1 because first state is non-emitting
-					x = LogDomainCalculator.add(x, a + outprob[j - 1] + y);
+					x = addInLogDomain(x, a + outprob[j - 1] + y);
 				}
 			}
 			bqt[0] = x;
@@ -1113,12 +1451,10 @@ public class SetOfSharedContinuousHMMsReestimator {
 				// q_at_gMax = q;
 			}
 		}
+		addColumnToMemoryCount(T - 1);
 		// Columns T-2 -> 0
 		for (int t = T - 2; t >= 0; t--) {
 
-			gMax = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
-			// max value of beta at time t
-			// q_at_gMax = 0;
 			startq = p.m_sqHi[t + 1];
 			endq = (p.m_sqLo[t + 1] == 0) ? 0
 					: ((p.m_sqLo[t] >= p.m_sqLo[t + 1]) ? p.m_sqLo[t]
@@ -1135,94 +1471,10 @@ public class SetOfSharedContinuousHMMsReestimator {
 			m_dbeta[t] = createBetaQ(endq, startq, Q);
 			m_nfirstHMMInBetaMatrix[t] = endq;
 
-			// Print.dialog("endq_t_plus_1 = " + endq_t_plus_1 + ", endq = " +
-			// endq + ", startq = " + startq);
-			// Print.dialog("#### " + t + ", beta[t].length = " +
-			// beta[t].length);
-			for (int q = startq; q >= endq; q--) {
-				// max value of beta in model q
-				lMax = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
-				hmm = m_hmms[m_nindicesOfPhysicalHMMs[q]];
-				float[][] transP = hmm.getTransitionMatrix()
-						.getMatrixInLogDomain();
-				Nq = hmm.getNumberOfStates();
-
-				bqt = m_dbeta[t][q - endq] = new double[Nq];
-
-				// Print.dialog("beta[t+1].length = " + beta[t+1].length);
-				// Print.dialog("q = " + q + ", endq_t_plus_1 = " +
-				// endq_t_plus_1);
-				if (q - m_nfirstHMMInBetaMatrix[t + 1] >= 0) {
-					bqt1 = m_dbeta[t + 1][q - m_nfirstHMMInBetaMatrix[t + 1]];
-				} else {
-					bqt1 = null;
-				}
-				if ((q + 1 - m_nfirstHMMInBetaMatrix[t + 1]) >= 0) {
-					bq1t1 = (q == Q - 1) ? null : m_dbeta[t + 1][q + 1
-							- m_nfirstHMMInBetaMatrix[t + 1]];
-				} else {
-					bq1t1 = null;
-				}
-
-				// outprob = ab->otprob[t+1][q];
-				if (q - m_nfirstHMMInOutputProbabilityMatrix[t + 1] >= 0) {
-					outprob = m_flogOutputProbabilities[t + 1][q
-							- m_nfirstHMMInOutputProbabilityMatrix[t + 1]];
-				} else {
-					outprob = null;
-				}
-
-				// bqt[Nq] = (bq1t1==NULL)?LZERO:bq1t1[1];
-				bqt[Nq - 1] = (bq1t1 == null) ? LogDomainCalculator.m_fLOG_DOMAIN_ZERO
-						: bq1t1[0];
-				if (q < startq && a1N > LogDomainCalculator.m_fSMALL_NUMBER) {
-					// 1Nq or 1Nq - 1
-					bqt[Nq - 1] = LogDomainCalculator.add(bqt[Nq - 1],
-							m_dbeta[t][q + 1 - endq][lNq - 1] + a1N);
-				}
-				for (int i = Nq - 2; i > 0; i--) {
-					x = transP[i][Nq - 1] + bqt[Nq - 1];
-					if (q >= p.m_sqLo[t + 1] && q <= p.m_sqHi[t + 1]) {
-						// Print.dialog(q + " " + p.m_sqLo[t + 1] + " " +
-						// p.m_sqHi[t + 1]);
-						for (int j = 1; j < Nq - 1; j++) {
-							a = transP[i][j];
-							y = bqt1[j];
-							if (a > LogDomainCalculator.m_fSMALL_NUMBER
-									&& y > LogDomainCalculator.m_fSMALL_NUMBER) {
-								// j-1 because first state is non-emitting
-								x = LogDomainCalculator.add(x, a
-										+ outprob[j - 1] + y);
-							}
-						}
-					}
-					bqt[i] = x;
-					if (x > lMax) {
-						lMax = x;
-					}
-					if (x > gMax) {
-						gMax = x;
-						// q_at_gMax = q;
-					}
-				}
-				outprob = m_flogOutputProbabilities[t][q
-						- m_nfirstHMMInOutputProbabilityMatrix[t]];
-				x = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
-				for (int j = 1; j < Nq - 1; j++) {
-					a = transP[0][j];
-					y = bqt[j];
-					if (a > LogDomainCalculator.m_fSMALL_NUMBER
-							&& y > LogDomainCalculator.m_fSMALL_NUMBER) {
-						// j-1 because first state is non-emitting
-						x = LogDomainCalculator.add(x, a + outprob[j - 1] + y);
-					}
-				}
-
-				bqt[0] = x;
-				maxP[q] = lMax;
-				lNq = Nq;
-				a1N = transP[0][Nq - 1];
-			}
+			gMax = calculateBackwardValuesOfColumn(t, startq, endq, Q, maxP);
+			// values of the first HMM in the column (the utterance
+			// probability when t = 0)
+			bqt = m_dbeta[t][0];
 
 			while (gMax - maxP[startq] > p.m_flogPruningThreshold) {
 				m_dbeta[t][startq - endq] = null;
@@ -1252,6 +1504,10 @@ public class SetOfSharedContinuousHMMsReestimator {
 				}
 			}
 			p.m_sqLo[t] = (short) endq;
+			addColumnToMemoryCount(t);
+			if (m_ncheckpointInterval > 0 && !isCheckpoint(t + 1, T)) {
+				releaseColumn(t + 1);
+			}
 		}
 
 		// Finally, set total prob
@@ -1265,7 +1521,7 @@ public class SetOfSharedContinuousHMMsReestimator {
 			Print.dialog(" Utterance prob per frame = " + utt_pr / T);
 		}
 
-		if (m_nverbose > 3) {
+		if (m_nverbose > 3 && m_ncheckpointInterval == 0) {
 			System.out.println("Beta matrix of embedded Baum-Welch");
 			IO.DisplayMatrix(m_dbeta);
 		}
@@ -1273,6 +1529,238 @@ public class SetOfSharedContinuousHMMsReestimator {
 		return utt_pr;
 	}
 
+	/**
+	 * Calculate the backward values of column t < T-1 for HMMs startq down to
+	 * endq, using column t+1. The output probabilities of column t must have
+	 * been calculated.
+	 * 
+	 * @param t
+	 *            time
+	 * @param startq
+	 *            last HMM of the column (before pruning)
+	 * @param endq
+	 *            first HMM of the column (before pruning)
+	 * @param Q
+	 *            number of HMMs in current utterance
+	 * @param maxP
+	 *            returns the maximum backward value of each HMM
+	 * @return maximum backward value of the column
+	 */
+	private double calculateBackwardValuesOfColumn(int t, int startq,
+			int endq, int Q, double[] maxP) {
+		int Nq;
+		int lNq = 0;
+		double bqt[];
+		double bqt1[];
+		double bq1t1[];
+		float[] outprob;
+		double x;
+		double y;
+		double lMax;
+		double a;
+		double a1N = 0.0;
+		SetOfSharedContinuousHMMs.PhysicalHMM hmm;
+		PruningInformation p = m_pruningInformation;
+
+		double gMax = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+		// max value of beta at time t
+		for (int q = startq; q >= endq; q--) {
+			// max value of beta in model q
+			lMax = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+			hmm = m_hmms[m_nindicesOfPhysicalHMMs[q]];
+			float[][] transP = getTransitionMatrixInLogDomain(q);
+			Nq = hmm.getNumberOfStates();
+
+			bqt = m_dbeta[t][q - endq] = new double[Nq];
+
+			// Print.dialog("beta[t+1].length = " + beta[t+1].length);
+			// Print.dialog("q = " + q + ", endq_t_plus_1 = " +
+			// endq_t_plus_1);
+			if (q - m_nfirstHMMInBetaMatrix[t + 1] >= 0) {
+				bqt1 = m_dbeta[t + 1][q - m_nfirstHMMInBetaMatrix[t + 1]];
+			} else {
+				bqt1 = null;
+			}
+			if ((q + 1 - m_nfirstHMMInBetaMatrix[t + 1]) >= 0) {
+				bq1t1 = (q == Q - 1) ? null : m_dbeta[t + 1][q + 1
+						- m_nfirstHMMInBetaMatrix[t + 1]];
+			} else {
+				bq1t1 = null;
+			}
+
+			// outprob = ab->otprob[t+1][q];
+			if (q - m_nfirstHMMInOutputProbabilityMatrix[t + 1] >= 0) {
+				outprob = m_flogOutputProbabilities[t + 1][q
+						- m_nfirstHMMInOutputProbabilityMatrix[t + 1]];
+			} else {
+				outprob = null;
+			}
+
+			// bqt[Nq] = (bq1t1==NULL)?LZERO:bq1t1[1];
+			bqt[Nq - 1] = (bq1t1 == null) ? LogDomainCalculator.m_fLOG_DOMAIN_ZERO
+					: bq1t1[0];
+			if (q < startq && a1N > LogDomainCalculator.m_fSMALL_NUMBER) {
+				// 1Nq or 1Nq - 1
+				bqt[Nq - 1] = addInLogDomain(bqt[Nq - 1],
+						m_dbeta[t][q + 1 - endq][lNq - 1] + a1N);
+			}
+			// only the arcs with non-zero probability are visited
+			TransitionArcs transitionArcs = getTransitionArcs(m_nindicesOfPhysicalHMMs[q]);
+			int[] nsuccessors = transitionArcs.m_nsuccessors;
+			int[] nsuccessorsStart = transitionArcs.m_nsuccessorsStart;
+			for (int i = Nq - 2; i > 0; i--) {
+				x = transP[i][Nq - 1] + bqt[Nq - 1];
+				if (q >= p.m_sqLo[t + 1] && q <= p.m_sqHi[t + 1]) {
+					// Print.dialog(q + " " + p.m_sqLo[t + 1] + " " +
+					// p.m_sqHi[t + 1]);
+					for (int k = nsuccessorsStart[i]; k < nsuccessorsStart[i + 1]; k++) {
+						int j = nsuccessors[k];
+						if (j == 0 || j == Nq - 1) {
+							continue;
+						}
+						y = bqt1[j];
+						if (y > LogDomainCalculator.m_fSMALL_NUMBER) {
+							// j-1 because first state is non-emitting
+							x = addInLogDomain(x, transP[i][j]
+									+ outprob[j - 1] + y);
+						}
+					}
+				}
+				bqt[i] = x;
+				if (x > lMax) {
+					lMax = x;
+				}
+				if (x > gMax) {
+					gMax = x;
+					// q_at_gMax = q;
+				}
+			}
+			outprob = m_flogOutputProbabilities[t][q
+					- m_nfirstHMMInOutputProbabilityMatrix[t]];
+			x = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+			for (int j = 1; j < Nq - 1; j++) {
+				a = transP[0][j];
+				y = bqt[j];
+				if (a > LogDomainCalculator.m_fSMALL_NUMBER
+						&& y > LogDomainCalculator.m_fSMALL_NUMBER) {
+					// j-1 because first state is non-emitting
+					x = addInLogDomain(x, a + outprob[j - 1] + y);
+				}
+			}
+
+			bqt[0] = x;
+			maxP[q] = lMax;
+			lNq = Nq;
+			a1N = transP[0][Nq - 1];
+		}
+		return gMax;
+	}
+
+	/**
+	 * Recalculate column t (output probabilities and backward values) when
+	 * using checkpoints. The range of HMMs and the pruning are the ones
+	 * obtained in the backward pass, so the values are the same.
+	 * 
+	 * @param pattern
+	 *            input parameters
+	 * @param t
+	 *            time (not a checkpoint)
+	 * @param Q
+	 *            number of HMMs in current utterance
+	 * @param maxP
+	 *            temporary storage with dimension Q
+	 */
+	private void recalculateBackwardValuesOfColumn(Pattern pattern, int t,
+			int Q, double[] maxP) {
+		PruningInformation p = m_pruningInformation;
+		int startq = p.m_sqHi[t + 1];
+		int endq = m_nfirstHMMInBetaMatrix[t];
+		calculateOutputProbabilities(pattern.getParametersOfGivenFrame(t), t,
+				startq, endq);
+		m_dbeta[t] = createBetaQ(endq, startq, Q);
+		calculateBackwardValuesOfColumn(t, startq, endq, Q, maxP);
+		for (int q = startq; q > p.m_sqHi[t]; q--) {
+			m_dbeta[t][q - endq] = null;
+		}
+		for (int q = endq; q < p.m_sqLo[t]; q++) {
+			m_dbeta[t][q - endq] = null;
+		}
+		addColumnToMemoryCount(t);
+	}
+
+	/**
+	 * When using checkpoints, make sure the columns t and t+1 are available
+	 * for the forward pass at time t, recalculating the columns after t up to
+	 * the next checkpoint if necessary, and discard the column t-2, which is
+	 * not used anymore.
+	 * 
+	 * @param pattern
+	 *            input parameters
+	 * @param t
+	 *            time
+	 * @param Q
+	 *            number of HMMs in current utterance
+	 */
+	private void makeColumnsAvailable(Pattern pattern, int t, int Q) {
+		int T = pattern.getNumOfFrames();
+		if (t >= 2) {
+			releaseColumn(t - 2);
+		}
+		if (t + 1 < T && m_dbeta[t + 1] == null) {
+			int nnextCheckpoint = Math.min(((t + 1) / m_ncheckpointInterval + 1)
+					* m_ncheckpointInterval, T - 1);
+			double[] maxP = new double[Q];
+			for (int tau = nnextCheckpoint - 1; tau > t; tau--) {
+				recalculateBackwardValuesOfColumn(pattern, tau, Q, maxP);
+			}
+		}
+	}
+
+	/**
+	 * The columns kept by the backward pass when using checkpoints: the
+	 * multiples of the checkpoint interval and the last column.
+	 */
+	private boolean isCheckpoint(int t, int T) {
+		return (t % m_ncheckpointInterval) == 0 || t == T - 1;
+	}
+
+	private void addColumnToMemoryCount(int t) {
+		int nbytes = 0;
+		double[][] dbeta = m_dbeta[t];
+		for (int i = 0; i < dbeta.length; i++) {
+			if (dbeta[i] != null) {
+				nbytes += 8 * dbeta[i].length;
+			}
+		}
+		float[][] flogOutputProbabilities = m_flogOutputProbabilities[t];
+		for (int i = 0; i < flogOutputProbabilities.length; i++) {
+			if (flogOutputProbabilities[i] != null) {
+				nbytes += 4 * flogOutputProbabilities[i].length;
+			}
+		}
+		m_ncolumnSizesInBytes[t] = nbytes;
+		m_lcurrentMemoryInBytes += nbytes;
+		if (m_lcurrentMemoryInBytes > m_lpeakMemoryOfCurrentUtteranceInBytes) {
+			m_lpeakMemoryOfCurrentUtteranceInBytes = m_lcurrentMemoryInBytes;
+		}
+	}
+
+	private void releaseColumn(int t) {
+		if (m_dbeta[t] != null) {
+			m_dbeta[t] = null;
+			m_flogOutputProbabilities[t] = null;
+			m_lcurrentMemoryInBytes -= m_ncolumnSizesInBytes[t];
+		}
+	}
+
+	/**
+	 * Peak memory (in bytes) used by the backward values and output
+	 * probabilities of the last utterance.
+	 */
+	public long getPeakMemoryOfCurrentUtteranceInBytes() {
+		return m_lpeakMemoryOfCurrentUtteranceInBytes;
+	}
+
 	/**
 	 * Calculate log output probability exploiting sharing.
 	 * 
@@ -1292,7 +1780,7 @@ public class SetOfSharedContinuousHMMsReestimator {
 
 		float x;
 		int nmixtureIndex = hmm.getMixtureIndexOfGivenState(state);
-		MixtureOfGaussianPDFsBeingReestimated mixtureOfGaussianPDFsBeingReestimated = m_setOfSharedContinuousHMMsBeingReestimated.m_mixturesOfGaussianPDFsBeingReestimated[nmixtureIndex];
+		MixtureOfGaussianPDFsBeingReestimated mixtureOfGaussianPDFsBeingReestimated = getMixturesForAccumulation()[nmixtureIndex];
 		if (mixtureOfGaussianPDFsBeingReestimated.m_ntimeForWhichProbabilityIsValid == t) {
 			// seen this state before
 			x = mixtureOfGaussianPDFsBeingReestimated
@@ -1467,11 +1955,11 @@ public class SetOfSharedContinuousHMMsReestimator {
 		double x;
 
 		N = hmm.getNumberOfStates();
-		float[][] transP = hmm.getTransitionMatrix().getMatrixInLogDomain();
+		float[][] transP = getTransitionMatrixInLogDomain(q);
 
 		// int nindexOfPhysicalHMM = m_nindicesOfPhysicalHMMs[q];
 		int nindexOfTransitionMatrix = hmm.getTransitionMatrixIndex();
-		TransitionMatrixAccumulator ta = m_setOfSharedContinuousHMMsBeingReestimated.m_transitionMatrixBeingReestimated[nindexOfTransitionMatrix].m_transitionMatrixAccumulator;
+		TransitionMatrixAccumulator ta = getTransitionMatrixAccumulatorForAccumulation(nindexOfTransitionMatrix);
 
 		// XXX in this case it doesn't seem necessary to check negative indices
 		outprob = m_flogOutputProbabilities[t][q
@@ -1558,7 +2046,7 @@ public class SetOfSharedContinuousHMMsReestimator {
 
 		N = hmm.getNumberOfStates();
 		// int nhMMIndex = m_nindicesOfPhysicalHMMs[q];
-		float[][] transP = hmm.getTransitionMatrix().getMatrixInLogDomain();
+		float[][] transP = getTransitionMatrixInLogDomain(q);
 		int[] nmixtureIndices = hmm.getMixtureIndices();
 		// dont' care number of frames here... ?
 		PruningInformation pruningInformation = new PruningInformation(1,
@@ -1576,6 +2064,7 @@ public class SetOfSharedContinuousHMMsReestimator {
 		x = -1;
 		int maxM = m_setOfSharedContinuousHMMsBeingReestimated
 				.getMaximumNumberOfGaussiansPerMixture();
+		MixtureOfGaussianPDFsBeingReestimated[] mixtures = getMixturesForAccumulation();
 		for (int j = 1; j < N - 1; j++) {
 			if (maxM > 1) {
 				// multiple Gaussians
@@ -1584,7 +2073,7 @@ public class SetOfSharedContinuousHMMsReestimator {
 					for (int i = 1; i < N - 1; i++) {
 						a = transP[i][j];
 						if (a > LogDomainCalculator.m_fSMALL_NUMBER) {
-							initx = LogDomainCalculator.add(initx, aqt1[i] + a);
+							initx = addInLogDomain(initx, aqt1[i] + a);
 						}
 					}
 				}
@@ -1595,7 +2084,7 @@ public class SetOfSharedContinuousHMMsReestimator {
 			// float outprob = m_flogOutputProbabilities[t][q -
 			// m_nfirstHMMInOutputProbabilityMatrix[t]][j - 1];
 
-			MixtureOfGaussianPDFsBeingReestimated mixtureOfGaussianPDFsBeingReestimated = m_setOfSharedContinuousHMMsBeingReestimated.m_mixturesOfGaussianPDFsBeingReestimated[nmixtureIndices[j - 1]];
+			MixtureOfGaussianPDFsBeingReestimated mixtureOfGaussianPDFsBeingReestimated = mixtures[nmixtureIndices[j - 1]];
 			M = mixtureOfGaussianPDFsBeingReestimated.getNumberOfGaussians();
 			if (M > 1) {
 				mmix = true;
@@ -1800,8 +2289,7 @@ public class SetOfSharedContinuousHMMsReestimator {
 			// }
 
 			hmm = m_hmms[px];
-			n = m_setOfSharedContinuousHMMsBeingReestimated
-					.getNumberOfTrainingExamplesOfGivenHMM(px);
+			n = getNumberOfTrainingExamplesOfGivenHMM(px);
 			if (n < minEgs) {
 				if (m_nverbose > 1) {
 					Print
@@ -1826,6 +2314,9 @@ public class SetOfSharedContinuousHMMsReestimator {
 			}
 		}
 
+		// transition matrices may have been replaced
+		m_transitionArcs = null;
+
 		// AK BUG XXX - the 2 variables below will never be different than zero!
 		if (nFloorVar > 0) {
 			Print.dialog(nFloorVar + " floored variance elements in "
@@ -1888,8 +2379,7 @@ public class SetOfSharedContinuousHMMsReestimator {
 			SetOfSharedContinuousHMMs.PhysicalHMM hmm = null;
 			for (int i = 0; i < m_hmms.length; i++) {
 				String label = m_tableOfHMMs.getFirstLabel(i);
-				int ntotalOccupation = m_setOfSharedContinuousHMMsBeingReestimated
-						.getNumberOfTrainingExamplesOfGivenHMM(i);
+				int ntotalOccupation = getNumberOfTrainingExamplesOfGivenHMM(i);
 				StringBuffer stringBuffer = new StringBuffer((i + 1) + " \""
 						+ label + "\" " + ntotalOccupation);
 
@@ -1936,100 +2426,91 @@ public class SetOfSharedContinuousHMMsReestimator {
 			Print.dialog("# of physical HMMs = " + m_hmms.length);
 		}
 
-		int ntotalNumberOfFrames = 0;
-		double dtotalLogProbability = 0.0;
+		if (m_ousePackedCorpusFile) {
+			openPackedCorpusFile(dataLocatorFileName,
+					setOfPatternsInputDirectory);
+		}
 
-		int nnumberOfUtterances = 0;
-		while (databaseManager.isThereDataToRead()) {
-			// while (nnumberOfUtterances < 9) {
-			DataLocator dataLocator = databaseManager.getNextDataLocator();
+		if (m_nnumberOfThreads > 1 && !m_oshouldOutputGammaMatrix
+				&& areAllCovarianceMatricesDiagonal()) {
+			accumulateStatisticsUsingThreads(databaseManager,
+					setOfPatternsInputDirectory);
+		} else {
+			int ntotalNumberOfFrames = 0;
+			double dtotalLogProbability = 0.0;
 
-			if (m_nverbose > 1) {
-				Print.dialog("# " + nnumberOfUtterances + " "
-						+ dataLocator.getFileName());
+			UtterancePrefetcher utterancePrefetcher = null;
+			if (m_nnumberOfPrefetchedUtterances > 0) {
+				utterancePrefetcher = createUtterancePrefetcher(
+						databaseManager, setOfPatternsInputDirectory);
 			}
 
-			if (m_nverbose > 2) {
-				Print.dialog(dataLocator.getAllLabelsAsOneString());
-			}
+			int nnumberOfUtterances = 0;
+			while (utterancePrefetcher == null ? databaseManager
+					.isThereDataToRead() : utterancePrefetcher
+					.isThereUtteranceToRead()) {
+				// while (nnumberOfUtterances < 9) {
+				UtterancePrefetcher.Utterance utterance = null;
+				DataLocator dataLocator;
+				if (utterancePrefetcher != null) {
+					utterance = utterancePrefetcher.getNextUtterance();
+					dataLocator = utterance.m_dataLocator;
+				} else {
+					dataLocator = databaseManager.getNextDataLocator();
+				}
 
-			// convert WAV to SOP in order to read file
-			String parametersFileName = dataLocator.getFileName();
-			parametersFileName = FileNamesAndDirectories.substituteExtension(
-					parametersFileName, SetOfPatterns.m_FILE_EXTENSION);
+				if (m_nverbose > 1) {
+					Print.dialog("# " + nnumberOfUtterances + " "
+							+ dataLocator.getFileName());
+				}
 
-			if (m_ouseAbsolutePath) {
-				// get the SOP file name for this wav file
-				boolean oisTraining = true;
-				parametersFileName = m_simulationFilesAndDirectories
-						.convertWAVToSOPFileName(
-								dataLocator.getFileName(),
-								m_simulationFilesAndDirectories
-										.getSentenceTrainParametersDataRootDirectory(),
-								oisTraining);
-			} else {
-				parametersFileName = FileNamesAndDirectories
-						.getFileNameFromPath(parametersFileName);
-				parametersFileName = FileNamesAndDirectories
-						.concatenateTwoPaths(setOfPatternsInputDirectory,
-								parametersFileName);
-			}
-
-			// if using HTK files:
-			// Pattern pattern =
-			// HTKInterfacer.getPatternFromFile(parametersFileName,
-			// patternGenerator);
-			// now, using SOP file
-			SetOfPatterns setOfPatterns = new SetOfPatterns(parametersFileName);
-			// in this case it has only 1 Pattern per SetOfPatterns
-			Pattern pattern = setOfPatterns.getPattern(0);
-
-			int nnumberOfFrames = pattern.getNumOfFrames();
-
-			// get sequence of HMMs
-			getSequenceOfHMMsFromLabels(dataLocator);
-			int nminimumTotalDuration = getMinimumDurationForAllHMMsAndSumThemUp();
-			if (nminimumTotalDuration > nnumberOfFrames) {
-				End
-						.throwError(" Unable to traverse "
-								+ nminimumTotalDuration
-								+ " states in "
-								+ nnumberOfFrames
-								+ " frames.\nMaybe the cause is bad data or over pruning.");
-			}
-
-			// XXX can eventually initialize with values obtained from user
-			m_pruningInformation = new PruningInformation(nnumberOfFrames,
-					m_flogPruningThreshold);
-
-			// reset pre-computations
-			resetValuesOfOutputProbabilities();
-
-			// do forward-backward
-			if (calculateBackwardMatrix(pattern)) {
-				calculateForwardValuesAndAccumulateStatistic(pattern);
-			} else {
-				//error
-				System.err.println("Error calculating beta matrix for file " + parametersFileName);
-			}
+				if (m_nverbose > 2) {
+					Print.dialog(dataLocator.getAllLabelsAsOneString());
+				}
 
-			// update totals
-			dtotalLogProbability += m_dlogProbabilityOfCurrentUtterance;
-			ntotalNumberOfFrames += nnumberOfFrames;
-			nnumberOfUtterances++;
-			
-			if (m_oshouldOutputGammaMatrix) {
-				IO.write3DMatrixtoBinFile(m_gammaOutputFileName, m_dgamma);
-				//System.out.println("gamma values for utterance # " + nnumberOfUtterances);
-				//m_dgamma = IO.read3DMatrixFromBinFile(m_gammaOutputFileName);
-				//IO.DisplayMatrix(m_dgamma);
+				int nnumberOfFrames;
+				if (utterance != null) {
+					m_nindicesOfPhysicalHMMs = utterance.m_nindicesOfPhysicalHMMs;
+					nnumberOfFrames = accumulateStatisticsOfUtterance(
+							utterance.m_pattern, utterance.m_parametersFileName);
+				} else {
+					nnumberOfFrames = accumulateStatisticsOfUtterance(
+							dataLocator, getParametersFileName(dataLocator,
+									setOfPatternsInputDirectory));
+				}
+
+				// update totals
+				dtotalLogProbability += m_dlogProbabilityOfCurrentUtterance;
+				ntotalNumberOfFrames += nnumberOfFrames;
+				nnumberOfUtterances++;
+
+				if (m_oshouldOutputGammaMatrix) {
+					IO.write3DMatrixtoBinFile(m_gammaOutputFileName, m_dgamma);
+					//System.out.println("gamma values for utterance # " + nnumberOfUtterances);
+					//m_dgamma = IO.read3DMatrixFromBinFile(m_gammaOutputFileName);
+					//IO.DisplayMatrix(m_dgamma);
+				}
+			}
+			if (utterancePrefetcher != null) {
+				utterancePrefetcher.stop();
+				if (m_nverbose > 0) {
+					Print.dialog(utterancePrefetcher.getStatistics());
+				}
 			}
 		}
 		databaseManager.finalizeDataReading();
+		if (m_packedCorpusFile != null) {
+			m_packedCorpusFile.close();
+			m_packedCorpusFile = null;
+		}
 		if (m_nnumberOfSentencesWithBetaPruningError > 0) {
 			// line feed
 			Print.dialog("");
 		}
+		if (m_nverbose > 0) {
+			Print.dialog("Maximum peak memory of forward-backward = "
+					+ (m_lmaximumPeakMemoryInBytes / 1024) + " KB");
+		}
 
 		// Print.dialog("Reestimation complete - average log prob per frame = "
 		// + dtotalLogProbability / ntotalNumberOfFrames);
@@ -2046,6 +2527,431 @@ public class SetOfSharedContinuousHMMsReestimator {
 		// setOfHMMOutputFileName);
 	}
 
+	/**
+	 * Name of the SOP file with the parameters of given utterance.
+	 *
+	 * @param dataLocator
+	 *            transcription of the utterance
+	 * @param setOfPatternsInputDirectory
+	 *            directory with the SOP files (if not using absolute paths)
+	 * @return the file name
+	 */
+	private String getParametersFileName(DataLocator dataLocator,
+			String setOfPatternsInputDirectory) {
+		// convert WAV to SOP in order to read file
+		String parametersFileName = dataLocator.getFileName();
+		parametersFileName = FileNamesAndDirectories.substituteExtension(
+				parametersFileName, SetOfPatterns.m_FILE_EXTENSION);
+
+		if (m_ouseAbsolutePath) {
+			// get the SOP file name for this wav file
+			boolean oisTraining = true;
+			parametersFileName = m_simulationFilesAndDirectories
+					.convertWAVToSOPFileName(
+							dataLocator.getFileName(),
+							m_simulationFilesAndDirectories
+									.getSentenceTrainParametersDataRootDirectory(),
+							oisTraining);
+		} else {
+			parametersFileName = FileNamesAndDirectories
+					.getFileNameFromPath(parametersFileName);
+			parametersFileName = FileNamesAndDirectories
+					.concatenateTwoPaths(setOfPatternsInputDirectory,
+							parametersFileName);
+		}
+		return parametersFileName;
+	}
+
+	/**
+	 * Run the forward-backward algorithm for one utterance and accumulate its
+	 * statistics. The log probability of the utterance is left in
+	 * m_dlogProbabilityOfCurrentUtterance.
+	 *
+	 * @param dataLocator
+	 *            transcription of the utterance
+	 * @param parametersFileName
+	 *            SOP file with the parameters of the utterance
+	 * @return number of frames of the utterance
+	 */
+	private int accumulateStatisticsOfUtterance(DataLocator dataLocator,
+			String parametersFileName) {
+		// if using HTK files:
+		// Pattern pattern =
+		// HTKInterfacer.getPatternFromFile(parametersFileName,
+		// patternGenerator);
+		// now, using SOP file
+		Pattern pattern = readPatternOfUtterance(dataLocator,
+				parametersFileName);
+
+		// get sequence of HMMs
+		getSequenceOfHMMsFromLabels(dataLocator);
+		return accumulateStatisticsOfUtterance(pattern, parametersFileName);
+	}
+
+	/**
+	 * Read the Pattern of one utterance from m_packedCorpusFile, if it is
+	 * open, or from a SOP file with only one Pattern. It does not change the
+	 * state of this object, so it can be called by other threads.
+	 */
+	Pattern readPatternOfUtterance(DataLocator dataLocator,
+			String parametersFileName) {
+		if (m_packedCorpusFile != null) {
+			Pattern pattern = m_packedCorpusFile.getPattern(dataLocator
+					.getFileName());
+			if (pattern == null) {
+				End.throwError("Could not find " + dataLocator.getFileName()
+						+ " in " + m_packedCorpusFile.getFileName());
+			}
+			return pattern;
+		}
+		SetOfPatterns setOfPatterns = new SetOfPatterns(parametersFileName);
+		// in this case it has only 1 Pattern per SetOfPatterns
+		return setOfPatterns.getPattern(0);
+	}
+
+	/**
+	 * Open the PackedCorpusFile of the given directory. If it does not
+	 * exist, or if it is stale (its fingerprint differs from the one of the
+	 * current front end properties and SOP files, see
+	 * PackedCorpusFile.calculateFingerprint()), the SOP files are used.
+	 */
+	private void openPackedCorpusFile(String dataLocatorFileName,
+			String setOfPatternsInputDirectory) {
+		String fileName = FileNamesAndDirectories.concatenateTwoPaths(
+				setOfPatternsInputDirectory,
+				PackedCorpusFile.m_DEFAULT_FILE_NAME);
+		if (!new java.io.File(fileName).exists()) {
+			Print.warning("Could not find " + fileName
+					+ ". Reading SOP files instead.");
+			return;
+		}
+		PackedCorpusFile packedCorpusFile = null;
+		try {
+			packedCorpusFile = new PackedCorpusFile(fileName);
+		} catch (IOException e) {
+			End.throwError("Error reading " + fileName + ": " + e.getMessage());
+		}
+		if (packedCorpusFile.getFingerprint() == null) {
+			Print.warning(fileName + " was written without a fingerprint and"
+					+ " may be stale. Reading SOP files instead.");
+			packedCorpusFile.close();
+			return;
+		}
+		Vector parametersFileNames = new Vector();
+		DatabaseManager databaseManager = new DatabaseManager(
+				dataLocatorFileName);
+		while (databaseManager.isThereDataToRead()) {
+			parametersFileNames.addElement(getParametersFileName(
+					databaseManager.getNextDataLocator(),
+					setOfPatternsInputDirectory));
+		}
+		databaseManager.finalizeDataReading();
+		String[] setOfPatternsFileNames = new String[parametersFileNames
+				.size()];
+		parametersFileNames.copyInto(setOfPatternsFileNames);
+		if (!Arrays.equals(packedCorpusFile.getFingerprint(), PackedCorpusFile
+				.calculateFingerprint(m_headerProperties,
+						setOfPatternsFileNames))) {
+			Print.warning(fileName + " is stale: the front end properties or"
+					+ " the SOP files changed after it was written. Reading"
+					+ " SOP files instead.");
+			packedCorpusFile.close();
+			return;
+		}
+		m_packedCorpusFile = packedCorpusFile;
+		if (m_nverbose > 1) {
+			Print.dialog("Reading " + m_packedCorpusFile.getNumberOfPatterns()
+					+ " Patterns from " + fileName);
+		}
+	}
+
+	/**
+	 * Same as accumulateStatisticsOfUtterance(DataLocator, String) but with
+	 * the Pattern already read and m_nindicesOfPhysicalHMMs already set.
+	 *
+	 * @param pattern
+	 *            parameters of the utterance
+	 * @param parametersFileName
+	 *            SOP file of the utterance, used only in messages
+	 * @return number of frames of the utterance
+	 */
+	private int accumulateStatisticsOfUtterance(Pattern pattern,
+			String parametersFileName) {
+		int nnumberOfFrames = pattern.getNumOfFrames();
+
+		int nminimumTotalDuration = getMinimumDurationForAllHMMsAndSumThemUp();
+		if (nminimumTotalDuration > nnumberOfFrames) {
+			End
+					.throwError(" Unable to traverse "
+							+ nminimumTotalDuration
+							+ " states in "
+							+ nnumberOfFrames
+							+ " frames.\nMaybe the cause is bad data or over pruning.");
+		}
+
+		// XXX can eventually initialize with values obtained from user
+		m_pruningInformation = new PruningInformation(nnumberOfFrames,
+				m_flogPruningThreshold);
+
+		// reset pre-computations
+		resetValuesOfOutputProbabilities();
+
+		// do forward-backward
+		if (calculateBackwardMatrix(pattern)) {
+			calculateForwardValuesAndAccumulateStatistic(pattern);
+		} else {
+			//error
+			System.err.println("Error calculating beta matrix for file " + parametersFileName);
+		}
+		return nnumberOfFrames;
+	}
+
+	/**
+	 * Read all DataLocators and start the threads that read ahead the
+	 * utterances, which must then be consumed in the same order.
+	 */
+	private UtterancePrefetcher createUtterancePrefetcher(
+			DatabaseManager databaseManager, String setOfPatternsInputDirectory) {
+		Vector dataLocators = new Vector();
+		Vector parametersFileNames = new Vector();
+		while (databaseManager.isThereDataToRead()) {
+			DataLocator dataLocator = databaseManager.getNextDataLocator();
+			dataLocators.addElement(dataLocator);
+			parametersFileNames.addElement(getParametersFileName(dataLocator,
+					setOfPatternsInputDirectory));
+		}
+		if (m_nverbose > 1) {
+			Print.dialog("Reading ahead up to "
+					+ m_nnumberOfPrefetchedUtterances + " of "
+					+ dataLocators.size() + " utterances using "
+					+ m_nnumberOfPrefetchThreads + " I/O threads");
+		}
+		UtterancePrefetcher utterancePrefetcher = new UtterancePrefetcher(
+				this, dataLocators, parametersFileNames,
+				m_nnumberOfPrefetchedUtterances, m_nnumberOfPrefetchThreads);
+		utterancePrefetcher.start();
+		return utterancePrefetcher;
+	}
+
+	/**
+	 * Accumulate the statistics of all utterances using m_nnumberOfThreads
+	 * threads. The utterances are split into contiguous shards (in the order
+	 * given by the DatabaseManager), each one processed by an object with
+	 * private accumulators. After all threads finish, the accumulators are
+	 * added to the ones of m_setOfSharedContinuousHMMsBeingReestimated in
+	 * shard order, such that the reestimated models do not depend on the
+	 * scheduling of the threads (but they may differ from the ones obtained
+	 * with a single thread in the last bits, because the sums are done in
+	 * another order).
+	 *
+	 * @param databaseManager
+	 *            provides the transcriptions
+	 * @param setOfPatternsInputDirectory
+	 *            directory with the SOP files
+	 */
+	private void accumulateStatisticsUsingThreads(
+			DatabaseManager databaseManager, String setOfPatternsInputDirectory) {
+		Vector dataLocators = new Vector();
+		Vector parametersFileNames = new Vector();
+		while (databaseManager.isThereDataToRead()) {
+			DataLocator dataLocator = databaseManager.getNextDataLocator();
+			dataLocators.addElement(dataLocator);
+			parametersFileNames.addElement(getParametersFileName(dataLocator,
+					setOfPatternsInputDirectory));
+		}
+		int nnumberOfUtterances = dataLocators.size();
+		int nnumberOfShards = Math.min(m_nnumberOfThreads, nnumberOfUtterances);
+		if (nnumberOfShards < 1) {
+			return;
+		}
+		if (m_nverbose > 1) {
+			Print.dialog("Accumulating statistics of " + nnumberOfUtterances
+					+ " utterances using " + nnumberOfShards + " threads");
+		}
+
+		// create the (read-only) topologies once, to be shared by the shards
+		getTransitionArcs(0);
+
+		ShardThread[] shardThreads = new ShardThread[nnumberOfShards];
+		for (int i = 0; i < nnumberOfShards; i++) {
+			int nfirst = (int) ((long) i * nnumberOfUtterances / nnumberOfShards);
+			int nlast = (int) ((long) (i + 1) * nnumberOfUtterances / nnumberOfShards);
+			shardThreads[i] = new ShardThread(
+					new SetOfSharedContinuousHMMsReestimator(this), dataLocators,
+					parametersFileNames, nfirst, nlast);
+			shardThreads[i].start();
+		}
+		for (int i = 0; i < nnumberOfShards; i++) {
+			try {
+				shardThreads[i].join();
+			} catch (InterruptedException e) {
+				End.throwError("Interrupted while waiting for thread " + i);
+			}
+		}
+		for (int i = 0; i < nnumberOfShards; i++) {
+			Throwable throwable = shardThreads[i].m_throwable;
+			if (throwable instanceof RuntimeException) {
+				throw (RuntimeException) throwable;
+			} else if (throwable instanceof Error) {
+				throw (Error) throwable;
+			}
+		}
+		for (int i = 0; i < nnumberOfShards; i++) {
+			addAccumulatorsOfShard(shardThreads[i].m_shard);
+		}
+	}
+
+	/**
+	 * The shards add their accumulators through
+	 * getDiagonalCovarianceAccumulatorReference(), which is not implemented
+	 * for full covariance matrices. In this case, the statistics must be
+	 * accumulated by a single thread.
+	 */
+	private boolean areAllCovarianceMatricesDiagonal() {
+		MixtureOfGaussianPDFsBeingReestimated[] mixtures = m_setOfSharedContinuousHMMsBeingReestimated.m_mixturesOfGaussianPDFsBeingReestimated;
+		for (int i = 0; i < mixtures.length; i++) {
+			PDFBeingReestimated[] pDFs = mixtures[i].m_pDFsBeingReestimated;
+			for (int m = 0; m < pDFs.length; m++) {
+				if (pDFs[m].getCovarianceMatrixType() != CovarianceMatrix.Type.DIAGONAL) {
+					if (m_nverbose > 0) {
+						Print.warning("Full covariance matrices: ignoring "
+								+ "SetOfSharedContinuousHMMReestimator.nnumberOfThreads = "
+								+ m_nnumberOfThreads + " and using 1 thread");
+					}
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Number of training examples of the given physical HMM, including the
+	 * ones counted by the shards.
+	 */
+	private int getNumberOfTrainingExamplesOfGivenHMM(int nhmm) {
+		int n = m_setOfSharedContinuousHMMsBeingReestimated
+				.getNumberOfTrainingExamplesOfGivenHMM(nhmm);
+		if (m_nnumberOfTrainingExamplesCountedByShards != null) {
+			n += m_nnumberOfTrainingExamplesCountedByShards[nhmm];
+		}
+		return n;
+	}
+
+	/**
+	 * Add the accumulators of a shard to the ones of
+	 * m_setOfSharedContinuousHMMsBeingReestimated.
+	 *
+	 * @param shard
+	 *            object that processed a shard of the utterances
+	 */
+	private void addAccumulatorsOfShard(SetOfSharedContinuousHMMsReestimator shard) {
+		MixtureOfGaussianPDFsBeingReestimated[] mixtures = m_setOfSharedContinuousHMMsBeingReestimated.m_mixturesOfGaussianPDFsBeingReestimated;
+		for (int i = 0; i < mixtures.length; i++) {
+			MixtureOfGaussianPDFsBeingReestimated mixtureOfShard = shard.m_mixturesOfThisShard[i];
+			MixtureWeightsAccumulator weights = mixtures[i].m_mixtureWeightsAccumulator;
+			MixtureWeightsAccumulator weightsOfShard = mixtureOfShard.m_mixtureWeightsAccumulator;
+			weights.m_ftotalOccupationProbability += weightsOfShard.m_ftotalOccupationProbability;
+			addVectors(weights.m_foccupationProbability,
+					weightsOfShard.m_foccupationProbability);
+			PDFBeingReestimated[] pDFs = mixtures[i].m_pDFsBeingReestimated;
+			PDFBeingReestimated[] pDFsOfShard = mixtureOfShard.m_pDFsBeingReestimated;
+			for (int m = 0; m < pDFs.length; m++) {
+				MeanAccumulator mean = pDFs[m].getMeanAccumulatorReference();
+				MeanAccumulator meanOfShard = pDFsOfShard[m]
+						.getMeanAccumulatorReference();
+				mean.m_ftotalOccupationProbability += meanOfShard.m_ftotalOccupationProbability;
+				addVectors(mean.m_foccupationProbability,
+						meanOfShard.m_foccupationProbability);
+				DiagonalCovarianceAccumulator covariance = pDFs[m]
+						.getDiagonalCovarianceAccumulatorReference();
+				DiagonalCovarianceAccumulator covarianceOfShard = pDFsOfShard[m]
+						.getDiagonalCovarianceAccumulatorReference();
+				covariance.m_ftotalOccupationProbability += covarianceOfShard.m_ftotalOccupationProbability;
+				addVectors(covariance.m_foccupationProbability,
+						covarianceOfShard.m_foccupationProbability);
+			}
+		}
+		TransitionMatrixBeingReestimated[] transitionMatrices = m_setOfSharedContinuousHMMsBeingReestimated.m_transitionMatrixBeingReestimated;
+		for (int i = 0; i < transitionMatrices.length; i++) {
+			TransitionMatrixAccumulator ta = transitionMatrices[i].m_transitionMatrixAccumulator;
+			if (ta == null) {
+				continue;
+			}
+			TransitionMatrixAccumulator taOfShard = shard.m_transitionMatrixAccumulatorsOfThisShard[i];
+			addVectors(ta.m_ftotalOccupationProbability,
+					taOfShard.m_ftotalOccupationProbability);
+			for (int j = 0; j < ta.m_foccupationProbability.length; j++) {
+				addVectors(ta.m_foccupationProbability[j],
+						taOfShard.m_foccupationProbability[j]);
+			}
+		}
+		if (m_nnumberOfTrainingExamplesCountedByShards == null) {
+			m_nnumberOfTrainingExamplesCountedByShards = new int[m_hmms.length];
+		}
+		for (int i = 0; i < m_nnumberOfTrainingExamplesCountedByShards.length; i++) {
+			m_nnumberOfTrainingExamplesCountedByShards[i] += shard.m_nnumberOfTrainingExamplesOfThisShard[i];
+		}
+		m_nnumberOfSentencesWithBetaPruningError += shard.m_nnumberOfSentencesWithBetaPruningError;
+		if (shard.m_lmaximumPeakMemoryInBytes > m_lmaximumPeakMemoryInBytes) {
+			m_lmaximumPeakMemoryInBytes = shard.m_lmaximumPeakMemoryInBytes;
+		}
+	}
+
+	private static void addVectors(float[] fsum, float[] fx) {
+		for (int i = 0; i < fsum.length; i++) {
+			fsum[i] += fx[i];
+		}
+	}
+
+	/**
+	 * Thread that accumulates the statistics of utterances nfirst to nlast-1
+	 * using the private accumulators of a shard.
+	 */
+	private static class ShardThread extends Thread {
+		SetOfSharedContinuousHMMsReestimator m_shard;
+
+		private Vector m_dataLocators;
+
+		private Vector m_parametersFileNames;
+
+		private int m_nfirst;
+
+		private int m_nlast;
+
+		/**
+		 * Error thrown by run(), if any, to be rethrown by the thread that
+		 * waits for this one.
+		 */
+		Throwable m_throwable;
+
+		ShardThread(SetOfSharedContinuousHMMsReestimator shard,
+				Vector dataLocators, Vector parametersFileNames, int nfirst,
+				int nlast) {
+			m_shard = shard;
+			m_dataLocators = dataLocators;
+			m_parametersFileNames = parametersFileNames;
+			m_nfirst = nfirst;
+			m_nlast = nlast;
+		}
+
+		public void run() {
+			try {
+				for (int i = m_nfirst; i < m_nlast; i++) {
+					DataLocator dataLocator = (DataLocator) m_dataLocators
+							.elementAt(i);
+					if (m_shard.m_nverbose > 1) {
+						Print.dialog("# " + i + " " + dataLocator.getFileName());
+					}
+					m_shard.accumulateStatisticsOfUtterance(dataLocator,
+							(String) m_parametersFileNames.elementAt(i));
+				}
+			} catch (Throwable throwable) {
+				m_throwable = throwable;
+			}
+		}
+	}
+
 	/**
 	 * Information for pruning.
 	 * 
@@ -0,0 +1,415 @@
+package edu.ucsd.asr;
+
+/**
+ *  Incremental version of BeamPrunedViterbi: the frames are given one at a
+ *  time (or in blocks, e.g. the Patterns that a PatternGenerator obtains
+ *  from consecutive chunks of audio) and the Viterbi recursion of all HMMs
+ *  is advanced as they arrive, such that the result is available as soon as
+ *  the last frame is given to finish(). The memory does not depend on the
+ *  number of frames, besides the part of the best path already decided.
+ *  <p>
+ *  Partial results are available while the input is arriving:
+ *  getBestModelSoFar() is the best model if the input ended at the current
+ *  frame, and the traceback of the surviving states is checked after each
+ *  frame: when all of them share the same path up to frame t, the states of
+ *  frames 0 to t are final (getConvergedStates()), and so is the model
+ *  (getDecidedModel()), because the paths of different HMMs never meet.
+ *  <p>
+ *  The recursion and the pruning of each frame are done by a
+ *  BeamPrunedViterbi, and this class keeps the traceback. finish() returns
+ *  the same result of BeamPrunedViterbi.classify() with the same beam width
+ *  (except that the best model is -1 when no HMM reaches its exit state)
+ *  and, with an infinite beam width, the same scores of
+ *  ContinuousHMM.getScoreUsingViterbi().
+ *  It must be recreated after the HMMs are modified and must not be shared
+ *  by concurrent threads.
+ */
+public class StreamingViterbi {
+
+  /**
+   *  Segment of a path in which it stays in the same state. The node of a
+   *  state at the current frame points to the segments that precede it;
+   *  nodes not referenced by a surviving state are garbage collected.
+   */
+  private static final class TraceNode {
+    final int m_nmodel;
+    final int m_nstate;
+    final int m_nstartFrame;
+    final int m_ndepth;
+    TraceNode m_previous;
+    //to find the common ancestor without creating a set
+    int m_nstamp;
+
+    TraceNode(int nmodel, int nstate, int nstartFrame, TraceNode previous) {
+      m_nmodel = nmodel;
+      m_nstate = nstate;
+      m_nstartFrame = nstartFrame;
+      m_previous = previous;
+      m_ndepth = (previous == null) ? 0 : previous.m_ndepth + 1;
+    }
+  }
+
+  /**
+   *  Does the Viterbi recursion and the pruning of each frame. This class
+   *  only keeps the traceback.
+   */
+  private final BeamPrunedViterbi m_beamPrunedViterbi;
+
+  /**
+   *  Node of each state, indexed as the states of m_beamPrunedViterbi.
+   */
+  private TraceNode[] m_lastNodes;
+  private TraceNode[] m_currentNodes;
+
+  /**
+   *  False after the nodes of a terminated HMM were released.
+   */
+  private final boolean[] m_ohasNodes;
+
+  private boolean m_oisFinished;
+
+  /**
+   *  States (1 to N-2) of the frames already decided.
+   */
+  private int[] m_nconvergedStates;
+  private int m_nnumberOfConvergedFrames;
+  private int m_ndecidedModel;
+
+  //auxiliary for finding the common ancestor
+  private TraceNode[] m_auxiliaryNodes;
+  private int m_nstamp;
+
+  /**
+   *  Best model (and the state before its exit state) if the input ended
+   *  at frame m_nnumberOfFramesOfBestModelSoFar - 1, cached by
+   *  updateBestModelSoFar().
+   */
+  private int m_nnumberOfFramesOfBestModelSoFar;
+  private int m_nbestModelSoFar;
+  private double m_dbestScoreSoFar;
+  private int m_nstateBeforeExitOfBestModelSoFar;
+
+  //result of finish()
+  private ClassificationResult m_classificationResult;
+  private TraceNode m_bestNode;
+
+  public StreamingViterbi(ContinuousHMM[] continuousHMMs, float fbeamWidth) {
+    m_beamPrunedViterbi = new BeamPrunedViterbi(continuousHMMs, fbeamWidth);
+    int ntotalNumberOfStates = m_beamPrunedViterbi.getFirstState(
+        continuousHMMs.length);
+    m_lastNodes = new TraceNode[ntotalNumberOfStates];
+    m_currentNodes = new TraceNode[ntotalNumberOfStates];
+    m_auxiliaryNodes = new TraceNode[ntotalNumberOfStates];
+    m_ohasNodes = new boolean[continuousHMMs.length];
+    m_nconvergedStates = new int[256];
+    reset();
+  }
+
+  /**
+   *  Use Float.POSITIVE_INFINITY to disable pruning.
+   */
+  public void setBeamWidth(float fbeamWidth) {
+    m_beamPrunedViterbi.setBeamWidth(fbeamWidth);
+  }
+
+  public float getBeamWidth() {
+    return m_beamPrunedViterbi.getBeamWidth();
+  }
+
+  /**
+   *  Statistics of the pruning, see BeamPrunedViterbi.getStatistics().
+   */
+  public String getStatistics() {
+    return m_beamPrunedViterbi.getStatistics();
+  }
+
+  /**
+   *  Start a new utterance.
+   */
+  public void reset() {
+    m_beamPrunedViterbi.startUtterance();
+    m_oisFinished = false;
+    m_nnumberOfConvergedFrames = 0;
+    m_ndecidedModel = -1;
+    m_nnumberOfFramesOfBestModelSoFar = -1;
+    m_classificationResult = null;
+    m_bestNode = null;
+    java.util.Arrays.fill(m_lastNodes, null);
+    java.util.Arrays.fill(m_currentNodes, null);
+    java.util.Arrays.fill(m_ohasNodes, true);
+  }
+
+  public int getNumberOfFrames() {
+    return m_beamPrunedViterbi.getNumberOfFrames();
+  }
+
+  public void addFrames(Pattern pattern) {
+    float[][] fframes = pattern.getParameters();
+    for (int t = 0; t < fframes.length; t++) {
+      addFrame(fframes[t]);
+    }
+  }
+
+  /**
+   *  Advance the Viterbi recursion by one frame. The array is not copied,
+   *  but it is not used after this method returns.
+   */
+  public void addFrame(float[] fframe) {
+    if (m_oisFinished) {
+      End.throwError("StreamingViterbi: reset() must be called after finish()");
+    }
+    int nframe = m_beamPrunedViterbi.getNumberOfFrames();
+    m_beamPrunedViterbi.addFrame(fframe);
+    updateNodes(nframe);
+    updateConvergedStates();
+  }
+
+  /**
+   *  Extend the traceback with the best predecessors found by
+   *  m_beamPrunedViterbi for frame nframe. A new node is created only when
+   *  the path changes state, and the nodes of states without a valid path
+   *  are released.
+   */
+  private void updateNodes(int nframe) {
+    TraceNode[] lastNodes = m_lastNodes;
+    TraceNode[] currentNodes = m_currentNodes;
+    int[] nbestPreviousStates = m_beamPrunedViterbi.
+        getBestPreviousStatesReference();
+    for (int k = 0; k < m_ohasNodes.length; k++) {
+      if (!m_ohasNodes[k]) {
+        continue;
+      }
+      int nfirstState = m_beamPrunedViterbi.getFirstState(k);
+      int nlastState = m_beamPrunedViterbi.getFirstState(k + 1) - 1;
+      if (!m_beamPrunedViterbi.isActive(k)) {
+        //both arrays, because the HMM will not be processed anymore
+        for (int i = nfirstState; i <= nlastState; i++) {
+          lastNodes[i] = null;
+          currentNodes[i] = null;
+        }
+        m_ohasNodes[k] = false;
+        continue;
+      }
+      for (int i = nfirstState + 1; i < nlastState; i++) {
+        int nbestPreviousState = nbestPreviousStates[i];
+        int ncurrentState = i - nfirstState;
+        if (nbestPreviousState == -1) {
+          currentNodes[i] = null;
+        }
+        else if (nframe == 0) {
+          currentNodes[i] = new TraceNode(k, ncurrentState, 0, null);
+        }
+        else {
+          TraceNode previousNode = lastNodes[nfirstState + nbestPreviousState];
+          currentNodes[i] = (nbestPreviousState == ncurrentState) ?
+              previousNode :
+              new TraceNode(k, ncurrentState, nframe, previousNode);
+        }
+      }
+    }
+    m_lastNodes = currentNodes;
+    m_currentNodes = lastNodes;
+  }
+
+  /**
+   *  Find the most recent node shared by the paths of all surviving states
+   *  and move the frames up to its start to m_nconvergedStates.
+   */
+  private void updateConvergedStates() {
+    TraceNode[] nodes = m_auxiliaryNodes;
+    int nnumberOfNodes = 0;
+    m_nstamp++;
+    for (int i = 0; i < m_lastNodes.length; i++) {
+      TraceNode node = m_lastNodes[i];
+      if (node != null && node.m_nstamp != m_nstamp) {
+        node.m_nstamp = m_nstamp;
+        nodes[nnumberOfNodes++] = node;
+      }
+    }
+    if (nnumberOfNodes == 0) {
+      return;
+    }
+    //replace the deepest nodes by their predecessors until only one is left
+    while (nnumberOfNodes > 1) {
+      int nmaximumDepth = 0;
+      for (int j = 0; j < nnumberOfNodes; j++) {
+        if (nodes[j].m_ndepth > nmaximumDepth) {
+          nmaximumDepth = nodes[j].m_ndepth;
+        }
+      }
+      m_nstamp++;
+      int nnumberOfNewNodes = 0;
+      for (int j = 0; j < nnumberOfNodes; j++) {
+        TraceNode node = nodes[j];
+        if (node.m_ndepth == nmaximumDepth) {
+          node = node.m_previous;
+          if (node == null) {
+            //paths do not converge (e.g. they are in different HMMs)
+            java.util.Arrays.fill(nodes, 0, nnumberOfNodes, null);
+            return;
+          }
+        }
+        if (node.m_nstamp != m_nstamp) {
+          node.m_nstamp = m_nstamp;
+          nodes[nnumberOfNewNodes++] = node;
+        }
+      }
+      java.util.Arrays.fill(nodes, nnumberOfNewNodes, nnumberOfNodes, null);
+      nnumberOfNodes = nnumberOfNewNodes;
+    }
+    TraceNode commonNode = nodes[0];
+    nodes[0] = null;
+    if (commonNode.m_nstartFrame < m_nnumberOfConvergedFrames) {
+      return;
+    }
+    if (m_nconvergedStates.length <= commonNode.m_nstartFrame) {
+      int[] nnewConvergedStates = new int[Math.max(2 * m_nconvergedStates.length,
+          commonNode.m_nstartFrame + 1)];
+      System.arraycopy(m_nconvergedStates, 0, nnewConvergedStates, 0,
+                       m_nnumberOfConvergedFrames);
+      m_nconvergedStates = nnewConvergedStates;
+    }
+    fillPath(commonNode, commonNode.m_nstartFrame, m_nconvergedStates);
+    m_nnumberOfConvergedFrames = commonNode.m_nstartFrame + 1;
+    m_ndecidedModel = commonNode.m_nmodel;
+    //the older segments are not needed anymore
+    commonNode.m_previous = null;
+  }
+
+  /**
+   *  Write the states of the path that ends at the given node, from frame
+   *  m_nnumberOfConvergedFrames to nlastFrame.
+   */
+  private void fillPath(TraceNode node, int nlastFrame, int[] nstates) {
+    int nnextStartFrame = nlastFrame + 1;
+    while (node != null && nnextStartFrame > m_nnumberOfConvergedFrames) {
+      int nfirstFrame = Math.max(node.m_nstartFrame, m_nnumberOfConvergedFrames);
+      for (int t = nfirstFrame; t < nnextStartFrame; t++) {
+        nstates[t] = node.m_nstate;
+      }
+      nnextStartFrame = node.m_nstartFrame;
+      node = node.m_previous;
+    }
+  }
+
+  /**
+   *  Best model (index in the array given to the constructor) if the
+   *  input ended at the current frame, or -1 if no HMM can reach its exit
+   *  state.
+   */
+  public int getBestModelSoFar() {
+    updateBestModelSoFar();
+    return m_nbestModelSoFar;
+  }
+
+  /**
+   *  Score (log probability divided by the number of frames) of
+   *  getBestModelSoFar(), or -Double.MAX_VALUE if it is -1.
+   */
+  public double getBestScoreSoFar() {
+    updateBestModelSoFar();
+    return m_dbestScoreSoFar;
+  }
+
+  /**
+   *  Model of the states returned by getConvergedStates(), or -1 if the
+   *  paths did not converge yet. It cannot change until reset().
+   */
+  public int getDecidedModel() {
+    return m_ndecidedModel;
+  }
+
+  public int getNumberOfConvergedFrames() {
+    return m_nnumberOfConvergedFrames;
+  }
+
+  /**
+   *  States (1 to N-2, where N is the number of states of the HMM, as in
+   *  ContinuousHMM) of the frames that are in the paths of all surviving
+   *  states. They are the start of the best path returned at the end.
+   */
+  public int[] getConvergedStates() {
+    int[] nstates = new int[m_nnumberOfConvergedFrames];
+    System.arraycopy(m_nconvergedStates, 0, nstates, 0,
+                     m_nnumberOfConvergedFrames);
+    return nstates;
+  }
+
+  /**
+   *  Termination: transition to the exit (non-emitting) state, with the same
+   *  scores of BeamPrunedViterbi.classify(), but HMMs that cannot reach
+   *  their exit state are skipped. Calculated once per frame.
+   */
+  private void updateBestModelSoFar() {
+    int nT = m_beamPrunedViterbi.getNumberOfFrames();
+    if (m_nnumberOfFramesOfBestModelSoFar == nT) {
+      return;
+    }
+    double dbestScore = -Double.MAX_VALUE;
+    int nbestModel = -1;
+    int nbestStateBeforeExit = -1;
+    for (int k = 0; nT > 0 && k < m_beamPrunedViterbi.getNumberOfModels(); k++) {
+      int nstateBeforeExit = m_beamPrunedViterbi.findBestStateBeforeExit(k);
+      if (nstateBeforeExit == -1) {
+        continue;
+      }
+      float flogProbability = m_beamPrunedViterbi.getExitLogProbability(k,
+          nstateBeforeExit);
+      if (flogProbability <= LogDomainCalculator.m_fSMALL_NUMBER) {
+        continue;
+      }
+      double dscore = flogProbability / nT;
+      if (dscore > dbestScore) {
+        nbestModel = k;
+        dbestScore = dscore;
+        nbestStateBeforeExit = nstateBeforeExit;
+      }
+    }
+    m_nbestModelSoFar = nbestModel;
+    m_dbestScoreSoFar = dbestScore;
+    m_nstateBeforeExitOfBestModelSoFar = nbestStateBeforeExit;
+    m_nnumberOfFramesOfBestModelSoFar = nT;
+  }
+
+  /**
+   *  End the utterance and return the best model, which is -1 if no HMM
+   *  reached its exit state. Call reset() to start another utterance.
+   */
+  public ClassificationResult finish() {
+    if (m_beamPrunedViterbi.getNumberOfFrames() == 0) {
+      End.throwError("StreamingViterbi: no frames were given");
+    }
+    if (!m_oisFinished) {
+      updateBestModelSoFar();
+      m_classificationResult = new ClassificationResult(m_nbestModelSoFar,
+          m_dbestScoreSoFar, null, null, null);
+      if (m_nbestModelSoFar != -1) {
+        m_bestNode = m_lastNodes[m_beamPrunedViterbi.getFirstState(
+            m_nbestModelSoFar) + m_nstateBeforeExitOfBestModelSoFar];
+      }
+      m_oisFinished = true;
+    }
+    return m_classificationResult;
+  }
+
+  /**
+   *  States (1 to N-2) of the best path of the best model, one per frame,
+   *  or null if the best model has no valid path. Can only be called after
+   *  finish().
+   */
+  public int[] getBestPath() {
+    if (!m_oisFinished) {
+      End.throwError("StreamingViterbi: getBestPath() called before finish()");
+    }
+    if (m_bestNode == null) {
+      return null;
+    }
+    int nT = m_beamPrunedViterbi.getNumberOfFrames();
+    int[] nstates = new int[nT];
+    System.arraycopy(m_nconvergedStates, 0, nstates, 0,
+                     m_nnumberOfConvergedFrames);
+    fillPath(m_bestNode, nT - 1, nstates);
+    return nstates;
+  }
+
+}
@@ -10,6 +10,8 @@ import java.io.FileWriter;
 import javax.sound.sampled.AudioFormat;
 
 import ioproperties.*;
+import edu.ucsd.tree.Network;
+import edu.ucsd.tree.TokenPassingSentenceRecognizer;
 
 /**
  *  Organize training sessions.
@@ -86,6 +88,50 @@ public class TrainingManager
 
   private boolean m_ouseAbsolutePath;
 
+  /**
+   *  If true, the Patterns of the training sentences are also written to a
+   *  single PackedCorpusFile, which is used by the embedded re-estimation
+   *  instead of the SetOfPatterns files.
+   */
+  private boolean m_ousePackedCorpusFile;
+
+  /**
+   *  Number of threads used to convert speech into parameters (see
+   *  ParallelFrontEnd).
+   */
+  private int m_nnumberOfFrontEndThreads = 1;
+
+  /**
+   *  Cache of the Patterns calculated by the front end, or null if the
+   *  property TrainingManager.featureCacheDirectory was not specified.
+   */
+  private FeatureCache m_featureCache;
+
+  /**
+   *  Recognizer of the sentence tests: HVite (through HTKToolsCaller) or
+   *  TokenPassingDecoder (see TokenPassingSentenceRecognizer).
+   */
+  private String m_sentenceRecognizer = "HVite";
+
+  /**
+   *  Network used by the TokenPassingDecoder. If empty, a loop over the
+   *  labels of the HMMs is used.
+   */
+  private String m_tokenPassingNetworkFileName = "";
+
+  private float m_ftokenPassingBeamWidth = 200.0f;
+
+  /**
+   *  Output of the front end for one table entry or sentence.
+   */
+  private static class FrontEndResult {
+    String m_fileName;
+    int m_nnumberOfPatterns;
+    double m_dpercentageOfInvalidPatterns;
+    //only for sentences
+    Pattern m_pattern;
+  }
+
   //private boolean m_okeepDirectoryStructureForSOPsOfSentences;
 
   private int m_nverbose;
@@ -1224,6 +1270,7 @@ public class TrainingManager
     if (m_oisRunning &&
         (m_oshouldRunRecognitionForTestingData ||
          m_oshouldRunRecognitionForTrainingData)) {
+      runSentenceRecognitionTestWithTokenPassingIfRequestedByUser();
       //runRecognitionTestForMonophonesIfRequestedByUser();
       //ak
       //runClassificationTest(m_simulationFilesAndDirectories.getFinalSetOfMonophoneHMMs(),false,false,m_simulationFilesAndDirectories.getFinalDirectoryForMonophoneIsolatedHMMs);
@@ -1964,6 +2011,7 @@ public class TrainingManager
     if (m_oisRunning &&
         (m_oshouldRunRecognitionForTestingData ||
          m_oshouldRunRecognitionForTrainingData)) {
+      runSentenceRecognitionTestWithTokenPassingIfRequestedByUser();
       //runRecognitionTestForMonophonesIfRequestedByUser();
       //ak
       //runClassificationTest(m_simulationFilesAndDirectories.getFinalSetOfMonophoneHMMs(),false,false,m_simulationFilesAndDirectories.getFinalDirectoryForMonophoneIsolatedHMMs);
@@ -2197,6 +2245,60 @@ public class TrainingManager
     m_ouseAbsolutePath = (Boolean.valueOf(property)).booleanValue();
     m_headerProperties.setProperty("TrainingManager.ouseAbsolutePath", property);
 
+    property = m_headerProperties.getProperty(
+        "TrainingManager.ousePackedCorpusFile", "false");
+    m_ousePackedCorpusFile = (Boolean.valueOf(property)).booleanValue();
+    m_headerProperties.setProperty("TrainingManager.ousePackedCorpusFile",
+                                   property);
+
+    property = m_headerProperties.getProperty(
+        "TrainingManager.nnumberOfFrontEndThreads", "1");
+    m_nnumberOfFrontEndThreads = (Integer.valueOf(property)).intValue();
+    CheckValues.exitOnError(m_nnumberOfFrontEndThreads, 1, 256,
+                            "TrainingManager.nnumberOfFrontEndThreads");
+    m_headerProperties.setProperty("TrainingManager.nnumberOfFrontEndThreads",
+                                   property);
+
+    String featureCacheDirectory = m_headerProperties.getProperty(
+        "TrainingManager.featureCacheDirectory", "");
+    m_headerProperties.setProperty("TrainingManager.featureCacheDirectory",
+                                   featureCacheDirectory);
+    property = m_headerProperties.getProperty(
+        "TrainingManager.nmaximumFeatureCacheSizeInMegabytes", "1024");
+    int nmaximumFeatureCacheSizeInMegabytes = (Integer.valueOf(property)).
+        intValue();
+    CheckValues.exitOnError(nmaximumFeatureCacheSizeInMegabytes, 1,
+                            Integer.MAX_VALUE,
+                            "TrainingManager.nmaximumFeatureCacheSizeInMegabytes");
+    m_headerProperties.setProperty(
+        "TrainingManager.nmaximumFeatureCacheSizeInMegabytes", property);
+    if (featureCacheDirectory.length() > 0) {
+      m_featureCache = new FeatureCache(featureCacheDirectory,
+                                        nmaximumFeatureCacheSizeInMegabytes *
+                                        1024L * 1024L);
+    }
+
+    m_sentenceRecognizer = m_headerProperties.getProperty(
+        "TrainingManager.sentenceRecognizer", "HVite");
+    if (!m_sentenceRecognizer.equals("HVite") &&
+        !m_sentenceRecognizer.equals("TokenPassingDecoder")) {
+      End.throwError("TrainingManager.sentenceRecognizer = " +
+                     m_sentenceRecognizer +
+                     " must be HVite or TokenPassingDecoder");
+    }
+    m_headerProperties.setProperty("TrainingManager.sentenceRecognizer",
+                                   m_sentenceRecognizer);
+    m_tokenPassingNetworkFileName = m_headerProperties.getProperty(
+        "TrainingManager.tokenPassingNetworkFileName", "");
+    m_headerProperties.setProperty(
+        "TrainingManager.tokenPassingNetworkFileName",
+        m_tokenPassingNetworkFileName);
+    property = m_headerProperties.getProperty(
+        "TrainingManager.ftokenPassingBeamWidth", "200");
+    m_ftokenPassingBeamWidth = (Float.valueOf(property)).floatValue();
+    m_headerProperties.setProperty("TrainingManager.ftokenPassingBeamWidth",
+                                   property);
+
     property = m_headerProperties.getProperty("TrainingManager.nverbose", "0");
     m_nverbose = (Integer.valueOf(property)).intValue();
     CheckValues.exitOnError(m_nverbose, 0, 10, "TrainingManager.nverbose");
@@ -2813,8 +2915,6 @@ public class TrainingManager
     //for each table entry, create the files solicited by user
     int nnumberOfEntries = m_tableOfLabels.getNumberOfEntries();
 
-    SetOfPatternsGenerator setOfPatternsGenerator = new SetOfPatternsGenerator();
-
     String propertyIdentifier = null;
     String speechDirectory = null;
     String parametersDirectory = null;
@@ -2845,7 +2945,11 @@ public class TrainingManager
         "Creating " + SetOfPatterns.m_FILE_EXTENSION +
         " files for isolated segments at directory " + parametersDirectory);
 
-    Print.setJProgressBarRange(0, nnumberOfEntries);
+    //file names are obtained before running the front end, which can use
+    //several threads
+    final String[] dataLocatorFileNames = new String[nnumberOfEntries];
+    final String[] absolutePathFileNames = new String[nnumberOfEntries];
+    String[] fileNamesToBeWrittenInProperties = new String[nnumberOfEntries];
     for (int i = 0; i < nnumberOfEntries; i++) {
       //create name to use as default value
       String prefferedDataLocatorFileName = m_simulationFilesAndDirectories.
@@ -2861,29 +2965,45 @@ public class TrainingManager
                        propertyIdentifier +
                        i + " in TRN file ?");
       }
-
-      //TODO: I am assuming only 1 file
-      DatabaseManager databaseManager = new DatabaseManager(dataLocatorFileName);
+      dataLocatorFileNames[i] = dataLocatorFileName;
 
       //get output file name
       String fileName = m_simulationFilesAndDirectories.getPrefferedName(
           m_tableOfLabels, i, SetOfPatterns.m_FILE_EXTENSION);
-      String absolutePathFileName = parametersDirectory + fileName;
-      String fileNameToBeWrittenInProperties = null;
+      absolutePathFileNames[i] = parametersDirectory + fileName;
       if (m_ouseAbsolutePath) {
         //pre-appended directory
-        fileNameToBeWrittenInProperties = absolutePathFileName;
+        fileNamesToBeWrittenInProperties[i] = absolutePathFileNames[i];
       }
       else {
         //use only file name
-        fileNameToBeWrittenInProperties = fileName;
+        fileNamesToBeWrittenInProperties[i] = fileName;
       }
+    }
 
-      SetOfPatterns setOfPatterns = setOfPatternsGenerator.getSetOfPatterns(
-          databaseManager,
-          m_patternGenerator);
-      double dpercentageOfInvalidPatterns = setOfPatternsGenerator.
-          getPercentageOfInvalidPatterns();
+    ParallelFrontEnd parallelFrontEnd = new ParallelFrontEnd(nnumberOfEntries,
+        m_nnumberOfFrontEndThreads, m_patternGenerator, m_headerProperties) {
+      protected Object process(int ntask, PatternGenerator patternGenerator) {
+        return createSetOfPatternsFileForIsolatedSegments(ntask,
+            dataLocatorFileNames[ntask], absolutePathFileNames[ntask],
+            patternGenerator);
+      }
+    };
+    if (m_nverbose > 1 && parallelFrontEnd.getNumberOfThreads() > 1) {
+      Print.dialog("Running front end with " +
+                   parallelFrontEnd.getNumberOfThreads() + " threads");
+    }
+    parallelFrontEnd.start();
+
+    Print.setJProgressBarRange(0, nnumberOfEntries);
+    for (int i = 0; i < nnumberOfEntries; i++) {
+      FrontEndResult frontEndResult = (FrontEndResult) parallelFrontEnd.
+          getResult(i);
+      String fileNameToBeWrittenInProperties =
+          fileNamesToBeWrittenInProperties[i];
+
+      double dpercentageOfInvalidPatterns = frontEndResult.
+          m_dpercentageOfInvalidPatterns;
       if (dpercentageOfInvalidPatterns > 0.0) {
         //add a comment in properties
         m_headerProperties.setProperty("#Percentage of invalid patterns in " +
@@ -2893,20 +3013,19 @@ public class TrainingManager
       }
 
       if (m_nverbose > 0) {
-        Print.dialog("Writing " + setOfPatterns.getNumberOfPatterns() +
-                     " tokens to " + IO.getEndOfString(absolutePathFileName, 40));
+        Print.dialog("Writing " + frontEndResult.m_nnumberOfPatterns +
+                     " tokens to " + IO.getEndOfString(frontEndResult.m_fileName,
+            40));
       }
 
-      setOfPatterns.writeToFile(absolutePathFileName,
-                                dataLocatorFileName,
-                                m_tableOfLabels.getLabelsAsString(i));
-
       //update the Properties of this object
       m_headerProperties.setProperty("SetOfPatterns." + propertyIdentifier +
                                      Integer.toString(i),
                                      fileNameToBeWrittenInProperties);
       Print.updateJProgressBar(i + 1);
     }
+    parallelFrontEnd.stop();
+    updateFeatureCache();
 
     //save to report file
     IO.appendStringWithTimeDateToEndOfTextFile(
@@ -2915,6 +3034,104 @@ public class TrainingManager
         "Finished creating SOP files at " + parametersDirectory);
   }
 
+  /**
+   *  Run the front end of the segments of one table entry and write their
+   *  SOP file. It can be called by the threads of a ParallelFrontEnd.
+   *
+   *@param  nentry                table entry
+   *@param  dataLocatorFileName   DTL file with the segments
+   *@param  absolutePathFileName  output SOP file
+   *@param  patternGenerator      PatternGenerator of current thread
+   *@return                       number of Patterns and percentage of
+   *      invalid ones
+   */
+  private FrontEndResult createSetOfPatternsFileForIsolatedSegments(int nentry,
+      String dataLocatorFileName, String absolutePathFileName,
+      PatternGenerator patternGenerator) {
+    SetOfPatterns setOfPatterns = null;
+    double dpercentageOfInvalidPatterns = 0;
+
+    FeatureCache.Key featureCacheKey = null;
+    if (m_featureCache != null) {
+      featureCacheKey = getFeatureCacheKey(dataLocatorFileName);
+      FeatureCache.Entry entry = m_featureCache.get(featureCacheKey);
+      if (entry != null) {
+        setOfPatterns = new SetOfPatterns(patternGenerator);
+        for (int i = 0; i < entry.m_patterns.length; i++) {
+          setOfPatterns.addPattern(entry.m_patterns[i]);
+        }
+        dpercentageOfInvalidPatterns = entry.m_dpercentageOfInvalidPatterns;
+      }
+    }
+
+    if (setOfPatterns == null) {
+      //TODO: I am assuming only 1 file
+      DatabaseManager databaseManager = new DatabaseManager(
+          dataLocatorFileName);
+
+      SetOfPatternsGenerator setOfPatternsGenerator = new
+          SetOfPatternsGenerator();
+      setOfPatterns = setOfPatternsGenerator.getSetOfPatterns(
+          databaseManager,
+          patternGenerator);
+      dpercentageOfInvalidPatterns = setOfPatternsGenerator.
+          getPercentageOfInvalidPatterns();
+
+      if (featureCacheKey != null) {
+        Pattern[] patterns = new Pattern[setOfPatterns.getNumberOfPatterns()];
+        for (int i = 0; i < patterns.length; i++) {
+          patterns[i] = setOfPatterns.getPattern(i);
+        }
+        m_featureCache.put(featureCacheKey, patterns,
+                           dpercentageOfInvalidPatterns);
+      }
+    }
+
+    setOfPatterns.writeToFile(absolutePathFileName,
+                              dataLocatorFileName,
+                              m_tableOfLabels.getLabelsAsString(nentry));
+
+    FrontEndResult frontEndResult = new FrontEndResult();
+    frontEndResult.m_fileName = absolutePathFileName;
+    frontEndResult.m_nnumberOfPatterns = setOfPatterns.getNumberOfPatterns();
+    frontEndResult.m_dpercentageOfInvalidPatterns =
+        dpercentageOfInvalidPatterns;
+    return frontEndResult;
+  }
+
+  /**
+   *  Key of the FeatureCache entry for the segments of a DTL file: the
+   *  labels and boundaries of the segments and the audio of their files.
+   */
+  private FeatureCache.Key getFeatureCacheKey(String dataLocatorFileName) {
+    FeatureCache.Key featureCacheKey = new FeatureCache.Key(
+        m_headerProperties);
+    DatabaseManager databaseManager = new DatabaseManager(dataLocatorFileName);
+    while (databaseManager.isThereDataToRead()) {
+      DataLocator dataLocator = databaseManager.getNextDataLocator();
+      featureCacheKey.add(dataLocator.toString());
+      featureCacheKey.add(new LabeledSpeech(dataLocator).
+                          getAudioOfWholeSentence());
+    }
+    databaseManager.finalizeDataReading();
+    return featureCacheKey;
+  }
+
+  /**
+   *  Evict old entries of the FeatureCache, if it is used, and report its
+   *  hit rate.
+   */
+  private void updateFeatureCache() {
+    if (m_featureCache == null) {
+      return;
+    }
+    m_featureCache.evict();
+    if (m_nverbose > 0) {
+      Print.dialog(m_featureCache.getStatistics());
+    }
+    m_featureCache.resetStatistics();
+  }
+
   //in this case I am not using SetOfPatternsGenerator.getSetOfPatterns()
   //because I want 1 SOP file per sentence, instead of a possibly huge SOP
   //with all sentences.
@@ -2971,61 +3188,174 @@ public class TrainingManager
 
     int nlengthOfdatabaseRootDirectoryString = speechDirectory.length();
 
+    //the embedded re-estimation reads only the training sentences
+    PackedCorpusFile.Writer packedCorpusFileWriter = null;
+    String packedCorpusFileName = FileNamesAndDirectories.concatenateTwoPaths(
+        parametersDirectory, PackedCorpusFile.m_DEFAULT_FILE_NAME);
+    if (oisTraining && m_ousePackedCorpusFile) {
+      try {
+        packedCorpusFileWriter = new PackedCorpusFile.Writer(
+            packedCorpusFileName,
+            m_patternGenerator.getNumberOfParameters());
+      }
+      catch (IOException e) {
+        End.throwError("Could not create " + packedCorpusFileName + ": " +
+                       e.getMessage());
+      }
+    }
+
     DataLocator sopDataLocator = null;
-    int ncounter = 0;
+    //read all DataLocators, such that the sentences can be processed by
+    //different threads
+    final Vector dataLocators = new Vector();
     while (databaseManager.isThereDataToRead()) {
-      DataLocator dataLocator = databaseManager.getNextDataLocator();
+      dataLocators.addElement(databaseManager.getNextDataLocator());
+    }
+    final String finalParametersDirectory = parametersDirectory;
+    ParallelFrontEnd parallelFrontEnd = new ParallelFrontEnd(dataLocators.
+        size(), m_nnumberOfFrontEndThreads, m_patternGenerator,
+        m_headerProperties) {
+      protected Object process(int ntask, PatternGenerator patternGenerator) {
+        return createSetOfPatternsFileForSentence( (DataLocator) dataLocators.
+            elementAt(ntask), finalParametersDirectory, patternGenerator);
+      }
+    };
+    if (m_nverbose > 1 && parallelFrontEnd.getNumberOfThreads() > 1) {
+      Print.dialog("Running front end with " +
+                   parallelFrontEnd.getNumberOfThreads() + " threads");
+    }
+    parallelFrontEnd.start();
+    int ncounter = 0;
+    String[] setOfPatternsFileNames = new String[dataLocators.size()];
+    for (int i = 0; i < dataLocators.size(); i++) {
+      FrontEndResult frontEndResult = (FrontEndResult) parallelFrontEnd.
+          getResult(i);
+      setOfPatternsFileNames[i] = frontEndResult.m_fileName;
 
-      LabeledSpeech labeledSpeech = new LabeledSpeech(dataLocator);
+      if (m_nverbose > 1) {
+        Print.dialog("Writing file " + frontEndResult.m_fileName);
+      }
 
-      //I could read only the Audio for such segment with:
-      //Audio audio = labeledSpeech.getAudioFromGivenSegment(0);
-      //That wouldn't include silence in begin and end and save
-      //computation. But instead, I will
-      //read the whole Audio (with silence regions) because that
-      //keep DTL information consistent among waveforms and SOP's
-      //and besides, I can later need to create models for silence
-      Audio audio = labeledSpeech.getAudioOfWholeSentence();
+      if (packedCorpusFileWriter != null) {
+        try {
+          packedCorpusFileWriter.addPattern( ( (DataLocator) dataLocators.
+                                              elementAt(i)).getFileName(),
+                                            frontEndResult.m_pattern);
+        }
+        catch (IOException e) {
+          End.throwError("Error writing " + packedCorpusFileName + ": " +
+                         e.getMessage());
+        }
+      }
 
-      //check if the audio has the same sample frequency and is mono
-      AudioFormat audioFormat = audio.getAudioFormat();
-      if (audioFormat.getSampleRate() !=
-          m_patternGenerator.getSpeechSamplingRate()) {
-        End.throwError("File " + dataLocator.getFileName() +
-                       " has sampling frequency " +
-                       audioFormat.getSampleRate() +
-                       ", while the PatternGenerator is expecting " +
-                       m_patternGenerator.getSpeechSamplingRate());
+      ncounter++;
+      Print.updateJProgressBar(ncounter);
+    }
+    parallelFrontEnd.stop();
+    updateFeatureCache();
+    databaseManager.finalizeDataReading();
+    if (packedCorpusFileWriter != null) {
+      //all SOP files were written, such that the reader can check that they
+      //did not change
+      packedCorpusFileWriter.setFingerprint(PackedCorpusFile.
+          calculateFingerprint(m_headerProperties, setOfPatternsFileNames));
+      try {
+        packedCorpusFileWriter.close();
       }
-      if (audioFormat.getChannels() != 1) {
-        End.throwError("File " + dataLocator.getFileName() + " is not mono." +
-                       " It has " + audioFormat.getChannels() + " channels.");
+      catch (IOException e) {
+        End.throwError("Error closing " + packedCorpusFileName + ": " +
+                       e.getMessage());
       }
+      if (m_nverbose > 0) {
+        Print.dialog("Wrote " + packedCorpusFileWriter.getNumberOfPatterns() +
+                     " sentences to " + packedCorpusFileName);
+      }
+    }
+    //save to report file
+    IO.appendStringWithTimeDateToEndOfTextFile(
+        FileNamesAndDirectories.getParent(parametersDirectory) +
+        m_reportFileName,
+        "Finished creating " + SetOfPatterns.m_FILE_EXTENSION +
+        " files for sentences at directory " + parametersDirectory);
+  }
 
-      Pattern pattern = m_patternGenerator.getPattern(audio);
+  /**
+   *  Run the front end of one sentence and write its SOP file. It can be
+   *  called by the threads of a ParallelFrontEnd.
+   *
+   *@param  dataLocator          sentence
+   *@param  parametersDirectory  root directory of the SOP files
+   *@param  patternGenerator     PatternGenerator of current thread
+   *@return                      Pattern and SOP file name of the sentence
+   */
+  private FrontEndResult createSetOfPatternsFileForSentence(DataLocator
+      dataLocator, String parametersDirectory,
+      PatternGenerator patternGenerator) {
+    LabeledSpeech labeledSpeech = new LabeledSpeech(dataLocator);
+
+    //I could read only the Audio for such segment with:
+    //Audio audio = labeledSpeech.getAudioFromGivenSegment(0);
+    //That wouldn't include silence in begin and end and save
+    //computation. But instead, I will
+    //read the whole Audio (with silence regions) because that
+    //keep DTL information consistent among waveforms and SOP's
+    //and besides, I can later need to create models for silence
+    Audio audio = labeledSpeech.getAudioOfWholeSentence();
+
+    //check if the audio has the same sample frequency and is mono
+    AudioFormat audioFormat = audio.getAudioFormat();
+    if (audioFormat.getSampleRate() !=
+        patternGenerator.getSpeechSamplingRate()) {
+      End.throwError("File " + dataLocator.getFileName() +
+                     " has sampling frequency " +
+                     audioFormat.getSampleRate() +
+                     ", while the PatternGenerator is expecting " +
+                     patternGenerator.getSpeechSamplingRate());
+    }
+    if (audioFormat.getChannels() != 1) {
+      End.throwError("File " + dataLocator.getFileName() + " is not mono." +
+                     " It has " + audioFormat.getChannels() + " channels.");
+    }
+
+    Pattern pattern = null;
+    FeatureCache.Key featureCacheKey = null;
+    if (m_featureCache != null) {
+      featureCacheKey = new FeatureCache.Key(m_headerProperties);
+      featureCacheKey.add(audio);
+      FeatureCache.Entry entry = m_featureCache.get(featureCacheKey);
+      if (entry != null) {
+        pattern = entry.m_patterns[0];
+      }
+    }
+    if (pattern == null) {
+      pattern = patternGenerator.getPattern(audio);
 
       if (pattern == null) {
         //whole sentence should be long enough to have a valid Pattern
         End.throwError("Error in " + dataLocator.toString() +
                        ": null Pattern !");
       }
+      if (featureCacheKey != null) {
+        m_featureCache.put(featureCacheKey, new Pattern[] {pattern}, 0);
+      }
+    }
 
-      //create one SOP per sentence
-      //System.out.println("Pattern length: "+pattern.getNumOfFrames());
-      SetOfPatterns setOfPatterns = new SetOfPatterns(m_patternGenerator);
-      setOfPatterns.addPattern(pattern);
+    //create one SOP per sentence
+    //System.out.println("Pattern length: "+pattern.getNumOfFrames());
+    SetOfPatterns setOfPatterns = new SetOfPatterns(patternGenerator);
+    setOfPatterns.addPattern(pattern);
 
-      String thisDataLocatorInputFileName = null;
-      String thisSOPOutputFileName = null;
-      String absolutePathFileName = null;
-      if (m_ouseAbsolutePath) {
-        thisDataLocatorInputFileName = dataLocator.getFileName();
-      }
-      else {
-        thisDataLocatorInputFileName = dataLocator.getFileName();
-      }
+    String thisDataLocatorInputFileName = null;
+    String thisSOPOutputFileName = null;
+    String absolutePathFileName = null;
+    if (m_ouseAbsolutePath) {
+      thisDataLocatorInputFileName = dataLocator.getFileName();
+    }
+    else {
+      thisDataLocatorInputFileName = dataLocator.getFileName();
+    }
 
-      //Print.dialog(thisDataLocatorInputFileName);
+    //Print.dialog(thisDataLocatorInputFileName);
 
 //ak
 //			PathOrganizer pathOrganizer = null;
@@ -3041,52 +3371,46 @@ public class TrainingManager
 //			if (!pathOrganizer.isPathOk()) {
 //				End.throwError(thisDataLocatorInputFileName + " is not a valid path");
 //			}
-      if (m_ouseAbsolutePath) {
-        thisDataLocatorInputFileName = thisDataLocatorInputFileName; //pathOrganizer.toString();
-        //take out 'test' or 'train' string
-        int nindexOfFirstSlash = thisDataLocatorInputFileName.indexOf("/");
-        thisDataLocatorInputFileName = thisDataLocatorInputFileName.substring(
-            nindexOfFirstSlash + 1, thisDataLocatorInputFileName.length());
-        thisSOPOutputFileName = FileNamesAndDirectories.substituteExtension(
-            thisDataLocatorInputFileName, setOfPatterns.m_FILE_EXTENSION);
-        absolutePathFileName = FileNamesAndDirectories.concatenateTwoPaths(
-            parametersDirectory, thisSOPOutputFileName);
-      }
-      else {
-        thisDataLocatorInputFileName = thisDataLocatorInputFileName; //akpathOrganizer.getUniqueName();
-        thisDataLocatorInputFileName = FileNamesAndDirectories.
-            getFileNameFromPath(thisDataLocatorInputFileName);
-        thisSOPOutputFileName = FileNamesAndDirectories.substituteExtension(
-            thisDataLocatorInputFileName, setOfPatterns.m_FILE_EXTENSION);
-        absolutePathFileName = parametersDirectory + thisSOPOutputFileName;
-      }
-      //preappend dataLocatorFileName to the 'debug' info that will be written in DTL file
-      //thisDataLocatorInputFileName = outputSOPDataLocatorFileName +
-      //		", file: " +
-      //		thisDataLocatorInputFileName;
-      //write SOP file
-
+    if (m_ouseAbsolutePath) {
+      thisDataLocatorInputFileName = thisDataLocatorInputFileName; //pathOrganizer.toString();
+      //take out 'test' or 'train' string
+      int nindexOfFirstSlash = thisDataLocatorInputFileName.indexOf("/");
+      thisDataLocatorInputFileName = thisDataLocatorInputFileName.substring(
+          nindexOfFirstSlash + 1, thisDataLocatorInputFileName.length());
+      thisSOPOutputFileName = FileNamesAndDirectories.substituteExtension(
+          thisDataLocatorInputFileName, setOfPatterns.m_FILE_EXTENSION);
+      absolutePathFileName = FileNamesAndDirectories.concatenateTwoPaths(
+          parametersDirectory, thisSOPOutputFileName);
+    }
+    else {
+      thisDataLocatorInputFileName = thisDataLocatorInputFileName; //akpathOrganizer.getUniqueName();
+      thisDataLocatorInputFileName = FileNamesAndDirectories.
+          getFileNameFromPath(thisDataLocatorInputFileName);
+      thisSOPOutputFileName = FileNamesAndDirectories.substituteExtension(
+          thisDataLocatorInputFileName, setOfPatterns.m_FILE_EXTENSION);
+      absolutePathFileName = parametersDirectory + thisSOPOutputFileName;
+    }
+    //preappend dataLocatorFileName to the 'debug' info that will be written in DTL file
+    //thisDataLocatorInputFileName = outputSOPDataLocatorFileName +
+    //		", file: " +
+    //		thisDataLocatorInputFileName;
+    //write SOP file
+
+    //threads could try to create the same directory
+    synchronized (FileNamesAndDirectories.class) {
       FileNamesAndDirectories.createDirectoriesIfNecessaryGivenFileName(
           absolutePathFileName);
+    }
 
-      setOfPatterns.writeToFile(absolutePathFileName,
-                                thisDataLocatorInputFileName,
-                                "sentence");
+    setOfPatterns.writeToFile(absolutePathFileName,
+                              thisDataLocatorInputFileName,
+                              "sentence");
 
-      if (m_nverbose > 1) {
-        Print.dialog("Writing file " + absolutePathFileName);
-      }
 
-      ncounter++;
-      Print.updateJProgressBar(ncounter);
-    }
-    databaseManager.finalizeDataReading();
-    //save to report file
-    IO.appendStringWithTimeDateToEndOfTextFile(
-        FileNamesAndDirectories.getParent(parametersDirectory) +
-        m_reportFileName,
-        "Finished creating " + SetOfPatterns.m_FILE_EXTENSION +
-        " files for sentences at directory " + parametersDirectory);
+    FrontEndResult frontEndResult = new FrontEndResult();
+    frontEndResult.m_fileName = absolutePathFileName;
+    frontEndResult.m_pattern = pattern;
+    return frontEndResult;
   }
 
   /**
@@ -3489,6 +3813,58 @@ public class TrainingManager
         optionsToHResults);
   }
 
+  /**
+   *  If TrainingManager.sentenceRecognizer is TokenPassingDecoder, recognize
+   *  the sentences of the test (and/or train) data with the most recent
+   *  monophone HMMs, without HTK. The results are written to the general
+   *  output directory.
+   */
+  private void runSentenceRecognitionTestWithTokenPassingIfRequestedByUser() {
+    if (!m_sentenceRecognizer.equals("TokenPassingDecoder")) {
+      return;
+    }
+    String hmmFileName = m_simulationFilesAndDirectories.
+        getMostRecentMonophoneHMMFileName();
+    SetOfSharedContinuousHMMs setOfSharedContinuousHMMs = HMMReestimator.
+        getSetOfSharedContinuousHMMs(hmmFileName);
+    for (int ntestOrTrain = 0; ntestOrTrain < 2; ntestOrTrain++) {
+      boolean oisTraining = (ntestOrTrain == 1);
+      if ( (oisTraining && !m_oshouldRunRecognitionForTrainingData) ||
+          (!oisTraining && !m_oshouldRunRecognitionForTestingData)) {
+        continue;
+      }
+      //a new decoder for each test, to keep separate statistics
+      Network network = null;
+      if (m_tokenPassingNetworkFileName.length() > 0) {
+        network = new Network(m_tokenPassingNetworkFileName, false);
+      }
+      TokenPassingSentenceRecognizer tokenPassingSentenceRecognizer = new
+          TokenPassingSentenceRecognizer(network, setOfSharedContinuousHMMs);
+      tokenPassingSentenceRecognizer.getTokenPassingDecoder().setBeamWidth(
+          m_ftokenPassingBeamWidth);
+      String dataLocatorsFileName = (oisTraining) ?
+          m_simulationFilesAndDirectories.
+          getSentenceMonophoneTranscriptionsOfTrainSpeechDataFileName() :
+          m_simulationFilesAndDirectories.
+          getSentenceMonophoneTranscriptionsOfTestSpeechDataFileName();
+      String setOfPatternsDirectory = (oisTraining) ?
+          m_simulationFilesAndDirectories.
+          getSentenceTrainParametersDataRootDirectory() :
+          m_simulationFilesAndDirectories.
+          getSentenceTestParametersDataRootDirectory();
+      String outputFileName = m_simulationFilesAndDirectories.
+          getGeneralOutputDirectory() + "TokenPassingDecoder" +
+          ( (oisTraining) ? "Train" : "Test") + "Results.txt";
+      if (m_nverbose > 0) {
+        Print.dialog("Recognizing " + dataLocatorsFileName + " with " +
+                     hmmFileName + " using TokenPassingDecoder");
+      }
+      tokenPassingSentenceRecognizer.recognize(dataLocatorsFileName,
+                                               setOfPatternsDirectory,
+                                               outputFileName);
+    }
+  }
+
   /**
    *  Description of the Method
    *
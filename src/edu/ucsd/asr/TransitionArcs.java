@@ -0,0 +1,154 @@
+package edu.ucsd.asr;
+
+/**
+ *  Sparse representation of the topology of an HMM transition matrix: for
+ *  each state, the list of states that can precede it and the list of states
+ *  that can follow it (compressed row storage, as in CSR). Only arcs with log
+ *  probability larger than LogDomainCalculator.m_fSMALL_NUMBER are kept, such
+ *  that dynamic programming (Viterbi, forward and backward) can iterate over
+ *  the existing arcs and avoid the tests over all N x N transitions. A
+ *  left-right no-skips HMM has at most 2 arcs per emitting state.
+ *  Only the indices are stored: the log probabilities must be obtained from
+ *  the transition matrix itself, so that changing the values of existing arcs
+ *  does not require a new object. The object must be recreated if the
+ *  topology changes.
+ */
+public final class TransitionArcs {
+
+  /**
+   *  Matrix (in log domain) used to create this object.
+   */
+  private final float[][] m_ftransitionMatrix;
+
+  /**
+   *  Predecessors of state j are m_npredecessors[k], for
+   *  m_npredecessorsStart[j] <= k < m_npredecessorsStart[j+1], in increasing
+   *  order of state index.
+   */
+  final int[] m_npredecessorsStart;
+  final int[] m_npredecessors;
+
+  /**
+   *  Successors of state i are m_nsuccessors[k], for
+   *  m_nsuccessorsStart[i] <= k < m_nsuccessorsStart[i+1], in increasing
+   *  order of state index.
+   */
+  final int[] m_nsuccessorsStart;
+  final int[] m_nsuccessors;
+
+  /**
+   *  Construct from a transition matrix in log domain.
+   */
+  public TransitionArcs(float[][] ftransitionMatrixInLogDomain) {
+    m_ftransitionMatrix = ftransitionMatrixInLogDomain;
+    int nnumberOfStates = ftransitionMatrixInLogDomain.length;
+    int nnumberOfArcs = 0;
+    for (int i = 0; i < nnumberOfStates; i++) {
+      for (int j = 0; j < nnumberOfStates; j++) {
+        if (ftransitionMatrixInLogDomain[i][j] > LogDomainCalculator.m_fSMALL_NUMBER) {
+          nnumberOfArcs++;
+        }
+      }
+    }
+    m_npredecessorsStart = new int[nnumberOfStates + 1];
+    m_npredecessors = new int[nnumberOfArcs];
+    m_nsuccessorsStart = new int[nnumberOfStates + 1];
+    m_nsuccessors = new int[nnumberOfArcs];
+    int k = 0;
+    for (int j = 0; j < nnumberOfStates; j++) {
+      m_npredecessorsStart[j] = k;
+      for (int i = 0; i < nnumberOfStates; i++) {
+        if (ftransitionMatrixInLogDomain[i][j] > LogDomainCalculator.m_fSMALL_NUMBER) {
+          m_npredecessors[k++] = i;
+        }
+      }
+    }
+    m_npredecessorsStart[nnumberOfStates] = k;
+    k = 0;
+    for (int i = 0; i < nnumberOfStates; i++) {
+      m_nsuccessorsStart[i] = k;
+      for (int j = 0; j < nnumberOfStates; j++) {
+        if (ftransitionMatrixInLogDomain[i][j] > LogDomainCalculator.m_fSMALL_NUMBER) {
+          m_nsuccessors[k++] = j;
+        }
+      }
+    }
+    m_nsuccessorsStart[nnumberOfStates] = k;
+  }
+
+  /**
+   *  Create one object for each physical HMM of a shared set.
+   */
+  public static TransitionArcs[] createForPhysicalHMMs(
+      SetOfSharedContinuousHMMs.PhysicalHMM[] physicalHMMs) {
+    TransitionArcs[] transitionArcs = new TransitionArcs[physicalHMMs.length];
+    for (int i = 0; i < physicalHMMs.length; i++) {
+      transitionArcs[i] = new TransitionArcs(physicalHMMs[i].getTransitionMatrix().getMatrixInLogDomain());
+    }
+    return transitionArcs;
+  }
+
+  /**
+   *  Returns true if this object was created from the given matrix (the
+   *  same reference, not only the same values).
+   */
+  public boolean wasCreatedFrom(float[][] ftransitionMatrixInLogDomain) {
+    return m_ftransitionMatrix == ftransitionMatrixInLogDomain;
+  }
+
+  /**
+   *  Matrix (in log domain) used to create this object. It is not a copy and
+   *  must not be modified.
+   */
+  public float[][] getMatrixInLogDomainReference() {
+    return m_ftransitionMatrix;
+  }
+
+  public int getNumberOfStates() {
+    return m_npredecessorsStart.length - 1;
+  }
+
+  public int getNumberOfArcs() {
+    return m_npredecessors.length;
+  }
+
+  /**
+   *  States that can precede state j, in increasing order. The array has
+   *  capacity for all arcs, use getFirstPredecessorIndex() and
+   *  getFirstPredecessorIndex(j+1) to find the range of state j.
+   */
+  public int[] getPredecessorsReference() {
+    return m_npredecessors;
+  }
+
+  public int getFirstPredecessorIndex(int j) {
+    return m_npredecessorsStart[j];
+  }
+
+  /**
+   *  States that can follow state i, in increasing order. The array has
+   *  capacity for all arcs, use getFirstSuccessorIndex() and
+   *  getFirstSuccessorIndex(i+1) to find the range of state i.
+   */
+  public int[] getSuccessorsReference() {
+    return m_nsuccessors;
+  }
+
+  public int getFirstSuccessorIndex(int i) {
+    return m_nsuccessorsStart[i];
+  }
+
+  public String toString() {
+    StringBuffer stringBuffer = new StringBuffer();
+    int nnumberOfStates = getNumberOfStates();
+    for (int j = 0; j < nnumberOfStates; j++) {
+      stringBuffer.append("State " + j + " <-");
+      for (int k = m_npredecessorsStart[j]; k < m_npredecessorsStart[j + 1]; k++) {
+        stringBuffer.append(" " + m_npredecessors[k]);
+      }
+      stringBuffer.append(IO.m_NEW_LINE);
+    }
+    return stringBuffer.toString();
+  }
+
+}
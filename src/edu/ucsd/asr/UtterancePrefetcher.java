@@ -0,0 +1,131 @@
+package edu.ucsd.asr;
+
+import java.util.Vector;
+
+/**
+ * Reads ahead the utterances used in embedded re-estimation. While the
+ * forward-backward of the current utterance is calculated, I/O threads read
+ * the SOP files (or PackedCorpusFile) of the next utterances and convert
+ * their labels into indices of physical HMMs. At most
+ * nnumberOfPrefetchedUtterances utterances are kept in memory (being read or
+ * waiting to be consumed), and they are consumed in the same order of the
+ * DataLocators.
+ * <p>
+ * It also keeps statistics of the queue: the number of ready utterances
+ * when one is requested and the time the consumer waited (stalled) for an
+ * utterance that was not read yet. A queue that is always empty indicates
+ * that the reading is the bottleneck.
+ */
+class UtterancePrefetcher {
+
+	/**
+	 * An utterance ready to be processed.
+	 */
+	static class Utterance {
+		DataLocator m_dataLocator;
+
+		String m_parametersFileName;
+
+		Pattern m_pattern;
+
+		int[] m_nindicesOfPhysicalHMMs;
+	}
+
+	private final SetOfSharedContinuousHMMsReestimator m_reestimator;
+
+	private final Vector m_dataLocators;
+
+	private final Vector m_parametersFileNames;
+
+	private final OrderedWorkerPool m_orderedWorkerPool;
+
+	/**
+	 * @param reestimator
+	 *            used to read the Patterns and get the indices of physical
+	 *            HMMs
+	 * @param dataLocators
+	 *            DataLocators of all utterances
+	 * @param parametersFileNames
+	 *            SOP file of each DataLocator
+	 * @param nnumberOfPrefetchedUtterances
+	 *            maximum number of utterances in memory
+	 * @param nnumberOfThreads
+	 *            number of I/O threads
+	 */
+	UtterancePrefetcher(SetOfSharedContinuousHMMsReestimator reestimator,
+			Vector dataLocators, Vector parametersFileNames,
+			int nnumberOfPrefetchedUtterances, int nnumberOfThreads) {
+		if (nnumberOfPrefetchedUtterances < 1 || nnumberOfThreads < 1) {
+			End.throwError("UtterancePrefetcher needs at least 1 utterance "
+					+ "and 1 thread");
+		}
+		m_reestimator = reestimator;
+		m_dataLocators = dataLocators;
+		m_parametersFileNames = parametersFileNames;
+		m_orderedWorkerPool = new OrderedWorkerPool(dataLocators.size(),
+				nnumberOfThreads, nnumberOfPrefetchedUtterances,
+				"UtterancePrefetcher") {
+			protected Object process(int ntask, int nthread) {
+				return read(ntask);
+			}
+		};
+	}
+
+	void start() {
+		m_orderedWorkerPool.start();
+	}
+
+	boolean isThereUtteranceToRead() {
+		return m_orderedWorkerPool.isThereResultToRead();
+	}
+
+	/**
+	 * Return the next utterance, waiting for it if it was not read yet. If
+	 * an error happened when reading it, the I/O threads are stopped and the
+	 * error is rethrown here, in the consumer thread.
+	 */
+	Utterance getNextUtterance() {
+		return (Utterance) m_orderedWorkerPool.getNextResult();
+	}
+
+	/**
+	 * Stop the I/O threads. Utterances not consumed yet are discarded.
+	 */
+	void stop() {
+		m_orderedWorkerPool.stop();
+	}
+
+	int getNumberOfStalls() {
+		return m_orderedWorkerPool.getNumberOfStalls();
+	}
+
+	long getStallTimeInMilliseconds() {
+		return m_orderedWorkerPool.getStallTimeInMilliseconds();
+	}
+
+	String getStatistics() {
+		return "Prefetch of "
+				+ m_orderedWorkerPool.getNumberOfConsumedResults()
+				+ " utterances (" + m_orderedWorkerPool.getNumberOfThreads()
+				+ " threads, " + m_orderedWorkerPool.getBufferSize()
+				+ " positions): average queue depth = "
+				+ IO.format(m_orderedWorkerPool.getAverageQueueDepth())
+				+ ", maximum = " + m_orderedWorkerPool.getMaximumQueueDepth()
+				+ ", " + m_orderedWorkerPool.getNumberOfStalls() + " stalls in "
+				+ m_orderedWorkerPool.getStallTimeInMilliseconds() + " ms";
+	}
+
+	private Utterance read(int nindex) {
+		Utterance utterance = new Utterance();
+		utterance.m_dataLocator = (DataLocator) m_dataLocators
+				.elementAt(nindex);
+		utterance.m_parametersFileName = (String) m_parametersFileNames
+				.elementAt(nindex);
+		utterance.m_pattern = m_reestimator.readPatternOfUtterance(
+				utterance.m_dataLocator, utterance.m_parametersFileName);
+		utterance.m_nindicesOfPhysicalHMMs = m_reestimator
+				.getIndicesOfPhysicalHMMs(utterance.m_dataLocator);
+		return utterance;
+	}
+
+}
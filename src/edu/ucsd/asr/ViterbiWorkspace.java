@@ -0,0 +1,373 @@
+package edu.ucsd.asr;
+
+/**
+ *  Buffers used by the Viterbi algorithm of ContinuousHMM. The buffers only
+ *  grow: they are sized to the longest Pattern (and largest HMM) seen so far
+ *  and reused across calls and across HMMs, such that classifying many
+ *  segments does not allocate memory per call.
+ *  In "score only" mode the traceback matrix is not filled and the best state
+ *  sequence is not available, which is enough when one only needs the
+ *  best model and its score.
+ *  An object of this class must not be shared by concurrent threads.
+ */
+public class ViterbiWorkspace {
+
+  private float[] m_flastProbabilities;
+  private float[] m_fcurrentProbabilities;
+
+  /**
+   *  Previous state for backtracking, organized as nT x (N-2) (non-emitting
+   *  states are not stored) in a single array.
+   */
+  private short[] m_straceBack;
+
+  private int[] m_nstateSequence;
+
+  private int m_nnumberOfFramesOfLastViterbi;
+
+  private boolean m_oscoreOnly;
+
+  /**
+   *  Optional, used by findBestModelAndItsScore() to calculate all output
+   *  probabilities at once.
+   */
+  private DiagonalGaussianScorer m_diagonalGaussianScorer;
+
+  /**
+   *  Output probabilities calculated by m_diagonalGaussianScorer, organized
+   *  as nT x (number of mixtures).
+   */
+  private float[][] m_flogOutputProbabilities;
+
+  /**
+   *  Optional, used by classify() of a SetOfSharedContinuousHMMs, such that
+   *  a mixture shared by many physical HMMs is calculated once per frame.
+   */
+  private MixtureLikelihoodCache m_mixtureLikelihoodCache;
+
+  /**
+   *  Optional, used by classify() of plain HMMs when the N-best list is not
+   *  needed, such that states outside its beam are not evaluated.
+   */
+  private BeamPrunedViterbi m_beamPrunedViterbi;
+
+  /**
+   *  Physical HMMs of the most recent SetOfSharedContinuousHMMs given to
+   *  classify() (converted to plain HMMs) and their mixture indices.
+   */
+  private SetOfSharedContinuousHMMs m_setOfSharedContinuousHMMs;
+  private ContinuousHMM[] m_physicalHMMs;
+  private int[][] m_nmixtureIndicesOfPhysicalHMMs;
+
+  //results of last call to findBestModelAndItsScore()
+  private double m_dbestScore;
+  private int m_nbestModel = -1;
+
+  public ViterbiWorkspace() {
+    this(false);
+  }
+
+  public ViterbiWorkspace(boolean oscoreOnly) {
+    m_oscoreOnly = oscoreOnly;
+  }
+
+  public void setScoreOnly(boolean oscoreOnly) {
+    m_oscoreOnly = oscoreOnly;
+  }
+
+  /**
+   *  If true, Viterbi does not store traceback information.
+   */
+  public boolean isScoreOnly() {
+    return m_oscoreOnly;
+  }
+
+  /**
+   *  Set the object used by findBestModelAndItsScore() to calculate the
+   *  output probabilities of all HMMs for all frames before running
+   *  Viterbi. It is used only when findBestModelAndItsScore() is called with
+   *  the same array used to create the scorer with
+   *  DiagonalGaussianScorer.createForHMMs(). Use null to disable it.
+   */
+  public void setDiagonalGaussianScorer(DiagonalGaussianScorer diagonalGaussianScorer) {
+    m_diagonalGaussianScorer = diagonalGaussianScorer;
+  }
+
+  public DiagonalGaussianScorer getDiagonalGaussianScorer() {
+    return m_diagonalGaussianScorer;
+  }
+
+  /**
+   *  Set the cache used by classify() of a SetOfSharedContinuousHMMs. Its
+   *  DiagonalGaussianScorer must have been created with
+   *  DiagonalGaussianScorer.createForSetOfSharedHMMs(). Use null to disable
+   *  it.
+   */
+  public void setMixtureLikelihoodCache(MixtureLikelihoodCache
+                                        mixtureLikelihoodCache) {
+    m_mixtureLikelihoodCache = mixtureLikelihoodCache;
+  }
+
+  public MixtureLikelihoodCache getMixtureLikelihoodCache() {
+    return m_mixtureLikelihoodCache;
+  }
+
+  /**
+   *  Set the object used by classify() (and findBestModelAndItsScore()) to
+   *  run Viterbi with beam pruning, when it is called with the same array
+   *  used to create beamPrunedViterbi and without N-best list. Pruning
+   *  trades accuracy for speed. Use null to disable it.
+   */
+  public void setBeamPrunedViterbi(BeamPrunedViterbi beamPrunedViterbi) {
+    m_beamPrunedViterbi = beamPrunedViterbi;
+  }
+
+  public BeamPrunedViterbi getBeamPrunedViterbi() {
+    return m_beamPrunedViterbi;
+  }
+
+  /**
+   *  Make sure the buffers can hold a Pattern with nT frames and an HMM
+   *  with nnumberOfStates states (including the 2 non-emitting states).
+   */
+  void ensureCapacity(int nT, int nnumberOfStates) {
+    if (m_flastProbabilities == null ||
+        m_flastProbabilities.length < nnumberOfStates) {
+      m_flastProbabilities = new float[nnumberOfStates];
+      m_fcurrentProbabilities = new float[nnumberOfStates];
+    }
+    if (!m_oscoreOnly) {
+      int nsize = nT * (nnumberOfStates - 2);
+      if (m_straceBack == null || m_straceBack.length < nsize) {
+        m_straceBack = new short[nsize];
+      }
+      if (m_nstateSequence == null || m_nstateSequence.length < nT) {
+        m_nstateSequence = new int[nT];
+      }
+    }
+  }
+
+  float[] getLastProbabilitiesReference() {
+    return m_flastProbabilities;
+  }
+
+  float[] getCurrentProbabilitiesReference() {
+    return m_fcurrentProbabilities;
+  }
+
+  short[] getTraceBackReference() {
+    return m_straceBack;
+  }
+
+  /**
+   *  Swap the vectors of last and current probabilities, which avoids
+   *  copying the current into the last vector for each frame.
+   */
+  void swapProbabilities() {
+    float[] ftemp = m_flastProbabilities;
+    m_flastProbabilities = m_fcurrentProbabilities;
+    m_fcurrentProbabilities = ftemp;
+  }
+
+  /**
+   *  Backtrack the best path, given the best state at the last frame.
+   *  States are numbered from 1...N, where 1 is the first emitting state.
+   */
+  void doTraceBack(int nT, int nnumberOfEmittingStates, int thisState) {
+    m_nnumberOfFramesOfLastViterbi = nT;
+    if (m_oscoreOnly) {
+      return;
+    }
+    for (int t = nT - 1; t >= 0; t--) {
+      m_nstateSequence[t] = thisState;
+      //subtract because first state is non-emitting
+      thisState = m_straceBack[t * nnumberOfEmittingStates + thisState - 1];
+    }
+  }
+
+  /**
+   *  Number of frames of the Pattern used in most recent Viterbi.
+   */
+  public int getNumberOfFramesOfLastViterbi() {
+    return m_nnumberOfFramesOfLastViterbi;
+  }
+
+  /**
+   *  Returns a copy of the best state sequence of most recent Viterbi or null
+   *  if in "score only" mode. States are numbered from 1...N, where 1 is the
+   *  first emitting state.
+   */
+  public int[] getStateSequenceOfLastViterbi() {
+    if (m_oscoreOnly || m_nstateSequence == null) {
+      return null;
+    }
+    int[] nstateSequence = new int[m_nnumberOfFramesOfLastViterbi];
+    System.arraycopy(m_nstateSequence, 0, nstateSequence, 0,
+                     m_nnumberOfFramesOfLastViterbi);
+    return nstateSequence;
+  }
+
+  /**
+   *  Returns the internal buffer with the best state sequence of most recent
+   *  Viterbi. Only the first getNumberOfFramesOfLastViterbi() elements are
+   *  valid and the contents are overwritten by the next call.
+   */
+  public int[] getStateSequenceOfLastViterbiReference() {
+    return m_oscoreOnly ? null : m_nstateSequence;
+  }
+
+  /**
+   *  Same as SetOfPlainContinuousHMMs.findBestModelAndItsScore() but without
+   *  N-best list and, as traceback is not needed, temporarily using
+   *  "score only" mode. Results are obtained with getBestModel() and
+   *  getBestScore(). See setDiagonalGaussianScorer().
+   */
+  public void findBestModelAndItsScore(ContinuousHMM[] continuousHMMs,
+                                       Pattern pattern) {
+    ClassificationResult classificationResult = classify(continuousHMMs,
+        pattern, 0, false);
+    m_dbestScore = classificationResult.getBestScore();
+    m_nbestModel = classificationResult.getBestModel();
+  }
+
+  /**
+   *  Same as SetOfPlainContinuousHMMs.findBestModelAndItsScore() (with the
+   *  N-best list enabled if nbestListN > 0, keeping the paths if
+   *  okeepPathsOfNBestList is true) but returning the results instead of
+   *  keeping them. The HMMs are not modified, so concurrent threads can
+   *  classify with the same HMMs, each one using its own workspace, if the
+   *  DiagonalGaussianScorer (see setDiagonalGaussianScorer()) was created
+   *  from continuousHMMs and packed all mixtures. The "score only" mode is
+   *  temporarily changed according to okeepPathsOfNBestList. If nbestListN
+   *  is 0, the BeamPrunedViterbi (see setBeamPrunedViterbi()) is used when
+   *  it was created from continuousHMMs.
+   */
+  public ClassificationResult classify(ContinuousHMM[] continuousHMMs,
+                                       Pattern pattern,
+                                       int nbestListN,
+                                       boolean okeepPathsOfNBestList) {
+    if (nbestListN == 0 && m_beamPrunedViterbi != null &&
+        m_beamPrunedViterbi.wasCreatedFrom(continuousHMMs)) {
+      return m_beamPrunedViterbi.classify(pattern);
+    }
+    boolean ooriginalMode = m_oscoreOnly;
+    okeepPathsOfNBestList = okeepPathsOfNBestList && nbestListN > 0;
+    m_oscoreOnly = !okeepPathsOfNBestList;
+    double dbestScore = -1.0E10;
+    int nbestModel = -1;
+    int nT = pattern.getNumOfFrames();
+    int[] nbestListHMMIndices = null;
+    double[] dbestListScores = null;
+    int[][] npathsOfNBestList = null;
+    if (nbestListN > 0) {
+      nbestListHMMIndices = new int[nbestListN];
+      dbestListScores = new double[nbestListN];
+      for (int i = 0; i < nbestListN; i++) {
+        nbestListHMMIndices[i] = -1;
+        dbestListScores[i] = -Double.MAX_VALUE;
+      }
+      if (okeepPathsOfNBestList) {
+        npathsOfNBestList = new int[nbestListN][nT];
+      }
+    }
+    boolean ouseScorer = m_diagonalGaussianScorer != null &&
+        m_diagonalGaussianScorer.wasCreatedFrom(continuousHMMs);
+    if (ouseScorer) {
+      m_flogOutputProbabilities = m_diagonalGaussianScorer.calculateLogProbabilities(
+          pattern.getParameters(), 0, nT, null, m_flogOutputProbabilities);
+    }
+    for (int i = 0; i < continuousHMMs.length; i++) {
+      double dscore = ouseScorer ?
+          continuousHMMs[i].getScoreUsingViterbi(m_flogOutputProbabilities,
+          m_diagonalGaussianScorer.getFirstMixtureOfHMM(i), nT, this) :
+          continuousHMMs[i].getScoreUsingViterbi(pattern, this);
+      if (dscore > dbestScore) {
+        nbestModel = i;
+        dbestScore = dscore;
+      }
+      if (nbestListN > 0 && dbestListScores[nbestListN - 1] < dscore) {
+        //insert keeping the list sorted (ties keep the lowest HMM index first)
+        int npreceding = nbestListN - 1;
+        while (npreceding >= 0 && dbestListScores[npreceding] < dscore) {
+          npreceding--;
+        }
+        for (int j = nbestListN - 1; j > npreceding + 1; j--) {
+          dbestListScores[j] = dbestListScores[j - 1];
+          nbestListHMMIndices[j] = nbestListHMMIndices[j - 1];
+          if (okeepPathsOfNBestList) {
+            npathsOfNBestList[j] = npathsOfNBestList[j - 1];
+          }
+        }
+        dbestListScores[npreceding + 1] = dscore;
+        nbestListHMMIndices[npreceding + 1] = i;
+        if (okeepPathsOfNBestList) {
+          npathsOfNBestList[npreceding + 1] = getStateSequenceOfLastViterbi();
+        }
+      }
+    }
+    m_oscoreOnly = ooriginalMode;
+    return new ClassificationResult(nbestModel, dbestScore,
+                                    nbestListHMMIndices, dbestListScores,
+                                    npathsOfNBestList);
+  }
+
+  /**
+   *  Same as SetOfSharedContinuousHMMs.findBestModelAndItsScore() (the best
+   *  model is the index of the physical HMM) but the output probabilities
+   *  are obtained from the MixtureLikelihoodCache (see
+   *  setMixtureLikelihoodCache()), which must have been created for the
+   *  given set. The set evaluates a mixture again for each physical HMM
+   *  that uses it, while here all physical HMMs share the cache. The
+   *  N-best list is not supported.
+   */
+  public ClassificationResult classify(SetOfSharedContinuousHMMs
+                                       setOfSharedContinuousHMMs,
+                                       Pattern pattern) {
+    MixtureLikelihoodCache mixtureLikelihoodCache = m_mixtureLikelihoodCache;
+    if (mixtureLikelihoodCache == null ||
+        !mixtureLikelihoodCache.getDiagonalGaussianScorer().wasCreatedFrom(
+        setOfSharedContinuousHMMs)) {
+      End.throwError("ViterbiWorkspace needs a MixtureLikelihoodCache " +
+                     "created for the given SetOfSharedContinuousHMMs");
+    }
+    if (m_setOfSharedContinuousHMMs != setOfSharedContinuousHMMs) {
+      //the physical HMMs keep references to the mixtures of the set. The
+      //transition matrices are copied in log domain (convertToPlainHMMs()
+      //converts them to probabilities and back)
+      SetOfSharedContinuousHMMs.PhysicalHMM[] physicalHMMs =
+          setOfSharedContinuousHMMs.m_physicalHMMs;
+      m_physicalHMMs = new ContinuousHMM[physicalHMMs.length];
+      m_nmixtureIndicesOfPhysicalHMMs = new int[m_physicalHMMs.length][];
+      for (int i = 0; i < m_physicalHMMs.length; i++) {
+        m_physicalHMMs[i] = ContinuousHMM.createFromTransitionMatrixInLogDomain(
+            physicalHMMs[i].getTransitionMatrix().getMatrixInLogDomain(),
+            physicalHMMs[i].getReferenceToMixtures());
+        m_nmixtureIndicesOfPhysicalHMMs[i] = setOfSharedContinuousHMMs.
+            getStateIndices(i);
+      }
+      m_setOfSharedContinuousHMMs = setOfSharedContinuousHMMs;
+    }
+    float[][] nO = pattern.getParameters();
+    mixtureLikelihoodCache.startPattern();
+    double dbestScore = -1.0E10;
+    int nbestModel = -1;
+    for (int i = 0; i < m_physicalHMMs.length; i++) {
+      double dscore = m_physicalHMMs[i].getScoreUsingViterbi(nO,
+          mixtureLikelihoodCache, m_nmixtureIndicesOfPhysicalHMMs[i], this);
+      if (dscore > dbestScore) {
+        nbestModel = i;
+        dbestScore = dscore;
+      }
+    }
+    return new ClassificationResult(nbestModel, dbestScore, null, null, null);
+  }
+
+  public double getBestScore() {
+    return m_dbestScore;
+  }
+
+  public int getBestModel() {
+    return m_nbestModel;
+  }
+
+}
@@ -0,0 +1,950 @@
+package edu.ucsd.tree;
+
+import edu.ucsd.asr.*;
+import edu.ucsd.tree.tokens.*;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.ArrayList;
+
+/**
+ * Title:        Speech Recognition Software
+ * Description:  Frame-synchronous token-passing Viterbi decoder that walks a
+ *               Network (e.g. a dictionary merged with a grammar) with the
+ *               physical HMMs of a SetOfSharedContinuousHMMs, without calling
+ *               external (HTK) tools.
+ *               The input label of each Edge is the label of an HMM of the set;
+ *               edges with input -1 (backoff) or with a label that has no HMM
+ *               (e.g. <EOS>) are non-emitting. When a token leaves an edge it
+ *               goes to the destination vertices of the edge, and a word link
+ *               is recorded if the destination has an output. The tokens of
+ *               the HMM states are kept in flat arrays, and only the edges with
+ *               a surviving token are processed. The word links (the traceback
+ *               of the tokens) are taken from a pool that is recycled by mark
+ *               and sweep when it is exhausted, so decoding does not allocate
+ *               memory after the first sentences.
+ *               After each frame the states are pruned by a beam (relative to
+ *               the best state), by histogram pruning (maximum number of active
+ *               states) and the tokens that reach a word end are pruned by a
+ *               narrower word-end beam.
+ *               The object keeps the real-time factor (decoding time divided by
+ *               the duration of the decoded frames) and must not be shared by
+ *               concurrent threads.
+ */
+
+public class TokenPassingDecoder {
+
+  private final Network m_network;
+  private final SetOfSharedContinuousHMMs m_setOfSharedContinuousHMMs;
+  private final DiagonalGaussianScorer m_diagonalGaussianScorer;
+
+  //pruning and scores
+  private float m_fbeamWidth = 200.0f;
+  private float m_fwordEndBeamWidth = 150.0f;
+  private int m_nmaximumNumberOfActiveStates = 5000;
+  private float m_flanguageModelScale = 1.0f;
+  private float m_fwordInsertionPenalty = 0.0f;
+  private float m_fframePeriodInMilliseconds = 10.0f;
+
+  private static final int m_nNUMBER_OF_HISTOGRAM_BINS = 128;
+
+  //compiled network: vertex v has arcs m_nfirstArcOfVertex[v], ...,
+  //m_nfirstArcOfVertex[v+1]-1 (one arc for each Edge)
+  private final int m_nnumberOfVertices;
+  private final int m_nrootVertex;
+  private final int[] m_nfirstArcOfVertex;
+
+  //arc a: physical HMM (-1 for non-emitting arcs), log score to enter it and
+  //destinations m_nfirstDestinationOfArc[a], ..., m_nfirstDestinationOfArc[a+1]-1
+  private final int[] m_narcHMM;
+  private final float[] m_farcEntryScore;
+  private final int[] m_nfirstDestinationOfArc;
+  private final int[] m_ndestinationVertex;
+  private final short[] m_sdestinationOutput;
+  private final float[] m_fdestinationScore;
+  private final boolean[] m_oarcHasWordEnd;
+
+  //states of arc a: m_nfirstStateOfArc[a] + s, where s = 0 is the entry and
+  //s = nstates-1 the exit (non-emitting) state of its HMM
+  private final int[] m_nfirstStateOfArc;
+
+  //physical HMMs: log transition matrices, their arcs (the predecessors of
+  //each state) and mixture of each emitting state
+  private final float[][][] m_ftransitionMatrices;
+  private final TransitionArcs[] m_transitionArcs;
+  private final int[][] m_nmixtureIndices;
+
+  //tokens
+  private float[] m_fstateScores;
+  private int[] m_nstateLinks;
+  private float[] m_fnewStateScores;
+  private int[] m_nnewStateLinks;
+  private final float[] m_fentryScores;
+  private final int[] m_nentryLinks;
+  private final float[] m_fexitScores;
+  private final int[] m_nexitLinks;
+  private final float[] m_fvertexScores;
+  private final int[] m_nvertexLinks;
+
+  //active arcs (with a token in a state or in the entry)
+  private int[] m_nactiveArcs;
+  private int[] m_nnewActiveArcs;
+  private int m_nnumberOfActiveArcs;
+  private final boolean[] m_oisArcActive;
+
+  //vertices that received tokens in the current frame
+  private final int[] m_nvertexQueue;
+  private final boolean[] m_oisVertexInQueue;
+  private final int[] m_ntouchedVertices;
+  private int m_nnumberOfTouchedVertices;
+  private final boolean[] m_oisVertexTouched;
+
+  //output probabilities of the current frame (decoding is time-synchronous)
+  private final MixtureLikelihoodCache m_mixtureLikelihoodCache;
+
+  //pool of word links, linked by m_nlinkPrevious (-1 ends the traceback)
+  private short[] m_slinkOutputs;
+  private int[] m_nlinkFrames;
+  private float[] m_flinkScores;
+  private int[] m_nlinkPrevious;
+  private boolean[] m_olinkMarks;
+  private int m_nfirstFreeLink;
+  private int m_nnumberOfFreeLinks;
+
+  private final int[] m_nhistogram = new int[m_nNUMBER_OF_HISTOGRAM_BINS];
+  private float m_fhistogramRange;
+
+  //result of the last sentence
+  private String[] m_lastWords;
+  private int[] m_nlastWordEndFrames;
+  private float m_flastScore;
+  private boolean m_olastReachedRoot;
+  private double m_dlastRealTimeFactor;
+
+  //statistics
+  private long m_lnumberOfFrames;
+  private long m_ldecodingTimeInMilliseconds;
+  private long m_lnumberOfActiveStates;
+  private long m_lnumberOfHistogramPrunings;
+  private long m_lnumberOfPrunedWordEnds;
+  private int m_nnumberOfLinkCollections;
+
+  public TokenPassingDecoder( Network network,
+                              SetOfSharedContinuousHMMs setOfSharedContinuousHMMs ) {
+    m_network = network;
+    m_setOfSharedContinuousHMMs = setOfSharedContinuousHMMs;
+    m_diagonalGaussianScorer =
+        DiagonalGaussianScorer.createForSetOfSharedHMMs( setOfSharedContinuousHMMs );
+
+    int nnumberOfHMMs = setOfSharedContinuousHMMs.getNumberOfPhysicalHMMs();
+    m_ftransitionMatrices = new float[nnumberOfHMMs][][];
+    m_transitionArcs = new TransitionArcs[nnumberOfHMMs];
+    m_nmixtureIndices = new int[nnumberOfHMMs][];
+    for( int h=0; h<nnumberOfHMMs; h++ ) {
+      m_ftransitionMatrices[h] = setOfSharedContinuousHMMs.getTransitionMatrix(h);
+      m_transitionArcs[h] = new TransitionArcs( m_ftransitionMatrices[h] );
+      m_nmixtureIndices[h] = setOfSharedContinuousHMMs.getStateIndices(h);
+      if( m_nmixtureIndices[h].length != m_ftransitionMatrices[h].length-2 ) {
+        End.throwError( "Physical HMM " + h + " has " + m_nmixtureIndices[h].length +
+                        " mixtures and transition matrix of dimension " +
+                        m_ftransitionMatrices[h].length );
+      }
+    }
+
+    PatternGenerator patternGenerator = setOfSharedContinuousHMMs.getPatternGenerator();
+    if( patternGenerator != null && patternGenerator.getSpeechSamplingRate() > 0 ) {
+      m_fframePeriodInMilliseconds = 1000.0f * patternGenerator.getWindowShift() /
+                                     patternGenerator.getSpeechSamplingRate();
+    }
+
+    //numbering the vertices reachable from the root (the ID-s of the internal
+    //vertices of a dictionary are not unique), breadth first
+    IdentityHashMap vertexIndices = new IdentityHashMap();
+    ArrayList vertices = new ArrayList();
+    LinkedList list = new LinkedList();
+    vertexIndices.put( network.m_root, new Integer(0) );
+    vertices.add( network.m_root );
+    list.add( network.m_root );
+    int nnumberOfArcs = 0;
+    int nnumberOfDestinations = 0;
+    Vertex v, v2;
+    Edge e;
+    while( !list.isEmpty() ) {
+      v = (Vertex) list.removeFirst();
+      int nedges = v.getNumberOfEdges();
+      nnumberOfArcs += nedges;
+      for( int i=0; i<nedges; i++ ) {
+        e = v.getEdge(i);
+        int nvert = e.getNumberOfVertices();
+        nnumberOfDestinations += nvert;
+        for( int j=0; j<nvert; j++ ) {
+          v2 = e.getOutputContext(j).m_vertex;
+          if( !vertexIndices.containsKey(v2) ) {
+            vertexIndices.put( v2, new Integer(vertices.size()) );
+            vertices.add( v2 );
+            list.add( v2 );
+          }
+        }
+      }
+    }
+    m_nnumberOfVertices = vertices.size();
+    m_nrootVertex = 0;
+
+    m_nfirstArcOfVertex = new int[m_nnumberOfVertices+1];
+    m_narcHMM = new int[nnumberOfArcs];
+    m_farcEntryScore = new float[nnumberOfArcs];
+    m_nfirstDestinationOfArc = new int[nnumberOfArcs+1];
+    m_oarcHasWordEnd = new boolean[nnumberOfArcs];
+    m_nfirstStateOfArc = new int[nnumberOfArcs+1];
+    m_ndestinationVertex = new int[nnumberOfDestinations];
+    m_sdestinationOutput = new short[nnumberOfDestinations];
+    m_fdestinationScore = new float[nnumberOfDestinations];
+
+    boolean oisLogDomain = network.m_oisProbabilityInLogDomain;
+    StringBuffer nonEmittingLabels = new StringBuffer();
+    int[] nhmmOfInput = new int[0];
+    int a = 0;
+    int d = 0;
+    for( int n=0; n<m_nnumberOfVertices; n++ ) {
+      m_nfirstArcOfVertex[n] = a;
+      v = (Vertex) vertices.get(n);
+      int nedges = v.getNumberOfEdges();
+      for( int i=0; i<nedges; i++, a++ ) {
+        e = v.getEdge(i);
+        //physical HMM of the input label, cached by input
+        int nhmm = -1;
+        if( e.m_input >= 0 ) {
+          if( e.m_input >= nhmmOfInput.length ) {
+            int[] ntemp = new int[e.m_input+1];
+            System.arraycopy( nhmmOfInput, 0, ntemp, 0, nhmmOfInput.length );
+            for( int k=nhmmOfInput.length; k<ntemp.length; k++ ) {
+              ntemp[k] = -2;
+            }
+            nhmmOfInput = ntemp;
+          }
+          if( nhmmOfInput[e.m_input] == -2 ) {
+            String label = network.getInput( e.m_input );
+            nhmmOfInput[e.m_input] =
+                setOfSharedContinuousHMMs.getPhysicalHMMIndex( label );
+            if( nhmmOfInput[e.m_input] < 0 ) {
+              nonEmittingLabels.append( " " + label );
+            }
+          }
+          nhmm = nhmmOfInput[e.m_input];
+        }
+        m_narcHMM[a] = nhmm;
+        m_farcEntryScore[a] = ( oisLogDomain ) ? e.m_fedgeProbability :
+            LogDomainCalculator.calculateLog( (double) e.m_fedgeProbability );
+        m_nfirstStateOfArc[a+1] = m_nfirstStateOfArc[a] +
+            ( (nhmm < 0) ? 0 : m_ftransitionMatrices[nhmm].length );
+        m_nfirstDestinationOfArc[a] = d;
+        int nvert = e.getNumberOfVertices();
+        for( int j=0; j<nvert; j++, d++ ) {
+          Edge.OutputContext oc = e.getOutputContext(j);
+          m_ndestinationVertex[d] = ((Integer) vertexIndices.get(oc.m_vertex)).intValue();
+          m_sdestinationOutput[d] = oc.m_output;
+          //same convention of Network.changeToLogDomain()
+          m_fdestinationScore[d] = ( oisLogDomain || oc.m_fscore == 0.0f ) ?
+              oc.m_fscore : LogDomainCalculator.calculateLog( (double) oc.m_fscore );
+          if( oc.m_output >= 0 ) {
+            m_oarcHasWordEnd[a] = true;
+          }
+        }
+      }
+    }
+    m_nfirstArcOfVertex[m_nnumberOfVertices] = a;
+    m_nfirstDestinationOfArc[nnumberOfArcs] = d;
+    if( nonEmittingLabels.length() > 0 ) {
+      Print.warning( "TokenPassingDecoder: labels without HMM are non-emitting:" +
+                     nonEmittingLabels.toString() );
+    }
+
+    int nnumberOfStates = m_nfirstStateOfArc[nnumberOfArcs];
+    m_fstateScores = new float[nnumberOfStates];
+    m_nstateLinks = new int[nnumberOfStates];
+    m_fnewStateScores = new float[nnumberOfStates];
+    m_nnewStateLinks = new int[nnumberOfStates];
+    m_fentryScores = new float[nnumberOfArcs];
+    m_nentryLinks = new int[nnumberOfArcs];
+    m_fexitScores = new float[nnumberOfArcs];
+    m_nexitLinks = new int[nnumberOfArcs];
+    fill( m_fstateScores, LogDomainCalculator.m_fLOG_DOMAIN_ZERO );
+    fill( m_fnewStateScores, LogDomainCalculator.m_fLOG_DOMAIN_ZERO );
+    fill( m_fentryScores, LogDomainCalculator.m_fLOG_DOMAIN_ZERO );
+    m_nactiveArcs = new int[nnumberOfArcs];
+    m_nnewActiveArcs = new int[nnumberOfArcs];
+    m_oisArcActive = new boolean[nnumberOfArcs];
+
+    m_fvertexScores = new float[m_nnumberOfVertices];
+    m_nvertexLinks = new int[m_nnumberOfVertices];
+    fill( m_fvertexScores, LogDomainCalculator.m_fLOG_DOMAIN_ZERO );
+    m_nvertexQueue = new int[m_nnumberOfVertices];
+    m_oisVertexInQueue = new boolean[m_nnumberOfVertices];
+    m_ntouchedVertices = new int[m_nnumberOfVertices];
+    m_oisVertexTouched = new boolean[m_nnumberOfVertices];
+
+    m_mixtureLikelihoodCache = new MixtureLikelihoodCache( m_diagonalGaussianScorer, 0 );
+
+    allocateLinks( 1024 );
+  }
+
+  /**
+   * Finds the best sequence of words (outputs of the network) for the given
+   * sentence. The best token must return to the root of the network after the
+   * last frame, otherwise the best token in any vertex is used (see
+   * hasLastSentenceReachedRoot()). Outputs of the form <...> (e.g. <EOS>) are
+   * not included. Returns an empty array if all tokens were pruned.
+   */
+  public String[] decode( Pattern pattern ) {
+    long lstartTime = System.currentTimeMillis();
+    float[][] fframes = pattern.getParameters();
+    int nT = pattern.getNumOfFrames();
+
+    m_mixtureLikelihoodCache.startPattern();
+
+    //initial token in the root
+    m_nnumberOfActiveArcs = 0;
+    m_nnumberOfTouchedVertices = 0;
+    updateVertex( m_nrootVertex, 0.0f, -1 );
+    propagateThroughVertices( LogDomainCalculator.m_fLOG_DOMAIN_ZERO, -1 );
+    resetVertices();
+
+    for( int t=0; t<nT; t++ ) {
+      float fthreshold = processFrame( fframes[t], t );
+      propagateThroughVertices( fthreshold, t );
+      if( t < nT-1 ) {
+        resetVertices();
+      }
+    }
+    m_lnumberOfFrames += nT;
+
+    //traceback from the root or from the best vertex
+    int nbestVertex = m_nrootVertex;
+    m_olastReachedRoot = m_fvertexScores[m_nrootVertex] >
+                         LogDomainCalculator.m_fSMALL_NUMBER;
+    if( !m_olastReachedRoot ) {
+      for( int i=0; i<m_nnumberOfTouchedVertices; i++ ) {
+        int n = m_ntouchedVertices[i];
+        if( m_fvertexScores[n] > m_fvertexScores[nbestVertex] ) {
+          nbestVertex = n;
+        }
+      }
+    }
+    m_flastScore = m_fvertexScores[nbestVertex];
+    if( m_flastScore > LogDomainCalculator.m_fSMALL_NUMBER ) {
+      traceback( m_nvertexLinks[nbestVertex] );
+    } else {
+      m_lastWords = new String[0];
+      m_nlastWordEndFrames = new int[0];
+    }
+    resetVertices();
+    resetArcs();
+
+    long lelapsedTime = System.currentTimeMillis() - lstartTime;
+    m_ldecodingTimeInMilliseconds += lelapsedTime;
+    m_dlastRealTimeFactor = ( nT == 0 ) ? 0.0 :
+                            lelapsedTime / ( nT * (double) m_fframePeriodInMilliseconds );
+    return m_lastWords;
+  }
+
+  /**
+   * Propagates the tokens of all active arcs through frame t, prunes the
+   * states and sends the tokens that leave the arcs to the vertices. Returns
+   * the threshold used for the beam.
+   */
+  private float processFrame( float[] fframe, int t ) {
+    float fbestScore = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+    //emitting states
+    for( int i=0; i<m_nnumberOfActiveArcs; i++ ) {
+      int a = m_nactiveArcs[i];
+      int nhmm = m_narcHMM[a];
+      float[][] ftransitionMatrix = m_ftransitionMatrices[nhmm];
+      TransitionArcs transitionArcs = m_transitionArcs[nhmm];
+      int[] npredecessors = transitionArcs.getPredecessorsReference();
+      int[] nmixtures = m_nmixtureIndices[nhmm];
+      int nnumberOfStates = ftransitionMatrix.length;
+      int nfirst = m_nfirstStateOfArc[a];
+      float fentryScore = m_fentryScores[a];
+      for( int j=1; j<nnumberOfStates-1; j++ ) {
+        //only the arcs that reach j (in increasing order, the entry first)
+        float fbest = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+        int nlink = m_nentryLinks[a];
+        int nlast = transitionArcs.getFirstPredecessorIndex(j+1);
+        for( int n=transitionArcs.getFirstPredecessorIndex(j); n<nlast; n++ ) {
+          int k = npredecessors[n];
+          if( k == 0 ) {
+            fbest = fentryScore + ftransitionMatrix[0][j];
+          } else if( k < nnumberOfStates-1 ) {
+            float fscore = m_fstateScores[nfirst+k] + ftransitionMatrix[k][j];
+            if( fscore > fbest ) {
+              fbest = fscore;
+              nlink = m_nstateLinks[nfirst+k];
+            }
+          }
+        }
+        if( fbest > LogDomainCalculator.m_fSMALL_NUMBER ) {
+          fbest += m_mixtureLikelihoodCache.getLogProbability( nmixtures[j-1], t, fframe );
+          if( fbest > fbestScore ) {
+            fbestScore = fbest;
+          }
+        } else {
+          fbest = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+        }
+        m_fnewStateScores[nfirst+j] = fbest;
+        m_nnewStateLinks[nfirst+j] = nlink;
+      }
+      m_fentryScores[a] = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+    }
+
+    //pruning: beam and, if necessary, histogram
+    float fthreshold = fbestScore - m_fbeamWidth;
+    int nnumberOfActiveStates = countStatesAndFillHistogram( fbestScore, fthreshold );
+    if( nnumberOfActiveStates > m_nmaximumNumberOfActiveStates ) {
+      int ncount = 0;
+      for( int b=0; b<m_nNUMBER_OF_HISTOGRAM_BINS; b++ ) {
+        ncount += m_nhistogram[b];
+        if( ncount > m_nmaximumNumberOfActiveStates ) {
+          //keep only the bins before b
+          float fnewThreshold = fbestScore - m_fhistogramRange * b / m_nNUMBER_OF_HISTOGRAM_BINS;
+          if( fnewThreshold > fthreshold ) {
+            fthreshold = fnewThreshold;
+          }
+          break;
+        }
+      }
+      m_lnumberOfHistogramPrunings++;
+    }
+
+    //apply the threshold, swap the state arrays and find the exit tokens
+    float fbestWordEndScore = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+    int nnewNumberOfActiveArcs = 0;
+    for( int i=0; i<m_nnumberOfActiveArcs; i++ ) {
+      int a = m_nactiveArcs[i];
+      float[][] ftransitionMatrix = m_ftransitionMatrices[m_narcHMM[a]];
+      int nnumberOfStates = ftransitionMatrix.length;
+      int nfirst = m_nfirstStateOfArc[a];
+      boolean ohasSurvivingState = false;
+      float fexitScore = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+      int nexitLink = -1;
+      for( int j=1; j<nnumberOfStates-1; j++ ) {
+        float fscore = m_fnewStateScores[nfirst+j];
+        if( fscore < fthreshold ) {
+          fscore = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+        } else {
+          ohasSurvivingState = true;
+          m_lnumberOfActiveStates++;
+          float fexit = fscore + ftransitionMatrix[j][nnumberOfStates-1];
+          if( fexit > fexitScore ) {
+            fexitScore = fexit;
+            nexitLink = m_nnewStateLinks[nfirst+j];
+          }
+        }
+        m_fstateScores[nfirst+j] = fscore;
+        m_nstateLinks[nfirst+j] = m_nnewStateLinks[nfirst+j];
+        m_fnewStateScores[nfirst+j] = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+      }
+      if( ohasSurvivingState ) {
+        m_nnewActiveArcs[nnewNumberOfActiveArcs++] = a;
+        if( fexitScore > LogDomainCalculator.m_fSMALL_NUMBER ) {
+          m_fexitScores[a] = fexitScore;
+          m_nexitLinks[a] = nexitLink;
+          if( m_oarcHasWordEnd[a] && fexitScore > fbestWordEndScore ) {
+            fbestWordEndScore = fexitScore;
+          }
+        } else {
+          m_fexitScores[a] = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+        }
+      } else {
+        m_oisArcActive[a] = false;
+        m_fexitScores[a] = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+      }
+    }
+    int[] ntemp = m_nactiveArcs;
+    m_nactiveArcs = m_nnewActiveArcs;
+    m_nnewActiveArcs = ntemp;
+    m_nnumberOfActiveArcs = nnewNumberOfActiveArcs;
+
+    //tokens leaving the arcs go to the destination vertices
+    float fwordEndThreshold = fbestWordEndScore - m_fwordEndBeamWidth;
+    for( int i=0; i<m_nnumberOfActiveArcs; i++ ) {
+      int a = m_nactiveArcs[i];
+      if( m_fexitScores[a] > LogDomainCalculator.m_fSMALL_NUMBER ) {
+        propagateToDestinations( a, m_fexitScores[a], m_nexitLinks[a],
+                                 fwordEndThreshold, t );
+      }
+    }
+    return fthreshold;
+  }
+
+  /**
+   * Counts the states of the active arcs above the threshold and builds the
+   * histogram of their distance to the best score.
+   */
+  private int countStatesAndFillHistogram( float fbestScore, float fthreshold ) {
+    int ncount = 0;
+    for( int b=0; b<m_nNUMBER_OF_HISTOGRAM_BINS; b++ ) {
+      m_nhistogram[b] = 0;
+    }
+    //the bins cover the scores within the beam (or all, if the beam is infinite)
+    float fworstScore = fbestScore;
+    for( int i=0; i<m_nnumberOfActiveArcs; i++ ) {
+      int a = m_nactiveArcs[i];
+      int nlast = m_nfirstStateOfArc[a+1] - 1;
+      for( int s=m_nfirstStateOfArc[a]+1; s<nlast; s++ ) {
+        float fscore = m_fnewStateScores[s];
+        if( fscore >= fthreshold && fscore < fworstScore ) {
+          fworstScore = fscore;
+        }
+      }
+    }
+    m_fhistogramRange = ( fworstScore < fbestScore ) ? fbestScore - fworstScore : 1.0f;
+    float fbinsPerUnit = m_nNUMBER_OF_HISTOGRAM_BINS / m_fhistogramRange;
+    for( int i=0; i<m_nnumberOfActiveArcs; i++ ) {
+      int a = m_nactiveArcs[i];
+      int nlast = m_nfirstStateOfArc[a+1] - 1;
+      for( int s=m_nfirstStateOfArc[a]+1; s<nlast; s++ ) {
+        float fscore = m_fnewStateScores[s];
+        if( fscore >= fthreshold ) {
+          int b = (int) ( (fbestScore - fscore) * fbinsPerUnit );
+          if( b >= m_nNUMBER_OF_HISTOGRAM_BINS ) {
+            b = m_nNUMBER_OF_HISTOGRAM_BINS - 1;
+          }
+          m_nhistogram[b]++;
+          ncount++;
+        }
+      }
+    }
+    return ncount;
+  }
+
+  /**
+   * Sends a token that left arc a (or crossed it, if non-emitting) to its
+   * destinations. Destinations with output are word ends and are discarded if
+   * the score is below fwordEndThreshold.
+   */
+  private void propagateToDestinations( int a, float fscore, int nlink,
+                                        float fwordEndThreshold, int t ) {
+    int nlast = m_nfirstDestinationOfArc[a+1];
+    for( int d=m_nfirstDestinationOfArc[a]; d<nlast; d++ ) {
+      float fnewScore = fscore + m_flanguageModelScale * m_fdestinationScore[d];
+      int nvertex = m_ndestinationVertex[d];
+      short soutput = m_sdestinationOutput[d];
+      if( soutput >= 0 ) {
+        if( fscore < fwordEndThreshold ) {
+          m_lnumberOfPrunedWordEnds++;
+          continue;
+        }
+        fnewScore += m_fwordInsertionPenalty;
+        if( fnewScore > m_fvertexScores[nvertex] ) {
+          updateVertex( nvertex, fnewScore, getNewLink(soutput, t, fnewScore, nlink) );
+        }
+      } else if( fnewScore > m_fvertexScores[nvertex] ) {
+        updateVertex( nvertex, fnewScore, nlink );
+      }
+    }
+  }
+
+  private void updateVertex( int nvertex, float fscore, int nlink ) {
+    m_fvertexScores[nvertex] = fscore;
+    m_nvertexLinks[nvertex] = nlink;
+    if( !m_oisVertexTouched[nvertex] ) {
+      m_oisVertexTouched[nvertex] = true;
+      m_ntouchedVertices[m_nnumberOfTouchedVertices++] = nvertex;
+    }
+  }
+
+  /**
+   * Moves the tokens of the vertices into the entry of the emitting arcs,
+   * crossing the non-emitting arcs (and the HMMs with transition from the entry
+   * to the exit state) until no vertex is improved. Self-loops of
+   * non-emitting arcs are ignored.
+   */
+  private void propagateThroughVertices( float fthreshold, int t ) {
+    int nhead = 0;
+    int ntail = 0;
+    int nsize = m_nnumberOfVertices;
+    int nqueued = 0;
+    for( int i=0; i<m_nnumberOfTouchedVertices; i++ ) {
+      int n = m_ntouchedVertices[i];
+      m_nvertexQueue[ntail] = n;
+      ntail = (ntail + 1) % nsize;
+      m_oisVertexInQueue[n] = true;
+      nqueued++;
+    }
+    //a vertex can be improved at most once by each other vertex, unless there
+    //is a cycle of non-emitting arcs with positive score
+    long lmaximumNumberOfExpansions = (long) nsize * nsize + nsize;
+    long lnumberOfExpansions = 0;
+    while( nqueued > 0 ) {
+      int v = m_nvertexQueue[nhead];
+      nhead = (nhead + 1) % nsize;
+      nqueued--;
+      m_oisVertexInQueue[v] = false;
+      if( ++lnumberOfExpansions > lmaximumNumberOfExpansions ) {
+        End.throwError( "TokenPassingDecoder: the network has a cycle of " +
+                        "non-emitting edges with positive score" );
+      }
+      float fvertexScore = m_fvertexScores[v];
+      int nvertexLink = m_nvertexLinks[v];
+      int nlastArc = m_nfirstArcOfVertex[v+1];
+      for( int a=m_nfirstArcOfVertex[v]; a<nlastArc; a++ ) {
+        float fscore = fvertexScore + m_flanguageModelScale * m_farcEntryScore[a];
+        if( fscore < fthreshold ) {
+          continue;
+        }
+        int nhmm = m_narcHMM[a];
+        float fcrossScore;
+        if( nhmm < 0 ) {
+          fcrossScore = fscore;
+        } else {
+          if( fscore > m_fentryScores[a] ) {
+            m_fentryScores[a] = fscore;
+            m_nentryLinks[a] = nvertexLink;
+            if( !m_oisArcActive[a] ) {
+              m_oisArcActive[a] = true;
+              m_nactiveArcs[m_nnumberOfActiveArcs++] = a;
+            }
+          }
+          float[][] ftransitionMatrix = m_ftransitionMatrices[nhmm];
+          fcrossScore = fscore + ftransitionMatrix[0][ftransitionMatrix.length-1];
+          if( fcrossScore <= LogDomainCalculator.m_fSMALL_NUMBER ) {
+            continue;
+          }
+        }
+        int nlastDestination = m_nfirstDestinationOfArc[a+1];
+        for( int d=m_nfirstDestinationOfArc[a]; d<nlastDestination; d++ ) {
+          int nvertex = m_ndestinationVertex[d];
+          if( nvertex == v ) {
+            continue;
+          }
+          float fnewScore = fcrossScore + m_flanguageModelScale * m_fdestinationScore[d];
+          short soutput = m_sdestinationOutput[d];
+          if( soutput >= 0 ) {
+            fnewScore += m_fwordInsertionPenalty;
+          }
+          if( fnewScore > m_fvertexScores[nvertex] ) {
+            int nlink = ( soutput >= 0 ) ?
+                getNewLink( soutput, t, fnewScore, nvertexLink ) : nvertexLink;
+            updateVertex( nvertex, fnewScore, nlink );
+            if( !m_oisVertexInQueue[nvertex] ) {
+              m_oisVertexInQueue[nvertex] = true;
+              m_nvertexQueue[ntail] = nvertex;
+              ntail = (ntail + 1) % nsize;
+              nqueued++;
+            }
+          }
+        }
+      }
+    }
+  }
+
+  private void resetVertices() {
+    for( int i=0; i<m_nnumberOfTouchedVertices; i++ ) {
+      int n = m_ntouchedVertices[i];
+      m_fvertexScores[n] = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+      m_oisVertexTouched[n] = false;
+    }
+    m_nnumberOfTouchedVertices = 0;
+  }
+
+  /**
+   * Removes the tokens of all active arcs and frees all links.
+   */
+  private void resetArcs() {
+    for( int i=0; i<m_nnumberOfActiveArcs; i++ ) {
+      int a = m_nactiveArcs[i];
+      int nlast = m_nfirstStateOfArc[a+1];
+      for( int s=m_nfirstStateOfArc[a]; s<nlast; s++ ) {
+        m_fstateScores[s] = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+      }
+      m_fentryScores[a] = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+      m_fexitScores[a] = LogDomainCalculator.m_fLOG_DOMAIN_ZERO;
+      m_oisArcActive[a] = false;
+    }
+    m_nnumberOfActiveArcs = 0;
+    allocateLinks( m_slinkOutputs.length );
+  }
+
+  private void traceback( int nlink ) {
+    int nnumberOfWords = 0;
+    for( int l=nlink; l>=0; l=m_nlinkPrevious[l] ) {
+      if( !isSentenceMarker(m_slinkOutputs[l]) ) {
+        nnumberOfWords++;
+      }
+    }
+    m_lastWords = new String[nnumberOfWords];
+    m_nlastWordEndFrames = new int[nnumberOfWords];
+    for( int l=nlink; l>=0; l=m_nlinkPrevious[l] ) {
+      if( !isSentenceMarker(m_slinkOutputs[l]) ) {
+        nnumberOfWords--;
+        m_lastWords[nnumberOfWords] = m_network.getOutput( m_slinkOutputs[l] );
+        m_nlastWordEndFrames[nnumberOfWords] = m_nlinkFrames[l];
+      }
+    }
+  }
+
+  private boolean isSentenceMarker( short soutput ) {
+    String word = m_network.getOutput( soutput );
+    return word.startsWith("<") && word.endsWith(">");
+  }
+
+  //pool of links
+  private void allocateLinks( int nsize ) {
+    if( m_slinkOutputs == null || m_slinkOutputs.length != nsize ) {
+      m_slinkOutputs = new short[nsize];
+      m_nlinkFrames = new int[nsize];
+      m_flinkScores = new float[nsize];
+      m_nlinkPrevious = new int[nsize];
+      m_olinkMarks = new boolean[nsize];
+    }
+    //all links free: the free list uses m_nlinkPrevious
+    for( int l=0; l<nsize-1; l++ ) {
+      m_nlinkPrevious[l] = l+1;
+    }
+    m_nlinkPrevious[nsize-1] = -1;
+    m_nfirstFreeLink = 0;
+    m_nnumberOfFreeLinks = nsize;
+  }
+
+  private int getNewLink( short soutput, int nframe, float fscore, int nprevious ) {
+    if( m_nnumberOfFreeLinks == 0 ) {
+      collectLinks( nprevious );
+    }
+    int l = m_nfirstFreeLink;
+    m_nfirstFreeLink = m_nlinkPrevious[l];
+    m_nnumberOfFreeLinks--;
+    m_slinkOutputs[l] = soutput;
+    m_nlinkFrames[l] = nframe;
+    m_flinkScores[l] = fscore;
+    m_nlinkPrevious[l] = nprevious;
+    return l;
+  }
+
+  /**
+   * Marks the links reachable from any token (and from nextraLink) and puts
+   * all the others in the free list. Doubles the pool if less than a quarter
+   * of it could be recycled.
+   */
+  private void collectLinks( int nextraLink ) {
+    m_nnumberOfLinkCollections++;
+    int nsize = m_slinkOutputs.length;
+    for( int l=0; l<nsize; l++ ) {
+      m_olinkMarks[l] = false;
+    }
+    markLinks( nextraLink );
+    for( int i=0; i<m_nnumberOfActiveArcs; i++ ) {
+      int a = m_nactiveArcs[i];
+      if( m_fentryScores[a] > LogDomainCalculator.m_fSMALL_NUMBER ) {
+        markLinks( m_nentryLinks[a] );
+      }
+      if( m_fexitScores[a] > LogDomainCalculator.m_fSMALL_NUMBER ) {
+        markLinks( m_nexitLinks[a] );
+      }
+      int nlast = m_nfirstStateOfArc[a+1] - 1;
+      for( int s=m_nfirstStateOfArc[a]+1; s<nlast; s++ ) {
+        if( m_fstateScores[s] > LogDomainCalculator.m_fSMALL_NUMBER ) {
+          markLinks( m_nstateLinks[s] );
+        }
+      }
+    }
+    for( int i=0; i<m_nnumberOfTouchedVertices; i++ ) {
+      markLinks( m_nvertexLinks[m_ntouchedVertices[i]] );
+    }
+    int nnumberOfMarkedLinks = 0;
+    for( int l=0; l<nsize; l++ ) {
+      if( m_olinkMarks[l] ) {
+        nnumberOfMarkedLinks++;
+      }
+    }
+    int nnewSize = ( nsize - nnumberOfMarkedLinks < nsize / 4 ) ? 2 * nsize : nsize;
+    if( nnewSize != nsize ) {
+      m_slinkOutputs = resize( m_slinkOutputs, nnewSize );
+      m_nlinkFrames = resize( m_nlinkFrames, nnewSize );
+      m_flinkScores = resize( m_flinkScores, nnewSize );
+      m_nlinkPrevious = resize( m_nlinkPrevious, nnewSize );
+      boolean[] otemp = new boolean[nnewSize];
+      System.arraycopy( m_olinkMarks, 0, otemp, 0, nsize );
+      m_olinkMarks = otemp;
+    }
+    m_nfirstFreeLink = -1;
+    m_nnumberOfFreeLinks = 0;
+    for( int l=nnewSize-1; l>=0; l-- ) {
+      if( !m_olinkMarks[l] ) {
+        m_nlinkPrevious[l] = m_nfirstFreeLink;
+        m_nfirstFreeLink = l;
+        m_nnumberOfFreeLinks++;
+      }
+    }
+  }
+
+  private void markLinks( int nlink ) {
+    for( int l=nlink; l>=0 && !m_olinkMarks[l]; l=m_nlinkPrevious[l] ) {
+      m_olinkMarks[l] = true;
+    }
+  }
+
+  private static short[] resize( short[] s, int nsize ) {
+    short[] temp = new short[nsize];
+    System.arraycopy( s, 0, temp, 0, s.length );
+    return temp;
+  }
+
+  private static int[] resize( int[] n, int nsize ) {
+    int[] temp = new int[nsize];
+    System.arraycopy( n, 0, temp, 0, n.length );
+    return temp;
+  }
+
+  private static float[] resize( float[] f, int nsize ) {
+    float[] temp = new float[nsize];
+    System.arraycopy( f, 0, temp, 0, f.length );
+    return temp;
+  }
+
+  private static void fill( float[] f, float fvalue ) {
+    for( int i=0; i<f.length; i++ ) {
+      f[i] = fvalue;
+    }
+  }
+
+  //parameters
+
+  /**
+   * Beam (natural log) relative to the best state of each frame. Use
+   * Float.POSITIVE_INFINITY to disable it.
+   */
+  public void setBeamWidth( float fbeamWidth ) {
+    if( !(fbeamWidth > 0) ) {
+      End.throwError( "Beam width = " + fbeamWidth + " must be positive" );
+    }
+    m_fbeamWidth = fbeamWidth;
+  }
+
+  public float getBeamWidth() {
+    return m_fbeamWidth;
+  }
+
+  /**
+   * Beam relative to the best token that reaches a word end in each frame.
+   */
+  public void setWordEndBeamWidth( float fwordEndBeamWidth ) {
+    if( !(fwordEndBeamWidth > 0) ) {
+      End.throwError( "Word-end beam width = " + fwordEndBeamWidth +
+                      " must be positive" );
+    }
+    m_fwordEndBeamWidth = fwordEndBeamWidth;
+  }
+
+  public float getWordEndBeamWidth() {
+    return m_fwordEndBeamWidth;
+  }
+
+  /**
+   * Maximum number of active (emitting) states after each frame. Use
+   * Integer.MAX_VALUE to disable histogram pruning.
+   */
+  public void setMaximumNumberOfActiveStates( int nmaximumNumberOfActiveStates ) {
+    if( nmaximumNumberOfActiveStates < 1 ) {
+      End.throwError( "Maximum number of active states = " +
+                      nmaximumNumberOfActiveStates + " must be positive" );
+    }
+    m_nmaximumNumberOfActiveStates = nmaximumNumberOfActiveStates;
+  }
+
+  public int getMaximumNumberOfActiveStates() {
+    return m_nmaximumNumberOfActiveStates;
+  }
+
+  /**
+   * Multiplies the (log) scores of the network.
+   */
+  public void setLanguageModelScale( float flanguageModelScale ) {
+    m_flanguageModelScale = flanguageModelScale;
+  }
+
+  /**
+   * Added (in log domain) to each word end.
+   */
+  public void setWordInsertionPenalty( float fwordInsertionPenalty ) {
+    m_fwordInsertionPenalty = fwordInsertionPenalty;
+  }
+
+  /**
+   * Used for the real-time factor. By default, obtained from the
+   * PatternGenerator of the HMM set or 10 ms if it is not available.
+   */
+  public void setFramePeriodInMilliseconds( float fframePeriodInMilliseconds ) {
+    m_fframePeriodInMilliseconds = fframePeriodInMilliseconds;
+  }
+
+  //results
+
+  public String[] getLastWords() {
+    return m_lastWords;
+  }
+
+  /**
+   * Last frame of each word returned by decode().
+   */
+  public int[] getLastWordEndFrames() {
+    return m_nlastWordEndFrames;
+  }
+
+  /**
+   * Log score (acoustic and scaled network scores) of the last sentence.
+   */
+  public float getLastScore() {
+    return m_flastScore;
+  }
+
+  public boolean hasLastSentenceReachedRoot() {
+    return m_olastReachedRoot;
+  }
+
+  public double getLastRealTimeFactor() {
+    return m_dlastRealTimeFactor;
+  }
+
+  /**
+   * Decoding time over duration of all frames decoded since creation or the
+   * last resetStatistics().
+   */
+  public double getRealTimeFactor() {
+    return ( m_lnumberOfFrames == 0 ) ? 0.0 : m_ldecodingTimeInMilliseconds /
+           ( m_lnumberOfFrames * (double) m_fframePeriodInMilliseconds );
+  }
+
+  public void resetStatistics() {
+    m_lnumberOfFrames = 0;
+    m_ldecodingTimeInMilliseconds = 0;
+    m_lnumberOfActiveStates = 0;
+    m_mixtureLikelihoodCache.resetStatistics();
+    m_lnumberOfHistogramPrunings = 0;
+    m_lnumberOfPrunedWordEnds = 0;
+    m_nnumberOfLinkCollections = 0;
+  }
+
+  public String getStatistics() {
+    double dframes = ( m_lnumberOfFrames == 0 ) ? 1.0 : m_lnumberOfFrames;
+    return "Frames = " + m_lnumberOfFrames + ", real-time factor = " +
+           IO.format( getRealTimeFactor() ) +
+           ". Per frame: active states = " +
+           IO.format( m_lnumberOfActiveStates / dframes ) +
+           ", evaluated mixtures = " +
+           IO.format( m_mixtureLikelihoodCache.getNumberOfMisses() / dframes ) +
+           ", cached = " +
+           IO.format( m_mixtureLikelihoodCache.getNumberOfHits() / dframes ) +
+           ". Histogram prunings = " + m_lnumberOfHistogramPrunings +
+           ", pruned word ends = " + m_lnumberOfPrunedWordEnds +
+           ", link collections = " + m_nnumberOfLinkCollections +
+           " (pool size " + m_slinkOutputs.length + ")";
+  }
+
+  public String getDescription() {
+    return "Network with " + m_nnumberOfVertices + " vertices and " +
+           m_narcHMM.length + " edges (" + m_fstateScores.length +
+           " HMM states), " + m_setOfSharedContinuousHMMs.getNumberOfPhysicalHMMs() +
+           " physical HMMs and " + m_diagonalGaussianScorer.getNumberOfMixtures() +
+           " mixtures";
+  }
+
+}
@@ -0,0 +1,240 @@
+package edu.ucsd.tree;
+
+import edu.ucsd.asr.*;
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Title:        Speech Recognition Software
+ * Description:  Recognition test of sentences with the TokenPassingDecoder,
+ *               used by TrainingManager instead of HVite when the property
+ *               TrainingManager.sentenceRecognizer is TokenPassingDecoder.
+ *               Each sentence of a DataLocators file is read from its SOP
+ *               file, decoded and the recognized words are aligned with the
+ *               labels of the DataLocator (mapped to the first label of their
+ *               entry in the TableOfLabels, as HResults does with an equivalence
+ *               list). The results are written to a text file and summarized as
+ *               HResults does: %Corr = H/N and Acc = (H-I)/N.
+ *               If no network is given, it uses a loop over the first labels of
+ *               the HMMs (e.g. a phone loop for TIMIT or a digit loop for
+ *               TIDIGITS), created by Network.createDigitNetwork().
+ */
+
+public class TokenPassingSentenceRecognizer {
+
+  private final TokenPassingDecoder m_tokenPassingDecoder;
+  private final TableOfLabels m_tableOfLabels;
+
+  //counts of the alignments
+  private int m_nnumberOfSentences;
+  private int m_nnumberOfCorrectSentences;
+  private int m_nnumberOfReferenceWords;
+  private int m_nnumberOfSubstitutions;
+  private int m_nnumberOfDeletions;
+  private int m_nnumberOfInsertions;
+
+  public TokenPassingSentenceRecognizer( Network network,
+                                         SetOfSharedContinuousHMMs setOfSharedContinuousHMMs ) {
+    if( network == null ) {
+      network = createLoopNetwork( setOfSharedContinuousHMMs.getTableOfLabels() );
+    }
+    m_tokenPassingDecoder = new TokenPassingDecoder( network, setOfSharedContinuousHMMs );
+    m_tableOfLabels = setOfSharedContinuousHMMs.getTableOfLabels();
+  }
+
+  /**
+   * Network that accepts any sequence of the first labels of the table.
+   */
+  public static Network createLoopNetwork( TableOfLabels tableOfLabels ) {
+    return Network.createDigitNetwork( tableOfLabels.getAllFirstLabels(),
+                                       new boolean[] {true} );
+  }
+
+  public TokenPassingDecoder getTokenPassingDecoder() {
+    return m_tokenPassingDecoder;
+  }
+
+  /**
+   * Decodes all sentences of the DataLocators file, reading each Pattern from
+   * the SOP file with the same name of the DataLocator in the given directory,
+   * and writes the reference and recognized words of each sentence followed by
+   * the summary to outputFileName.
+   */
+  public void recognize( String dataLocatorsFileName,
+                         String setOfPatternsInputDirectory,
+                         String outputFileName ) {
+    BufferedWriter bufferedWriter = null;
+    try {
+      bufferedWriter = new BufferedWriter( new FileWriter(outputFileName) );
+      DatabaseManager databaseManager = new DatabaseManager( dataLocatorsFileName );
+      while( databaseManager.isThereDataToRead() ) {
+        DataLocator dataLocator = databaseManager.getNextDataLocator();
+        String parametersFileName = FileNamesAndDirectories.substituteExtension(
+            dataLocator.getFileName(), SetOfPatterns.m_FILE_EXTENSION );
+        parametersFileName = FileNamesAndDirectories.concatenateTwoPaths(
+            setOfPatternsInputDirectory,
+            FileNamesAndDirectories.getFileNameFromPath(parametersFileName) );
+        Pattern pattern = new SetOfPatterns( parametersFileName ).getPattern(0);
+        String[] recognized = m_tokenPassingDecoder.decode( pattern );
+        String[] reference = getReferenceWords( dataLocator );
+        int nerrors = addAlignment( reference, recognized );
+        bufferedWriter.write( dataLocator.getFileName() + " (" + nerrors +
+                              " errors" + ( m_tokenPassingDecoder.hasLastSentenceReachedRoot() ?
+                              "" : ", did not reach the root" ) + ")" );
+        bufferedWriter.newLine();
+        bufferedWriter.write( "REF: " + toString(reference) );
+        bufferedWriter.newLine();
+        bufferedWriter.write( "REC: " + toString(recognized) );
+        bufferedWriter.newLine();
+      }
+      databaseManager.finalizeDataReading();
+      bufferedWriter.write( getSummary() );
+      bufferedWriter.newLine();
+      bufferedWriter.write( m_tokenPassingDecoder.getStatistics() );
+      bufferedWriter.newLine();
+      bufferedWriter.close();
+    } catch( IOException e ) {
+      End.throwError( "Error writing " + outputFileName + ": " + e.getMessage() );
+    }
+    Print.dialog( getSummary() );
+    Print.dialog( m_tokenPassingDecoder.getStatistics() );
+  }
+
+  /**
+   * Labels of the DataLocator mapped to the first label of their entry. Labels
+   * that are not in the table are discarded.
+   */
+  public String[] getReferenceWords( DataLocator dataLocator ) {
+    String[] labels = dataLocator.getAllLabels();
+    int ncount = 0;
+    for( int i=0; i<labels.length; i++ ) {
+      if( m_tableOfLabels.isLabelInTable(labels[i]) ) {
+        ncount++;
+      }
+    }
+    String[] words = new String[ncount];
+    ncount = 0;
+    for( int i=0; i<labels.length; i++ ) {
+      if( m_tableOfLabels.isLabelInTable(labels[i]) ) {
+        words[ncount++] = m_tableOfLabels.getFirstLabel( labels[i] );
+      }
+    }
+    return words;
+  }
+
+  /**
+   * Aligns the recognized words with the reference (minimum number of errors,
+   * substitutions preferred as in HResults), updates the counts and returns
+   * the number of errors of the sentence.
+   */
+  public int addAlignment( String[] reference, String[] recognized ) {
+    int[] nerrors = align( reference, recognized );
+    m_nnumberOfSentences++;
+    m_nnumberOfReferenceWords += reference.length;
+    m_nnumberOfSubstitutions += nerrors[0];
+    m_nnumberOfDeletions += nerrors[1];
+    m_nnumberOfInsertions += nerrors[2];
+    int ntotal = nerrors[0] + nerrors[1] + nerrors[2];
+    if( ntotal == 0 ) {
+      m_nnumberOfCorrectSentences++;
+    }
+    return ntotal;
+  }
+
+  /**
+   * Returns the number of substitutions, deletions and insertions of the
+   * alignment with the minimum number of errors.
+   */
+  public static int[] align( String[] reference, String[] recognized ) {
+    int nR = reference.length;
+    int nH = recognized.length;
+    //ncost[i][j]: errors aligning the first i reference and j recognized
+    //words; nkind: 0 = match or substitution, 1 = deletion, 2 = insertion
+    int[][] ncost = new int[nR+1][nH+1];
+    int[][] nkind = new int[nR+1][nH+1];
+    for( int i=1; i<=nR; i++ ) {
+      ncost[i][0] = i;
+      nkind[i][0] = 1;
+    }
+    for( int j=1; j<=nH; j++ ) {
+      ncost[0][j] = j;
+      nkind[0][j] = 2;
+    }
+    for( int i=1; i<=nR; i++ ) {
+      for( int j=1; j<=nH; j++ ) {
+        ncost[i][j] = ncost[i-1][j-1] +
+                      ( reference[i-1].equals(recognized[j-1]) ? 0 : 1 );
+        nkind[i][j] = 0;
+        if( ncost[i-1][j] + 1 < ncost[i][j] ) {
+          ncost[i][j] = ncost[i-1][j] + 1;
+          nkind[i][j] = 1;
+        }
+        if( ncost[i][j-1] + 1 < ncost[i][j] ) {
+          ncost[i][j] = ncost[i][j-1] + 1;
+          nkind[i][j] = 2;
+        }
+      }
+    }
+    int[] nerrors = new int[3];
+    int i = nR;
+    int j = nH;
+    while( i > 0 || j > 0 ) {
+      switch( nkind[i][j] ) {
+        case 0:
+          if( !reference[i-1].equals(recognized[j-1]) ) {
+            nerrors[0]++;
+          }
+          i--;
+          j--;
+          break;
+        case 1:
+          nerrors[1]++;
+          i--;
+          break;
+        default:
+          nerrors[2]++;
+          j--;
+      }
+    }
+    return nerrors;
+  }
+
+  public int getNumberOfReferenceWords() {
+    return m_nnumberOfReferenceWords;
+  }
+
+  public int getNumberOfErrors() {
+    return m_nnumberOfSubstitutions + m_nnumberOfDeletions + m_nnumberOfInsertions;
+  }
+
+  /**
+   * Summary in the format of HResults.
+   */
+  public String getSummary() {
+    int nH = m_nnumberOfReferenceWords - m_nnumberOfDeletions - m_nnumberOfSubstitutions;
+    double dN = ( m_nnumberOfReferenceWords == 0 ) ? 1.0 : m_nnumberOfReferenceWords;
+    double dsentences = ( m_nnumberOfSentences == 0 ) ? 1.0 : m_nnumberOfSentences;
+    return "SENT: %Correct=" + IO.format( 100.0 * m_nnumberOfCorrectSentences / dsentences ) +
+           " [H=" + m_nnumberOfCorrectSentences + ", S=" +
+           ( m_nnumberOfSentences - m_nnumberOfCorrectSentences ) + ", N=" +
+           m_nnumberOfSentences + "]\n" +
+           "WORD: %Corr=" + IO.format( 100.0 * nH / dN ) +
+           ", Acc=" + IO.format( 100.0 * (nH - m_nnumberOfInsertions) / dN ) +
+           " [H=" + nH + ", D=" + m_nnumberOfDeletions + ", S=" +
+           m_nnumberOfSubstitutions + ", I=" + m_nnumberOfInsertions + ", N=" +
+           m_nnumberOfReferenceWords + "]";
+  }
+
+  private static String toString( String[] words ) {
+    StringBuffer stringBuffer = new StringBuffer();
+    for( int i=0; i<words.length; i++ ) {
+      if( i > 0 ) {
+        stringBuffer.append( ' ' );
+      }
+      stringBuffer.append( words[i] );
+    }
+    return stringBuffer.toString();
+  }
+
+}
@@ -0,0 +1,259 @@
+package weka.classifiers;
+
+import weka.core.*;
+import edu.ucsd.asr.*;
+import java.util.*;
+import jmat.data.Matrix;
+import jmat.data.matrixDecompositions.CholeskyDecomposition;
+
+/**
+ * Title:        Spock
+ * Description:  Speech recognition
+ * Copyright:    Copyright (c) 2001
+ * Company:      UCSD
+ *
+ * Binary RLSC as a BinaryKernelClassifier, such that it can be the base
+ * classifier of KernelClassifier. It solves the same system of BinaryRLSC:
+ * (K + C I) c = y, where C = lambda N, but uses the Kernel of
+ * BinaryKernelClassifier instead of the one in SMO. All training instances
+ * are "support vectors" and there is no bias.
+ *
+ * When trained by KernelClassifier, the kernel matrix can be read from a
+ * SharedKernelCache, which avoids recalculating the kernel values of the
+ * instances that are shared among the binary problems of the ECOC matrix.
+ * If the ECOC matrix has no zeros, KernelClassifier solves all binary
+ * problems with a single factorization (see the static methods).
+ */
+public class BinaryKernelRLSC extends BinaryKernelClassifier implements OptionHandler, RawScorer {
+
+	/** lambda * N, see BinaryRLSC */
+	private double m_dlambdaTimesN = 1;
+
+	/** Used only while training, then made null. */
+	private transient SharedKernelCache m_sharedKernelCache;
+
+	private transient int[] m_nindicesInSharedKernelCache;
+
+	/**
+	 * Next call to buildClassifier will read the kernel matrix from the
+	 * cache, where instance i of the training set has index nindicesInCache[i].
+	 */
+	public void setSharedKernelCache(SharedKernelCache sharedKernelCache, int[] nindicesInCache) {
+		m_sharedKernelCache = sharedKernelCache;
+		m_nindicesInSharedKernelCache = nindicesInCache;
+	}
+
+	/**
+	 * Builds the classifier.
+	 *
+	 * @param insts the training data.
+	 * @exception Exception if a classifier can't be built
+	 */
+	public void buildClassifier (Instances inputData) throws Exception {
+		checkInstances(inputData);
+		Instances instances = setFiltering(inputData);
+		int N = instances.numInstances();
+
+		float[][] fkernelMatrix = null;
+		//if the instances were filtered here, the values in cache can't be used
+		if (m_sharedKernelCache != null && !m_ouseSomeFilter &&
+		m_nindicesInSharedKernelCache != null && m_nindicesInSharedKernelCache.length == N) {
+			fkernelMatrix = m_sharedKernelCache.getKernelMatrix(m_nindicesInSharedKernelCache);
+		} else {
+			fkernelMatrix = calculateKernelMatrix(instances, m_kernel);
+		}
+		m_sharedKernelCache = null;
+		m_nindicesInSharedKernelCache = null;
+
+		float[] flabels = BinaryRLSC.composeVectorWithLabels(instances);
+		double[][] L = factorRegularizedKernelMatrix(fkernelMatrix, m_dlambdaTimesN);
+		m_dweights = new double[N];
+		if (L != null) {
+			double[][] dsolution = new double[N][1];
+			for (int i = 0; i < N; i++) {
+				dsolution[i][0] = flabels[i];
+			}
+			solve(L, dsolution);
+			for (int i = 0; i < N; i++) {
+				m_dweights[i] = dsolution[i][0];
+			}
+		} else {
+			//this should never happen...
+			System.err.println("Kernel matrix + C * identity matrix is not symmetric and positive definite." +
+			" Cannot use Cholesky decomposition! I am using QR decomposition");
+			m_dweights = getRegularizedKernelMatrix(fkernelMatrix, m_dlambdaTimesN).solve(new Matrix(flabels)).getColumnArrayCopy(0);
+		}
+
+		m_selectedInstances = instances;
+		m_dbias = 0;
+		m_nsupportVectorIndicesInBinaryInstances = new int[N];
+		for (int i = 0; i < N; i++) {
+			m_nsupportVectorIndicesInBinaryInstances[i] = i;
+		}
+	}
+
+	private static Matrix getRegularizedKernelMatrix(float[][] fkernelMatrix, double dlambdaTimesN) {
+		Matrix regularizedKernelMatrix = new Matrix(fkernelMatrix);
+		for (int i = 0; i < fkernelMatrix.length; i++) {
+			regularizedKernelMatrix.set(i, i, fkernelMatrix[i][i] + dlambdaTimesN);
+		}
+		return regularizedKernelMatrix;
+	}
+
+	/**
+	 * Returns the lower triangular L of the Cholesky decomposition
+	 * K + C I = L L', or null if this matrix is not symmetric and positive
+	 * definite. With solve(), L can be used for the systems of many binary
+	 * problems at once (one label vector per column).
+	 */
+	public static double[][] factorRegularizedKernelMatrix(float[][] fkernelMatrix, double dlambdaTimesN) {
+		CholeskyDecomposition choleskyDecomposition = new CholeskyDecomposition(getRegularizedKernelMatrix(fkernelMatrix, dlambdaTimesN));
+		return choleskyDecomposition.isSPD() ? choleskyDecomposition.getL().getArrayCopy() : null;
+	}
+
+	/**
+	 * Solves L L' X = B, where B is organized as (number of instances) x
+	 * (number of right-hand sides) and is overwritten by X. I don't use
+	 * CholeskyDecomposition.solve() because its backward substitution uses
+	 * L instead of L' and the solution is wrong.
+	 */
+	public static void solve(double[][] L, double[][] B) {
+		int N = L.length;
+		int nnumberOfColumns = (N == 0) ? 0 : B[0].length;
+		//L Y = B
+		for (int k = 0; k < N; k++) {
+			double[] Bk = B[k];
+			double[] Lk = L[k];
+			for (int i = 0; i < k; i++) {
+				double[] Bi = B[i];
+				double dLki = Lk[i];
+				for (int j = 0; j < nnumberOfColumns; j++) {
+					Bk[j] -= Bi[j] * dLki;
+				}
+			}
+			for (int j = 0; j < nnumberOfColumns; j++) {
+				Bk[j] /= Lk[k];
+			}
+		}
+		//L' X = Y
+		for (int k = N - 1; k >= 0; k--) {
+			double[] Bk = B[k];
+			for (int i = k + 1; i < N; i++) {
+				double[] Bi = B[i];
+				double dLik = L[i][k];
+				for (int j = 0; j < nnumberOfColumns; j++) {
+					Bk[j] -= Bi[j] * dLik;
+				}
+			}
+			for (int j = 0; j < nnumberOfColumns; j++) {
+				Bk[j] /= L[k][k];
+			}
+		}
+	}
+
+	/**
+	 * Returns the diagonal of G^-1, where G = L L' is the factored matrix.
+	 * It allows calculating the leave-one-out residuals of RLSC without
+	 * retraining: if c = G^-1 y, the classifier trained without instance i
+	 * outputs y[i] - c[i] / G^-1[i][i] for this instance (see Rifkin's thesis).
+	 */
+	public static double[] getDiagonalOfInverse(double[][] L) {
+		int N = L.length;
+		double[] ddiagonal = new double[N];
+		//G^-1 = inv(L)' inv(L), so G^-1[i][i] is the squared norm of column i
+		//of inv(L), obtained by solving L x = e_i (x[k] = 0 for k < i)
+		double[] x = new double[N];
+		for (int i = 0; i < N; i++) {
+			x[i] = 1.0 / L[i][i];
+			double dsum = x[i] * x[i];
+			for (int k = i + 1; k < N; k++) {
+				double[] Lk = L[k];
+				double dvalue = 0;
+				for (int j = i; j < k; j++) {
+					dvalue -= Lk[j] * x[j];
+				}
+				x[k] = dvalue / Lk[k];
+				dsum += x[k] * x[k];
+			}
+			ddiagonal[i] = dsum;
+		}
+		return ddiagonal;
+	}
+
+	/**
+	 * Kernel matrix of the given instances.
+	 */
+	public static float[][] calculateKernelMatrix(Instances instances, Kernel kernel) {
+		int N = instances.numInstances();
+		float[][] fkernelMatrix = new float[N][N];
+		for (int i = 0; i < N; i++) {
+			Instance x = instances.instance(i);
+			for (int j = 0; j <= i; j++) {
+				fkernelMatrix[i][j] = (float) kernel.calculateKernel(x, instances.instance(j));
+				fkernelMatrix[j][i] = fkernelMatrix[i][j];
+			}
+		}
+		return fkernelMatrix;
+	}
+
+	public double getLambdaTimesN() {
+		return m_dlambdaTimesN;
+	}
+
+	public void setLambdaTimesN(double dlambdaTimesN) {
+		if (dlambdaTimesN <= 0) {
+			End.throwError("C = lambda * N = " + dlambdaTimesN + " must be positive");
+		}
+		m_dlambdaTimesN = dlambdaTimesN;
+	}
+
+	public Enumeration listOptions () {
+		Vector vec = new Vector(10);
+		vec.addElement(new Option("\tThe regularization C = lambda * N (default 1).",
+			"C", 1, "-C <double>"));
+		Enumeration enume = super.listOptions();
+		while (enume.hasMoreElements()) {
+			vec.addElement(enume.nextElement());
+		}
+		return vec.elements();
+	}
+
+	public void setOptions (String[] options) throws Exception {
+		String temp = Utils.getOption('C', options);
+		if (temp.equals("")) {
+			setLambdaTimesN(1);
+		} else {
+			setLambdaTimesN(Double.parseDouble(temp));
+		}
+		super.setOptions(options);
+	}
+
+	public String[] getOptions () {
+		String[] superOptions = super.getOptions();
+		String[] options = new String[superOptions.length + 2];
+		options[0] = "-C";
+		options[1] = "" + getLambdaTimesN();
+		System.arraycopy(superOptions, 0, options, 2, superOptions.length);
+		return options;
+	}
+
+	public String toString() {
+		if (m_dweights == null) {
+			return "BinaryKernelRLSC: No model built yet.";
+		}
+		return "BinaryKernelRLSC with C = " + m_dlambdaTimesN + " and " +
+		m_dweights.length + " weights\n" + super.toString();
+	}
+
+	public static void main (String[] args) throws Exception {
+		Classifier scheme;
+		try {
+			scheme = new BinaryKernelRLSC();
+			System.out.println(Evaluation.evaluateModel(scheme, args));
+		} catch (Exception e) {
+			System.err.println(e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+}
@@ -30,8 +30,36 @@ import jmat.data.matrixDecompositions.CholeskyDecomposition;
  // are the +/-1 labels and c are the weights.
  //Here I will ask the user to specify lambda * N = C, and get the C from the
  //SMO configuration. Using C = 1 corresponds to lambda = 1/N.
+ //The system can be solved in 3 ways (option -S):
+ //0) Cholesky decomposition of the N x N kernel matrix (default). Memory is
+ //O(N^2), so it's limited to a few thousand examples.
+ //1) Nystrom approximation K ~ Knm inv(Kmm) Kmn with m landmark examples
+ //(option -I) chosen at random. The classifier is f(x) = sum_j a_j K(x, l_j)
+ //over the landmarks, where (Kmn Knm + C Kmm) a = Kmn y. Memory is O(m^2)
+ //because the rows of Knm are calculated one at a time, and the test is
+ //faster because only the m landmarks are kept.
+ //2) conjugate gradient without storing K: each iteration calculates the
+ //kernel rows again (N^2 / 2 kernel evaluations). It's preconditioned by
+ //the Nystrom approximation (Knm is stored, O(N m) memory) or, if -I 0, by
+ //the diagonal. Stops after -J iterations or when the norm of the residual is
+ //smaller than the tolerance (-U) times the norm of y.
 public class BinaryRLSC extends Classifier implements OptionHandler, RawScorer {
 
+	public static final int SOLVER_CHOLESKY = 0;
+	public static final int SOLVER_NYSTROM = 1;
+	public static final int SOLVER_CONJUGATE_GRADIENT = 2;
+
+	private int m_nsolver = SOLVER_CHOLESKY;
+
+	private int m_nnumberOfLandmarks = 500;
+
+	private int m_nmaximumNumberOfIterations = 1000;
+
+	private double m_dtolerance = 1e-3;
+
+	//to choose the landmarks
+	private static final long m_lrandomSeed = 1;
+
 	protected boolean m_oareThereMissingAttributes = true;
 
 	protected Instances m_instances;
@@ -131,56 +159,278 @@ public class BinaryRLSC extends Classifier implements OptionHandler, RawScorer {
 			m_NominalToBinary = null;
 		}
 
-		//calculate kernel matrix
-		Matrix kernelMatrix = new Matrix(calculateKernelMatrix(instances));
-		int N = kernelMatrix.getRowDimension();
-		//organize output labels as vector
-		Matrix labelsVector = new Matrix(composeVectorWithLabels(instances));
-
-		//invert matrix using QR decomposition
-		//long t1 = System.currentTimeMillis();
-		//Matrix solution2 = kernelMatrix.plus(Matrix.identity(N,N)).solve(labelsVector);
-		//long t2 = System.currentTimeMillis();
-		//System.out.println("Time = " + ( (t2-t1)/1000.0 ) + " seconds.");
-
-		//t1 = System.currentTimeMillis();
 		double lambdaTimesN = m_smo.getC();
+		float[] flabels = composeVectorWithLabels(instances);
+		switch (m_nsolver) {
+			case SOLVER_NYSTROM:
+				solveUsingNystromApproximation(instances, flabels, lambdaTimesN);
+				break;
+			case SOLVER_CONJUGATE_GRADIENT:
+				solveUsingConjugateGradient(instances, flabels, lambdaTimesN);
+				break;
+			default:
+				solveUsingCholeskyDecomposition(instances, flabels, lambdaTimesN);
+		}
+	}
 
-		//N = 5;
-		//IO.DisplayMatrix(Matrix.identity(N,N).times(lambdaTimesN).getArrayCopy());
-		//System.exit(1);
-
-		CholeskyDecomposition choleskyDecomposition = new CholeskyDecomposition(kernelMatrix.plus(Matrix.identity(N,N).times(lambdaTimesN)));
-		//previous code with fixed lambda = N
-		//CholeskyDecomposition choleskyDecomposition = new CholeskyDecomposition(kernelMatrix.plus(Matrix.identity(N,N)));
-		Matrix solution = choleskyDecomposition.solve(labelsVector);
-		//t2 = System.currentTimeMillis();
-		//System.out.println("Time = " + ( (t2-t1)/1000.0 ) + " seconds.");
-		if (!choleskyDecomposition.isSPD()) {
+	private void solveUsingCholeskyDecomposition(Instances instances, float[] flabels, double lambdaTimesN) {
+		float[][] fkernelMatrix = calculateKernelMatrix(instances);
+		int N = fkernelMatrix.length;
+		double[][] L = BinaryKernelRLSC.factorRegularizedKernelMatrix(fkernelMatrix, lambdaTimesN);
+		//keep the instances and their weights
+		m_instances = instances;
+		if (L == null) {
 			//this should never happen...
 			System.err.println("Kernel matrix + identity matrix is not symmetric and positive definite." +
 			" Cannot use Cholesky decomposition! I am using QR decomposition");
-			solution = kernelMatrix.plus(Matrix.identity(N,N)).solve(labelsVector);
+			Matrix kernelMatrix = new Matrix(fkernelMatrix);
+			m_dweights = kernelMatrix.plus(Matrix.identity(N,N).times(lambdaTimesN)).solve(new Matrix(flabels)).getColumnArrayCopy(0);
+			return;
+		}
+		//CholeskyDecomposition.solve() has a bug, use BinaryKernelRLSC
+		double[][] dsolution = new double[N][1];
+		for (int i = 0; i < N; i++) {
+			dsolution[i][0] = flabels[i];
 		}
-		//to get max abs error:
-		//IO.DisplayMatrix(solution2.minus(solution).abs().max().max().getArrayCopy());
+		BinaryKernelRLSC.solve(L, dsolution);
+		m_dweights = new double[N];
+		for (int i = 0; i < N; i++) {
+			m_dweights[i] = dsolution[i][0];
+		}
+	}
 
-		//keep the instances and their weights
+	private void solveUsingNystromApproximation(Instances instances, float[] flabels, double lambdaTimesN) {
+		Instances landmarks = selectLandmarks(instances);
+		int N = instances.numInstances();
+		int m = landmarks.numInstances();
+		//accumulate Kmn Knm and Kmn y, one row of Knm at a time
+		double[][] dsystemMatrix = new double[m][m];
+		double[][] dsolution = new double[m][1];
+		double[] dkernelRow = new double[m];
+		for (int i = 0; i < N; i++) {
+			calculateKernelRow(instances.instance(i), landmarks, dkernelRow);
+			for (int a = 0; a < m; a++) {
+				double dvalue = dkernelRow[a];
+				dsolution[a][0] += dvalue * flabels[i];
+				double[] drow = dsystemMatrix[a];
+				for (int b = 0; b <= a; b++) {
+					drow[b] += dvalue * dkernelRow[b];
+				}
+			}
+		}
+		double[][] L = factorNystromSystem(dsystemMatrix, landmarks, lambdaTimesN);
+		BinaryKernelRLSC.solve(L, dsolution);
+		m_instances = landmarks;
+		m_dweights = new double[m];
+		for (int a = 0; a < m; a++) {
+			m_dweights[a] = dsolution[a][0];
+		}
+	}
+
+	private void solveUsingConjugateGradient(Instances instances, float[] flabels, double lambdaTimesN) {
+		int N = instances.numInstances();
+		//preconditioner
+		Instances landmarks = null;
+		float[][] flandmarksKernelMatrix = null;
+		double[][] L = null;
+		double[] ddiagonal = null;
+		if (m_nnumberOfLandmarks > 0) {
+			landmarks = selectLandmarks(instances);
+			int m = landmarks.numInstances();
+			flandmarksKernelMatrix = new float[N][m];
+			double[][] dsystemMatrix = new double[m][m];
+			double[] dkernelRow = new double[m];
+			for (int i = 0; i < N; i++) {
+				calculateKernelRow(instances.instance(i), landmarks, dkernelRow);
+				for (int a = 0; a < m; a++) {
+					flandmarksKernelMatrix[i][a] = (float) dkernelRow[a];
+					double[] drow = dsystemMatrix[a];
+					for (int b = 0; b <= a; b++) {
+						drow[b] += dkernelRow[a] * dkernelRow[b];
+					}
+				}
+			}
+			L = factorNystromSystem(dsystemMatrix, landmarks, lambdaTimesN);
+		} else {
+			ddiagonal = new double[N];
+			for (int i = 0; i < N; i++) {
+				Instance x = instances.instance(i);
+				ddiagonal[i] = m_smo.calculateKernel(x, x) + lambdaTimesN;
+			}
+		}
+
+		double[] c = new double[N];
+		double[] r = new double[N];
+		double[] z = new double[N];
+		double[] p = new double[N];
+		double[] q = new double[N];
+		double dnormOfLabels = 0;
+		for (int i = 0; i < N; i++) {
+			r[i] = flabels[i];
+			dnormOfLabels += r[i] * r[i];
+		}
+		dnormOfLabels = Math.sqrt(dnormOfLabels);
+		applyPreconditioner(r, z, flandmarksKernelMatrix, L, ddiagonal, lambdaTimesN);
+		System.arraycopy(z, 0, p, 0, N);
+		double drz = dotProduct(r, z);
+		int niteration = 0;
+		double dnormOfResidual = dnormOfLabels;
+		while (niteration < m_nmaximumNumberOfIterations && dnormOfResidual > m_dtolerance * dnormOfLabels) {
+			multiplyByKernelMatrix(instances, p, q);
+			for (int i = 0; i < N; i++) {
+				q[i] += lambdaTimesN * p[i];
+			}
+			double dalpha = drz / dotProduct(p, q);
+			for (int i = 0; i < N; i++) {
+				c[i] += dalpha * p[i];
+				r[i] -= dalpha * q[i];
+			}
+			dnormOfResidual = Math.sqrt(dotProduct(r, r));
+			applyPreconditioner(r, z, flandmarksKernelMatrix, L, ddiagonal, lambdaTimesN);
+			double drzNew = dotProduct(r, z);
+			double dbeta = drzNew / drz;
+			drz = drzNew;
+			for (int i = 0; i < N; i++) {
+				p[i] = z[i] + dbeta * p[i];
+			}
+			niteration++;
+		}
+		if (dnormOfResidual > m_dtolerance * dnormOfLabels) {
+			Print.warning("Conjugate gradient of BinaryRLSC did not converge after " + niteration +
+			" iterations: relative residual = " + IO.format(dnormOfResidual / dnormOfLabels));
+		}
 		m_instances = instances;
-		m_dweights = solution.getColumnArrayCopy(0);
-
-//		double[] dtemp = solution2.getColumnArrayCopy(0);
-//		double dmax = -1e30;
-//		for (int i = 0; i < dtemp.length; i++) {
-//			double de = dtemp[i]-m_dweights[i];
-//			if (de > dmax) {
-//				dmax = de;
-//			}
-//			System.out.print(de + " ");
-//		}
-//		System.out.print("\n Max error = " + dmax);
+		m_dweights = c;
+	}
+
+	/**
+	 * z = inv(P) r, where P = Knm inv(Kmm) Kmn + C I (calculated with the
+	 * matrix inversion lemma and the factored system of the Nystrom solver)
+	 * or P = diag(K) + C I if L is null.
+	 */
+	private static void applyPreconditioner(double[] r, double[] z, float[][] flandmarksKernelMatrix,
+	double[][] L, double[] ddiagonal, double lambdaTimesN) {
+		int N = r.length;
+		if (L == null) {
+			for (int i = 0; i < N; i++) {
+				z[i] = r[i] / ddiagonal[i];
+			}
+			return;
+		}
+		int m = L.length;
+		double[][] u = new double[m][1];
+		for (int i = 0; i < N; i++) {
+			float[] frow = flandmarksKernelMatrix[i];
+			for (int a = 0; a < m; a++) {
+				u[a][0] += frow[a] * r[i];
+			}
+		}
+		//(C I + Knm inv(Kmm) Kmn)^-1 = (I - Knm inv(C Kmm + Kmn Knm) Kmn) / C
+		BinaryKernelRLSC.solve(L, u);
+		for (int i = 0; i < N; i++) {
+			float[] frow = flandmarksKernelMatrix[i];
+			double dvalue = 0;
+			for (int a = 0; a < m; a++) {
+				dvalue += frow[a] * u[a][0];
+			}
+			z[i] = (r[i] - dvalue) / lambdaTimesN;
+		}
+	}
+
+	/**
+	 * y = K x, calculating each kernel value only once (K is symmetric).
+	 */
+	private void multiplyByKernelMatrix(Instances instances, double[] x, double[] y) {
+		int N = x.length;
+		for (int i = 0; i < N; i++) {
+			y[i] = 0;
+		}
+		for (int i = 0; i < N; i++) {
+			Instance xi = instances.instance(i);
+			double dsum = m_smo.calculateKernel(xi, xi) * x[i];
+			for (int j = 0; j < i; j++) {
+				double dkernel = m_smo.calculateKernel(xi, instances.instance(j));
+				dsum += dkernel * x[j];
+				y[j] += dkernel * x[i];
+			}
+			y[i] += dsum;
+		}
+	}
 
-		//IO.DisplayVector(m_dweights);
+	private static double dotProduct(double[] x, double[] y) {
+		double dsum = 0;
+		for (int i = 0; i < x.length; i++) {
+			dsum += x[i] * y[i];
+		}
+		return dsum;
+	}
+
+	/**
+	 * Returns m_nnumberOfLandmarks instances chosen at random (or all
+	 * instances if there are not enough), in their original order.
+	 */
+	private Instances selectLandmarks(Instances instances) {
+		int N = instances.numInstances();
+		int m = Math.min(m_nnumberOfLandmarks, N);
+		if (m < 1) {
+			End.throwError("Number of landmarks = " + m_nnumberOfLandmarks + " must be positive");
+		}
+		int[] nindices = new int[N];
+		for (int i = 0; i < N; i++) {
+			nindices[i] = i;
+		}
+		//first m entries of a random permutation
+		Random random = new Random(m_lrandomSeed);
+		for (int i = 0; i < m; i++) {
+			int j = i + random.nextInt(N - i);
+			int ntemp = nindices[i];
+			nindices[i] = nindices[j];
+			nindices[j] = ntemp;
+		}
+		Arrays.sort(nindices, 0, m);
+		Instances landmarks = new Instances(instances, m);
+		for (int i = 0; i < m; i++) {
+			landmarks.add(instances.instance(nindices[i]));
+		}
+		return landmarks;
+	}
+
+	private void calculateKernelRow(Instance x, Instances landmarks, double[] dkernelRow) {
+		for (int a = 0; a < dkernelRow.length; a++) {
+			dkernelRow[a] = m_smo.calculateKernel(x, landmarks.instance(a));
+		}
+	}
+
+	/**
+	 * Given the lower triangle of Kmn Knm in dsystemMatrix, adds C Kmm and
+	 * returns the Cholesky factor of the result. If the landmarks are
+	 * (almost) repeated, Kmm is singular and a small value is added to its
+	 * diagonal.
+	 */
+	private double[][] factorNystromSystem(double[][] dsystemMatrix, Instances landmarks, double lambdaTimesN) {
+		int m = dsystemMatrix.length;
+		float[][] flandmarksKernelMatrix = calculateKernelMatrix(landmarks);
+		double dtrace = 0;
+		for (int a = 0; a < m; a++) {
+			for (int b = 0; b <= a; b++) {
+				dsystemMatrix[a][b] += lambdaTimesN * flandmarksKernelMatrix[a][b];
+				dsystemMatrix[b][a] = dsystemMatrix[a][b];
+			}
+			dtrace += dsystemMatrix[a][a];
+		}
+		double djitter = 1e-10 * dtrace / m;
+		for (int n = 0; n < 10; n++) {
+			CholeskyDecomposition choleskyDecomposition = new CholeskyDecomposition(new Matrix(dsystemMatrix));
+			if (choleskyDecomposition.isSPD()) {
+				return choleskyDecomposition.getL().getArrayCopy();
+			}
+			for (int a = 0; a < m; a++) {
+				dsystemMatrix[a][a] += djitter;
+			}
+			djitter *= 10;
+		}
+		End.throwError("Could not factor the system of the Nystrom approximation with " + m + " landmarks");
+		return null;
 	}
 
 	public static float[] composeVectorWithLabels(Instances instances) {
@@ -260,6 +510,44 @@ public class BinaryRLSC extends Classifier implements OptionHandler, RawScorer {
 		return dscore;
 	}
 
+	public int getSolver() {
+		return m_nsolver;
+	}
+
+	public void setSolver(int nsolver) {
+		if (nsolver < SOLVER_CHOLESKY || nsolver > SOLVER_CONJUGATE_GRADIENT) {
+			End.throwError("Invalid solver = " + nsolver + ". Use 0 (Cholesky), 1 (Nystrom) or 2 (conjugate gradient)");
+		}
+		m_nsolver = nsolver;
+	}
+
+	public int getNumberOfLandmarks() {
+		return m_nnumberOfLandmarks;
+	}
+
+	public void setNumberOfLandmarks(int nnumberOfLandmarks) {
+		if (nnumberOfLandmarks < 0) {
+			End.throwError("Number of landmarks = " + nnumberOfLandmarks + " cannot be negative");
+		}
+		m_nnumberOfLandmarks = nnumberOfLandmarks;
+	}
+
+	public int getMaximumNumberOfIterations() {
+		return m_nmaximumNumberOfIterations;
+	}
+
+	public void setMaximumNumberOfIterations(int nmaximumNumberOfIterations) {
+		m_nmaximumNumberOfIterations = nmaximumNumberOfIterations;
+	}
+
+	public double getTolerance() {
+		return m_dtolerance;
+	}
+
+	public void setTolerance(double dtolerance) {
+		m_dtolerance = dtolerance;
+	}
+
 	public boolean getareThereMissingAttributes() {
 		return m_oareThereMissingAttributes;
 	}
@@ -280,6 +568,15 @@ public class BinaryRLSC extends Classifier implements OptionHandler, RawScorer {
 			"H", 0,"-H"));
 		vec.addElement(new Option("\tUse cross-validation to find the best SVM parameters.\n",
 			"K", 0,"-K"));
+		vec.addElement(new Option("\tSolver: 0 = Cholesky (default), 1 = Nystrom approximation, 2 = conjugate gradient.",
+			"S", 1,"-S <solver>"));
+		vec.addElement(new Option("\tNumber of landmarks of the Nystrom approximation, also used by the preconditioner\n"
+			+"\tof conjugate gradient (0 = diagonal preconditioner). Default: 500.",
+			"I", 1,"-I <number>"));
+		vec.addElement(new Option("\tMaximum number of iterations of conjugate gradient (default: 1000).",
+			"J", 1,"-J <number>"));
+		vec.addElement(new Option("\tTolerance of conjugate gradient: relative norm of the residual (default: 1e-3).",
+			"U", 1,"-U <tolerance>"));
 //		Enumeration enume = super.listOptions();
 //		while (enume.hasMoreElements()) {
 //			vec.addElement(enume.nextElement());
@@ -290,19 +587,39 @@ public class BinaryRLSC extends Classifier implements OptionHandler, RawScorer {
 	public void setOptions (String[] options) throws Exception {
 		//I use -M for the cache size in SMO, but the cache is not used
 		setareThereMissingAttributes(! Utils.getFlag('M', options));
+		String temp = Utils.getOption('S', options);
+		setSolver(temp.equals("") ? SOLVER_CHOLESKY : Integer.parseInt(temp));
+		temp = Utils.getOption('I', options);
+		setNumberOfLandmarks(temp.equals("") ? 500 : Integer.parseInt(temp));
+		temp = Utils.getOption('J', options);
+		setMaximumNumberOfIterations(temp.equals("") ? 1000 : Integer.parseInt(temp));
+		temp = Utils.getOption('U', options);
+		setTolerance(temp.equals("") ? 1e-3 : Double.parseDouble(temp));
 		((OptionHandler) m_smo).setOptions(options);
 		m_smo.setCacheSize(3);
 	}
 
 	public String[] getOptions () {
 		String[] superOptions = ((OptionHandler) m_smo).getOptions();
-		String[] options = new String[superOptions.length + 3];
+		String[] options = new String[superOptions.length + 11];
 		int ncurrent = 0;
 		if (!getareThereMissingAttributes()) {
 			options[ncurrent++] = "-M";
 		}
+		if (getSolver() != SOLVER_CHOLESKY) {
+			options[ncurrent++] = "-S"; options[ncurrent++] = "" + getSolver();
+			options[ncurrent++] = "-I"; options[ncurrent++] = "" + getNumberOfLandmarks();
+		}
+		if (getSolver() == SOLVER_CONJUGATE_GRADIENT) {
+			options[ncurrent++] = "-J"; options[ncurrent++] = "" + getMaximumNumberOfIterations();
+			options[ncurrent++] = "-U"; options[ncurrent++] = "" + getTolerance();
+		}
 		if (ncurrent > 0) {
 			System.arraycopy(superOptions, 0, options, ncurrent, superOptions.length);
+			ncurrent += superOptions.length;
+			while (ncurrent < options.length) {
+				options[ncurrent++] = "";
+			}
 			return options;
 		} else {
 			//there are only options from super class
@@ -85,6 +85,14 @@ public class KernelClassifier extends ScoreMultiClassClassifier {
 	//keep going in a direction until you get no decrease for three steps in a row
 	private static final int m_nnumberOfAttemptsToGetADecreaseInError = 3;
 
+	//memory of the kernel values shared by the binary classifiers during training (option -C)
+	private int m_nkernelCacheSizeInMegabytes = 64;
+	//exists only while the binary classifiers are trained
+	private transient SharedKernelCache m_sharedKernelCache;
+
+	//train all BinaryKernelRLSC's with one factorization when possible
+	private boolean m_ouseSingleFactorization = true;
+
 	/**
 	 * Builds the classifiers.
 	 *
@@ -208,6 +216,12 @@ public class KernelClassifier extends ScoreMultiClassClassifier {
 
 	//update m_Classifier such that final SMO has the chosen configuration
 	private void findSVMParametersAndUpdateConfiguration (Instances instances) throws Exception {
+		//need the ECOC matrix to know if all binary classifiers use all instances
+		super.initializeFiltersAndVariables(instances);
+		if (canUseSingleFactorization()) {
+			findLambdaTimesNUsingLeaveOneOut(instances);
+			return;
+		}
 		SMO bestSMOConfiguration = null;
 		double dC = ((SMO) m_Classifier).getC();
 		boolean oisGaussianKernel = (((BinaryKernelClassifier) m_Classifier).m_kernel.isAGaussianKernel());
@@ -366,6 +380,138 @@ public class KernelClassifier extends ScoreMultiClassClassifier {
 		}
 	}
 
+	/**
+	 * Finds C = lambda * N of BinaryKernelRLSC with the leave-one-out error,
+	 * which is obtained from the same factorization used to train the
+	 * binary classifiers. C is increased and decreased by a factor of 2, as
+	 * gamma is for the other classifiers. The kernel (and gamma) is not changed,
+	 * so the kernel matrix is calculated only once.
+	 */
+	private void findLambdaTimesNUsingLeaveOneOut (Instances instances) throws Exception {
+		BinaryKernelRLSC rlsc = (BinaryKernelRLSC) m_Classifier;
+		float[][] fkernelMatrix = BinaryKernelRLSC.calculateKernelMatrix(instances, rlsc.m_kernel);
+		double[][] dlabels = composeMatrixWithLabels(instances);
+		double dinitialC = rlsc.getLambdaTimesN();
+		double dsmallestError = getLeaveOneOutError(instances, fkernelMatrix, dlabels, dinitialC);
+		double dbestC = dinitialC;
+		if (m_odebug) {
+			System.err.println("C = " + dinitialC + " => leave-one-out error = " + IO.format(dsmallestError));
+		}
+		//first increase, then decrease C
+		for (int ndirection = 0; ndirection < 2; ndirection++) {
+			double dC = dinitialC;
+			int nattempts = 0;
+			while (nattempts < m_nnumberOfAttemptsToGetADecreaseInError) {
+				dC = (ndirection == 0) ? dC * 2 : dC / 2;
+				double derror = getLeaveOneOutError(instances, fkernelMatrix, dlabels, dC);
+				if (m_odebug) {
+					System.err.println("C = " + dC + " => leave-one-out error = " + IO.format(derror));
+				}
+				if (derror < dsmallestError) {
+					dsmallestError = derror;
+					dbestC = dC;
+					//reset counter because we got a decrease in error:
+					nattempts = 0;
+				} else {
+					nattempts++;
+				}
+			}
+		}
+		rlsc.setLambdaTimesN(dbestC);
+		if (m_odebug) {
+			System.err.println("@@@ Best C = " + dbestC + " => smallest error = " + IO.format(dsmallestError));
+		}
+	}
+
+	/**
+	 * Returns the fraction of instances misclassified by the classifiers
+	 * trained without them, when the binary scores are decoded by the sum per
+	 * class (linear loss). Returns 1 if K + C I cannot be factored.
+	 */
+	private double getLeaveOneOutError (Instances instances, float[][] fkernelMatrix, double[][] dlabels, double dC) {
+		double[][] L = BinaryKernelRLSC.factorRegularizedKernelMatrix(fkernelMatrix, dC);
+		if (L == null) {
+			return 1;
+		}
+		int N = dlabels.length;
+		double[][] dweights = new double[N][];
+		for (int i = 0; i < N; i++) {
+			dweights[i] = Cloner.clone(dlabels[i]);
+		}
+		BinaryKernelRLSC.solve(L, dweights);
+		double[] ddiagonalOfInverse = BinaryKernelRLSC.getDiagonalOfInverse(L);
+		double[] dscores = new double[m_nnumberOfBinaryClassifiers];
+		int nerrors = 0;
+		for (int i = 0; i < N; i++) {
+			for (int j = 0; j < dscores.length; j++) {
+				dscores[j] = dlabels[i][j] - dweights[i][j] / ddiagonalOfInverse[i];
+			}
+			double[] dscoresPerClass = m_trinaryECOCMatrix.getSumPerClassGivenRawScores(dscores);
+			if (Utils.maxIndex(dscoresPerClass) != (int) instances.instance(i).classValue()) {
+				nerrors++;
+			}
+		}
+		return ((double) nerrors) / N;
+	}
+
+	/**
+	 * Labels of all binary problems, organized as (number of instances) x
+	 * (number of binary classifiers). Assumes the ECOC matrix has no zeros.
+	 */
+	private double[][] composeMatrixWithLabels (Instances instances) {
+		int[][] ncodingMatrix = m_trinaryECOCMatrix.getECOCCodingMatrixReference();
+		int N = instances.numInstances();
+		double[][] dlabels = new double[N][m_nnumberOfBinaryClassifiers];
+		for (int i = 0; i < N; i++) {
+			int nclass = (int) instances.instance(i).classValue();
+			for (int j = 0; j < m_nnumberOfBinaryClassifiers; j++) {
+				dlabels[i][j] = ncodingMatrix[j][nclass];
+			}
+		}
+		return dlabels;
+	}
+
+	/**
+	 * Trains all binary classifiers with a single factorization of K + C I and
+	 * a solve with all label vectors as right-hand sides. Returns false if
+	 * K + C I could not be factored.
+	 */
+	private boolean buildClassifiersUsingSingleFactorization (Instances instances) throws Exception {
+		BinaryKernelRLSC rlsc = (BinaryKernelRLSC) m_Classifier;
+		int N = instances.numInstances();
+		float[][] fkernelMatrix = null;
+		if (m_sharedKernelCache != null) {
+			int[] nindices = new int[N];
+			for (int i = 0; i < N; i++) {
+				nindices[i] = i;
+			}
+			fkernelMatrix = m_sharedKernelCache.getKernelMatrix(nindices);
+		} else {
+			fkernelMatrix = BinaryKernelRLSC.calculateKernelMatrix(instances, rlsc.m_kernel);
+		}
+		double[][] L = BinaryKernelRLSC.factorRegularizedKernelMatrix(fkernelMatrix, rlsc.getLambdaTimesN());
+		if (L == null) {
+			return false;
+		}
+		fkernelMatrix = null;
+		double[][] dweights = composeMatrixWithLabels(instances);
+		BinaryKernelRLSC.solve(L, dweights);
+		m_Classifiers = new Classifier[m_nnumberOfBinaryClassifiers];
+		for (int i = 0; i < m_nnumberOfBinaryClassifiers; i++) {
+			double[] dweightsOfClassifier = new double[N];
+			for (int j = 0; j < N; j++) {
+				dweightsOfClassifier[j] = dweights[j][i];
+			}
+			SharedBinaryKernelClassifier sharedBinaryKernelClassifier = new SharedBinaryKernelClassifier();
+			sharedBinaryKernelClassifier.setWeightsOfAllInstances(dweightsOfClassifier);
+			m_Classifiers[i] = sharedBinaryKernelClassifier;
+		}
+		if (m_odebug && !m_ofindSVMParametersThroughCrossValidation) {
+			System.err.println("Finished training " + m_nnumberOfBinaryClassifiers + " binary classifiers with a single factorization");
+		}
+		return true;
+	}
+
 	private double getErrorUsingCrossValidation(Instances data, double dC, double dgamma, boolean oisGaussianKernel) throws Exception {
 		double[] derrors = crossValidateModel(data, dC, dgamma, oisGaussianKernel, m_nnumberOfFoldsForCrossValidationWhenFindingSVMParameters);
 		if (m_odebug) {
@@ -482,6 +628,16 @@ public class KernelClassifier extends ScoreMultiClassClassifier {
 
 		m_ouseSharedCache = canUseSharedCache() && (! m_oisLinearMachine);
 
+		//all binary classifiers see the same instances, so they can share the
+		//kernel values (only classifiers that calculate their own kernel matrix)
+		if (m_ouseSharedCache && m_nkernelCacheSizeInMegabytes > 0 &&
+		(m_Classifier instanceof BinaryKernelRLSC)) {
+			m_sharedKernelCache = new SharedKernelCache(instances, smoWithConfiguration.m_kernel,
+			m_nkernelCacheSizeInMegabytes * 1024L * 1024L);
+		} else {
+			m_sharedKernelCache = null;
+		}
+
 		super.initializeFiltersAndVariables(instances);
 
 		int[][] nsupportVectorsMaps = new int[m_nnumberOfBinaryClassifiers][];
@@ -502,6 +658,8 @@ public class KernelClassifier extends ScoreMultiClassClassifier {
 				System.err.println("Started training binary classifier...");
 			}
 			m_Classifiers[0].buildClassifier(instances);
+		} else if (canUseSingleFactorization() && buildClassifiersUsingSingleFactorization(instances)) {
+			//all binary classifiers are trained
 		} else {
 			//m_Classifiers = Classifier.makeCopies(m_Classifier, m_nnumberOfBinaryClassifiers);
 			m_Classifiers = new Classifier[m_nnumberOfBinaryClassifiers];
@@ -568,6 +726,13 @@ public class KernelClassifier extends ScoreMultiClassClassifier {
 			}
 		}
 
+		if (m_sharedKernelCache != null) {
+			if (m_odebug && !m_ofindSVMParametersThroughCrossValidation) {
+				System.err.println(m_sharedKernelCache.getStatistics());
+			}
+			m_sharedKernelCache = null;
+		}
+
 		organizeUniqueSupportVectors(instances);
 
 		if (m_ouseAttributeSelection) {
@@ -844,6 +1009,9 @@ public class KernelClassifier extends ScoreMultiClassClassifier {
 			"K", 0,"-K"));
 		vec.addElement(new Option("\tSets number of folds for cross-validation (default: 10).",
 			"X", 1,"-X"));
+		vec.addElement(new Option("\tSize in MB of the kernel cache shared by the binary classifiers during training (default: 64, 0 turns it off).\n"
+			+"\t(Used only if the base classifier is BinaryKernelRLSC and the binary classifiers are not normalized individually).",
+			"C", 1,"-C <size>"));
 		Enumeration enume = super.listOptions();
 		while (enume.hasMoreElements()) {
 			vec.addElement(enume.nextElement());
@@ -869,12 +1037,18 @@ public class KernelClassifier extends ScoreMultiClassClassifier {
 		} else {
 			setNumberOfFoldsForCrossValidationWhenFindingSVMParameters(Integer.parseInt(temp));
 		}
+		temp = Utils.getOption('C', options);
+		if (temp.equals("")) {
+			setKernelCacheSizeInMegabytes(64);
+		} else {
+			setKernelCacheSizeInMegabytes(Integer.parseInt(temp));
+		}
 		super.setOptions(options);
 	}
 
 	public String[] getOptions () {
 		String[] superOptions = super.getOptions();
-		String[] options = new String[superOptions.length + 6];
+		String[] options = new String[superOptions.length + 8];
 		int ncurrent = 0;
 		if (getGlobalNormalization()) {
 			options[ncurrent++] = "-G";
@@ -886,6 +1060,7 @@ public class KernelClassifier extends ScoreMultiClassClassifier {
 			options[ncurrent++] = "-K";
 		}
 		options[ncurrent++] = "-X"; options[ncurrent++] = ""+getNumberOfFoldsForCrossValidationWhenFindingSVMParameters();;
+		options[ncurrent++] = "-C"; options[ncurrent++] = ""+getKernelCacheSizeInMegabytes();
 		if (ncurrent > 0) {
 			System.arraycopy(superOptions, 0, options, ncurrent, superOptions.length);
 			return options;
@@ -903,6 +1078,17 @@ public class KernelClassifier extends ScoreMultiClassClassifier {
 		return m_odoGlobalNormalization;
 	}
 
+	public void setKernelCacheSizeInMegabytes(int nkernelCacheSizeInMegabytes) {
+		if (nkernelCacheSizeInMegabytes < 0) {
+			End.throwError("Kernel cache size = " + nkernelCacheSizeInMegabytes + " MB cannot be negative");
+		}
+		m_nkernelCacheSizeInMegabytes = nkernelCacheSizeInMegabytes;
+	}
+
+	public int getKernelCacheSizeInMegabytes() {
+		return m_nkernelCacheSizeInMegabytes;
+	}
+
 	public void setFindSVMParametersThroughCrossValidation (boolean ofindSVMParametersThroughCrossValidation) {
 		m_ofindSVMParametersThroughCrossValidation = ofindSVMParametersThroughCrossValidation;
 	}
@@ -930,6 +1116,25 @@ public class KernelClassifier extends ScoreMultiClassClassifier {
 		}
 	}
 
+	/**
+	 * True if the binary classifiers are BinaryKernelRLSC's trained with all
+	 * instances (the ECOC matrix has no zeros) without individual filters, such
+	 * that their systems share the matrix K + C I and differ only by the labels.
+	 */
+	protected boolean canUseSingleFactorization() {
+		return m_ouseSingleFactorization && (m_Classifier instanceof BinaryKernelRLSC) &&
+		canUseSharedCache() && m_trinaryECOCMatrix != null &&
+		m_nnumberOfClasses > 2 && !m_trinaryECOCMatrix.doesItHaveEntriesEqualToZero();
+	}
+
+	public void setUseSingleFactorization(boolean ouseSingleFactorization) {
+		m_ouseSingleFactorization = ouseSingleFactorization;
+	}
+
+	public boolean getUseSingleFactorization() {
+		return m_ouseSingleFactorization;
+	}
+
 	public String toString() {
 		if (m_ouseAttributeSelection) {
 			StringBuffer stringBuffer = new StringBuffer(super.toString());
@@ -992,6 +1197,21 @@ public class KernelClassifier extends ScoreMultiClassClassifier {
 			}
 		}
 
+		/**
+		 * Used instead of buildClassifier when the classifier was trained
+		 * with the whole multiclass training set and has no bias, as RLSC.
+		 */
+		protected void setWeightsOfAllInstances(double[] dweights) {
+			m_dalphas = dweights;
+			m_db = 0;
+			m_nsupportVectorOriginalIndices = new int[dweights.length];
+			for (int i = 0; i < dweights.length; i++) {
+				m_nsupportVectorOriginalIndices[i] = i;
+			}
+			m_nsupportVectorIndices = new int[dweights.length];
+			m_nsupportVectorsMap = null;
+		}
+
 		/**
 		 * Builds the classifiers.
 		 *
@@ -1032,6 +1252,10 @@ public class KernelClassifier extends ScoreMultiClassClassifier {
 
 				//use Weka's SMO
 				//smo.setSupportVectorsMap(m_nsupportVectorsMap);
+				if (m_sharedKernelCache != null && (smo instanceof BinaryKernelRLSC)) {
+					//the map has the indices in the multiclass training set
+					((BinaryKernelRLSC) smo).setSharedKernelCache(m_sharedKernelCache, m_nsupportVectorsMap);
+				}
 				smo.buildClassifier(instances);
 
 				m_nsupportVectorOriginalIndices = smo.getSupportVectorIndicesInBinaryInstances();
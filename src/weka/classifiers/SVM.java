@@ -98,6 +98,22 @@ public class SVM
   //keep going in a direction until you get no decrease for three steps in a row
   private static final int m_nnumberOfAttemptsToGetADecreaseInError = 3;
 
+  //number of threads that train the SVMs of the model selection (option -P)
+  private int m_nnumberOfThreadsForModelSelection = 1;
+
+  //all linear machines packed in a (number of binary classifiers) x (space
+  //dimension) matrix, organized by rows, and their biases, such that the raw
+  //scores are obtained with one matrix-vector product. The normalization
+  //filters of the SharedSVM's are absorbed by the weights. They are null if
+  //the machines are not linear or can't be packed (see packLinearMachines()).
+  protected double[] m_dpackedLinearWeights;
+  protected double[] m_dpackedLinearBiases;
+  protected int m_nspaceDimensionOfPackedLinearMachines;
+
+  //number of instances that share a pass over the packed weights in
+  //getRawScoresFromBinaryClassifiers(Instances)
+  private static final int m_nnumberOfInstancesPerBlock = 64;
+
   /**
    * Builds the classifiers.
    *
@@ -260,20 +276,24 @@ public class SVM
   //update m_Classifier such that final SMO has the chosen configuration
   private void findSVMParametersAndUpdateConfiguration(Instances instances) throws
       Exception {
-    SMO bestSMOConfiguration = null;
     double dC = ( (SMO) m_Classifier).getC();
 
     boolean oisGaussianKernel = ( ( (SMO) m_Classifier).
                                  getKernelFunctionAsInteger() == SMO.RBF_KERNEL) ? true : false;
 
-    double dinitialGamma = ( (SMO) m_Classifier).getRBFKernelGamma();
-    double dgamma = dinitialGamma;
+    double dgamma = ( (SMO) m_Classifier).getRBFKernelGamma();
+
+    //the folds (or the test set) and the configuration of the copies are
+    //the same for all candidates, so they are organized only once
+    ModelSelectionSets modelSelectionSets = createModelSelectionSets(instances);
+    SVM svmPrototype = createPrototypeForModelSelection();
 
-    double derrorForInitialConfiguration = getErrorUsingCrossValidation(
-        instances, dC, dgamma, oisGaussianKernel);
+    double derrorForInitialConfiguration = getAverageError(getErrors(
+        modelSelectionSets, svmPrototype, new double[] {dC},
+        new double[] {dgamma}, oisGaussianKernel)[0], modelSelectionSets);
     if (m_odebug) {
       if (oisGaussianKernel) {
-        System.err.println("C = " + dC + ", gamma = " + dinitialGamma +
+        System.err.println("C = " + dC + ", gamma = " + dgamma +
                            " => average error = " +
                            IO.format(derrorForInitialConfiguration));
       }
@@ -287,184 +307,165 @@ public class SVM
       if (m_odebug) {
         System.err.println("Started finding best gamma for Gaussian kernel...");
       }
-
       //find best gamma with fixed initial value of C
-      double dsmallestErrorForLargerValue = derrorForInitialConfiguration;
-      double dbestForLargerValue = dinitialGamma;
-      double dsmallestErrorForSmallerValue = derrorForInitialConfiguration;
-      double dbestForSmallerValue = dinitialGamma;
-      int nattempts = 0;
-      //increase gamma
-      while (true) {
-        dgamma *= 2;
-        double derror = getErrorUsingCrossValidation(instances, dC, dgamma,
-            oisGaussianKernel);
-        if (m_odebug) {
-          System.err.println("Gamma = " + dgamma + " => average error = " +
-                             IO.format(derror));
-        }
-        if (derror < dsmallestErrorForLargerValue) {
-          dsmallestErrorForLargerValue = derror;
-          dbestForLargerValue = dgamma;
-          //reset counter because we got a decrease in error:
-          nattempts = 0;
-        }
-        else {
-          nattempts++;
-          if (m_odebug) {
-            System.err.println(" ERROR INCREASED attempt = " + nattempts +
-                               " / " +
-                               m_nnumberOfAttemptsToGetADecreaseInError);
-          }
-          if (nattempts == m_nnumberOfAttemptsToGetADecreaseInError) {
-            break;
-          }
-        }
-      }
-      //decrease gamma
-      dgamma = dinitialGamma;
-      nattempts = 0;
-      while (true) {
-        dgamma /= 2;
-        double derror = getErrorUsingCrossValidation(instances, dC, dgamma,
-            oisGaussianKernel);
-        if (m_odebug) {
-          System.err.println("Gamma = " + dgamma + " => average error = " +
-                             IO.format(derror));
-        }
-        if (derror < dsmallestErrorForSmallerValue) {
-          dsmallestErrorForSmallerValue = derror;
-          dbestForSmallerValue = dgamma;
-          //reset counter because we got a decrease in error:
-          nattempts = 0;
-        }
-        else {
-          nattempts++;
-          if (m_odebug) {
-            System.err.println(" ERROR INCREASED attempt = " + nattempts +
-                               " / " +
-                               m_nnumberOfAttemptsToGetADecreaseInError);
-          }
-          if (nattempts == m_nnumberOfAttemptsToGetADecreaseInError) {
-            break;
-          }
-        }
-      }
+      double[] dbestGammaAndError = findBestValueInBothDirections(
+          modelSelectionSets, svmPrototype, dC, dgamma, oisGaussianKernel,
+          true, derrorForInitialConfiguration);
       //update to be used when finding C
-      dgamma = (dsmallestErrorForSmallerValue < dsmallestErrorForLargerValue) ?
-          dbestForSmallerValue : dbestForLargerValue;
+      dgamma = dbestGammaAndError[0];
       ( (SMO) m_Classifier).setRBFKernelGamma(dgamma);
       if (m_odebug) {
         System.err.println("@@@ Best gamma = " + dgamma +
                            " => smallest error = " +
-                           IO.format( (dsmallestErrorForSmallerValue <
-                                       dsmallestErrorForLargerValue) ?
-                                     dsmallestErrorForSmallerValue :
-                                     dsmallestErrorForLargerValue));
+                           IO.format(dbestGammaAndError[1]));
       }
     }
 
     //always try best C (maybe later make it optional)
-    if (true) {
-      if (m_odebug) {
-        System.err.println("Started finding best value for C...");
-      }
-      //find best gamma with initial C
-      double dinitialC = dC;
-      double dsmallestErrorForLargerValue = derrorForInitialConfiguration;
-      double dbestForLargerValue = dC;
-      double dsmallestErrorForSmallerValue = derrorForInitialConfiguration;
-      double dbestForSmallerValue = dC;
-      int nattempts = 0;
-      //increase gamma
-      while (true) {
-        dC *= 2;
-        double derror = getErrorUsingCrossValidation(instances, dC, dgamma,
-            oisGaussianKernel);
-        if (m_odebug) {
-          System.err.println("C = " + dC + " => average error = " +
-                             IO.format(derror));
-        }
-        if (derror < dsmallestErrorForLargerValue) {
-          dsmallestErrorForLargerValue = derror;
-          dbestForLargerValue = dC;
-          //reset counter because we got a decrease in error:
-          nattempts = 0;
-        }
-        else {
-          nattempts++;
-          if (m_odebug) {
-            System.err.println(" ERROR INCREASED attempt = " + nattempts +
-                               " / " +
-                               m_nnumberOfAttemptsToGetADecreaseInError);
-          }
-          if (nattempts == m_nnumberOfAttemptsToGetADecreaseInError) {
-            break;
-          }
+    if (m_odebug) {
+      System.err.println("Started finding best value for C...");
+    }
+    //the reference is the error of the initial configuration, even if gamma
+    //was changed
+    double[] dbestCAndError = findBestValueInBothDirections(modelSelectionSets,
+        svmPrototype, dC, dgamma, oisGaussianKernel, false,
+        derrorForInitialConfiguration);
+    dC = dbestCAndError[0];
+    ( (SMO) m_Classifier).setC(dC);
+    if (m_odebug) {
+      System.err.println("@@@ Best C = " + dC + " => smallest error = " +
+                         IO.format(dbestCAndError[1]));
+    }
+  }
+
+  /**
+   * Starting from the given C and gamma, keeps multiplying (and, in the other
+   * direction, dividing) the parameter being searched (gamma if
+   * osearchGamma is true, otherwise C) by 2 until the error does not
+   * decrease for m_nnumberOfAttemptsToGetADecreaseInError steps in a row.
+   * Returns the value with the smallest error and its error.
+   *
+   * When k attempts are left in a direction, the search will certainly
+   * evaluate the next k values, so the next k values of both directions are
+   * evaluated together (by m_nnumberOfThreadsForModelSelection threads)
+   * and the result is the same of evaluating one value at a time.
+   */
+  private double[] findBestValueInBothDirections(
+      ModelSelectionSets modelSelectionSets, SVM svmPrototype, double dC,
+      double dgamma, boolean oisGaussianKernel, boolean osearchGamma,
+      double derrorForInitialConfiguration) throws Exception {
+    double dinitialValue = osearchGamma ? dgamma : dC;
+    //index 0 is for larger and 1 for smaller values
+    double[] dfactors = {2, 0.5};
+    double[] dlastValues = {dinitialValue, dinitialValue};
+    double[] dbestValues = {dinitialValue, dinitialValue};
+    double[] dsmallestErrors = {derrorForInitialConfiguration,
+        derrorForInitialConfiguration};
+    int[] nattempts = new int[2];
+    boolean[] ofinished = new boolean[2];
+    while (!ofinished[0] || !ofinished[1]) {
+      //candidates that will certainly be evaluated, larger values first
+      int[] nnumberOfCandidates = new int[2];
+      for (int d = 0; d < 2; d++) {
+        if (!ofinished[d]) {
+          nnumberOfCandidates[d] = m_nnumberOfAttemptsToGetADecreaseInError -
+              nattempts[d];
         }
       }
-      //decrease gamma
-      dC = dinitialC;
-      nattempts = 0;
-      while (true) {
-        dC /= 2;
-        double derror = getErrorUsingCrossValidation(instances, dC, dgamma,
-            oisGaussianKernel);
-        if (m_odebug) {
-          System.err.println("C = " + dC + " => average error = " +
-                             IO.format(derror));
-        }
-        if (derror < dsmallestErrorForSmallerValue) {
-          dsmallestErrorForSmallerValue = derror;
-          dbestForSmallerValue = dC;
-          //reset counter because we got a decrease in error:
-          nattempts = 0;
+      int ntotal = nnumberOfCandidates[0] + nnumberOfCandidates[1];
+      double[] dCs = new double[ntotal];
+      double[] dgammas = new double[ntotal];
+      double[] dvalues = new double[ntotal];
+      int ncandidate = 0;
+      for (int d = 0; d < 2; d++) {
+        double dvalue = dlastValues[d];
+        for (int i = 0; i < nnumberOfCandidates[d]; i++) {
+          dvalue *= dfactors[d];
+          dvalues[ncandidate] = dvalue;
+          dCs[ncandidate] = osearchGamma ? dC : dvalue;
+          dgammas[ncandidate] = osearchGamma ? dvalue : dgamma;
+          ncandidate++;
         }
-        else {
-          nattempts++;
+        dlastValues[d] = dvalue;
+      }
+      double[][] derrors = getErrors(modelSelectionSets, svmPrototype, dCs,
+                                     dgammas, oisGaussianKernel);
+
+      ncandidate = 0;
+      for (int d = 0; d < 2; d++) {
+        for (int i = 0; i < nnumberOfCandidates[d]; i++) {
+          double dvalue = dvalues[ncandidate];
+          double derror = getAverageError(derrors[ncandidate],
+                                          modelSelectionSets);
+          ncandidate++;
           if (m_odebug) {
-            System.err.println(" ERROR INCREASED attempt = " + nattempts +
-                               " / " +
-                               m_nnumberOfAttemptsToGetADecreaseInError);
+            System.err.println( (osearchGamma ? "Gamma = " : "C = ") + dvalue +
+                               " => average error = " + IO.format(derror));
+          }
+          if (derror < dsmallestErrors[d]) {
+            dsmallestErrors[d] = derror;
+            dbestValues[d] = dvalue;
+            //reset counter because we got a decrease in error:
+            nattempts[d] = 0;
           }
-          if (nattempts == m_nnumberOfAttemptsToGetADecreaseInError) {
-            break;
+          else {
+            nattempts[d]++;
+            if (m_odebug) {
+              System.err.println(" ERROR INCREASED attempt = " + nattempts[d] +
+                                 " / " +
+                                 m_nnumberOfAttemptsToGetADecreaseInError);
+            }
+            if (nattempts[d] == m_nnumberOfAttemptsToGetADecreaseInError) {
+              ofinished[d] = true;
+            }
           }
         }
       }
-      dC = (dsmallestErrorForSmallerValue < dsmallestErrorForLargerValue) ?
-          dbestForSmallerValue : dbestForLargerValue;
-      ( (SMO) m_Classifier).setC(dC);
-      if (m_odebug) {
-        System.err.println("@@@ Best C = " + dC + " => smallest error = " +
-                           IO.format( (dsmallestErrorForSmallerValue <
-                                       dsmallestErrorForLargerValue) ?
-                                     dsmallestErrorForSmallerValue :
-                                     dsmallestErrorForLargerValue));
-      }
     }
+    return (dsmallestErrors[1] < dsmallestErrors[0]) ?
+        new double[] {dbestValues[1], dsmallestErrors[1]} :
+        new double[] {dbestValues[0], dsmallestErrors[0]};
   }
 
-  private double getErrorUsingCrossValidation(Instances data, double dC,
-                                              double dgamma,
-                                              boolean oisGaussianKernel) throws
+  /**
+   * Returns the errors of each candidate (C, gamma) in each fold, evaluating
+   * all pairs of candidate and fold by m_nnumberOfThreadsForModelSelection
+   * concurrent threads.
+   */
+  private double[][] getErrors(ModelSelectionSets modelSelectionSets,
+                               SVM svmPrototype, double[] dCs,
+                               double[] dgammas, boolean oisGaussianKernel) throws
       Exception {
-    if (m_testInstanceForModelSelection != null) {
-      return getErrorUsingTestSet(data, m_testInstanceForModelSelection, dC,
-                                  dgamma, oisGaussianKernel,
-          m_nnumberOfFoldsForCrossValidationWhenFindingSVMParameters);
+    CrossValidationQueue crossValidationQueue = new CrossValidationQueue(
+        modelSelectionSets, svmPrototype, dCs, dgammas, oisGaussianKernel);
+    int nnumberOfThreads = Math.min(m_nnumberOfThreadsForModelSelection,
+                                    dCs.length *
+                                    modelSelectionSets.m_trainSets.length);
+    if (nnumberOfThreads < 2) {
+      crossValidationQueue.run();
     }
-    if (getTestDatasetForModelSelectionFileName() != null) {
-      Instances testInstances = new Instances(
-          getTestDatasetForModelSelectionFileName());
-      return getErrorUsingTestSet(data, testInstances, dC, dgamma,
-                                  oisGaussianKernel,
-          m_nnumberOfFoldsForCrossValidationWhenFindingSVMParameters);
+    else {
+      Thread[] threads = new Thread[nnumberOfThreads];
+      for (int i = 0; i < nnumberOfThreads; i++) {
+        threads[i] = new Thread(crossValidationQueue);
+        threads[i].start();
+      }
+      for (int i = 0; i < nnumberOfThreads; i++) {
+        threads[i].join();
+      }
+    }
+    if (crossValidationQueue.m_exception != null) {
+      throw crossValidationQueue.m_exception;
     }
+    return crossValidationQueue.m_derrors;
+  }
 
-    double[] derrors = crossValidateModel(data, dC, dgamma, oisGaussianKernel,
-        m_nnumberOfFoldsForCrossValidationWhenFindingSVMParameters);
-    if (m_odebug) {
+  /**
+   * Returns the average of the errors of the folds, ignoring NaN.
+   */
+  private double getAverageError(double[] derrors,
+                                 ModelSelectionSets modelSelectionSets) {
+    if (m_odebug && modelSelectionSets.m_oisCrossValidation) {
       System.err.print("Errors of each fold = [");
       for (int i = 0; i < derrors.length; i++) {
         System.err.print(" " + IO.format(derrors[i]));
@@ -482,9 +483,24 @@ public class SVM
     return dmean / ncounter;
   }
 
-  private double[] crossValidateModel(Instances instances, double dC,
-                                      double dgamma, boolean oisGaussianKernel,
-                                      int numFolds) throws Exception {
+  /**
+   * Organizes the training and test sets used to evaluate all candidates:
+   * the given instances and the test set for model selection (if any) or
+   * the folds for cross-validation.
+   */
+  private ModelSelectionSets createModelSelectionSets(Instances instances) throws
+      Exception {
+    Instances testInstances = m_testInstanceForModelSelection;
+    if (testInstances == null &&
+        getTestDatasetForModelSelectionFileName() != null) {
+      testInstances = new Instances(getTestDatasetForModelSelectionFileName());
+    }
+    if (testInstances != null) {
+      return new ModelSelectionSets(new Instances[] {instances},
+                                    new Instances[] {testInstances}, false);
+    }
+
+    int numFolds = m_nnumberOfFoldsForCrossValidationWhenFindingSVMParameters;
     // Make a copy of the data we can reorder
     Instances data = new Instances(instances);
 
@@ -502,92 +518,35 @@ public class SVM
         data.stratify(numFolds);
       }
     }
-    double[] derrors = new double[numFolds];
-    // Do the folds
+    Instances[] trainSets = new Instances[numFolds];
+    Instances[] testSets = new Instances[numFolds];
     for (int i = 0; i < numFolds; i++) {
-      Instances train = null;
-      Instances test = null;
       if (numFolds == 1) {
         int nmaxTrain = m_nmaximumNumOfExamplesForCVTrainingWithOneFold;
         int nmaxTest = m_nmaximumNumOfExamplesForCVTestWithOneFold;
         Instances[] cvInstances = Instances.splitDataset(data, nmaxTrain,
             nmaxTest, m_odebug);
-        train = cvInstances[0]; //data.trainCV(m_nnumberOfFoldsToSubstitute1, i);
-        test = cvInstances[1]; //data.testCV(m_nnumberOfFoldsToSubstitute1, i);
+        trainSets[i] = cvInstances[0];
+        testSets[i] = cvInstances[1];
       }
       else {
-        train = data.trainCV(numFolds, i);
-        test = data.testCV(numFolds, i);
-      }
-      //ak: if one wants to use a training set with small number of
-      //instances (invert the role of # of folds), can uncomment
-      //the lines below
-      //classifier.buildClassifier(test);
-      //evaluateModel(classifier, train);
-      SVM svm = (SVM) Classifier.makeCopy(this);
-      ( (SMO) svm.m_Classifier).setC(dC);
-      if (oisGaussianKernel) {
-        ( (SMO) svm.m_Classifier).setRBFKernelGamma(dgamma);
-      }
-
-      //hack: Evaluation will call the method classifyInstance, which assumes
-      //the test Instance was not filtered, but here they were. So, I will
-      //disable all filters.
-      //keep original values:
-//			boolean oareThereMissingAttributes = m_oareThereMissingAttributes;
-//			boolean onlyNumeric = m_onlyNumeric;
-//			boolean odoGlobalNormalization = m_odoGlobalNormalization;
-//			svm.m_oareThereMissingAttributes = false;
-//			svm.m_onlyNumeric = true;
-      svm.setGlobalNormalization(false);
-      svm.setFindSVMParametersThroughCrossValidation(false);
-      svm.setDebug(false);
-      if (this.getGlobalNormalization()) {
-        //if global normalization is used, it overrides the individual normalization
-        ( (SMO) svm.m_Classifier).setNormalizeData(false);
-      }
-
-//			try {
-      svm.buildClassifier(train);
-      Evaluation evaluation = new Evaluation(train);
-      //Evaluation evaluation = new Evaluation(m_instancesHeader);
-
-      //now, evaluate the model
-      evaluation.evaluateModel(svm, test);
-      derrors[i] = evaluation.errorRate();
-      //			//restore original values
-      //			m_oareThereMissingAttributes = oareThereMissingAttributes;
-      //			m_onlyNumeric = onlyNumeric;
-      //			m_odoGlobalNormalization = odoGlobalNormalization;
-//			}
-//			catch (ClassifierException ex) {
-      //indicate that couldn't train this classifier
-      //derrors[i] = Double.NaN;
-//			}
+        trainSets[i] = data.trainCV(numFolds, i);
+        testSets[i] = data.testCV(numFolds, i);
+      }
     }
-    return derrors;
+    return new ModelSelectionSets(trainSets, testSets, true);
   }
 
-  private double getErrorUsingTestSet(Instances train, Instances test,
-                                      double dC,
-                                      double dgamma, boolean oisGaussianKernel,
-                                      int numFolds) throws Exception {
-
+  /**
+   * Returns a copy of this SVM configured to be trained with the folds,
+   * which is copied again for each candidate and fold.
+   */
+  private SVM createPrototypeForModelSelection() throws Exception {
     SVM svm = (SVM) Classifier.makeCopy(this);
-    ( (SMO) svm.m_Classifier).setC(dC);
-    if (oisGaussianKernel) {
-      ( (SMO) svm.m_Classifier).setRBFKernelGamma(dgamma);
-    }
 
     //hack: Evaluation will call the method classifyInstance, which assumes
     //the test Instance was not filtered, but here they were. So, I will
     //disable all filters.
-    //keep original values:
-//			boolean oareThereMissingAttributes = m_oareThereMissingAttributes;
-//			boolean onlyNumeric = m_onlyNumeric;
-//			boolean odoGlobalNormalization = m_odoGlobalNormalization;
-//			svm.m_oareThereMissingAttributes = false;
-//			svm.m_onlyNumeric = true;
     svm.setGlobalNormalization(false);
     svm.setFindSVMParametersThroughCrossValidation(false);
     svm.setDebug(false);
@@ -595,15 +554,101 @@ public class SVM
       //if global normalization is used, it overrides the individual normalization
       ( (SMO) svm.m_Classifier).setNormalizeData(false);
     }
+    //the copies do not need the sets of this SVM
+    svm.m_testInstanceForModelSelection = null;
+    return svm;
+  }
+
+  /**
+   * Training and test sets used by the model selection.
+   */
+  private static class ModelSelectionSets {
+    final Instances[] m_trainSets;
+    final Instances[] m_testSets;
+    //false if a test set for model selection is used
+    final boolean m_oisCrossValidation;
+
+    ModelSelectionSets(Instances[] trainSets, Instances[] testSets,
+                       boolean oisCrossValidation) {
+      m_trainSets = trainSets;
+      m_testSets = testSets;
+      m_oisCrossValidation = oisCrossValidation;
+    }
+  }
 
-//			try {
-    svm.buildClassifier(train);
-    Evaluation evaluation = new Evaluation(train);
-    //Evaluation evaluation = new Evaluation(m_instancesHeader);
+  /**
+   * Pairs (candidate, fold) to be evaluated by concurrent threads. Each
+   * thread takes the next pair and trains its own copy of the prototype.
+   */
+  private static class CrossValidationQueue
+      implements Runnable {
+
+    private final ModelSelectionSets m_modelSelectionSets;
+    private final SVM m_svmPrototype;
+    private final double[] m_dCs;
+    private final double[] m_dgammas;
+    private final boolean m_oisGaussianKernel;
+    private final int m_nnumberOfTasks;
+    private int m_nnextTask;
+
+    //error of each candidate (first index) in each fold
+    final double[][] m_derrors;
+    //first exception thrown by a thread
+    Exception m_exception;
+
+    CrossValidationQueue(ModelSelectionSets modelSelectionSets,
+                         SVM svmPrototype, double[] dCs, double[] dgammas,
+                         boolean oisGaussianKernel) {
+      m_modelSelectionSets = modelSelectionSets;
+      m_svmPrototype = svmPrototype;
+      m_dCs = dCs;
+      m_dgammas = dgammas;
+      m_oisGaussianKernel = oisGaussianKernel;
+      m_derrors = new double[dCs.length][modelSelectionSets.m_trainSets.
+          length];
+      m_nnumberOfTasks = dCs.length * modelSelectionSets.m_trainSets.length;
+    }
 
-    //now, evaluate the model
-    evaluation.evaluateModel(svm, test);
-    return evaluation.errorRate();
+    /**
+     * Returns -1 when all tasks were taken or a task failed.
+     */
+    private synchronized int getNextTask() {
+      if (m_nnextTask == m_nnumberOfTasks || m_exception != null) {
+        return -1;
+      }
+      return m_nnextTask++;
+    }
+
+    private synchronized void setException(Exception exception) {
+      if (m_exception == null) {
+        m_exception = exception;
+      }
+    }
+
+    public void run() {
+      int nnumberOfFolds = m_modelSelectionSets.m_trainSets.length;
+      int ntask;
+      while ( (ntask = getNextTask()) != -1) {
+        int n = ntask / nnumberOfFolds;
+        int i = ntask % nnumberOfFolds;
+        try {
+          SVM svm = (SVM) Classifier.makeCopy(m_svmPrototype);
+          ( (SMO) svm.m_Classifier).setC(m_dCs[n]);
+          if (m_oisGaussianKernel) {
+            ( (SMO) svm.m_Classifier).setRBFKernelGamma(m_dgammas[n]);
+          }
+          Instances train = m_modelSelectionSets.m_trainSets[i];
+          svm.buildClassifier(train);
+          Evaluation evaluation = new Evaluation(train);
+          //now, evaluate the model
+          evaluation.evaluateModel(svm, m_modelSelectionSets.m_testSets[i]);
+          m_derrors[n][i] = evaluation.errorRate();
+        }
+        catch (Exception e) {
+          setException(e);
+        }
+      }
+    }
   }
 
   //uses configuration in m_Classifier to design SharedSVMs
@@ -732,6 +777,175 @@ public class SVM
     if (m_ouseSharedCache) {
       m_dkernelValuesCache = new double[m_funiqueSupportVectors.length];
     }
+
+    packLinearMachines();
+  }
+
+  /**
+   * Packs the weights and biases of all linear machines in
+   * m_dpackedLinearWeights and m_dpackedLinearBiases. It is not possible
+   * with attribute selection (each machine has its own attributes).
+   */
+  protected void packLinearMachines() throws Exception {
+    m_dpackedLinearWeights = null;
+    m_dpackedLinearBiases = null;
+    if (!m_oisLinearMachine || m_ouseAttributeSelection ||
+        m_Classifiers.length != m_nnumberOfBinaryClassifiers) {
+      return;
+    }
+    int nspaceDimension = m_instancesHeader.numAttributes() - 1;
+    double[] dweights = new double[m_Classifiers.length * nspaceDimension];
+    double[] dbiases = new double[m_Classifiers.length];
+    for (int i = 0; i < m_Classifiers.length; i++) {
+      if (m_Classifiers[i] instanceof SharedSVM) {
+        dbiases[i] = ( (SharedSVM) m_Classifiers[i]).packLinearMachine(dweights,
+            i * nspaceDimension, nspaceDimension);
+        if (Double.isNaN(dbiases[i])) {
+          if (m_odebug) {
+            System.err.println("Could not pack linear machine " + (i + 1) +
+                               ". Will calculate the scores separately.");
+          }
+          return;
+        }
+      }
+      else if (m_Classifiers[i] instanceof ZeroR) {
+        //ZeroR doesn't use the attributes: keep weights = 0
+        Instance instance = new Instance(1, new float[nspaceDimension + 1]);
+        instance.setDataset(m_instancesHeader);
+        dbiases[i] = - ( (RawScorer) m_Classifiers[i]).getRawScore(instance);
+      }
+      else if (m_Classifiers[i] != null) {
+        return;
+      }
+    }
+    m_nspaceDimensionOfPackedLinearMachines = nspaceDimension;
+    m_dpackedLinearWeights = dweights;
+    m_dpackedLinearBiases = dbiases;
+  }
+
+  /**
+   * Raw scores of all linear machines for the attributes x of an instance
+   * that was processed by the global filters (the class, if present, is
+   * not used). It doesn't allocate memory: the scores are written in
+   * drawScores, which must have one entry per binary classifier. Can only
+   * be called if m_dpackedLinearWeights is not null.
+   */
+  public void getRawScoresOfLinearMachines(float[] x, double[] drawScores) {
+    int nspaceDimension = m_nspaceDimensionOfPackedLinearMachines;
+    double[] dweights = m_dpackedLinearWeights;
+    int noffset = 0;
+    for (int i = 0; i < drawScores.length; i++) {
+      double result = 0;
+      for (int j = 0; j < nspaceDimension; j++) {
+        result += dweights[noffset + j] * x[j];
+      }
+      drawScores[i] = result - m_dpackedLinearBiases[i];
+      noffset += nspaceDimension;
+    }
+  }
+
+  public double[] getRawScoresFromBinaryClassifiers(Instance inst) {
+    return getRawScoresFromBinaryClassifiers(inst, false);
+  }
+
+  /**
+   * Raw scores of all binary classifiers. The global filters are applied to
+   * inst if oisFiltered is false. If they fail, the scores are calculated by
+   * the super class (one binary classifier at a time) with inst as given.
+   */
+  private double[] getRawScoresFromBinaryClassifiers(Instance inst,
+      boolean oisFiltered) {
+    if (!oisFiltered) {
+      try {
+        inst = filterInstance(inst);
+      }
+      catch (Exception e) {
+        e.printStackTrace();
+        m_osharedCacheWasFilled = false;
+        return super.getRawScoresFromBinaryClassifiers(inst);
+      }
+      if (m_dpackedLinearWeights == null) {
+        fillSharedCache(inst);
+      }
+    }
+    if (m_dpackedLinearWeights == null) {
+      return super.getRawScoresFromBinaryClassifiers(inst);
+    }
+    double[] drawScores = new double[m_dpackedLinearBiases.length];
+    getRawScoresOfLinearMachines(inst.getAttributesReference(), drawScores);
+    return drawScores;
+  }
+
+  /**
+   * Raw scores of all binary classifiers for all instances, organized as
+   * (number of instances) x (number of binary classifiers). For linear
+   * machines, the scores are calculated as a matrix-matrix product,
+   * processing blocks of instances to reuse each row of weights.
+   */
+  public double[][] getRawScoresFromBinaryClassifiers(Instances instances) throws
+      Exception {
+    int nnumberOfInstances = instances.numInstances();
+    double[][] drawScores = new double[nnumberOfInstances][];
+    if (m_dpackedLinearWeights == null) {
+      for (int n = 0; n < nnumberOfInstances; n++) {
+        drawScores[n] = getRawScoresFromBinaryClassifiers(instances.instance(n));
+      }
+      return drawScores;
+    }
+    int nnumberOfBinaryClassifiers = m_dpackedLinearBiases.length;
+    float[][] x = new float[nnumberOfInstances][];
+    for (int n = 0; n < nnumberOfInstances; n++) {
+      x[n] = filterInstance(instances.instance(n)).getAttributesReference();
+      drawScores[n] = new double[nnumberOfBinaryClassifiers];
+    }
+    int nspaceDimension = m_nspaceDimensionOfPackedLinearMachines;
+    double[] dweights = m_dpackedLinearWeights;
+    for (int nfirst = 0; nfirst < nnumberOfInstances;
+         nfirst += m_nnumberOfInstancesPerBlock) {
+      int nlast = Math.min(nnumberOfInstances,
+                           nfirst + m_nnumberOfInstancesPerBlock);
+      int noffset = 0;
+      for (int i = 0; i < nnumberOfBinaryClassifiers; i++) {
+        double dbias = m_dpackedLinearBiases[i];
+        for (int n = nfirst; n < nlast; n++) {
+          float[] xn = x[n];
+          double result = 0;
+          for (int j = 0; j < nspaceDimension; j++) {
+            result += dweights[noffset + j] * xn[j];
+          }
+          drawScores[n][i] = result - dbias;
+        }
+        noffset += nspaceDimension;
+      }
+    }
+    return drawScores;
+  }
+
+  /**
+   * Applies the global filters (the ones designed with the multiclass
+   * training set) to the instance.
+   */
+  private Instance filterInstance(Instance inst) throws Exception {
+    if (m_ouseSomeFilter) {
+      if (m_oareThereMissingAttributes) {
+        m_Missing.input(inst);
+        m_Missing.batchFinished();
+        inst = m_Missing.output();
+      }
+
+      if (!m_onlyNumeric) {
+        m_NominalToBinary.input(inst);
+        m_NominalToBinary.batchFinished();
+        inst = m_NominalToBinary.output();
+      }
+
+      if (m_odoGlobalNormalization) {
+        m_globalNormalizationFilter.input(inst);
+        m_globalNormalizationFilter.batchFinished();
+        inst = m_globalNormalizationFilter.output();
+      }
+    }
+    return inst;
   }
 
   protected void organizeSelectedAttributes() {
@@ -832,68 +1046,37 @@ public class SVM
   }
 
   public double classifyInstance(Instance inst) throws Exception {
-    m_osharedCacheWasFilled = false;
-
-    if (m_ouseSomeFilter) {
-      // Filter instance
-      if (m_oareThereMissingAttributes) {
-        m_Missing.input(inst);
-        m_Missing.batchFinished();
-        inst = m_Missing.output();
-      }
-
-      if (!m_onlyNumeric) {
-        m_NominalToBinary.input(inst);
-        m_NominalToBinary.batchFinished();
-        inst = m_NominalToBinary.output();
-      }
-
-      if (m_odoGlobalNormalization) {
-        m_globalNormalizationFilter.input(inst);
-        m_globalNormalizationFilter.batchFinished();
-        inst = m_globalNormalizationFilter.output();
-      }
+    //call super class's classifyInstance, it's going to get the raw scores
+    //through getRawScoresFromBinaryClassifiers() or getBinaryHardDecisions(),
+    //which apply the global filters, and do everything else. The exception
+    //is the elimination decoding (method 6), which asks the raw scores
+    //directly to the SVM's, so the instance must be filtered here. Note
+    //SVM's don't need instance to get scores if we are using the cache
+    if (m_decodingMethod == 6) {
+      inst = filterInstance(inst);
+      fillSharedCache(inst);
     }
+    return super.classifyInstance(inst);
+  }
 
-    if (m_ouseSharedCache) {
-      //fill up cache
-      SMO smo = (SMO) m_Classifier;
-      for (int i = 0; i < m_funiqueSupportVectors.length; i++) {
-        Instance sv = new Instance(1, m_funiqueSupportVectors[i]);
-        m_dkernelValuesCache[i] = smo.calculateKernel(inst, sv);
-      }
-      m_osharedCacheWasFilled = true;
+  public double[] getBinaryHardDecisions(Instance inst) throws Exception {
+    inst = filterInstance(inst);
+    if (m_dpackedLinearWeights != null) {
+      //the class of inst is not used, so there is no need for the
+      //class filters of the super class
+      return Utils.binaryQuantizationUsingZeroAsThreshold(
+          getRawScoresFromBinaryClassifiers(inst, true));
     }
 
-    //call super class's classifyInstance, it's going to get the raw scores
+    //call super class's getBinaryHardDecisions, it's going to get the raw scores
     //from SVM's and do everything else. Note SVM's don't need instance
     //to get scores if we are using the cache
-    return super.classifyInstance(inst);
+    fillSharedCache(inst);
+    return super.getBinaryHardDecisions(inst);
   }
 
-  public double[] getBinaryHardDecisions(Instance inst) throws Exception {
+  private void fillSharedCache(Instance inst) {
     m_osharedCacheWasFilled = false;
-    if (m_ouseSomeFilter) {
-      // Filter instance
-      if (m_oareThereMissingAttributes) {
-        m_Missing.input(inst);
-        m_Missing.batchFinished();
-        inst = m_Missing.output();
-      }
-
-      if (!m_onlyNumeric) {
-        m_NominalToBinary.input(inst);
-        m_NominalToBinary.batchFinished();
-        inst = m_NominalToBinary.output();
-      }
-
-      if (m_odoGlobalNormalization) {
-        m_globalNormalizationFilter.input(inst);
-        m_globalNormalizationFilter.batchFinished();
-        inst = m_globalNormalizationFilter.output();
-      }
-    }
-
     if (m_ouseSharedCache) {
       //fill up cache
       SMO smo = (SMO) m_Classifier;
@@ -903,11 +1086,6 @@ public class SVM
       }
       m_osharedCacheWasFilled = true;
     }
-
-    //call super class's getBinaryHardDecisions, it's going to get the raw scores
-    //from SVM's and do everything else. Note SVM's don't need instance
-    //to get scores if we are using the cache
-    return super.getBinaryHardDecisions(inst);
   }
 
   //commented out because getRawScore already normalizes...
@@ -970,6 +1148,23 @@ public class SVM
     m_nnumberOfFoldsForCrossValidationWhenFindingSVMParameters = n;
   }
 
+  public int getNumberOfThreadsForModelSelection() {
+    return m_nnumberOfThreadsForModelSelection;
+  }
+
+  /**
+   * Candidates (C, gamma) and folds are evaluated by nnumberOfThreads
+   * concurrent threads. The chosen parameters are the same for any number
+   * of threads.
+   */
+  public void setNumberOfThreadsForModelSelection(int nnumberOfThreads) {
+    if (nnumberOfThreads < 1) {
+      End.throwError("Number of threads = " + nnumberOfThreads +
+                     " must be at least 1");
+    }
+    m_nnumberOfThreadsForModelSelection = nnumberOfThreads;
+  }
+
   public int getNumberOfDistinctSupportVectors() {
     if (m_funiqueSupportVectors == null) {
       return -1;
@@ -1014,6 +1209,8 @@ public class SVM
         "J", 1, "-J"));
     vec.addElement(new Option("\tFile to use for model selection (CV).\n",
                               "Q", 1, "-Q"));
+    vec.addElement(new Option("\tSets number of threads that train the SVMs when doing model selection with option -K (default: 1).",
+                              "P", 1, "-P"));
     Enumeration enume = super.listOptions();
     while (enume.hasMoreElements()) {
       vec.addElement(enume.nextElement());
@@ -1050,7 +1247,14 @@ public class SVM
     else {
       m_ouseAttributeSelection = true;
     }
-    String temp = Utils.getOption('X', options);
+    String temp = Utils.getOption('P', options);
+    if (temp.equals("")) {
+      setNumberOfThreadsForModelSelection(1);
+    }
+    else {
+      setNumberOfThreadsForModelSelection(Integer.parseInt(temp));
+    }
+    temp = Utils.getOption('X', options);
     if (temp.equals("")) {
       setNumberOfFoldsForCrossValidationWhenFindingSVMParameters(10);
     }
@@ -1077,7 +1281,7 @@ public class SVM
 
   public String[] getOptions() {
     String[] superOptions = super.getOptions();
-    String[] options = new String[superOptions.length + 10];
+    String[] options = new String[superOptions.length + 12];
     int ncurrent = 0;
     if (getGlobalNormalization()) {
       options[ncurrent++] = "-G";
@@ -1093,7 +1297,8 @@ public class SVM
       options[ncurrent++] = "-X";
       options[ncurrent++] = "" +
           getNumberOfFoldsForCrossValidationWhenFindingSVMParameters();
-
+      options[ncurrent++] = "-P";
+      options[ncurrent++] = "" + getNumberOfThreadsForModelSelection();
     }
     if (m_ofilterExamplesForSVMUsingGMM) {
       options[ncurrent++] = "-I";
@@ -1436,19 +1641,14 @@ public class SVM
           return result - m_db;
         }
 
-        //cannot use general cache because each binary classifier has its own normalization
+        //cannot use general cache because each binary classifier has its own normalization.
+        //The global normalization, if used, was already applied by the SVM
+        //methods that call this one (see filterInstance())
         if (m_normalizationFilter != null) {
           m_normalizationFilter.input(instance);
           m_normalizationFilter.batchFinished();
           instance = m_normalizationFilter.output();
         }
-        else if (m_odoGlobalNormalization) {
-          //take in account the case where this method was not called through
-          //SVM's method classifyInstance, and normalize if needed
-          m_globalNormalizationFilter.input(instance);
-          m_globalNormalizationFilter.batchFinished();
-          instance = m_globalNormalizationFilter.output();
-        }
 
         if (m_ouseAttributeSelection) {
           //System.out.println(instance.toString());
@@ -1514,6 +1714,55 @@ public class SVM
       //System.out.println("instance " + x[0] + " " + result);
     }
 
+    /**
+     * Copies the weights of this linear machine to dpackedWeights, starting
+     * at noffset, and returns the bias, such that the raw score is the inner
+     * product with an instance processed by the global filters minus the
+     * bias. The normalization filter of this classifier is an affine function
+     * of each attribute and is absorbed by the weights and bias. Returns NaN
+     * if this is not possible.
+     */
+    private double packLinearMachine(double[] dpackedWeights, int noffset,
+                                     int nspaceDimension) throws Exception {
+      if (!m_oisLinearMachine || m_ouseAttributeSelection ||
+          m_dweights == null || m_dweights.length < nspaceDimension) {
+        return Double.NaN;
+      }
+      if (m_normalizationFilter == null) {
+        System.arraycopy(m_dweights, 0, dpackedWeights, noffset, nspaceDimension);
+        return m_db;
+      }
+      //find the offset and gain of each attribute, and check with a 3rd point
+      float[] foffsets = normalizeConstantInstance(0, nspaceDimension);
+      float[] fones = normalizeConstantInstance(1, nspaceDimension);
+      float[] ftwos = normalizeConstantInstance(2, nspaceDimension);
+      double dbias = m_db;
+      for (int i = 0; i < nspaceDimension; i++) {
+        double dgain = fones[i] - foffsets[i];
+        double dexpected = foffsets[i] + 2 * dgain;
+        if (Math.abs(ftwos[i] - dexpected) > 1e-4 * (1 + Math.abs(dexpected))) {
+          return Double.NaN;
+        }
+        dpackedWeights[noffset + i] = m_dweights[i] * dgain;
+        dbias -= m_dweights[i] * foffsets[i];
+      }
+      return dbias;
+    }
+
+    private float[] normalizeConstantInstance(float fvalue, int nspaceDimension) throws
+        Exception {
+      //class is the last attribute and is not used
+      float[] x = new float[nspaceDimension + 1];
+      for (int i = 0; i < nspaceDimension; i++) {
+        x[i] = fvalue;
+      }
+      Instance instance = new Instance(1, x);
+      instance.setDataset(m_instancesHeader);
+      m_normalizationFilter.input(instance);
+      m_normalizationFilter.batchFinished();
+      return m_normalizationFilter.output().getAttributesReference();
+    }
+
     /**
      * nindicesInArrayOfUniqueSupportVectors has the size of the multiclass
      * training set and has zero entries unless it's a support vector. Ex:
@@ -1673,35 +1922,19 @@ public class SVM
           "Cannot use SVM.getRawScore() with more than 1 binary classifier").
           printStackTrace();
     }
+    if (m_dpackedLinearWeights != null) {
+      return getRawScoresFromBinaryClassifiers(inst)[0];
+    }
     m_osharedCacheWasFilled = false;
 
-    //bogus: the SharedSVM does the global filtering (which is inefficient,
-    //given that it's done for all binary classifier, while "global")
-    //but I didn't see other filters...
+    //the SharedSVM expects an instance processed by all global filters,
+    //including the global normalization
     try {
-
-      if (m_ouseSomeFilter) {
-        // Filter instance
-        if (m_oareThereMissingAttributes) {
-          m_Missing.input(inst);
-          m_Missing.batchFinished();
-          inst = m_Missing.output();
-        }
-        if (!m_onlyNumeric) {
-          m_NominalToBinary.input(inst);
-          m_NominalToBinary.batchFinished();
-          inst = m_NominalToBinary.output();
-        }
-
-//				if (m_odoGlobalNormalization) {
-//					m_globalNormalizationFilter.input(inst);
-//					m_globalNormalizationFilter.batchFinished();
-//					inst = m_globalNormalizationFilter.output();
-//				}
-      }
+      inst = filterInstance(inst);
     }
     catch (Exception e) {
       e.printStackTrace();
+      return -1;
     }
     return ( (RawScorer) m_Classifiers[0]).getRawScore(inst);
   }
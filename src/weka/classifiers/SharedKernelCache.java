@@ -0,0 +1,233 @@
+package weka.classifiers;
+
+import weka.core.*;
+import edu.ucsd.asr.*;
+
+/**
+ * Title:        Spock
+ * Description:  Speech recognition
+ * Copyright:    Copyright (c) 2001
+ * Company:      UCSD
+ *
+ * Kernel values of a multiclass training set, shared by all binary
+ * classifiers of a ScoreMultiClassClassifier (e.g. KernelClassifier) while
+ * they are trained. The key is the index of the instance in the multiclass
+ * training set, such that a binary classifier needs the map from its own
+ * instances to the multiclass ones (as the support vectors map).
+ *
+ * The cache keeps rows K(i, .) with the size of the training set. The entries
+ * of a row are calculated only when requested (a row starts with NaN's) and
+ * K(i, j) is also copied to row j if it is in the cache. The memory is
+ * bounded: when there is no space for a new row, the least recently used row
+ * is discarded.
+ *
+ * The instances must already be filtered (missing values, normalization,
+ * etc.) exactly as the binary classifiers see them, which is the case when
+ * KernelClassifier.canUseSharedCache() is true. This object is not
+ * thread-safe.
+ */
+public class SharedKernelCache {
+
+	private final Instances m_instances;
+
+	private final Kernel m_kernel;
+
+	private final int m_nmaximumNumberOfRows;
+
+	/** m_frows[s] is the row in slot s, which belongs to instance m_ninstanceInSlot[s]. */
+	private final float[][] m_frows;
+
+	private final int[] m_ninstanceInSlot;
+
+	/** Slot of each instance, or -1 if its row is not in the cache. */
+	private final int[] m_nslotOfInstance;
+
+	//list of used slots, from the most (m_nhead) to the least (m_ntail) recently used
+	private final int[] m_npreviousSlot;
+
+	private final int[] m_nnextSlot;
+
+	private int m_nhead = -1;
+
+	private int m_ntail = -1;
+
+	private int m_nnumberOfUsedSlots;
+
+	private long m_lnumberOfHits;
+
+	private long m_lnumberOfMisses;
+
+	private long m_lnumberOfDiscardedRows;
+
+	/**
+	 * @param instances the multiclass training set, already filtered
+	 * @param kernel the kernel of all binary classifiers
+	 * @param lmaximumSizeInBytes maximum memory used by the rows. At least 2 rows are
+	 * always kept.
+	 */
+	public SharedKernelCache(Instances instances, Kernel kernel, long lmaximumSizeInBytes) {
+		m_instances = instances;
+		m_kernel = kernel;
+		int N = instances.numInstances();
+		long lbytesPerRow = 4L * Math.max(1, N);
+		long lnumberOfRows = Math.max(2, lmaximumSizeInBytes / lbytesPerRow);
+		m_nmaximumNumberOfRows = (int) Math.min(lnumberOfRows, N);
+		m_frows = new float[m_nmaximumNumberOfRows][];
+		m_ninstanceInSlot = new int[m_nmaximumNumberOfRows];
+		m_npreviousSlot = new int[m_nmaximumNumberOfRows];
+		m_nnextSlot = new int[m_nmaximumNumberOfRows];
+		m_nslotOfInstance = new int[N];
+		for (int i = 0; i < N; i++) {
+			m_nslotOfInstance[i] = -1;
+		}
+	}
+
+	/**
+	 * Returns K(i, j), where i and j are indices in the multiclass training set.
+	 */
+	public float getKernel(int i, int j) {
+		return getKernel(getRow(i), i, j);
+	}
+
+	/**
+	 * Returns the kernel matrix of the given instances, in the order of
+	 * nindices (indices in the multiclass training set). It can be used
+	 * directly by a binary classifier when nindices is its support vectors map.
+	 */
+	public float[][] getKernelMatrix(int[] nindices) {
+		int N = nindices.length;
+		float[][] fkernelMatrix = new float[N][N];
+		for (int a = 0; a < N; a++) {
+			int i = nindices[a];
+			//keep a reference: the row can be discarded while this loop runs,
+			//but its values are still valid
+			float[] frow = getRow(i);
+			for (int b = 0; b <= a; b++) {
+				fkernelMatrix[a][b] = getKernel(frow, i, nindices[b]);
+				fkernelMatrix[b][a] = fkernelMatrix[a][b];
+			}
+		}
+		return fkernelMatrix;
+	}
+
+	private float getKernel(float[] frow, int i, int j) {
+		float fvalue = frow[j];
+		if (fvalue == fvalue) {
+			//it's not NaN
+			m_lnumberOfHits++;
+			return fvalue;
+		}
+		m_lnumberOfMisses++;
+		fvalue = (float) m_kernel.calculateKernel(m_instances.instance(i), m_instances.instance(j));
+		frow[j] = fvalue;
+		//the matrix is symmetric
+		int nslot = m_nslotOfInstance[j];
+		if (nslot != -1) {
+			m_frows[nslot][i] = fvalue;
+		}
+		return fvalue;
+	}
+
+	/**
+	 * Returns the row of instance i, making it the most recently used.
+	 */
+	private float[] getRow(int i) {
+		int nslot = m_nslotOfInstance[i];
+		if (nslot != -1) {
+			moveToHead(nslot);
+			return m_frows[nslot];
+		}
+		if (m_nnumberOfUsedSlots < m_nmaximumNumberOfRows) {
+			nslot = m_nnumberOfUsedSlots++;
+			m_frows[nslot] = new float[m_nslotOfInstance.length];
+		} else {
+			//discard least recently used row and reuse its array
+			nslot = m_ntail;
+			removeFromList(nslot);
+			m_nslotOfInstance[m_ninstanceInSlot[nslot]] = -1;
+			m_lnumberOfDiscardedRows++;
+		}
+		float[] frow = m_frows[nslot];
+		for (int j = 0; j < frow.length; j++) {
+			frow[j] = Float.NaN;
+		}
+		//value K(i, i) = K(j, i) may be in other rows
+		for (int s = m_nhead; s != -1; s = m_nnextSlot[s]) {
+			frow[m_ninstanceInSlot[s]] = m_frows[s][i];
+		}
+		m_ninstanceInSlot[nslot] = i;
+		m_nslotOfInstance[i] = nslot;
+		addToHead(nslot);
+		return frow;
+	}
+
+	private void moveToHead(int nslot) {
+		if (nslot != m_nhead) {
+			removeFromList(nslot);
+			addToHead(nslot);
+		}
+	}
+
+	private void removeFromList(int nslot) {
+		int nprevious = m_npreviousSlot[nslot];
+		int nnext = m_nnextSlot[nslot];
+		if (nprevious == -1) {
+			m_nhead = nnext;
+		} else {
+			m_nnextSlot[nprevious] = nnext;
+		}
+		if (nnext == -1) {
+			m_ntail = nprevious;
+		} else {
+			m_npreviousSlot[nnext] = nprevious;
+		}
+	}
+
+	private void addToHead(int nslot) {
+		m_npreviousSlot[nslot] = -1;
+		m_nnextSlot[nslot] = m_nhead;
+		if (m_nhead != -1) {
+			m_npreviousSlot[m_nhead] = nslot;
+		}
+		m_nhead = nslot;
+		if (m_ntail == -1) {
+			m_ntail = nslot;
+		}
+	}
+
+	public Instances getInstances() {
+		return m_instances;
+	}
+
+	public int getMaximumNumberOfRows() {
+		return m_nmaximumNumberOfRows;
+	}
+
+	public long getNumberOfHits() {
+		return m_lnumberOfHits;
+	}
+
+	/**
+	 * Number of kernel values that were calculated.
+	 */
+	public long getNumberOfMisses() {
+		return m_lnumberOfMisses;
+	}
+
+	public long getNumberOfDiscardedRows() {
+		return m_lnumberOfDiscardedRows;
+	}
+
+	public double getHitRate() {
+		long ltotal = m_lnumberOfHits + m_lnumberOfMisses;
+		return (ltotal == 0) ? 0.0 : ((double) m_lnumberOfHits) / ltotal;
+	}
+
+	public String getStatistics() {
+		return "Shared kernel cache (" + m_nmaximumNumberOfRows + " rows of " +
+		m_nslotOfInstance.length + " instances): " + m_lnumberOfHits + " hits, " +
+		m_lnumberOfMisses + " kernel evaluations, " + m_lnumberOfDiscardedRows +
+		" discarded rows (hit rate = " + IO.format(100.0 * getHitRate()) + "%)";
+	}
+
+}